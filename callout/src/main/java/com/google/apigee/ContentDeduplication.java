@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Replaces message content with its hash when the remote server is known to hold it in its {@link
+ * ContentStore}. The hashes of content sent in full are remembered per server URL in a bounded,
+ * least recently used set, as servers do not share their stores; content a server has not seen is
+ * sent to it with its hash so the server stores it.
+ */
+class ContentDeduplication {
+  static final String HASH_ONLY_FLOW_VARIABLE = "remote_execution.content_dedup.hash_only";
+  static final String RESENT_FLOW_VARIABLE = "remote_execution.content_dedup.resent";
+
+  private final int minBytes;
+  private final Map<Map.Entry<String, ByteString>, Boolean> knownContentHashes;
+  private final AtomicLong hashOnly = new AtomicLong();
+  private final AtomicLong resent = new AtomicLong();
+
+  /**
+   * @param maxKnownContentHashes Number of content hashes to remember, over every server URL.
+   * @param minBytes Size below which content is always sent in full.
+   */
+  ContentDeduplication(int maxKnownContentHashes, int minBytes) {
+    this.minBytes = minBytes;
+    this.knownContentHashes =
+        new LinkedHashMap<Map.Entry<String, ByteString>, Boolean>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<Map.Entry<String, ByteString>, Boolean> eldest) {
+            return size() > maxKnownContentHashes;
+          }
+        };
+  }
+
+  /**
+   * Sets the content hash of every message with content of at least the minimum size, and drops
+   * the content of those the remote server is known to hold.
+   *
+   * @param execution Execution Protocol Buffer Message with content.
+   * @param serverUrl URL of the remote server the Execution is sent to.
+   * @return Execution Protocol Buffer Message to send
+   */
+  Execute.Execution deduplicate(Execute.Execution execution, String serverUrl) {
+    return mapMessages(execution, message -> deduplicate(message, serverUrl));
+  }
+
+  /**
+   * Restores the content of the messages whose hash the remote server reported missing, and
+   * forgets those hashes.
+   *
+   * @param execution Execution Protocol Buffer Message with content.
+   * @param sent Execution Protocol Buffer Message that was sent.
+   * @param missingContentHashes Content hashes the remote server does not hold.
+   * @param serverUrl URL of the remote server the Execution was sent to.
+   * @return Execution Protocol Buffer Message to resend
+   */
+  Execute.Execution restore(
+      Execute.Execution execution,
+      Execute.Execution sent,
+      Collection<ByteString> missingContentHashes,
+      String serverUrl) {
+    synchronized (knownContentHashes) {
+      for (ByteString missingContentHash : missingContentHashes) {
+        knownContentHashes.remove(knownContentHash(serverUrl, missingContentHash));
+      }
+    }
+    resent.addAndGet(missingContentHashes.size());
+    Execute.Execution.Builder restored = sent.toBuilder();
+    Execute.MessageContext original = execution.getMessageContext();
+    Execute.MessageContext.Builder messageContextBuilder = restored.getMessageContextBuilder();
+    if (original.hasTargetRequestMessage()) {
+      restore(
+          original.getTargetRequestMessage(),
+          messageContextBuilder.getTargetRequestMessageBuilder(),
+          missingContentHashes);
+    }
+    if (original.hasProxyRequestMessage()) {
+      restore(
+          original.getProxyRequestMessage(),
+          messageContextBuilder.getProxyRequestMessageBuilder(),
+          missingContentHashes);
+    }
+    if (original.hasTargetResponseMessage()) {
+      restore(
+          original.getTargetResponseMessage(),
+          messageContextBuilder.getTargetResponseMessageBuilder(),
+          missingContentHashes);
+    }
+    if (original.hasProxyResponseMessage()) {
+      restore(
+          original.getProxyResponseMessage(),
+          messageContextBuilder.getProxyResponseMessageBuilder(),
+          missingContentHashes);
+    }
+    if (original.hasErrorMessage()) {
+      restore(
+          original.getErrorMessage(),
+          messageContextBuilder.getErrorMessageBuilder(),
+          missingContentHashes);
+    }
+    return restored.build();
+  }
+
+  /** @return Number of messages sent with only their content hash */
+  long getHashOnly() {
+    return hashOnly.get();
+  }
+
+  /** @return Number of messages resent with their content after a miss */
+  long getResent() {
+    return resent.get();
+  }
+
+  /**
+   * Counts the messages of an Execution that are sent with only their content hash.
+   *
+   * @param execution Execution Protocol Buffer Message that was sent.
+   * @return Number of messages without content but with a content hash
+   */
+  static int countHashOnly(Execute.Execution execution) {
+    int count = 0;
+    Execute.MessageContext messageContext = execution.getMessageContext();
+    for (Execute.Message message :
+        new Execute.Message[] {
+          messageContext.getTargetRequestMessage(),
+          messageContext.getProxyRequestMessage(),
+          messageContext.getTargetResponseMessage(),
+          messageContext.getProxyResponseMessage(),
+          messageContext.getErrorMessage()
+        }) {
+      if (!message.getContentHash().isEmpty() && message.getContent().isEmpty()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private Execute.Message deduplicate(Execute.Message message, String serverUrl) {
+    if (message.getContent().size() < minBytes) {
+      return message;
+    }
+    ByteString contentHash = ContentStore.hash(message.getContent());
+    boolean known;
+    synchronized (knownContentHashes) {
+      known =
+          knownContentHashes.put(knownContentHash(serverUrl, contentHash), Boolean.TRUE) != null;
+    }
+    if (!known) {
+      return message.toBuilder().setContentHash(contentHash).build();
+    }
+    hashOnly.incrementAndGet();
+    return message.toBuilder().clearContent().setContentHash(contentHash).build();
+  }
+
+  private static Map.Entry<String, ByteString> knownContentHash(
+      String serverUrl, ByteString contentHash) {
+    return new AbstractMap.SimpleImmutableEntry<>(serverUrl, contentHash);
+  }
+
+  private static void restore(
+      Execute.Message original,
+      Execute.Message.Builder messageBuilder,
+      Collection<ByteString> missingContentHashes) {
+    if (messageBuilder.getContent().isEmpty()
+        && missingContentHashes.contains(messageBuilder.getContentHash())) {
+      messageBuilder.setContent(original.getContent());
+    }
+  }
+
+  private static Execute.Execution mapMessages(
+      Execute.Execution execution, UnaryOperator<Execute.Message> mapper) {
+    Execute.MessageContext messageContext = execution.getMessageContext();
+    Execute.MessageContext.Builder messageContextBuilder = messageContext.toBuilder();
+    if (messageContext.hasTargetRequestMessage()) {
+      messageContextBuilder.setTargetRequestMessage(
+          mapper.apply(messageContext.getTargetRequestMessage()));
+    }
+    if (messageContext.hasProxyRequestMessage()) {
+      messageContextBuilder.setProxyRequestMessage(
+          mapper.apply(messageContext.getProxyRequestMessage()));
+    }
+    if (messageContext.hasTargetResponseMessage()) {
+      messageContextBuilder.setTargetResponseMessage(
+          mapper.apply(messageContext.getTargetResponseMessage()));
+    }
+    if (messageContext.hasProxyResponseMessage()) {
+      messageContextBuilder.setProxyResponseMessage(
+          mapper.apply(messageContext.getProxyResponseMessage()));
+    }
+    if (messageContext.hasErrorMessage()) {
+      messageContextBuilder.setErrorMessage(mapper.apply(messageContext.getErrorMessage()));
+    }
+    return execution.toBuilder().setMessageContext(messageContextBuilder).build();
+  }
+}
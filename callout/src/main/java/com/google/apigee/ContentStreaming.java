@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Streams the content of the messages of a {@link MessageContext} to the remote HTTP server as an
+ * {@link ExecutionStream}, and streams the content the remote HTTP server returns back into the
+ * messages, so that content is never held in memory as a whole. Returned content is copied before
+ * it is set on a message, as the message reads it only after the response is consumed: into memory
+ * up to {@link #MAX_BUFFERED_CONTENT_BYTES}, and into a temporary file deleted on close beyond it.
+ */
+class ContentStreaming {
+
+  /** Size of returned content kept in memory, larger content is spooled to a temporary file. */
+  static final int MAX_BUFFERED_CONTENT_BYTES = 1024 * 1024;
+
+  private static final MessageType[] MESSAGE_TYPES = {
+    MessageType.TARGET_REQUEST_MESSAGE,
+    MessageType.PROXY_REQUEST_MESSAGE,
+    MessageType.TARGET_RESPONSE_MESSAGE,
+    MessageType.PROXY_RESPONSE_MESSAGE,
+    MessageType.ERROR_MESSAGE
+  };
+
+  private ContentStreaming() {}
+
+  /**
+   * Builds the entity of the HTTP request. The content of each message is read from {@link
+   * Message#getContentAsStream()} while the request is sent.
+   *
+   * @param execution Execution Protocol Buffer Message built without content.
+   * @param messageContext {@link MessageContext} holding the messages whose content is streamed.
+   * @return HttpEntity writing an execution stream
+   */
+  static HttpEntity buildRequestEntity(
+      Execute.Execution execution, MessageContext messageContext) {
+    return new ExecutionStreamEntity(execution, messageContext);
+  }
+
+  /**
+   * Reads the Execution returned by the remote HTTP server. If the remote HTTP server answered with
+   * an execution stream and its result is CONTINUE, the content it streams replaces the content of
+   * the matching messages.
+   *
+   * @param entity Entity of the HTTP response, consumed by this method.
+   * @param messageContext {@link MessageContext} to write the returned content to.
+   * @return Execution Protocol Buffer Message returned by the remote HTTP server
+   * @throws IOException if the response cannot be read or parsed
+   */
+  static Execute.Execution readResponse(HttpEntity entity, MessageContext messageContext)
+      throws IOException {
+    return readResponse(entity, messageContext, MAX_BUFFERED_CONTENT_BYTES);
+  }
+
+  /**
+   * @param entity Entity of the HTTP response, consumed by this method.
+   * @param messageContext {@link MessageContext} to write the returned content to.
+   * @param maxBufferedBytes Size of content kept in memory rather than in a temporary file.
+   * @return Execution Protocol Buffer Message returned by the remote HTTP server
+   * @throws IOException if the response cannot be read or parsed
+   */
+  static Execute.Execution readResponse(
+      HttpEntity entity, MessageContext messageContext, int maxBufferedBytes) throws IOException {
+    ContentType contentType = ContentType.get(entity);
+    if (contentType == null || !ExecutionStream.isExecutionStream(contentType.getMimeType())) {
+      return Execute.Execution.parseFrom(EntityUtils.toByteArray(entity));
+    }
+    try (InputStream inputStream = entity.getContent()) {
+      ExecutionStream.Reader reader = new ExecutionStream.Reader(inputStream);
+      Execute.Execution execution = reader.readExecution();
+      boolean applyContent =
+          execution.getExecutionResult().getAction() == Execute.ExecutionResult.Action.CONTINUE;
+      for (MessageType messageType; (messageType = reader.nextContent()) != null; ) {
+        Message message = getMessage(messageContext, messageType);
+        if (applyContent && message != null) {
+          message.setContent(copyContent(reader.getContent(), maxBufferedBytes));
+        }
+      }
+      return execution;
+    }
+  }
+
+  /**
+   * Copies content out of the response, which moves on to the next content and is closed before the
+   * message reads what it was given.
+   *
+   * @param content Content of a message, read to its end.
+   * @param maxBufferedBytes Size of content kept in memory rather than in a temporary file.
+   * @return InputStream of the copy
+   * @throws IOException if the content cannot be read or spooled
+   */
+  private static InputStream copyContent(InputStream content, int maxBufferedBytes)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    for (int read; (read = content.read(chunk)) != -1; ) {
+      buffer.write(chunk, 0, read);
+      if (buffer.size() > maxBufferedBytes) {
+        return spool(buffer, content, chunk);
+      }
+    }
+    return new ByteArrayInputStream(buffer.toByteArray());
+  }
+
+  private static InputStream spool(ByteArrayOutputStream buffer, InputStream content, byte[] chunk)
+      throws IOException {
+    Path file = Files.createTempFile("remote-execution-content", ".tmp");
+    try {
+      try (OutputStream outputStream = Files.newOutputStream(file)) {
+        buffer.writeTo(outputStream);
+        for (int read; (read = content.read(chunk)) != -1; ) {
+          outputStream.write(chunk, 0, read);
+        }
+      }
+      // Unlinked as soon as it is opened where the file system allows it, on close otherwise.
+      return Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+  }
+
+  private static Message getMessage(MessageContext messageContext, MessageType messageType) {
+    switch (messageType) {
+      case TARGET_REQUEST_MESSAGE:
+        return messageContext.getMessage(FlowContext.TARGET_REQUEST);
+      case PROXY_REQUEST_MESSAGE:
+        return messageContext.getMessage(FlowContext.PROXY_REQUEST);
+      case TARGET_RESPONSE_MESSAGE:
+        return messageContext.getMessage(FlowContext.TARGET_RESPONSE);
+      case PROXY_RESPONSE_MESSAGE:
+        return messageContext.getMessage(FlowContext.PROXY_RESPONSE);
+      case ERROR_MESSAGE:
+        return messageContext.getErrorMessage();
+      default:
+        return null;
+    }
+  }
+
+  /** Entity writing the Execution and then the content of each message, sent chunked. */
+  private static class ExecutionStreamEntity extends AbstractHttpEntity {
+    private final Execute.Execution execution;
+    private final MessageContext messageContext;
+
+    ExecutionStreamEntity(Execute.Execution execution, MessageContext messageContext) {
+      this.execution = execution;
+      this.messageContext = messageContext;
+      setContentType(ExecutionStream.CONTENT_TYPE);
+      setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public long getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public InputStream getContent() {
+      throw new UnsupportedOperationException("content is only written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+      ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+      writer.writeExecution(execution);
+      for (MessageType messageType : MESSAGE_TYPES) {
+        Message message = getMessage(messageContext, messageType);
+        InputStream content = message == null ? null : message.getContentAsStream();
+        if (content != null) {
+          try {
+            writer.writeContent(messageType, content);
+          } finally {
+            content.close();
+          }
+        }
+      }
+      writer.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+  }
+}
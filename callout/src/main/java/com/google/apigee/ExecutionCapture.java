@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.CodedOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * Samples outgoing Execution Protocol Buffer Messages into a local file of length-delimited
+ * messages, so real traffic can be replayed against a remote policy later. Capturing stops once the
+ * file reaches its size cap or a write fails; it never fails the execution itself.
+ */
+class ExecutionCapture {
+  static final String REDACTED_VALUE = "REDACTED";
+  static final String REDACT_CONTENT = "content";
+  private static final Map<String, CaptureFile> CAPTURE_FILES = new ConcurrentHashMap<>();
+
+  private final CaptureFile captureFile;
+  private final double sampleRate;
+  private final Set<String> redactedNames;
+  /** Redacted names in lower case, as header names are matched without case. */
+  private final Set<String> redactedHeaderNames;
+  private final boolean redactContent;
+
+  /**
+   * @param path File to append captured messages to. Callouts capturing to the same file share it.
+   * @param maxBytes Size cap of the file, including anything captured before.
+   * @param sampleRate Fraction of executions to capture, between 0 and 1.
+   * @param redactedNames Header, query parameter, flow variable and FlowInfo variable names whose
+   *     values are replaced by {@link #REDACTED_VALUE}, header names in any case. A FlowInfo
+   *     variable is also matched as {@code identifier:name}. {@link #REDACT_CONTENT} drops the
+   *     content of every message.
+   * @throws IllegalArgumentException if another callout captures to the file with another size cap
+   */
+  ExecutionCapture(String path, long maxBytes, double sampleRate, Set<String> redactedNames) {
+    this.captureFile =
+        CAPTURE_FILES.computeIfAbsent(
+            new File(path).getAbsolutePath(), p -> new CaptureFile(p, maxBytes));
+    if (captureFile.maxBytes != maxBytes) {
+      throw new IllegalArgumentException(
+          "capture file " + path + " is already capped at " + captureFile.maxBytes + " bytes");
+    }
+    this.sampleRate = sampleRate;
+    this.redactedNames = redactedNames;
+    this.redactedHeaderNames =
+        redactedNames.stream()
+            .map(name -> name.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toCollection(HashSet::new));
+    this.redactContent = redactedNames.contains(REDACT_CONTENT);
+  }
+
+  /**
+   * Parses a comma-separated list of names to redact.
+   *
+   * @param redact Property value listing names, or null.
+   * @return Set of trimmed, non-empty names
+   */
+  static Set<String> parseRedactedNames(String redact) {
+    if (redact == null) {
+      return Collections.emptySet();
+    }
+    return Arrays.stream(redact.split(","))
+        .map(String::trim)
+        .filter(name -> !name.isEmpty())
+        .collect(Collectors.toCollection(HashSet::new));
+  }
+
+  /**
+   * Captures the execution if it is sampled and the capture file still has room.
+   *
+   * @param execution Execution about to be sent to the remote HTTP server.
+   */
+  void sample(Execute.Execution execution) {
+    if (captureFile.isFull() || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return;
+    }
+    captureFile.append(redact(execution));
+  }
+
+  /**
+   * Replaces the values of redacted names in every message of the execution. Headers with indexed
+   * names are decoded to be redacted and encoded again, so the capture keeps the encoding that was
+   * sent.
+   *
+   * @param execution Execution to redact.
+   * @return Redacted copy of the execution, or the execution itself if nothing is redacted
+   */
+  Execute.Execution redact(Execute.Execution execution) {
+    if (redactedNames.isEmpty() || !execution.hasMessageContext()) {
+      return execution;
+    }
+    boolean indexed = execution.getHeaderEncoding() == Execute.Execution.HeaderEncoding.INDEXED;
+    Execute.Execution.Builder executionBuilder = HeaderNameTable.decode(execution).toBuilder();
+    Execute.MessageContext.Builder messageContextBuilder =
+        executionBuilder.getMessageContextBuilder();
+    if (messageContextBuilder.hasTargetRequestMessage()) {
+      redact(messageContextBuilder.getTargetRequestMessageBuilder());
+    }
+    if (messageContextBuilder.hasProxyRequestMessage()) {
+      redact(messageContextBuilder.getProxyRequestMessageBuilder());
+    }
+    if (messageContextBuilder.hasTargetResponseMessage()) {
+      redact(messageContextBuilder.getTargetResponseMessageBuilder());
+    }
+    if (messageContextBuilder.hasProxyResponseMessage()) {
+      redact(messageContextBuilder.getProxyResponseMessageBuilder());
+    }
+    if (messageContextBuilder.hasErrorMessage()) {
+      redact(messageContextBuilder.getErrorMessageBuilder());
+    }
+    return indexed
+        ? HeaderNameTable.encode(executionBuilder.build())
+        : executionBuilder.build();
+  }
+
+  private void redact(Execute.Message.Builder messageBuilder) {
+    if (redactContent) {
+      messageBuilder.clearContent();
+    }
+    for (String name : new ArrayList<>(messageBuilder.getHeaderMapMap().keySet())) {
+      if (redactedHeaderNames.contains(name.toLowerCase(Locale.ROOT))) {
+        messageBuilder.putHeaderMap(
+            name,
+            Execute.Message.Headers.newBuilder()
+                .addAllHeaders(
+                    Collections.nCopies(
+                        messageBuilder.getHeaderMapOrThrow(name).getHeadersCount(),
+                        REDACTED_VALUE))
+                .build());
+      }
+    }
+    for (String name : redactedNames) {
+      Execute.Message.QueryParameters queryParameters =
+          messageBuilder.getQueryParamMapMap().get(name);
+      if (queryParameters != null) {
+        messageBuilder.putQueryParamMap(
+            name,
+            Execute.Message.QueryParameters.newBuilder()
+                .addAllQueryParameters(
+                    Collections.nCopies(
+                        queryParameters.getQueryParametersCount(), REDACTED_VALUE))
+                .build());
+      }
+      if (messageBuilder.containsFlowVariables(name)) {
+        messageBuilder.putFlowVariables(
+            name,
+            Execute.Message.FlowMapValue.newBuilder().setFlowVariable(REDACTED_VALUE).build());
+      }
+    }
+    for (Map.Entry<String, Execute.Message.FlowMapValue> flowVariable :
+        new ArrayList<>(messageBuilder.getFlowVariablesMap().entrySet())) {
+      if (flowVariable.getValue().hasFlowInfo()) {
+        messageBuilder.putFlowVariables(
+            flowVariable.getKey(),
+            Execute.Message.FlowMapValue.newBuilder()
+                .setFlowInfo(redact(flowVariable.getValue().getFlowInfo()))
+                .build());
+      }
+    }
+  }
+
+  private Execute.FlowInfo redact(Execute.FlowInfo flowInfo) {
+    Execute.FlowInfo.Builder flowInfoBuilder = flowInfo.toBuilder();
+    for (String name : flowInfo.getTypedVariablesMap().keySet()) {
+      if (isRedacted(flowInfo, name)) {
+        flowInfoBuilder.putTypedVariables(
+            name, Execute.Value.newBuilder().setStringValue(REDACTED_VALUE).build());
+      }
+    }
+    for (String name : flowInfo.getVariablesMap().keySet()) {
+      if (isRedacted(flowInfo, name)) {
+        // Untyped variables have no string form to hold the redacted value.
+        flowInfoBuilder.removeVariables(name);
+      }
+    }
+    return flowInfoBuilder.build();
+  }
+
+  private boolean isRedacted(Execute.FlowInfo flowInfo, String name) {
+    return redactedNames.contains(name)
+        || redactedNames.contains(flowInfo.getIdentifier() + ":" + name);
+  }
+
+  /** Capture file shared by every callout writing to the same path. */
+  private static class CaptureFile {
+    private final String path;
+    private final long maxBytes;
+    private OutputStream outputStream;
+    private long bytesWritten;
+    private volatile boolean full;
+
+    CaptureFile(String path, long maxBytes) {
+      this.path = path;
+      this.maxBytes = maxBytes;
+      this.bytesWritten = new File(path).length();
+      this.full = bytesWritten >= maxBytes;
+    }
+
+    boolean isFull() {
+      return full;
+    }
+
+    /**
+     * Appends a length-delimited message unless it would take the file past its size cap.
+     *
+     * @param execution Execution to append.
+     */
+    synchronized void append(Execute.Execution execution) {
+      int size = execution.getSerializedSize();
+      long recordBytes = CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+      if (full || bytesWritten + recordBytes > maxBytes) {
+        close();
+        return;
+      }
+      try {
+        if (outputStream == null) {
+          outputStream = new BufferedOutputStream(new FileOutputStream(path, true));
+        }
+        execution.writeDelimitedTo(outputStream);
+        // Flushed per message so a capture is usable while the proxy keeps running.
+        outputStream.flush();
+        bytesWritten += recordBytes;
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    private void close() {
+      full = true;
+      if (outputStream != null) {
+        try {
+          outputStream.close();
+        } catch (IOException ignored) {
+          // Capturing is best effort and has already stopped.
+        }
+        outputStream = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of serialized Execution Protocol Buffer Messages whose results are not needed.
+ * Executions are enqueued without locking and senders drain them in batches, each sent to the
+ * remote HTTP server in one request. Senders run on threads shared by every queue and only while
+ * their queue holds executions, so an idle queue holds no thread. When the queue is full, the
+ * overflow policy decides whether the oldest or the newest execution is dropped, or whether the
+ * caller waits for a sender to make room.
+ */
+class FireAndForgetQueue {
+  static final String QUEUE_DEPTH_FLOW_VARIABLE = "remote_execution.fire_and_forget.queue_depth";
+  static final String DROPPED_FLOW_VARIABLE = "remote_execution.fire_and_forget.dropped";
+  static final String FAILED_FLOW_VARIABLE = "remote_execution.fire_and_forget.failed";
+  static final String FLUSH_LATENCY_FLOW_VARIABLE =
+      "remote_execution.fire_and_forget.flush_latency_ms";
+  private static final long KEEP_ALIVE_SECONDS = 60;
+  private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+  // Each queue bounds its own senders, so the shared threads are not bounded again.
+  private static final ExecutorService SENDERS =
+      new ThreadPoolExecutor(
+          0,
+          Integer.MAX_VALUE,
+          KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<>(),
+          runnable -> {
+            Thread thread =
+                new Thread(
+                    runnable,
+                    "remote-execution-fire-and-forget-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  /** What happens to an execution enqueued while the queue is full. */
+  enum OverflowPolicy {
+    DROP_OLDEST,
+    DROP_NEWEST,
+    BLOCK
+  }
+
+  private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicInteger activeSenders = new AtomicInteger();
+  private final AtomicInteger blockedOffers = new AtomicInteger();
+  private final ReentrantLock roomLock = new ReentrantLock();
+  private final Condition room = roomLock.newCondition();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong lastFlushLatencyNanos = new AtomicLong();
+  private final RemotePolicyExecutionHandler remotePolicyExecutionHandler;
+  private final String serverUrl;
+  private final int capacity;
+  private final int batchSize;
+  private final OverflowPolicy overflowPolicy;
+  private final int maxSenders;
+
+  /**
+   * @param remotePolicyExecutionHandler Handler sending the batches.
+   * @param serverUrl URL of the HTTP Server endpoint.
+   * @param capacity Maximum number of executions waiting to be sent.
+   * @param batchSize Maximum number of executions sent in one request.
+   * @param overflowPolicy What happens to executions enqueued while the queue is full.
+   * @param maxSenders Maximum number of batches sent at once.
+   */
+  FireAndForgetQueue(
+      RemotePolicyExecutionHandler remotePolicyExecutionHandler,
+      String serverUrl,
+      int capacity,
+      int batchSize,
+      OverflowPolicy overflowPolicy,
+      int maxSenders) {
+    this.remotePolicyExecutionHandler = remotePolicyExecutionHandler;
+    this.serverUrl = serverUrl;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    this.overflowPolicy = overflowPolicy;
+    this.maxSenders = maxSenders;
+  }
+
+  /**
+   * Parses an overflow policy from a policy property.
+   *
+   * @param overflowPolicy {@code drop_oldest}, {@code drop_newest} or {@code block}, or null.
+   * @return OverflowPolicy, DROP_NEWEST if null
+   * @throws IllegalArgumentException if the overflow policy is unknown
+   */
+  static OverflowPolicy parseOverflowPolicy(String overflowPolicy) {
+    if (overflowPolicy == null) {
+      return OverflowPolicy.DROP_NEWEST;
+    }
+    for (OverflowPolicy value : OverflowPolicy.values()) {
+      if (value.name().equalsIgnoreCase(overflowPolicy.trim())) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("unknown overflow policy: " + overflowPolicy);
+  }
+
+  /**
+   * Enqueues a serialized execution, applying the overflow policy if the queue is full. A caller
+   * blocked waiting for room gives up and drops the execution if it is interrupted.
+   *
+   * @param serializedExecution Serialized Execution Protocol Buffer Message.
+   * @return Whether the execution was enqueued
+   */
+  boolean offer(byte[] serializedExecution) {
+    while (true) {
+      int current = depth.get();
+      if (current < capacity) {
+        if (depth.compareAndSet(current, current + 1)) {
+          queue.add(serializedExecution);
+          startSender();
+          return true;
+        }
+        continue;
+      }
+      switch (overflowPolicy) {
+        case DROP_OLDEST:
+          if (queue.poll() != null) {
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+          }
+          break;
+        case BLOCK:
+          if (!awaitRoom()) {
+            dropped.incrementAndGet();
+            return false;
+          }
+          break;
+        default:
+          dropped.incrementAndGet();
+          return false;
+      }
+    }
+  }
+
+  /**
+   * Waits until a sender takes an execution off the full queue.
+   *
+   * @return Whether there is room, false if the caller was interrupted
+   */
+  private boolean awaitRoom() {
+    // Counted before the depth is checked, so a sender that makes room afterwards signals.
+    blockedOffers.incrementAndGet();
+    roomLock.lock();
+    try {
+      while (depth.get() >= capacity) {
+        room.await();
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      roomLock.unlock();
+      blockedOffers.decrementAndGet();
+    }
+  }
+
+  private void signalRoom() {
+    if (blockedOffers.get() > 0) {
+      roomLock.lock();
+      try {
+        room.signalAll();
+      } finally {
+        roomLock.unlock();
+      }
+    }
+  }
+
+  /** Starts another sender on the shared threads, unless the queue has its maximum already. */
+  private void startSender() {
+    for (int current; (current = activeSenders.get()) < maxSenders; ) {
+      if (activeSenders.compareAndSet(current, current + 1)) {
+        try {
+          SENDERS.execute(this::send);
+        } catch (RejectedExecutionException e) {
+          activeSenders.decrementAndGet();
+        }
+        return;
+      }
+    }
+  }
+
+  /** @return Number of executions waiting to be sent */
+  int getDepth() {
+    return depth.get();
+  }
+
+  /** @return Number of executions dropped because the queue was full */
+  long getDropped() {
+    return dropped.get();
+  }
+
+  /** @return Number of executions sent and run by the remote HTTP server */
+  long getSent() {
+    return sent.get();
+  }
+
+  /**
+   * @return Number of executions that failed: whose batch failed to send or was answered with an
+   *     HTTP error, or that the remote HTTP server answered with ABORT
+   */
+  long getFailed() {
+    return failed.get();
+  }
+
+  /** @return Time the last batch took to send, in milliseconds */
+  double getLastFlushLatencyMillis() {
+    return lastFlushLatencyNanos.get() / 1e6;
+  }
+
+  /** Sends batches until the queue is empty, then stops. */
+  private void send() {
+    List<byte[]> batch = new ArrayList<>(batchSize);
+    while (true) {
+      for (byte[] serializedExecution;
+          batch.size() < batchSize && (serializedExecution = queue.poll()) != null; ) {
+        depth.decrementAndGet();
+        batch.add(serializedExecution);
+      }
+      if (batch.isEmpty()) {
+        activeSenders.decrementAndGet();
+        // An execution enqueued while this sender was stopping did not start another one.
+        if (queue.isEmpty() || !restartSender()) {
+          return;
+        }
+        continue;
+      }
+      signalRoom();
+      long start = System.nanoTime();
+      try {
+        int batchFailed =
+            remotePolicyExecutionHandler.sendRemoteHttpServerBatch(batch, serverUrl);
+        sent.addAndGet(batch.size() - batchFailed);
+        failed.addAndGet(batchFailed);
+      } catch (Throwable throwable) {
+        failed.addAndGet(batch.size());
+      }
+      lastFlushLatencyNanos.set(System.nanoTime() - start);
+      batch.clear();
+    }
+  }
+
+  private boolean restartSender() {
+    for (int current; (current = activeSenders.get()) < maxSenders; ) {
+      if (activeSenders.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -20,36 +20,314 @@ import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.Execute.ExecutionResult.Action;
 import com.google.apigee.ProtoMessageBuilders.ExecutionContextProtoMessageBuilder;
+import com.google.apigee.ProtoMessageBuilders.FlowVariableAllowlist;
 import com.google.apigee.ProtoMessageBuilders.MessageContextProtoMessageBuilder;
+import com.google.apigee.ProtoMessageBuilders.MessageProtoCache;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Java Callout demonstrating execution of a Java Callout or Apigee Policy on remote HTTP Server.
- * This callout specifically expects the remote server to set a flow variable and extracts that
- * value.
+ * Changes the remote server makes to the messages and flow variables are applied back to the
+ * {@link MessageContext}. If the remote server sets the {@code Example} flow variable on the target
+ * request, its value also becomes the content of the current message.
  */
 public class JavaCalloutRemotePolicyExecution implements Execution {
 
   private static final String FLOW_VARIABLE_KEY = "Example";
   private static final String REMOTE_SERVER_URL_PROPERTY_NAME = "remote_execution_url";
+  private static final String MAX_CONNECTIONS_PROPERTY_NAME = "max_connections";
+  private static final String LOCAL_SERIALIZATION_PROPERTY_NAME = "local_serialization";
+  private static final String FLOW_VARIABLES_PROPERTY_NAME = "flow_variables";
+  private static final String FLOW_INFO_VARIABLES_PROPERTY_NAME = "flow_info_variables";
+  private static final String HEADER_ENCODING_PROPERTY_NAME = "header_encoding";
+  private static final String CONTENT_STREAMING_PROPERTY_NAME = "content_streaming";
+  private static final String CONTENT_DEDUP_PROPERTY_NAME = "content_dedup";
+  private static final String CONTENT_DEDUP_MIN_BYTES_PROPERTY_NAME = "content_dedup_min_bytes";
+  private static final String CONTENT_DEDUP_MAX_HASHES_PROPERTY_NAME = "content_dedup_max_hashes";
+  private static final String PREFETCH_PROPERTY_NAME = "prefetch";
+  private static final String PREFETCH_VARIABLE_PROPERTY_NAME = "prefetch_variable";
+  private static final String PREFETCH_TIMEOUT_MS_PROPERTY_NAME = "prefetch_timeout_ms";
+  private static final String FIRE_AND_FORGET_PROPERTY_NAME = "fire_and_forget";
+  private static final String FIRE_AND_FORGET_QUEUE_SIZE_PROPERTY_NAME =
+      "fire_and_forget_queue_size";
+  private static final String FIRE_AND_FORGET_OVERFLOW_PROPERTY_NAME = "fire_and_forget_overflow";
+  private static final String FIRE_AND_FORGET_BATCH_SIZE_PROPERTY_NAME =
+      "fire_and_forget_batch_size";
+  private static final String FIRE_AND_FORGET_SENDERS_PROPERTY_NAME = "fire_and_forget_senders";
+  private static final String MESSAGE_CACHE_PROPERTY_NAME = "message_cache";
+  private static final String REMOTE_POLICIES_PROPERTY_NAME = "remote_policies";
+  private static final String REMOTE_SERVER_URLS_PROPERTY_NAME = "remote_execution_urls";
+  private static final String FAN_OUT_MERGE_PROPERTY_NAME = "fan_out_merge";
+  static final String POLICY_FLOW_VARIABLE = "remote_execution.policy";
+  private static final String CAPTURE_FILE_PROPERTY_NAME = "capture_file";
+  private static final String CAPTURE_MAX_BYTES_PROPERTY_NAME = "capture_max_bytes";
+  private static final String CAPTURE_SAMPLE_RATE_PROPERTY_NAME = "capture_sample_rate";
+  private static final String CAPTURE_REDACT_PROPERTY_NAME = "capture_redact";
+  private static final long DEFAULT_CAPTURE_MAX_BYTES = 64L * 1024 * 1024;
+  private static final String DEFAULT_PREFETCH_VARIABLE = "remote_execution.prefetch";
+  private static final long DEFAULT_PREFETCH_TIMEOUT_MS = 10000;
+  private static final int DEFAULT_FIRE_AND_FORGET_QUEUE_SIZE = 10000;
+  private static final int DEFAULT_FIRE_AND_FORGET_BATCH_SIZE = 100;
+  private static final int DEFAULT_CONTENT_DEDUP_MIN_BYTES = 1024;
+  private static final int DEFAULT_CONTENT_DEDUP_MAX_HASHES = 10000;
   private final RemotePolicyExecutionHandler remotePolicyExecutionHandler;
+  private final ExecutionCapture executionCapture;
+  private final FlowVariableAllowlist flowVariableAllowlist;
+  private final Execute.Execution.HeaderEncoding headerEncoding;
+  private final boolean contentStreaming;
+  private final ContentDeduplication contentDeduplication;
+  private final Prefetch prefetch;
+  private final String prefetchVariable;
+  private final long prefetchTimeoutMillis;
+  private final FireAndForgetQueue fireAndForgetQueue;
+  private final boolean messageCache;
+  private final Execute.PolicyChain policyChain;
+  private final List<String> fanOutUrls;
+  private final FanOutMerge fanOutMerge;
   private Map<String, String> properties;
 
   public JavaCalloutRemotePolicyExecution(Map<String, String> properties) {
-    this(properties, new RemotePolicyExecutionHandler());
+    this(
+        properties,
+        new RemotePolicyExecutionHandler(
+            getMaxConnections(properties),
+            Boolean.parseBoolean(
+                properties.getOrDefault(LOCAL_SERIALIZATION_PROPERTY_NAME, "").trim())));
   }
 
   public JavaCalloutRemotePolicyExecution(
       Map<String, String> properties, RemotePolicyExecutionHandler remotePolicyExecutionHandler) {
     this.properties = properties;
     this.remotePolicyExecutionHandler = remotePolicyExecutionHandler;
+    this.executionCapture = buildExecutionCapture(properties);
+    this.flowVariableAllowlist =
+        FlowVariableAllowlist.parse(
+            properties.get(FLOW_VARIABLES_PROPERTY_NAME),
+            properties.get(FLOW_INFO_VARIABLES_PROPERTY_NAME));
+    this.headerEncoding = getHeaderEncoding(properties);
+    this.contentStreaming =
+        Boolean.parseBoolean(properties.getOrDefault(CONTENT_STREAMING_PROPERTY_NAME, "").trim());
+    this.contentDeduplication = contentStreaming ? null : buildContentDeduplication(properties);
+    this.prefetch = getPrefetch(properties);
+    if (prefetch == Prefetch.START && contentStreaming) {
+      throw new IllegalArgumentException("content_streaming cannot be prefetched");
+    }
+    this.prefetchVariable =
+        properties.getOrDefault(PREFETCH_VARIABLE_PROPERTY_NAME, DEFAULT_PREFETCH_VARIABLE).trim();
+    String prefetchTimeout = properties.get(PREFETCH_TIMEOUT_MS_PROPERTY_NAME);
+    this.prefetchTimeoutMillis =
+        prefetchTimeout == null
+            ? DEFAULT_PREFETCH_TIMEOUT_MS
+            : Long.parseLong(prefetchTimeout.trim());
+    this.messageCache =
+        Boolean.parseBoolean(properties.getOrDefault(MESSAGE_CACHE_PROPERTY_NAME, "").trim());
+    this.policyChain = getPolicyChain(properties);
+    this.fireAndForgetQueue = buildFireAndForgetQueue(properties, remotePolicyExecutionHandler);
+    if (fireAndForgetQueue != null && (contentStreaming || prefetch != Prefetch.NONE)) {
+      throw new IllegalArgumentException(
+          "fire_and_forget cannot be combined with content_streaming or prefetch");
+    }
+    this.fanOutUrls = getFanOutUrls(properties);
+    this.fanOutMerge = getFanOutMerge(properties);
+    if (fanOutUrls != null
+        && (contentStreaming || prefetch != Prefetch.NONE || fireAndForgetQueue != null)) {
+      throw new IllegalArgumentException(
+          "remote_execution_urls cannot be combined with content_streaming, prefetch or"
+              + " fire_and_forget");
+    }
+  }
+
+  /**
+   * Reads the size of the connection pool shared by every execution of this callout.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return Maximum number of connections to keep open to the remote HTTP server
+   */
+  private static int getMaxConnections(Map<String, String> properties) {
+    String maxConnections = properties.get(MAX_CONNECTIONS_PROPERTY_NAME);
+    return maxConnections == null
+        ? RemotePolicyExecutionHandler.DEFAULT_MAX_CONNECTIONS
+        : Integer.parseInt(maxConnections.trim());
+  }
+
+  /**
+   * Reads how header names are sent to the remote HTTP server.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return INDEXED if the {@code header_encoding} property is {@code indexed}, HEADER_MAP if it is
+   *     unset or {@code header_map}
+   */
+  private static Execute.Execution.HeaderEncoding getHeaderEncoding(
+      Map<String, String> properties) {
+    String headerEncoding = properties.get(HEADER_ENCODING_PROPERTY_NAME);
+    if (headerEncoding == null || headerEncoding.trim().equalsIgnoreCase("header_map")) {
+      return Execute.Execution.HeaderEncoding.HEADER_MAP;
+    }
+    if (headerEncoding.trim().equalsIgnoreCase("indexed")) {
+      return Execute.Execution.HeaderEncoding.INDEXED;
+    }
+    throw new IllegalArgumentException("unknown header_encoding: " + headerEncoding);
+  }
+
+  /**
+   * Reads the remote policies the remote HTTP server runs in one round trip.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return PolicyChain naming the comma separated policies of the {@code remote_policies}
+   *     property in order, or null if it is unset or empty
+   */
+  private static Execute.PolicyChain getPolicyChain(Map<String, String> properties) {
+    String remotePolicies = properties.get(REMOTE_POLICIES_PROPERTY_NAME);
+    if (remotePolicies == null) {
+      return null;
+    }
+    Execute.PolicyChain.Builder policyChainBuilder = Execute.PolicyChain.newBuilder();
+    for (String policy : remotePolicies.split(",")) {
+      if (!policy.trim().isEmpty()) {
+        policyChainBuilder.addPolicies(policy.trim());
+      }
+    }
+    return policyChainBuilder.getPoliciesCount() == 0 ? null : policyChainBuilder.build();
+  }
+
+  /**
+   * Reads the URLs of the remote HTTP servers the same Execution is sent to at once.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return Comma separated URLs of the {@code remote_execution_urls} property in order, or null if
+   *     it is unset or empty
+   */
+  private static List<String> getFanOutUrls(Map<String, String> properties) {
+    String serverUrls = properties.get(REMOTE_SERVER_URLS_PROPERTY_NAME);
+    if (serverUrls == null) {
+      return null;
+    }
+    List<String> fanOutUrls = new ArrayList<>();
+    for (String serverUrl : serverUrls.split(",")) {
+      if (!serverUrl.trim().isEmpty()) {
+        fanOutUrls.add(serverUrl.trim());
+      }
+    }
+    return fanOutUrls.isEmpty() ? null : fanOutUrls;
+  }
+
+  /**
+   * Reads how the results of a fan-out are merged.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return IGNORE_ABORT if the {@code fan_out_merge} property is {@code ignore_abort},
+   *     FIRST_ABORT if it is unset or {@code first_abort}
+   */
+  private static FanOutMerge getFanOutMerge(Map<String, String> properties) {
+    String fanOutMerge = properties.get(FAN_OUT_MERGE_PROPERTY_NAME);
+    if (fanOutMerge == null || fanOutMerge.trim().equalsIgnoreCase("first_abort")) {
+      return FanOutMerge.FIRST_ABORT;
+    }
+    if (fanOutMerge.trim().equalsIgnoreCase("ignore_abort")) {
+      return FanOutMerge.IGNORE_ABORT;
+    }
+    throw new IllegalArgumentException("unknown fan_out_merge: " + fanOutMerge);
+  }
+
+  /**
+   * Reads whether this step starts or collects a prefetched remote execution.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return START or COLLECT if the {@code prefetch} property is {@code start} or {@code collect},
+   *     NONE if it is unset
+   */
+  private static Prefetch getPrefetch(Map<String, String> properties) {
+    String prefetch = properties.get(PREFETCH_PROPERTY_NAME);
+    if (prefetch == null) {
+      return Prefetch.NONE;
+    }
+    if (prefetch.trim().equalsIgnoreCase("start")) {
+      return Prefetch.START;
+    }
+    if (prefetch.trim().equalsIgnoreCase("collect")) {
+      return Prefetch.COLLECT;
+    }
+    throw new IllegalArgumentException("unknown prefetch: " + prefetch);
+  }
+
+  /**
+   * Builds the queue of executions sent without waiting for their result, if it is enabled.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @param remotePolicyExecutionHandler Handler sending the batches.
+   * @return FireAndForgetQueue, or null if the {@code fire_and_forget} property is not true
+   */
+  private static FireAndForgetQueue buildFireAndForgetQueue(
+      Map<String, String> properties, RemotePolicyExecutionHandler remotePolicyExecutionHandler) {
+    if (!Boolean.parseBoolean(properties.getOrDefault(FIRE_AND_FORGET_PROPERTY_NAME, "").trim())) {
+      return null;
+    }
+    String queueSize = properties.get(FIRE_AND_FORGET_QUEUE_SIZE_PROPERTY_NAME);
+    String batchSize = properties.get(FIRE_AND_FORGET_BATCH_SIZE_PROPERTY_NAME);
+    String senders = properties.get(FIRE_AND_FORGET_SENDERS_PROPERTY_NAME);
+    return new FireAndForgetQueue(
+        remotePolicyExecutionHandler,
+        properties.get(REMOTE_SERVER_URL_PROPERTY_NAME),
+        queueSize == null ? DEFAULT_FIRE_AND_FORGET_QUEUE_SIZE : Integer.parseInt(queueSize.trim()),
+        batchSize == null ? DEFAULT_FIRE_AND_FORGET_BATCH_SIZE : Integer.parseInt(batchSize.trim()),
+        FireAndForgetQueue.parseOverflowPolicy(
+            properties.get(FIRE_AND_FORGET_OVERFLOW_PROPERTY_NAME)),
+        senders == null ? 1 : Integer.parseInt(senders.trim()));
+  }
+
+  /**
+   * Builds the deduplication of message content if it is enabled. Streamed content is never
+   * deduplicated.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return ContentDeduplication, or null if the {@code content_dedup} property is not true
+   */
+  private static ContentDeduplication buildContentDeduplication(Map<String, String> properties) {
+    if (!Boolean.parseBoolean(properties.getOrDefault(CONTENT_DEDUP_PROPERTY_NAME, "").trim())) {
+      return null;
+    }
+    String minBytes = properties.get(CONTENT_DEDUP_MIN_BYTES_PROPERTY_NAME);
+    String maxHashes = properties.get(CONTENT_DEDUP_MAX_HASHES_PROPERTY_NAME);
+    return new ContentDeduplication(
+        maxHashes == null ? DEFAULT_CONTENT_DEDUP_MAX_HASHES : Integer.parseInt(maxHashes.trim()),
+        minBytes == null ? DEFAULT_CONTENT_DEDUP_MIN_BYTES : Integer.parseInt(minBytes.trim()));
+  }
+
+  /**
+   * Builds the capture of outgoing Execution messages if a capture file is configured.
+   *
+   * @param properties Properties set on the Java Callout policy.
+   * @return ExecutionCapture, or null if capturing is disabled
+   */
+  private static ExecutionCapture buildExecutionCapture(Map<String, String> properties) {
+    String captureFile = properties.get(CAPTURE_FILE_PROPERTY_NAME);
+    if (captureFile == null) {
+      return null;
+    }
+    String maxBytes = properties.get(CAPTURE_MAX_BYTES_PROPERTY_NAME);
+    String sampleRate = properties.get(CAPTURE_SAMPLE_RATE_PROPERTY_NAME);
+    return new ExecutionCapture(
+        captureFile.trim(),
+        maxBytes == null ? DEFAULT_CAPTURE_MAX_BYTES : Long.parseLong(maxBytes.trim()),
+        sampleRate == null ? 1 : Double.parseDouble(sampleRate.trim()),
+        ExecutionCapture.parseRedactedNames(properties.get(CAPTURE_REDACT_PROPERTY_NAME)));
   }
 
   /**
    * Constructs a Protocol Buffer Message using the {@link MessageContext} and {@link
    * ExecutionContext} objects and sends them over to the remote HTTP server for execution. HTTP
-   * Server URL is retrieved from a flow variable.
+   * Server URL is retrieved from a flow variable. With the {@code prefetch} property set to {@code
+   * start}, the remote execution runs in the background and its handle is kept in a flow variable;
+   * with {@code collect}, the result of that execution is awaited and applied instead. With {@code
+   * fire_and_forget}, the execution is only enqueued and its result is never applied. With {@code
+   * remote_execution_urls}, the execution is sent to every URL at once and the results are merged.
    *
    * @param messageContext Object allowing access to entities inside the flow
    * @param executionContext Object allowing access to proxy execution context
@@ -59,25 +337,42 @@ public class JavaCalloutRemotePolicyExecution implements Execution {
     try {
       // URL of the HTTP Server endpoint set in a flow variable.
       String serverUrl = this.properties.get(REMOTE_SERVER_URL_PROPERTY_NAME);
-      Execute.Execution execution =
-          Execute.Execution.newBuilder()
-              .setExecutionContext(
-                  ExecutionContextProtoMessageBuilder.buildExecutionContextProto(executionContext))
-              .setMessageContext(
-                  MessageContextProtoMessageBuilder.buildMessageContextProto(messageContext))
-              .build();
-      Execute.Execution remoteExecutionResult =
-          remotePolicyExecutionHandler.sendRemoteHttpServerRequest(execution, serverUrl);
-      ExecutionResult executionResult =
-          remoteExecutionResult.hasExecutionResult()
-              ? extractExecutionResult(remoteExecutionResult.getExecutionResult())
-              : ExecutionResult.ABORT;
-      if (executionResult.getAction() == com.apigee.flow.execution.Action.CONTINUE) {
-        messageContext
-            .getMessage()
-            .setContent(extractFlowVariable(remoteExecutionResult, FLOW_VARIABLE_KEY));
+      if (fireAndForgetQueue != null) {
+        fireAndForgetQueue.offer(buildExecution(messageContext, executionContext).toByteArray());
+        messageContext.setVariable(
+            FireAndForgetQueue.QUEUE_DEPTH_FLOW_VARIABLE,
+            String.valueOf(fireAndForgetQueue.getDepth()));
+        messageContext.setVariable(
+            FireAndForgetQueue.DROPPED_FLOW_VARIABLE,
+            String.valueOf(fireAndForgetQueue.getDropped()));
+        messageContext.setVariable(
+            FireAndForgetQueue.FAILED_FLOW_VARIABLE,
+            String.valueOf(fireAndForgetQueue.getFailed()));
+        messageContext.setVariable(
+            FireAndForgetQueue.FLUSH_LATENCY_FLOW_VARIABLE,
+            String.valueOf(fireAndForgetQueue.getLastFlushLatencyMillis()));
+        return ExecutionResult.SUCCESS;
+      }
+      if (prefetch == Prefetch.START) {
+        Execute.Execution execution = buildExecution(messageContext, executionContext);
+        messageContext.setVariable(
+            prefetchVariable,
+            PrefetchExecutor.submit(() -> exchange(execution, null, serverUrl)));
+        return ExecutionResult.SUCCESS;
+      }
+      if (fanOutUrls != null) {
+        return completeFanOut(
+            fanOut(buildExecution(messageContext, executionContext)), messageContext);
+      }
+      Exchange exchange = null;
+      if (prefetch == Prefetch.COLLECT) {
+        exchange = collect(messageContext);
+      }
+      if (exchange == null) {
+        exchange =
+            exchange(buildExecution(messageContext, executionContext), messageContext, serverUrl);
       }
-      return executionResult;
+      return complete(exchange, messageContext);
     } catch (Throwable throwable) {
       // TODO: call CalloutBase.setExceptionVariable here to log the throwable when BaseClass can be
       //   imported through maven
@@ -85,6 +380,219 @@ public class JavaCalloutRemotePolicyExecution implements Execution {
     }
   }
 
+  /**
+   * Builds the Execution Protocol Buffer Message from the flow and samples it for capture. With the
+   * {@code remote_policies} property, the Execution names the policies to run in one round trip.
+   * With the {@code message_cache} property, messages unchanged since an earlier callout step of
+   * the same API call are reused from the {@link MessageProtoCache} in the flow.
+   *
+   * @param messageContext Object allowing access to entities inside the flow
+   * @param executionContext Object allowing access to proxy execution context
+   * @return Execution Protocol Buffer Message to send
+   */
+  private Execute.Execution buildExecution(
+      MessageContext messageContext, ExecutionContext executionContext) {
+    Execute.Execution.Builder executionBuilder =
+        Execute.Execution.newBuilder()
+            .setExecutionContext(
+                ExecutionContextProtoMessageBuilder.buildExecutionContextProto(executionContext))
+            .setMessageContext(
+                MessageContextProtoMessageBuilder.buildMessageContextProto(
+                    messageContext,
+                    MessageContextProtoMessageBuilder.Options.newBuilder()
+                        .setFlowVariableAllowlist(flowVariableAllowlist)
+                        .setHeaderEncoding(headerEncoding)
+                        .setIncludeContent(!contentStreaming)
+                        .setCache(messageCache ? MessageProtoCache.of(messageContext) : null)
+                        .build()))
+            .setHeaderEncoding(headerEncoding)
+            .setContentStreaming(contentStreaming);
+    if (policyChain != null) {
+      executionBuilder.setPolicyChain(policyChain);
+    }
+    Execute.Execution execution = executionBuilder.build();
+    if (executionCapture != null) {
+      executionCapture.sample(execution);
+    }
+    return execution;
+  }
+
+  /**
+   * Sends the Execution to the remote HTTP server, resending content the remote HTTP server
+   * reports missing. Content is never deduplicated for a {@code local://} policy, which shares no
+   * {@link ContentStore} with the callout and is not worth sparing a copy. Only reads the {@link
+   * MessageContext} when content is streamed, so it can run off the flow thread otherwise.
+   *
+   * @param execution Execution Protocol Buffer Message with content.
+   * @param messageContext {@link MessageContext} whose content is streamed.
+   * @param serverUrl URL of the HTTP Server endpoint.
+   * @return Exchange holding what was sent and returned
+   * @throws IOException if a request fails
+   */
+  private Exchange exchange(
+      Execute.Execution execution, MessageContext messageContext, String serverUrl)
+      throws IOException {
+    if (contentDeduplication == null || LocalPolicies.isLocalUrl(serverUrl)) {
+      return new Exchange(execution, execution, send(execution, messageContext, serverUrl), 0);
+    }
+    Execute.Execution sent = contentDeduplication.deduplicate(execution, serverUrl);
+    Execute.Execution remoteExecutionResult = send(sent, messageContext, serverUrl);
+    int resent = remoteExecutionResult.getMissingContentHashesCount();
+    if (resent > 0) {
+      sent =
+          contentDeduplication.restore(
+              execution, sent, remoteExecutionResult.getMissingContentHashesList(), serverUrl);
+      remoteExecutionResult = send(sent, messageContext, serverUrl);
+    }
+    return new Exchange(execution, sent, remoteExecutionResult, resent);
+  }
+
+  /**
+   * Sends the same Execution to every fan-out URL at once. The last URL is called on the flow
+   * thread while the others run in the background, so the step takes about as long as the slowest
+   * remote policy.
+   *
+   * @param execution Execution Protocol Buffer Message with content.
+   * @return Exchanges in the order of the URLs
+   * @throws Exception if a remote execution failed
+   */
+  private List<Exchange> fanOut(Execute.Execution execution) throws Exception {
+    List<Future<Exchange>> futures = new ArrayList<>();
+    for (String serverUrl : fanOutUrls.subList(0, fanOutUrls.size() - 1)) {
+      futures.add(PrefetchExecutor.submit(() -> exchange(execution, null, serverUrl)));
+    }
+    List<Exchange> exchanges = new ArrayList<>();
+    try {
+      Exchange last = exchange(execution, null, fanOutUrls.get(fanOutUrls.size() - 1));
+      for (Future<Exchange> future : futures) {
+        exchanges.add(future.get());
+      }
+      exchanges.add(last);
+    } catch (Exception e) {
+      for (Future<Exchange> future : futures) {
+        future.cancel(true);
+      }
+      throw e;
+    }
+    return exchanges;
+  }
+
+  /**
+   * Merges the results of a fan-out into the flow. With FIRST_ABORT, the first aborting result in
+   * URL order is the result of the step and no changes are applied. Otherwise the changes of every
+   * result that did not abort are applied in URL order, so flow variable writes are unioned and a
+   * later URL wins a write to the same variable, and the result of the first of them is the result
+   * of the step. With IGNORE_ABORT, aborting results are skipped unless every result aborted.
+   *
+   * @param exchanges Exchanges in the order of the URLs.
+   * @param messageContext {@link MessageContext} to apply changes to.
+   * @return {@link ExecutionResult} of the step
+   */
+  private ExecutionResult completeFanOut(List<Exchange> exchanges, MessageContext messageContext) {
+    List<Exchange> applied = new ArrayList<>();
+    for (Exchange exchange : exchanges) {
+      if (exchange.returned.hasExecutionResult()
+          && exchange.returned.getExecutionResult().getAction() != Action.ABORT) {
+        applied.add(exchange);
+      } else if (fanOutMerge == FanOutMerge.FIRST_ABORT) {
+        return complete(exchange, messageContext);
+      }
+    }
+    if (applied.isEmpty()) {
+      return complete(exchanges.get(0), messageContext);
+    }
+    ExecutionResult executionResult = null;
+    for (Exchange exchange : applied) {
+      ExecutionResult appliedResult = complete(exchange, messageContext);
+      if (executionResult == null) {
+        executionResult = appliedResult;
+      }
+    }
+    return executionResult;
+  }
+
+  /**
+   * Waits for the remote execution started by a {@code prefetch} {@code start} step of the same
+   * flow. The execution is cancelled if it does not finish within the prefetch timeout.
+   *
+   * @param messageContext {@link MessageContext} holding the handle of the remote execution.
+   * @return Exchange of the remote execution, or null if none was started
+   * @throws Exception if the remote execution failed or timed out
+   */
+  private Exchange collect(MessageContext messageContext) throws Exception {
+    Object handle = messageContext.getVariable(prefetchVariable);
+    if (!(handle instanceof Future)) {
+      return null;
+    }
+    messageContext.removeVariable(prefetchVariable);
+    Future<?> future = (Future<?>) handle;
+    try {
+      return (Exchange) future.get(prefetchTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw e;
+    }
+  }
+
+  /**
+   * Applies the result of a remote execution to the flow. The policy of a policy chain that
+   * produced the result is set in the {@code remote_execution.policy} flow variable.
+   *
+   * @param exchange Exchange holding what was sent and returned.
+   * @param messageContext {@link MessageContext} to apply changes to.
+   * @return {@link ExecutionResult} of the remote execution
+   */
+  private ExecutionResult complete(Exchange exchange, MessageContext messageContext) {
+    if (contentDeduplication != null) {
+      messageContext.setVariable(
+          ContentDeduplication.HASH_ONLY_FLOW_VARIABLE,
+          String.valueOf(ContentDeduplication.countHashOnly(exchange.sent)));
+      messageContext.setVariable(
+          ContentDeduplication.RESENT_FLOW_VARIABLE, String.valueOf(exchange.resent));
+    }
+    Execute.Execution remoteExecutionResult = exchange.returned;
+    ExecutionResult executionResult =
+        remoteExecutionResult.hasExecutionResult()
+            ? extractExecutionResult(remoteExecutionResult.getExecutionResult())
+            : ExecutionResult.ABORT;
+    if (!remoteExecutionResult.getExecutionResult().getPolicy().isEmpty()) {
+      messageContext.setVariable(
+          POLICY_FLOW_VARIABLE, remoteExecutionResult.getExecutionResult().getPolicy());
+    }
+    if (executionResult.getAction() == com.apigee.flow.execution.Action.CONTINUE) {
+      // Changes are taken against the Execution with its content, as deduplicated content is
+      // missing from what was sent.
+      MessageContextUpdater.applyChanges(
+          HeaderNameTable.decode(exchange.execution).getMessageContext(),
+          remoteExecutionResult.getMessageContext(),
+          messageContext);
+      String flowVariable = extractFlowVariable(remoteExecutionResult, FLOW_VARIABLE_KEY);
+      if (flowVariable != null && messageContext.getMessage() != null) {
+        messageContext.getMessage().setContent(flowVariable);
+      }
+    }
+    return executionResult;
+  }
+
+  /**
+   * Sends the Execution to the remote HTTP server, streaming content if it is enabled.
+   *
+   * @param execution Execution Protocol Buffer Message to send.
+   * @param messageContext {@link MessageContext} whose content is streamed.
+   * @param serverUrl URL of the HTTP Server endpoint.
+   * @return Execution Protocol Buffer Message returned, with header names decoded
+   * @throws IOException if the request fails
+   */
+  private Execute.Execution send(
+      Execute.Execution execution, MessageContext messageContext, String serverUrl)
+      throws IOException {
+    return HeaderNameTable.decode(
+        contentStreaming
+            ? remotePolicyExecutionHandler.streamRemoteHttpServerRequest(
+                execution, messageContext, serverUrl)
+            : remotePolicyExecutionHandler.sendRemoteHttpServerRequest(execution, serverUrl));
+  }
+
   /**
    * Builds an {@link ExecutionResult} object using the ExecutionResult Protocol Buffer Message in
    * response from remote HTTP Server.
@@ -114,14 +622,45 @@ public class JavaCalloutRemotePolicyExecution implements Execution {
    *
    * @param execution Execute.Execution Protocol Buffer Message.
    * @param key String of the flow variable key to get
-   * @return String value of flow variable value
+   * @return String value of flow variable value, or null if it is not set
    */
   private String extractFlowVariable(Execute.Execution execution, String key) {
-    return execution
-        .getMessageContext()
-        .getTargetRequestMessage()
-        .getFlowVariablesMap()
-        .get(key)
-        .getFlowVariable();
+    Execute.Message.FlowMapValue flowMapValue =
+        execution.getMessageContext().getTargetRequestMessage().getFlowVariablesMap().get(key);
+    return flowMapValue == null ? null : flowMapValue.getFlowVariable();
+  }
+
+  /** How the results of a fan-out to several remote HTTP servers are merged. */
+  private enum FanOutMerge {
+    FIRST_ABORT,
+    IGNORE_ABORT
+  }
+
+  /** Whether an execution starts or collects a prefetched remote execution. */
+  private enum Prefetch {
+    NONE,
+    START,
+    COLLECT
+  }
+
+  /** Execution Protocol Buffer Messages sent to and returned by the remote HTTP server. */
+  private static final class Exchange {
+    /** Execution built from the flow, with all of its content. */
+    private final Execute.Execution execution;
+    /** Execution last sent, whose content may be deduplicated. */
+    private final Execute.Execution sent;
+    private final Execute.Execution returned;
+    private final int resent;
+
+    Exchange(
+        Execute.Execution execution,
+        Execute.Execution sent,
+        Execute.Execution returned,
+        int resent) {
+      this.execution = execution;
+      this.sent = sent;
+      this.returned = returned;
+      this.resent = resent;
+    }
   }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Remote policies run in the process of the callout, named by a {@code local://PolicyName} URL.
+ * Policies are found on the class path of the callout through {@link ServiceLoader}, like a remote
+ * executor finds them, and run on the Execution as it was built, without a network or
+ * serialization hop. A policy that fails or is unknown answers with ABORT, as it would remotely. A
+ * {@code local://} URL without a name runs the policy chain of the Execution.
+ */
+class LocalPolicies {
+  static final String URL_PREFIX = "local://";
+
+  private final Map<String, RemotePolicy> policies;
+  private final PolicyChain policyChain;
+
+  /** @param policies Policies to run, by the name of {@link RemotePolicy#getName()}. */
+  LocalPolicies(Iterable<RemotePolicy> policies) {
+    Map<String, RemotePolicy> policiesByName = new LinkedHashMap<>();
+    for (RemotePolicy policy : policies) {
+      if (policiesByName.putIfAbsent(policy.getName(), policy) != null) {
+        throw new IllegalStateException("duplicate local policy: " + policy.getName());
+      }
+    }
+    this.policies = Collections.unmodifiableMap(policiesByName);
+    this.policyChain = new PolicyChain(policiesByName);
+  }
+
+  /** @return Policies on the class path of the callout, loaded on first use */
+  static LocalPolicies shared() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * @param url URL of a remote server, may be null.
+   * @return Whether the URL names a policy run in the process of the callout
+   */
+  static boolean isLocalUrl(String url) {
+    return url != null && url.startsWith(URL_PREFIX);
+  }
+
+  /** @return Names of the policies, in class path order */
+  Set<String> getNames() {
+    return policies.keySet();
+  }
+
+  /**
+   * Runs the policy named by a {@code local://} URL on an Execution.
+   *
+   * @param execution Execution Protocol Buffer Message to run the policy on.
+   * @param url {@code local://} URL naming the policy.
+   * @param serialize Whether the Execution and its result are serialized and parsed again, so a
+   *     local run sees exactly what a remote one would.
+   * @return Execution Protocol Buffer Message returned by the policy, or ABORT if it failed
+   * @throws InvalidProtocolBufferException if a serialized Execution cannot be parsed
+   */
+  Execute.Execution execute(Execute.Execution execution, String url, boolean serialize)
+      throws InvalidProtocolBufferException {
+    if (serialize) {
+      execution = Execute.Execution.parseFrom(execution.toByteArray());
+    }
+    Execute.Execution result = execute(url.substring(URL_PREFIX.length()), execution);
+    return serialize ? Execute.Execution.parseFrom(result.toByteArray()) : result;
+  }
+
+  private Execute.Execution execute(String policyName, Execute.Execution execution) {
+    try (RequestScope scope = RequestScope.open()) {
+      if (PolicyChain.isPolicyChain(execution)) {
+        return policyChain.execute(execution, scope);
+      }
+      if (policyName.isEmpty()) {
+        throw new IllegalArgumentException("missing policy_chain");
+      }
+      RemotePolicy policy = policies.get(policyName);
+      if (policy == null) {
+        throw new IllegalArgumentException("unknown policy: " + policyName);
+      }
+      return policy.execute(execution, scope);
+    } catch (Exception e) {
+      return Execute.Execution.newBuilder()
+          .setExecutionResult(
+              Execute.ExecutionResult.newBuilder()
+                  .setAction(Execute.ExecutionResult.Action.ABORT)
+                  .setErrorResponse(e.toString()))
+          .build();
+    }
+  }
+
+  private static final class Holder {
+    private static final LocalPolicies INSTANCE =
+        new LocalPolicies(
+            ServiceLoader.load(RemotePolicy.class, LocalPolicies.class.getClassLoader()));
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies the changes a remote policy made to the MessageContext Protocol Buffer Message back onto
+ * the {@link MessageContext}. Returned messages are diffed against the messages that were sent, so
+ * only changed headers, query parameters, content and flow variables are written.
+ */
+public class MessageContextUpdater {
+
+  /**
+   * Applies every change between the sent and returned MessageContext Protocol Buffer Messages.
+   * Messages the remote policy did not return are left untouched. Within a returned message, a
+   * header or query parameter that is missing was removed by the remote policy.
+   *
+   * @param sent MessageContext Protocol Buffer Message sent to the remote policy.
+   * @param returned MessageContext Protocol Buffer Message returned by the remote policy.
+   * @param messageContext {@link MessageContext} to apply the changes to.
+   * @return Number of writes made to the {@link MessageContext} and its messages
+   */
+  public static int applyChanges(
+      Execute.MessageContext sent, Execute.MessageContext returned, MessageContext messageContext) {
+    int writes = 0;
+    if (returned.hasTargetRequestMessage()) {
+      writes +=
+          applyChanges(
+              sent.getTargetRequestMessage(),
+              returned.getTargetRequestMessage(),
+              messageContext.getMessage(FlowContext.TARGET_REQUEST),
+              messageContext);
+    }
+    if (returned.hasProxyRequestMessage()) {
+      writes +=
+          applyChanges(
+              sent.getProxyRequestMessage(),
+              returned.getProxyRequestMessage(),
+              messageContext.getMessage(FlowContext.PROXY_REQUEST),
+              messageContext);
+    }
+    if (returned.hasTargetResponseMessage()) {
+      writes +=
+          applyChanges(
+              sent.getTargetResponseMessage(),
+              returned.getTargetResponseMessage(),
+              messageContext.getMessage(FlowContext.TARGET_RESPONSE),
+              messageContext);
+    }
+    if (returned.hasProxyResponseMessage()) {
+      writes +=
+          applyChanges(
+              sent.getProxyResponseMessage(),
+              returned.getProxyResponseMessage(),
+              messageContext.getMessage(FlowContext.PROXY_RESPONSE),
+              messageContext);
+    }
+    if (returned.hasErrorMessage()) {
+      writes +=
+          applyChanges(
+              sent.getErrorMessage(),
+              returned.getErrorMessage(),
+              messageContext.getErrorMessage(),
+              messageContext);
+    }
+    return writes;
+  }
+
+  /**
+   * Applies the changes between a sent and returned Message Protocol Buffer Message. Flow variables
+   * belong to the {@link MessageContext} and are applied even if the {@link Message} is missing.
+   *
+   * @param sent Message Protocol Buffer Message sent, or the default instance if none was sent.
+   * @param returned Message Protocol Buffer Message returned by the remote policy.
+   * @param message {@link Message} to apply header, query parameter and content changes to.
+   * @param messageContext {@link MessageContext} to apply flow variable changes to.
+   * @return Number of writes made
+   */
+  private static int applyChanges(
+      Execute.Message sent,
+      Execute.Message returned,
+      Message message,
+      MessageContext messageContext) {
+    int writes = applyFlowVariableChanges(sent, returned, messageContext);
+    if (message == null) {
+      return writes;
+    }
+    for (Map.Entry<String, Execute.Message.Headers> header :
+        returned.getHeaderMapMap().entrySet()) {
+      Execute.Message.Headers sentHeaders = sent.getHeaderMapMap().get(header.getKey());
+      if (!header.getValue().equals(sentHeaders)) {
+        writes +=
+            Field.HEADER.replace(
+                message,
+                header.getKey(),
+                sentHeaders == null ? null : sentHeaders.getHeadersList(),
+                header.getValue().getHeadersList());
+      }
+    }
+    for (String headerName : sent.getHeaderMapMap().keySet()) {
+      if (!returned.containsHeaderMap(headerName)) {
+        message.removeHeader(headerName);
+        writes++;
+      }
+    }
+    for (Map.Entry<String, Execute.Message.QueryParameters> queryParam :
+        returned.getQueryParamMapMap().entrySet()) {
+      Execute.Message.QueryParameters sentQueryParams =
+          sent.getQueryParamMapMap().get(queryParam.getKey());
+      if (!queryParam.getValue().equals(sentQueryParams)) {
+        writes +=
+            Field.QUERY_PARAM.replace(
+                message,
+                queryParam.getKey(),
+                sentQueryParams == null ? null : sentQueryParams.getQueryParametersList(),
+                queryParam.getValue().getQueryParametersList());
+      }
+    }
+    for (String queryParamName : sent.getQueryParamMapMap().keySet()) {
+      if (!returned.containsQueryParamMap(queryParamName)) {
+        message.removeQueryParam(queryParamName);
+        writes++;
+      }
+    }
+    // A message returned with a content hash and no content was not resolved by the remote
+    // policy, so it still has the content it was sent with.
+    boolean unresolved = returned.getContent().isEmpty() && !returned.getContentHash().isEmpty();
+    if (!unresolved && !returned.getContent().equals(sent.getContent())) {
+      message.setContent(returned.getContent().toStringUtf8());
+      writes++;
+    }
+    return writes;
+  }
+
+  /**
+   * Sets the string flow variables that the remote policy added or changed. Flow variables missing
+   * from the returned message are kept, as remote policies are not required to echo them.
+   *
+   * @param sent Message Protocol Buffer Message sent.
+   * @param returned Message Protocol Buffer Message returned by the remote policy.
+   * @param messageContext {@link MessageContext} to set the flow variables on.
+   * @return Number of writes made
+   */
+  private static int applyFlowVariableChanges(
+      Execute.Message sent, Execute.Message returned, MessageContext messageContext) {
+    int writes = 0;
+    for (Map.Entry<String, Execute.Message.FlowMapValue> flowVariable :
+        returned.getFlowVariablesMap().entrySet()) {
+      Execute.Message.FlowMapValue value = flowVariable.getValue();
+      if (value.getFlowVariableValueCase()
+              == Execute.Message.FlowMapValue.FlowVariableValueCase.FLOW_VARIABLE
+          && !value.equals(sent.getFlowVariablesMap().get(flowVariable.getKey()))) {
+        messageContext.setVariable(flowVariable.getKey(), value.getFlowVariable());
+        writes++;
+      }
+    }
+    return writes;
+  }
+
+  /** Multi-valued field of a {@link Message}, written with as few calls as a change needs. */
+  private enum Field {
+    HEADER {
+      @Override
+      void set(Message message, String name, int index, String value) {
+        message.setHeader(name, index, value);
+      }
+
+      @Override
+      void remove(Message message, String name, int index) {
+        message.removeHeader(name, index);
+      }
+
+      @Override
+      void setAll(Message message, String name, List<String> values) {
+        message.setHeaderWithMultipleValues(name, values);
+      }
+    },
+    QUERY_PARAM {
+      @Override
+      void set(Message message, String name, int index, String value) {
+        message.setQueryParam(name, index, value);
+      }
+
+      @Override
+      void remove(Message message, String name, int index) {
+        message.removeQueryParam(name, index);
+      }
+
+      @Override
+      void setAll(Message message, String name, List<String> values) {
+        message.setQueryParamWithMultipleValues(name, values);
+      }
+    };
+
+    abstract void set(Message message, String name, int index, String value);
+
+    abstract void remove(Message message, String name, int index);
+
+    abstract void setAll(Message message, String name, List<String> values);
+
+    /**
+     * Replaces the values of a field that changed with one write: a single value changed in
+     * place is set at its index, a removed last value is removed at its index, and any other
+     * change replaces all the values at once.
+     *
+     * @param message {@link Message} to write to.
+     * @param name Name of the field.
+     * @param sent Values sent, or null if the field was not sent.
+     * @param values Values returned by the remote policy.
+     * @return Number of writes made
+     */
+    int replace(Message message, String name, List<String> sent, List<String> values) {
+      if (sent != null && sent.size() == values.size()) {
+        int changed = -1;
+        for (int i = 0; i < values.size(); i++) {
+          if (!values.get(i).equals(sent.get(i))) {
+            changed = changed == -1 ? i : -2;
+          }
+        }
+        if (changed >= 0) {
+          set(message, name, changed, values.get(changed));
+          return 1;
+        }
+      } else if (sent != null
+          && sent.size() == values.size() + 1
+          && values.equals(sent.subList(0, values.size()))) {
+        remove(message, name, values.size());
+        return 1;
+      }
+      setAll(message, name, values);
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs prefetched and fanned out remote executions in the background. The threads are shared by
+ * every callout and are bounded; once they are all busy, a remote execution runs on the flow thread
+ * that starts it, so the flow is slowed down rather than queued without bound.
+ */
+class PrefetchExecutor {
+  static final int MAX_THREADS = 64;
+  private static final long KEEP_ALIVE_SECONDS = 60;
+  private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+  private static final ExecutorService EXECUTOR =
+      new ThreadPoolExecutor(
+          0,
+          MAX_THREADS,
+          KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new SynchronousQueue<>(),
+          runnable -> {
+            Thread thread =
+                new Thread(
+                    runnable, "remote-execution-prefetch-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          },
+          new ThreadPoolExecutor.CallerRunsPolicy());
+
+  private PrefetchExecutor() {}
+
+  /**
+   * @param task Remote execution to run.
+   * @return Future of the result of the task
+   */
+  static <T> Future<T> submit(Callable<T> task) {
+    return EXECUTOR.submit(task);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.ProtoMessageBuilders;
+
+import com.apigee.flow.FlowInfo;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.Execute;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flow variables and {@link FlowInfo} variables that are resolved from the {@link MessageContext}
+ * and sent to the remote policy. Only the declared variables are looked up, so remote policies get
+ * the context they need without every execution paying for the whole flow.
+ */
+public class FlowVariableAllowlist {
+
+  public static final FlowVariableAllowlist EMPTY =
+      new FlowVariableAllowlist(new String[0], Collections.emptyMap());
+  private static final char FLOW_INFO_SEPARATOR = ':';
+  private final String[] flowVariableNames;
+  private final Map<String, String[]> flowInfoVariableNames;
+
+  private FlowVariableAllowlist(
+      String[] flowVariableNames, Map<String, String[]> flowInfoVariableNames) {
+    this.flowVariableNames = flowVariableNames;
+    this.flowInfoVariableNames = flowInfoVariableNames;
+  }
+
+  /**
+   * Parses the declared variables from policy properties.
+   *
+   * @param flowVariables Comma separated flow variable names, or null for none.
+   * @param flowInfoVariables Comma separated {@code identifier:variable} entries naming variables
+   *     of the {@link FlowInfo} stored under {@code identifier}, or null for none.
+   * @return FlowVariableAllowlist of the declared variables
+   * @throws IllegalArgumentException if a FlowInfo entry does not name both an identifier and a
+   *     variable
+   */
+  public static FlowVariableAllowlist parse(String flowVariables, String flowInfoVariables) {
+    List<String> flowVariableNames = split(flowVariables);
+    Map<String, List<String>> flowInfoVariableNames = new LinkedHashMap<>();
+    for (String entry : split(flowInfoVariables)) {
+      int separator = entry.indexOf(FLOW_INFO_SEPARATOR);
+      if (separator <= 0 || separator == entry.length() - 1) {
+        throw new IllegalArgumentException(
+            "expected identifier" + FLOW_INFO_SEPARATOR + "variable but got: " + entry);
+      }
+      flowInfoVariableNames
+          .computeIfAbsent(entry.substring(0, separator).trim(), k -> new ArrayList<>())
+          .add(entry.substring(separator + 1).trim());
+    }
+    if (flowVariableNames.isEmpty() && flowInfoVariableNames.isEmpty()) {
+      return EMPTY;
+    }
+    Map<String, String[]> flowInfoVariableArrays = new LinkedHashMap<>();
+    flowInfoVariableNames.forEach(
+        (identifier, names) ->
+            flowInfoVariableArrays.put(identifier, names.toArray(new String[0])));
+    return new FlowVariableAllowlist(
+        flowVariableNames.toArray(new String[0]), flowInfoVariableArrays);
+  }
+
+  /** @return Whether no variables were declared */
+  public boolean isEmpty() {
+    return flowVariableNames.length == 0 && flowInfoVariableNames.isEmpty();
+  }
+
+  /**
+   * Resolves the declared variables from the {@link MessageContext}. Variables that are not set
+   * are left out.
+   *
+   * @param messageContext {@link MessageContext} to read the variables from.
+   * @return Map of flow variable name or FlowInfo identifier to FlowMapValue
+   */
+  public Map<String, Execute.Message.FlowMapValue> resolve(MessageContext messageContext) {
+    if (isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Execute.Message.FlowMapValue> flowVariables = new HashMap<>();
+    for (String name : flowVariableNames) {
+      Object value = messageContext.getVariable(name);
+      if (value != null) {
+        flowVariables.put(
+            name,
+            Execute.Message.FlowMapValue.newBuilder()
+                .setFlowVariable(String.valueOf(value))
+                .build());
+      }
+    }
+    for (Map.Entry<String, String[]> entry : flowInfoVariableNames.entrySet()) {
+      Object flowInfo = messageContext.getVariable(entry.getKey());
+      if (flowInfo instanceof FlowInfo) {
+        flowVariables.put(
+            entry.getKey(),
+            Execute.Message.FlowMapValue.newBuilder()
+                .setFlowInfo(
+                    buildFlowInfoProto(entry.getKey(), (FlowInfo) flowInfo, entry.getValue()))
+                .build());
+      }
+    }
+    return flowVariables;
+  }
+
+  /**
+   * Builds a FlowInfo Protocol Buffer Message holding the declared variables of a {@link
+   * FlowInfo}.
+   *
+   * @param identifier Identifier the {@link FlowInfo} is stored under.
+   * @param flowInfo {@link FlowInfo} to read the variables from.
+   * @param names Names of the variables to read.
+   * @return FlowInfo Protocol Buffer Message
+   */
+  private static Execute.FlowInfo buildFlowInfoProto(
+      String identifier, FlowInfo flowInfo, String[] names) {
+    Execute.FlowInfo.Builder flowInfoBuilder =
+        Execute.FlowInfo.newBuilder()
+            .setIdentifier(
+                flowInfo.getIdentifier() == null ? identifier : flowInfo.getIdentifier());
+    for (String name : names) {
+      Object value = flowInfo.getVariable(name);
+      if (value != null) {
+        flowInfoBuilder.putTypedVariables(
+            name, MessageContextProtoMessageBuilder.buildValue(value));
+      }
+    }
+    return flowInfoBuilder.build();
+  }
+
+  private static List<String> split(String names) {
+    List<String> result = new ArrayList<>();
+    if (names != null) {
+      for (String name : names.split(",")) {
+        if (!name.trim().isEmpty()) {
+          result.add(name.trim());
+        }
+      }
+    }
+    return result;
+  }
+}
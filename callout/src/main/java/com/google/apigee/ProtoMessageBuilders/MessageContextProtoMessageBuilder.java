@@ -19,8 +19,11 @@ import com.apigee.flow.message.FlowContext;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.Execute;
+import com.google.apigee.HeaderNameTable;
+import com.google.protobuf.Any;
 import com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -37,42 +40,134 @@ public class MessageContextProtoMessageBuilder {
    * @return MessageContext Protocol Buffer Message
    */
   public static Execute.MessageContext buildMessageContextProto(MessageContext messageContext) {
+    return buildMessageContextProto(messageContext, Options.DEFAULT);
+  }
+
+  /**
+   * Builds a MessageContext Protocol Buffer Message using a {@link MessageContext} object, with
+   * the flow variables, header encoding, content and cache of the given {@link Options}.
+   *
+   * @param messageContext {@link MessageContext} object used to construct the MessageContext
+   *     Protocol Buffer Message.
+   * @param options How to build the MessageContext Protocol Buffer Message.
+   * @return MessageContext Protocol Buffer Message
+   */
+  public static Execute.MessageContext buildMessageContextProto(
+      MessageContext messageContext, Options options) {
+    boolean includeContent = options.includeContent;
+    HeaderNameTable.Encoder encoder =
+        options.headerEncoding == Execute.Execution.HeaderEncoding.INDEXED
+            ? new HeaderNameTable.Encoder()
+            : null;
+    MessageProtoCache messageCache = encoder == null ? options.cache : null;
     Execute.MessageContext.Builder messageContextBuilder = Execute.MessageContext.newBuilder();
-    if (messageContext.getMessage(FlowContext.TARGET_REQUEST) != null) {
+    Message targetRequest = messageContext.getMessage(FlowContext.TARGET_REQUEST);
+    if (targetRequest != null) {
       messageContextBuilder.setTargetRequestMessage(
-          buildMessageProto(messageContext.getMessage(FlowContext.TARGET_REQUEST)));
+          buildMessageProto(
+              MessageProtoCache.MessageSlot.TARGET_REQUEST,
+              targetRequest,
+              encoder,
+              includeContent,
+              messageCache));
     }
-    if (messageContext.getMessage(FlowContext.PROXY_REQUEST) != null) {
+    Message proxyRequest = messageContext.getMessage(FlowContext.PROXY_REQUEST);
+    if (proxyRequest != null) {
       messageContextBuilder.setProxyRequestMessage(
-          buildMessageProto(messageContext.getMessage(FlowContext.PROXY_REQUEST)));
+          buildMessageProto(
+              MessageProtoCache.MessageSlot.PROXY_REQUEST,
+              proxyRequest,
+              encoder,
+              includeContent,
+              messageCache));
     }
-    if (messageContext.getMessage(FlowContext.TARGET_RESPONSE) != null) {
+    Message targetResponse = messageContext.getMessage(FlowContext.TARGET_RESPONSE);
+    if (targetResponse != null) {
       messageContextBuilder.setTargetResponseMessage(
-          buildMessageProto(messageContext.getMessage(FlowContext.TARGET_RESPONSE)));
+          buildMessageProto(
+              MessageProtoCache.MessageSlot.TARGET_RESPONSE,
+              targetResponse,
+              encoder,
+              includeContent,
+              messageCache));
     }
-    if (messageContext.getMessage(FlowContext.PROXY_RESPONSE) != null) {
+    Message proxyResponse = messageContext.getMessage(FlowContext.PROXY_RESPONSE);
+    if (proxyResponse != null) {
       messageContextBuilder.setProxyResponseMessage(
-          buildMessageProto(messageContext.getMessage(FlowContext.PROXY_RESPONSE)));
+          buildMessageProto(
+              MessageProtoCache.MessageSlot.PROXY_RESPONSE,
+              proxyResponse,
+              encoder,
+              includeContent,
+              messageCache));
     }
-    if (messageContext.getErrorMessage() != null) {
-      messageContextBuilder.setErrorMessage(buildMessageProto(messageContext.getErrorMessage()));
+    Message errorMessage = messageContext.getErrorMessage();
+    if (errorMessage != null) {
+      messageContextBuilder.setErrorMessage(
+          buildMessageProto(
+              MessageProtoCache.MessageSlot.ERROR,
+              errorMessage,
+              encoder,
+              includeContent,
+              messageCache));
+    }
+    // Getting the builder of a missing target request would send an empty one the flow lacks.
+    if (messageContextBuilder.hasTargetRequestMessage()) {
+      Map<String, Execute.Message.FlowMapValue> flowVariables =
+          options.flowVariableAllowlist.resolve(messageContext);
+      if (!flowVariables.isEmpty()) {
+        messageContextBuilder.getTargetRequestMessageBuilder().putAllFlowVariables(flowVariables);
+      }
     }
     return messageContextBuilder.build();
   }
 
+  /**
+   * Builds a Message Protocol Buffer Message using a {@link Message} object, or reuses the one
+   * cached for its slot if the {@link Message} did not change.
+   *
+   * @param slot Slot of the message in the MessageContext.
+   * @param message {@link Message} object used to construct the Message Protocol Buffer Message.
+   * @param encoder Encoder of indexed header names, or null to build the header map.
+   * @param includeContent Whether to read the content of the message.
+   * @param cache Cache of the current API call, or null.
+   * @return Message Protocol Buffer Message
+   */
+  private static Execute.Message buildMessageProto(
+      MessageProtoCache.MessageSlot slot,
+      Message message,
+      HeaderNameTable.Encoder encoder,
+      boolean includeContent,
+      MessageProtoCache cache) {
+    if (cache == null) {
+      return buildMessageProto(message, encoder, includeContent);
+    }
+    return cache.getOrBuild(
+        slot, message, includeContent, () -> buildMessageProto(message, encoder, includeContent));
+  }
+
   /**
    * Builds a Message Protocol Buffer Message using a {@link Message} object.
    *
    * @param message {@link Message} object used to construct the Message Protocol Buffer Message.
+   * @param encoder Encoder of indexed header names, or null to build the header map.
+   * @param includeContent Whether to read the content of the message.
    * @return Message Protocol Buffer Message
    */
-  private static Execute.Message buildMessageProto(Message message) {
+  private static Execute.Message buildMessageProto(
+      Message message, HeaderNameTable.Encoder encoder, boolean includeContent) {
     Execute.Message.Builder messageBuilder = Execute.Message.newBuilder();
-    if (message.getContent() != null) {
+    if (includeContent && message.getContent() != null) {
       messageBuilder.setContent(ByteString.copyFrom(message.getContent(), StandardCharsets.UTF_8));
     }
     if (message.getHeaderNames() != null) {
-      messageBuilder.putAllHeaderMap(buildHeaderMap(message));
+      if (encoder == null) {
+        messageBuilder.putAllHeaderMap(buildHeaderMap(message));
+      } else {
+        for (String headerName : message.getHeaderNames()) {
+          encoder.addHeader(messageBuilder, headerName, message.getHeaders(headerName));
+        }
+      }
     }
     if (message.getQueryParamNames() != null) {
       messageBuilder.putAllQueryParamMap(buildQueryParametersMap(message));
@@ -102,6 +197,46 @@ public class MessageContextProtoMessageBuilder {
     }
   }
 
+  /**
+   * Builds a Value Protocol Buffer Message holding a variable value with its Java type. Integral
+   * numbers map to int64, floating point numbers to double, byte arrays to bytes and collections
+   * to a string list. Protocol Buffer Messages are packed into Any, and any other type is sent as
+   * its string representation.
+   *
+   * @param value Variable value read from the flow.
+   * @return Value Protocol Buffer Message
+   */
+  public static Execute.Value buildValue(Object value) {
+    Execute.Value.Builder valueBuilder = Execute.Value.newBuilder();
+    if (value instanceof String) {
+      valueBuilder.setStringValue((String) value);
+    } else if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte) {
+      valueBuilder.setInt64Value(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      valueBuilder.setDoubleValue(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      valueBuilder.setBoolValue((Boolean) value);
+    } else if (value instanceof byte[]) {
+      valueBuilder.setBytesValue(ByteString.copyFrom((byte[]) value));
+    } else if (value instanceof ByteString) {
+      valueBuilder.setBytesValue((ByteString) value);
+    } else if (value instanceof Collection) {
+      Execute.Value.StringList.Builder stringListBuilder = Execute.Value.StringList.newBuilder();
+      for (Object element : (Collection<?>) value) {
+        stringListBuilder.addValues(String.valueOf(element));
+      }
+      valueBuilder.setStringListValue(stringListBuilder);
+    } else if (value instanceof com.google.protobuf.Message) {
+      valueBuilder.setAnyValue(Any.pack((com.google.protobuf.Message) value));
+    } else {
+      valueBuilder.setStringValue(String.valueOf(value));
+    }
+    return valueBuilder.build();
+  }
+
   /**
    * Builds a FlowInfo Protocol Buffer Message from a {@link FlowInfo} object.
    *
@@ -157,4 +292,80 @@ public class MessageContextProtoMessageBuilder {
                         .build()));
     return queryParametersMap;
   }
+
+  /** Options of {@link #buildMessageContextProto(MessageContext, Options)}. */
+  public static final class Options {
+    /** Options building every message with its content and headers in header_map. */
+    public static final Options DEFAULT = newBuilder().build();
+
+    private final FlowVariableAllowlist flowVariableAllowlist;
+    private final Execute.Execution.HeaderEncoding headerEncoding;
+    private final boolean includeContent;
+    private final MessageProtoCache cache;
+
+    private Options(Builder builder) {
+      this.flowVariableAllowlist = builder.flowVariableAllowlist;
+      this.headerEncoding = builder.headerEncoding;
+      this.includeContent = builder.includeContent;
+      this.cache = builder.cache;
+    }
+
+    public static Builder newBuilder() {
+      return new Builder();
+    }
+
+    /** Builder of {@link Options}. */
+    public static final class Builder {
+      private FlowVariableAllowlist flowVariableAllowlist = FlowVariableAllowlist.EMPTY;
+      private Execute.Execution.HeaderEncoding headerEncoding =
+          Execute.Execution.HeaderEncoding.HEADER_MAP;
+      private boolean includeContent = true;
+      private MessageProtoCache cache;
+
+      private Builder() {}
+
+      /**
+       * Declared flow variables to send in the flow variables of the target request message,
+       * where remote policies read and set them; they are not sent when the MessageContext has
+       * no target request message. Default none.
+       */
+      public Builder setFlowVariableAllowlist(FlowVariableAllowlist flowVariableAllowlist) {
+        this.flowVariableAllowlist = flowVariableAllowlist;
+        return this;
+      }
+
+      /**
+       * Whether headers go in header_map or are indexed by {@link HeaderNameTable}; the Execution
+       * the MessageContext is sent in must have the same header encoding. Default HEADER_MAP.
+       */
+      public Builder setHeaderEncoding(Execute.Execution.HeaderEncoding headerEncoding) {
+        this.headerEncoding = headerEncoding;
+        return this;
+      }
+
+      /**
+       * Whether to read the content of the messages, false when it is streamed after the
+       * Execution instead. Default true.
+       */
+      public Builder setIncludeContent(boolean includeContent) {
+        this.includeContent = includeContent;
+        return this;
+      }
+
+      /**
+       * Cache of the current API call reusing the Message Protocol Buffer Messages of earlier
+       * callout steps whose {@link Message} did not change, or null to build every message.
+       * Indexed headers depend on the messages encoded before them in the same Execution, so the
+       * cache is not used with INDEXED header encoding. Default null.
+       */
+      public Builder setCache(MessageProtoCache cache) {
+        this.cache = cache;
+        return this;
+      }
+
+      public Options build() {
+        return new Options(this);
+      }
+    }
+  }
 }
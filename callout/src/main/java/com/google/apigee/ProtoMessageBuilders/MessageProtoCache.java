@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.ProtoMessageBuilders;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.Execute;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Message Protocol Buffer Messages built during one API call, kept in a flow variable so that later
+ * callout steps of the same call reuse them. Each is stored with a stamp of the {@link Message} it
+ * was built from; a message whose headers, query parameters or content changed in between is
+ * rebuilt, the others are reused as they are.
+ */
+public class MessageProtoCache {
+
+  /** Flow variable holding the cache of the current API call. */
+  public static final String FLOW_VARIABLE = "remote_execution.message_cache";
+
+  private final Entry[] entries = new Entry[MessageSlot.values().length];
+  private int reused;
+  private int built;
+
+  /** Messages of the MessageContext a cached Message Protocol Buffer Message was built from. */
+  enum MessageSlot {
+    TARGET_REQUEST,
+    PROXY_REQUEST,
+    TARGET_RESPONSE,
+    PROXY_RESPONSE,
+    ERROR
+  }
+
+  /**
+   * @param messageContext {@link MessageContext} of the current API call.
+   * @return Cache stored in the flow, stored first if there is none yet
+   */
+  public static MessageProtoCache of(MessageContext messageContext) {
+    Object cache = messageContext.getVariable(FLOW_VARIABLE);
+    if (cache instanceof MessageProtoCache) {
+      return (MessageProtoCache) cache;
+    }
+    MessageProtoCache messageProtoCache = new MessageProtoCache();
+    messageContext.setVariable(FLOW_VARIABLE, messageProtoCache);
+    return messageProtoCache;
+  }
+
+  /** @return Number of Message Protocol Buffer Messages reused */
+  public int getReused() {
+    return reused;
+  }
+
+  /** @return Number of Message Protocol Buffer Messages built */
+  public int getBuilt() {
+    return built;
+  }
+
+  /**
+   * Returns the cached Message Protocol Buffer Message of a slot if the {@link Message} is
+   * unchanged since it was built, or builds and caches it.
+   *
+   * @param slot Slot of the message in the MessageContext.
+   * @param message {@link Message} to build from.
+   * @param includeContent Whether the content is part of the Message Protocol Buffer Message.
+   * @param builder Builds the Message Protocol Buffer Message.
+   * @return Message Protocol Buffer Message for the current state of the {@link Message}
+   */
+  Execute.Message getOrBuild(
+      MessageSlot slot,
+      Message message,
+      boolean includeContent,
+      Supplier<Execute.Message> builder) {
+    Stamp stamp = new Stamp(message, includeContent);
+    Entry entry = entries[slot.ordinal()];
+    if (entry != null && entry.stamp.equals(stamp)) {
+      reused++;
+      return entry.messageProto;
+    }
+    Execute.Message messageProto = builder.get();
+    entries[slot.ordinal()] = new Entry(stamp, messageProto);
+    built++;
+    return messageProto;
+  }
+
+  private static final class Entry {
+    private final Stamp stamp;
+    private final Execute.Message messageProto;
+
+    Entry(Stamp stamp, Execute.Message messageProto) {
+      this.stamp = stamp;
+      this.messageProto = messageProto;
+    }
+  }
+
+  /**
+   * State of a {@link Message} that its Message Protocol Buffer Message is built from. Reading
+   * header and query parameter values and the content reference is cheap compared to building and
+   * encoding the content, and comparing stamps is exact.
+   */
+  private static final class Stamp {
+    private final Message message;
+    private final boolean includeContent;
+    private final List<String> headers;
+    private final List<String> queryParams;
+    private final String content;
+
+    Stamp(Message message, boolean includeContent) {
+      this.message = message;
+      this.includeContent = includeContent;
+      this.headers = new ArrayList<>();
+      if (message.getHeaderNames() != null) {
+        for (String headerName : message.getHeaderNames()) {
+          add(headers, headerName, message.getHeaders(headerName));
+        }
+      }
+      this.queryParams = new ArrayList<>();
+      if (message.getQueryParamNames() != null) {
+        for (String queryParamName : message.getQueryParamNames()) {
+          add(queryParams, queryParamName, message.getQueryParams(queryParamName));
+        }
+      }
+      this.content = includeContent ? message.getContent() : null;
+    }
+
+    private static void add(List<String> stamp, String name, Collection<String> values) {
+      stamp.add(name);
+      stamp.add(String.valueOf(values == null ? 0 : values.size()));
+      if (values != null) {
+        stamp.addAll(values);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Stamp)) {
+        return false;
+      }
+      Stamp stamp = (Stamp) other;
+      return message == stamp.message
+          && includeContent == stamp.includeContent
+          && headers.equals(stamp.headers)
+          && queryParams.equals(stamp.queryParams)
+          && Objects.equals(content, stamp.content);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(message), headers, queryParams);
+    }
+  }
+}
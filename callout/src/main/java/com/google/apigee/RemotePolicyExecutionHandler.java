@@ -14,28 +14,78 @@
 
 package com.google.apigee;
 
+import com.apigee.flow.message.MessageContext;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
-/** Handles the call to a remote HTTP Server and returns the response. */
+/**
+ * Handles the call to a remote HTTP Server and returns the response. A single handler is shared by
+ * every execution of the callout, so connections are pooled and kept alive between calls. A {@code
+ * unix:///path/to/socket} URL sends Executions over a Unix domain socket to a co-located remote
+ * executor instead, without HTTP, and a {@code local://PolicyName} URL runs the policy in this
+ * process, see {@link LocalPolicies}; content streaming is not supported by either.
+ */
 class RemotePolicyExecutionHandler {
-  private CloseableHttpClient httpClient;
-  private HttpPost httpRequest;
+  static final int DEFAULT_MAX_CONNECTIONS = 20;
+  private final CloseableHttpClient httpClient;
+  private final Supplier<HttpPost> httpRequestSupplier;
+  private final int maxConnections;
+  private final boolean localSerialization;
+  private final ConcurrentHashMap<String, UnixDomainSocketClient> unixDomainSocketClients =
+      new ConcurrentHashMap<>();
 
   public RemotePolicyExecutionHandler() {
-    this(HttpClients.createDefault(), new HttpPost());
+    this(DEFAULT_MAX_CONNECTIONS);
+  }
+
+  public RemotePolicyExecutionHandler(int maxConnections) {
+    this(maxConnections, false);
+  }
+
+  /**
+   * @param maxConnections Maximum number of connections to keep open to each remote server.
+   * @param localSerialization Whether Executions run by {@code local://} policies are serialized
+   *     and parsed again on the way in and out, for parity with remote policies.
+   */
+  public RemotePolicyExecutionHandler(int maxConnections, boolean localSerialization) {
+    this(
+        HttpClients.custom()
+            .setMaxConnTotal(maxConnections)
+            .setMaxConnPerRoute(maxConnections)
+            .build(),
+        HttpPost::new,
+        maxConnections,
+        localSerialization);
   }
 
   public RemotePolicyExecutionHandler(CloseableHttpClient httpClient, HttpPost httpRequest) {
+    this(httpClient, () -> httpRequest, DEFAULT_MAX_CONNECTIONS, false);
+  }
+
+  private RemotePolicyExecutionHandler(
+      CloseableHttpClient httpClient,
+      Supplier<HttpPost> httpRequestSupplier,
+      int maxConnections,
+      boolean localSerialization) {
     this.httpClient = httpClient;
-    this.httpRequest = httpRequest;
+    this.httpRequestSupplier = httpRequestSupplier;
+    this.maxConnections = maxConnections;
+    this.localSerialization = localSerialization;
   }
+
   /**
    * Sends an HTTP Request to the provided URL with the serialized Execution Protocol Buffer
    * Message. Remote HTTP Server sets a Message flow variable that this function returns.
@@ -47,14 +97,121 @@ class RemotePolicyExecutionHandler {
    */
   public Execute.Execution sendRemoteHttpServerRequest(
       Execute.Execution executionProtoMessage, String urlString) throws IOException {
+    if (LocalPolicies.isLocalUrl(urlString)) {
+      return LocalPolicies.shared().execute(executionProtoMessage, urlString, localSerialization);
+    }
+    if (UnixDomainSockets.isUnixDomainSocketUrl(urlString)) {
+      return getUnixDomainSocketClient(urlString).exchange(executionProtoMessage);
+    }
+    HttpPost httpRequest = httpRequestSupplier.get();
     httpRequest.setURI(URI.create(urlString));
     httpRequest.setEntity(new ByteArrayEntity(executionProtoMessage.toByteArray()));
     httpRequest.setHeader("content-type", "application/octet-stream");
+    // Consuming the entity releases the connection back to the pool for the next execution.
     try (CloseableHttpResponse response = httpClient.execute(httpRequest)) {
       byte[] responseContent = EntityUtils.toByteArray(response.getEntity());
       return Execute.Execution.parseFrom(responseContent);
-    } finally {
-      httpClient.close();
     }
   }
+
+  /**
+   * Sends an HTTP Request to the provided URL with the Execution Protocol Buffer Message followed
+   * by the content of the messages of the {@link MessageContext}, streamed as an {@link
+   * ExecutionStream}. Content streamed back by the remote HTTP Server is written to the messages if
+   * the result is CONTINUE.
+   *
+   * @param executionProtoMessage Execution Protocol Buffer Message built without content.
+   * @param messageContext {@link MessageContext} whose content is streamed in both directions.
+   * @param urlString String URL of the HTTP Server endpoint to hit.
+   * @return Result of the remote HTTP call
+   * @throws IOException
+   */
+  public Execute.Execution streamRemoteHttpServerRequest(
+      Execute.Execution executionProtoMessage, MessageContext messageContext, String urlString)
+      throws IOException {
+    if (LocalPolicies.isLocalUrl(urlString)
+        || UnixDomainSockets.isUnixDomainSocketUrl(urlString)) {
+      throw new IOException("content streaming is not supported over " + urlString);
+    }
+    HttpPost httpRequest = httpRequestSupplier.get();
+    httpRequest.setURI(URI.create(urlString));
+    httpRequest.setEntity(
+        ContentStreaming.buildRequestEntity(executionProtoMessage, messageContext));
+    try (CloseableHttpResponse response = httpClient.execute(httpRequest)) {
+      return ContentStreaming.readResponse(response.getEntity(), messageContext);
+    }
+  }
+
+  /**
+   * Sends an HTTP Request to the provided URL with a batch of serialized Execution Protocol Buffer
+   * Messages. The results are only counted: a remote server that does not answer with a batch, such
+   * as a policy that does not take batches, failed every Execution of the batch.
+   *
+   * @param serializedExecutions Serialized Execution Protocol Buffer Messages to send.
+   * @param urlString String URL of the HTTP Server endpoint to hit.
+   * @return Number of Executions that failed: answered with ABORT, or missing from the results
+   * @throws IOException if the request fails or the remote server answers with an HTTP error
+   */
+  public int sendRemoteHttpServerBatch(List<byte[]> serializedExecutions, String urlString)
+      throws IOException {
+    if (LocalPolicies.isLocalUrl(urlString)) {
+      List<Execute.Execution> results = new ArrayList<>(serializedExecutions.size());
+      for (byte[] serializedExecution : serializedExecutions) {
+        results.add(
+            LocalPolicies.shared()
+                .execute(Execute.Execution.parseFrom(serializedExecution), urlString, false));
+      }
+      return countFailed(serializedExecutions.size(), results);
+    }
+    if (UnixDomainSockets.isUnixDomainSocketUrl(urlString)) {
+      return countFailed(
+          serializedExecutions.size(),
+          getUnixDomainSocketClient(urlString).exchangeBatch(serializedExecutions));
+    }
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    ExecutionBatch.write(batch, serializedExecutions);
+    HttpPost httpRequest = httpRequestSupplier.get();
+    httpRequest.setURI(URI.create(urlString));
+    httpRequest.setEntity(new ByteArrayEntity(batch.toByteArray()));
+    httpRequest.setHeader("content-type", ExecutionBatch.CONTENT_TYPE);
+    try (CloseableHttpResponse response = httpClient.execute(httpRequest)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode < 200 || statusCode >= 300) {
+        EntityUtils.consume(response.getEntity());
+        throw new IOException("remote server answered a batch with HTTP " + statusCode);
+      }
+      ContentType contentType = ContentType.get(response.getEntity());
+      if (contentType == null || !ExecutionBatch.isExecutionBatch(contentType.getMimeType())) {
+        EntityUtils.consume(response.getEntity());
+        return serializedExecutions.size();
+      }
+      try (InputStream inputStream = response.getEntity().getContent()) {
+        return countFailed(serializedExecutions.size(), ExecutionBatch.read(inputStream));
+      }
+    }
+  }
+
+  private static int countFailed(int sent, List<Execute.Execution> results) {
+    int failed = Math.max(0, sent - results.size());
+    for (Execute.Execution result : results) {
+      if (result.getExecutionResult().getAction() == Execute.ExecutionResult.Action.ABORT) {
+        failed++;
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * @param urlString {@code unix://} URL of the socket.
+   * @return Client keeping up to as many idle connections to the socket as the HTTP pool
+   */
+  private UnixDomainSocketClient getUnixDomainSocketClient(String urlString) {
+    return unixDomainSocketClients.computeIfAbsent(
+        urlString,
+        url ->
+            new UnixDomainSocketClient(
+                UnixDomainSockets.getPath(url),
+                maxConnections,
+                UnixDomainSocketClient.DEFAULT_TIMEOUT_MILLIS));
+  }
 }
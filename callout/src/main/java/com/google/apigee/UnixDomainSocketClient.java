@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.CodedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connections to the Unix domain socket of a co-located remote executor, see {@link
+ * UnixDomainSockets}. A connection carries one exchange at a time. Idle connections are kept for
+ * the next exchange up to the pool size, and more are opened while every kept one is busy. A kept
+ * connection the remote executor closed in the meantime, found when the Execution cannot be
+ * written or the connection ends before anything was read, is replaced by a new one. A read or
+ * write that waits longer than the timeout fails the exchange.
+ */
+class UnixDomainSocketClient {
+  /** Time a read or write waits for the remote executor before the exchange fails. */
+  static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+  private final String path;
+  private final int maxIdleConnections;
+  private final long timeoutMillis;
+  private final ConcurrentLinkedDeque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger idleConnectionCount = new AtomicInteger();
+
+  /**
+   * @param path Path of the socket file.
+   * @param maxIdleConnections Number of idle connections to keep.
+   * @param timeoutMillis Time a read or write waits for the remote executor.
+   */
+  UnixDomainSocketClient(String path, int maxIdleConnections, long timeoutMillis) {
+    this.path = path;
+    this.maxIdleConnections = maxIdleConnections;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @param execution Execution Protocol Buffer Message to send.
+   * @return Execution Protocol Buffer Message returned
+   * @throws IOException if the exchange fails
+   */
+  Execute.Execution exchange(Execute.Execution execution) throws IOException {
+    return exchange(execution.toByteArray());
+  }
+
+  /**
+   * Sends serialized Executions one after another on one connection, reading each result before
+   * sending the next.
+   *
+   * @param serializedExecutions Serialized Execution Protocol Buffer Messages to send.
+   * @return Execution Protocol Buffer Messages returned, in the order of the Executions
+   * @throws IOException if an exchange fails
+   */
+  List<Execute.Execution> exchangeBatch(List<byte[]> serializedExecutions) throws IOException {
+    List<Execute.Execution> results = new ArrayList<>(serializedExecutions.size());
+    for (byte[] serializedExecution : serializedExecutions) {
+      results.add(exchange(serializedExecution));
+    }
+    return results;
+  }
+
+  private Execute.Execution exchange(byte[] serializedExecution) throws IOException {
+    Connection connection = idleConnections.pollFirst();
+    if (connection != null) {
+      idleConnectionCount.decrementAndGet();
+      Execute.Execution result = exchange(connection, serializedExecution, true);
+      if (result != null) {
+        return result;
+      }
+    }
+    Execute.Execution result =
+        exchange(new Connection(path, timeoutMillis), serializedExecution, false);
+    if (result == null) {
+      throw new EOFException("connection closed by " + path);
+    }
+    return result;
+  }
+
+  /**
+   * @param reused Whether the connection was kept from an earlier exchange, so the remote executor
+   *     may have closed it since.
+   * @return Execution returned, or null if the remote executor closed the connection instead, or
+   *     a reused connection could not be written
+   */
+  private Execute.Execution exchange(
+      Connection connection, byte[] serializedExecution, boolean reused) throws IOException {
+    try {
+      CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(connection.outputStream);
+      codedOutputStream.writeUInt32NoTag(serializedExecution.length);
+      codedOutputStream.writeRawBytes(serializedExecution);
+      codedOutputStream.flush();
+      connection.outputStream.flush();
+    } catch (IOException e) {
+      connection.close();
+      // A broken pipe on a kept connection means the remote executor closed it while it was idle.
+      if (reused) {
+        return null;
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+    Execute.Execution result;
+    try {
+      result = UnixDomainSockets.readFrame(connection.inputStream);
+    } catch (IOException | RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+    if (result == null) {
+      connection.close();
+    } else if (idleConnectionCount.incrementAndGet() <= maxIdleConnections) {
+      idleConnections.offerFirst(connection);
+    } else {
+      idleConnectionCount.decrementAndGet();
+      connection.close();
+    }
+    return result;
+  }
+
+  private static final class Connection {
+    private final TimedSocketChannel socketChannel;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    Connection(String path, long timeoutMillis) throws IOException {
+      socketChannel = new TimedSocketChannel(UnixDomainSockets.connect(path), timeoutMillis);
+      inputStream = new BufferedInputStream(socketChannel.getInputStream());
+      outputStream = new BufferedOutputStream(socketChannel.getOutputStream());
+    }
+
+    void close() {
+      socketChannel.close();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.message.FlowContext;
+import com.google.protobuf.ByteString;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class ContentDeduplicationTest {
+
+  private static final ByteString LARGE_CONTENT =
+      ByteString.copyFromUtf8("<Envelope>...</Envelope>");
+  private static final ByteString SMALL_CONTENT = ByteString.copyFromUtf8("{}");
+  private static final ByteString LARGE_CONTENT_HASH = ContentStore.hash(LARGE_CONTENT);
+  private static final String SERVER_URL = "url";
+
+  @Test
+  public void testDeduplicate() {
+    ContentDeduplication contentDeduplication = new ContentDeduplication(10, 8);
+    Execute.Execution execution = buildExecution(LARGE_CONTENT, SMALL_CONTENT);
+
+    Execute.Execution first = contentDeduplication.deduplicate(execution, SERVER_URL);
+    assertEquals(
+        LARGE_CONTENT, first.getMessageContext().getTargetRequestMessage().getContent());
+    assertEquals(
+        LARGE_CONTENT_HASH, first.getMessageContext().getTargetRequestMessage().getContentHash());
+    assertEquals(
+        execution.getMessageContext().getProxyRequestMessage(),
+        first.getMessageContext().getProxyRequestMessage());
+    assertEquals(0, ContentDeduplication.countHashOnly(first));
+
+    Execute.Execution second = contentDeduplication.deduplicate(execution, SERVER_URL);
+    assertEquals(
+        ByteString.EMPTY, second.getMessageContext().getTargetRequestMessage().getContent());
+    assertEquals(
+        LARGE_CONTENT_HASH, second.getMessageContext().getTargetRequestMessage().getContentHash());
+    assertEquals(1, ContentDeduplication.countHashOnly(second));
+    assertEquals(1, contentDeduplication.getHashOnly());
+  }
+
+  @Test
+  public void testRestore() {
+    ContentDeduplication contentDeduplication = new ContentDeduplication(10, 8);
+    Execute.Execution execution = buildExecution(LARGE_CONTENT, SMALL_CONTENT);
+    contentDeduplication.deduplicate(execution, SERVER_URL);
+    Execute.Execution sent = contentDeduplication.deduplicate(execution, SERVER_URL);
+
+    Execute.Execution restored =
+        contentDeduplication.restore(
+            execution, sent, Collections.singletonList(LARGE_CONTENT_HASH), SERVER_URL);
+
+    assertEquals(
+        LARGE_CONTENT, restored.getMessageContext().getTargetRequestMessage().getContent());
+    assertEquals(
+        LARGE_CONTENT_HASH,
+        restored.getMessageContext().getTargetRequestMessage().getContentHash());
+    assertEquals(1, contentDeduplication.getResent());
+    // The restored hash is forgotten, so the content is sent in full again.
+    assertEquals(
+        0,
+        ContentDeduplication.countHashOnly(
+            contentDeduplication.deduplicate(execution, SERVER_URL)));
+  }
+
+  @Test
+  public void testKnownContentHashesPerServerUrl() {
+    ContentDeduplication contentDeduplication = new ContentDeduplication(10, 8);
+    Execute.Execution execution = buildExecution(LARGE_CONTENT, SMALL_CONTENT);
+    contentDeduplication.deduplicate(execution, SERVER_URL);
+
+    // Another server has not stored the content yet.
+    assertEquals(
+        0,
+        ContentDeduplication.countHashOnly(
+            contentDeduplication.deduplicate(execution, "other")));
+    assertEquals(
+        1,
+        ContentDeduplication.countHashOnly(
+            contentDeduplication.deduplicate(execution, "other")));
+    contentDeduplication.restore(
+        execution, execution, Collections.singletonList(LARGE_CONTENT_HASH), "other");
+    assertEquals(
+        1,
+        ContentDeduplication.countHashOnly(
+            contentDeduplication.deduplicate(execution, SERVER_URL)));
+  }
+
+  @Test
+  public void testEvictsKnownContentHashes() {
+    ContentDeduplication contentDeduplication = new ContentDeduplication(1, 8);
+    Execute.Execution execution = buildExecution(LARGE_CONTENT, SMALL_CONTENT);
+    Execute.Execution other = buildExecution(ByteString.copyFromUtf8("<Other>...</Other>"), null);
+    contentDeduplication.deduplicate(execution, SERVER_URL);
+    contentDeduplication.deduplicate(other, SERVER_URL);
+
+    assertEquals(
+        0,
+        ContentDeduplication.countHashOnly(
+            contentDeduplication.deduplicate(execution, SERVER_URL)));
+  }
+
+  @Test
+  public void testCalloutAppliesUnchangedContentOfDeduplicatedMessage() throws Exception {
+    FakeMessage resolved =
+        executeDeduplicated(Execute.Message.newBuilder().setContent(LARGE_CONTENT).build());
+    FakeMessage unresolved =
+        executeDeduplicated(
+            Execute.Message.newBuilder().setContentHash(LARGE_CONTENT_HASH).build());
+
+    verify(resolved, never()).setContent(any(String.class));
+    verify(unresolved, never()).setContent(any(String.class));
+    assertEquals(LARGE_CONTENT.toStringUtf8(), unresolved.getContent());
+  }
+
+  @Test
+  public void testCalloutAppliesClearedContentOfDeduplicatedMessage() throws Exception {
+    FakeMessage cleared = executeDeduplicated(Execute.Message.getDefaultInstance());
+
+    verify(cleared).setContent("");
+    assertEquals("", cleared.getContent());
+  }
+
+  /**
+   * Executes a callout twice on a target request with {@link #LARGE_CONTENT}, the second time
+   * sending its content hash only and applying the returned target request.
+   */
+  private static FakeMessage executeDeduplicated(Execute.Message returnedTargetRequest)
+      throws Exception {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("remote_execution_url", SERVER_URL);
+    properties.put("content_dedup", "true");
+    properties.put("content_dedup_min_bytes", "1");
+    RemotePolicyExecutionHandler remotePolicyExecutionHandler =
+        mock(RemotePolicyExecutionHandler.class);
+    JavaCalloutRemotePolicyExecution callout =
+        new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+    Execute.Execution continueExecution =
+        Execute.Execution.newBuilder()
+            .setExecutionResult(
+                Execute.ExecutionResult.newBuilder()
+                    .setAction(Execute.ExecutionResult.Action.CONTINUE))
+            .build();
+    Execute.Execution returnedExecution =
+        continueExecution.toBuilder()
+            .setMessageContext(
+                Execute.MessageContext.newBuilder()
+                    .setTargetRequestMessage(returnedTargetRequest))
+            .build();
+    doReturn(continueExecution, returnedExecution)
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execute.Execution.class), eq(SERVER_URL));
+    FakeMessage message =
+        spy(FakeMessage.newBuilder().setContent(LARGE_CONTENT.toStringUtf8()).build());
+    FakeMessageContext messageContext =
+        FakeMessageContext.newBuilder().setMessage(FlowContext.TARGET_REQUEST, message).build();
+
+    callout.execute(messageContext, mock(ExecutionContext.class));
+    callout.execute(messageContext, mock(ExecutionContext.class));
+    assertEquals("1", messageContext.getVariable(ContentDeduplication.HASH_ONLY_FLOW_VARIABLE));
+    return message;
+  }
+
+  private static Execute.Execution buildExecution(
+      ByteString targetRequestContent, ByteString proxyRequestContent) {
+    Execute.MessageContext.Builder messageContextBuilder =
+        Execute.MessageContext.newBuilder()
+            .setTargetRequestMessage(Execute.Message.newBuilder().setContent(targetRequestContent));
+    if (proxyRequestContent != null) {
+      messageContextBuilder.setProxyRequestMessage(
+          Execute.Message.newBuilder().setContent(proxyRequestContent));
+    }
+    return Execute.Execution.newBuilder().setMessageContext(messageContextBuilder).build();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.protobuf.ByteString;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import org.junit.Test;
+
+public class ContentStoreTest {
+
+  private static final ByteString CONTENT = ByteString.copyFromUtf8("<Envelope/>");
+
+  @Test
+  public void testHash() {
+    assertEquals(32, ContentStore.hash(CONTENT).size());
+    assertEquals(
+        ContentStore.hash(ByteString.copyFromUtf8("<Envelope/>")), ContentStore.hash(CONTENT));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ContentStore contentStore = new ContentStore(20);
+    ByteString first = ByteString.copyFromUtf8("0123456789");
+    ByteString second = ByteString.copyFromUtf8("abcdefghij");
+    ByteString third = ByteString.copyFromUtf8("ABCDEFGHIJ");
+    contentStore.put(ContentStore.hash(first), first);
+    contentStore.put(ContentStore.hash(second), second);
+    contentStore.get(ContentStore.hash(first));
+    contentStore.put(ContentStore.hash(third), third);
+
+    assertEquals(first, contentStore.get(ContentStore.hash(first)));
+    assertNull(contentStore.get(ContentStore.hash(second)));
+    assertEquals(third, contentStore.get(ContentStore.hash(third)));
+    assertEquals(20, contentStore.getSizeBytes());
+    assertEquals(2, contentStore.getEntryCount());
+    assertEquals(1, contentStore.getEvictions());
+    assertEquals(3, contentStore.getHits());
+    assertEquals(1, contentStore.getMisses());
+  }
+
+  @Test
+  public void testSkipsContentLargerThanBound() {
+    ContentStore contentStore = new ContentStore(4);
+    contentStore.put(ContentStore.hash(CONTENT), CONTENT);
+
+    assertEquals(0, contentStore.getSizeBytes());
+    assertNull(contentStore.get(ContentStore.hash(CONTENT)));
+  }
+
+  @Test
+  public void testResolve() {
+    ContentStore contentStore = new ContentStore(1024);
+    ByteString contentHash = ContentStore.hash(CONTENT);
+
+    Execute.Execution.Builder hashOnly = buildExecution(ByteString.EMPTY, contentHash).toBuilder();
+    assertEquals(Collections.singletonList(contentHash), contentStore.resolve(hashOnly));
+
+    Execute.Execution.Builder withContent = buildExecution(CONTENT, contentHash).toBuilder();
+    assertTrue(contentStore.resolve(withContent).isEmpty());
+    assertEquals(buildExecution(CONTENT, ByteString.EMPTY), withContent.build());
+
+    List<ByteString> missing = contentStore.resolve(hashOnly);
+    assertTrue(missing.isEmpty());
+    assertEquals(buildExecution(CONTENT, ByteString.EMPTY), hashOnly.build());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testResolveContentHashMismatch() {
+    new ContentStore(1024)
+        .resolve(
+            buildExecution(CONTENT, ContentStore.hash(ByteString.copyFromUtf8("other")))
+                .toBuilder());
+  }
+
+  @Test
+  public void testResolveLazyExecution() throws Exception {
+    ContentStore contentStore = new ContentStore(1024);
+    ByteString contentHash = ContentStore.hash(CONTENT);
+    Execute.Execution hashOnly = buildExecution(ByteString.EMPTY, contentHash);
+
+    LazyExecution lazyHashOnly = parseTargetRequest(hashOnly);
+    assertEquals(Collections.singletonList(contentHash), contentStore.resolve(lazyHashOnly));
+
+    LazyExecution lazyWithContent = parseTargetRequest(buildExecution(CONTENT, contentHash));
+    assertTrue(contentStore.resolve(lazyWithContent).isEmpty());
+    assertEquals(buildExecution(CONTENT, ByteString.EMPTY), lazyWithContent.toExecution());
+
+    lazyHashOnly = parseTargetRequest(hashOnly);
+    assertTrue(contentStore.resolve(lazyHashOnly).isEmpty());
+    assertEquals(buildExecution(CONTENT, ByteString.EMPTY), lazyHashOnly.toExecution());
+
+    LazyExecution undecoded =
+        LazyExecution.parse(
+            hashOnly.toByteArray(),
+            EnumSet.of(MessageType.PROXY_REQUEST_MESSAGE),
+            Collections.emptySet());
+    assertTrue(contentStore.resolve(undecoded).isEmpty());
+    assertEquals(hashOnly, undecoded.toExecution());
+  }
+
+  private static LazyExecution parseTargetRequest(Execute.Execution execution)
+      throws Exception {
+    return LazyExecution.parse(
+        execution.toByteArray(),
+        EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE),
+        Collections.emptySet());
+  }
+
+  private static Execute.Execution buildExecution(ByteString content, ByteString contentHash) {
+    return Execute.Execution.newBuilder()
+        .setMessageContext(
+            Execute.MessageContext.newBuilder()
+                .setTargetRequestMessage(
+                    Execute.Message.newBuilder().setContent(content).setContentHash(contentHash)))
+        .build();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class ContentStreamingTest {
+
+  private static final String CONTENT = "<root>content</root>";
+  private static final String RETURNED_CONTENT = "{\"root\":\"content\"}";
+  @Mock private MessageContext messageContext;
+  @Mock private Message targetRequestMessage;
+
+  @Before
+  public void init() {
+    MockitoAnnotations.openMocks(this);
+    doReturn(targetRequestMessage).when(messageContext).getMessage(FlowContext.TARGET_REQUEST);
+  }
+
+  @Test
+  public void testBuildRequestEntity() throws Exception {
+    doReturn(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)))
+        .when(targetRequestMessage)
+        .getContentAsStream();
+    Execute.Execution execution = Execute.Execution.newBuilder().setContentStreaming(true).build();
+
+    HttpEntity entity = ContentStreaming.buildRequestEntity(execution, messageContext);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    entity.writeTo(outputStream);
+
+    assertTrue(entity.isChunked());
+    assertEquals(ExecutionStream.CONTENT_TYPE, entity.getContentType().getValue());
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertEquals(execution, reader.readExecution());
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertArrayEquals(CONTENT.getBytes(StandardCharsets.UTF_8), readAll(reader.getContent()));
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testReadResponseContinue() throws Exception {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    doAnswer(
+            invocation -> {
+              InputStream inputStream = invocation.getArgument(0);
+              content.write(readAll(inputStream));
+              return null;
+            })
+        .when(targetRequestMessage)
+        .setContent(any(InputStream.class));
+    Execute.Execution execution = buildExecution(Execute.ExecutionResult.Action.CONTINUE);
+
+    Execute.Execution result =
+        ContentStreaming.readResponse(buildResponseEntity(execution), messageContext);
+
+    assertEquals(execution, result);
+    assertEquals(RETURNED_CONTENT, new String(content.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testReadResponseContentOutlivesResponse() throws Exception {
+    for (int maxBufferedBytes : new int[] {ContentStreaming.MAX_BUFFERED_CONTENT_BYTES, 4}) {
+      ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+      Execute.Execution execution = buildExecution(Execute.ExecutionResult.Action.CONTINUE);
+
+      ContentStreaming.readResponse(
+          buildResponseEntity(execution), messageContext, maxBufferedBytes);
+
+      // Read after the response is consumed, as a message does.
+      verify(targetRequestMessage, atLeastOnce()).setContent(content.capture());
+      try (InputStream inputStream = content.getValue()) {
+        assertEquals(RETURNED_CONTENT, new String(readAll(inputStream), StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testReadResponseAbort() throws Exception {
+    Execute.Execution execution = buildExecution(Execute.ExecutionResult.Action.ABORT);
+
+    Execute.Execution result =
+        ContentStreaming.readResponse(buildResponseEntity(execution), messageContext);
+
+    assertEquals(execution, result);
+    verify(targetRequestMessage, never()).setContent(any(InputStream.class));
+  }
+
+  @Test
+  public void testReadResponseWithoutStream() throws Exception {
+    Execute.Execution execution = buildExecution(Execute.ExecutionResult.Action.CONTINUE);
+
+    Execute.Execution result =
+        ContentStreaming.readResponse(
+            new ByteArrayEntity(execution.toByteArray(), ContentType.APPLICATION_OCTET_STREAM),
+            messageContext);
+
+    assertEquals(execution, result);
+    verify(targetRequestMessage, never()).setContent(any(InputStream.class));
+  }
+
+  private static Execute.Execution buildExecution(Execute.ExecutionResult.Action action) {
+    return Execute.Execution.newBuilder()
+        .setContentStreaming(true)
+        .setExecutionResult(Execute.ExecutionResult.newBuilder().setAction(action))
+        .build();
+  }
+
+  private static HttpEntity buildResponseEntity(Execute.Execution execution) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+    writer.writeExecution(execution);
+    writer.writeContent(
+        MessageType.TARGET_REQUEST_MESSAGE,
+        new ByteArrayInputStream(RETURNED_CONTENT.getBytes(StandardCharsets.UTF_8)));
+    return new ByteArrayEntity(
+        outputStream.toByteArray(), ContentType.create(ExecutionStream.CONTENT_TYPE));
+  }
+
+  private static byte[] readAll(InputStream inputStream) throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    for (int read; (read = inputStream.read(buffer)) != -1; ) {
+      outputStream.write(buffer, 0, read);
+    }
+    return outputStream.toByteArray();
+  }
+}
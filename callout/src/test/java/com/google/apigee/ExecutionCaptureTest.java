@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.apigee.Execute.Execution;
+import com.google.protobuf.TextFormat;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExecutionCaptureTest {
+
+  private static final String HEADER = "authorization";
+  private static final String QUERY_PARAM = "apikey";
+  private static final String VALUE = "secret";
+  private static final String CONTENT = "content1";
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private File captureFile;
+  private Execution execution;
+
+  @Before
+  public void init() throws Exception {
+    captureFile = new File(temporaryFolder.getRoot(), "capture.bin");
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT + "\""
+            + "    header_map {"
+            + "      key: \"" + HEADER + "\""
+            + "      value {"
+            + "        headers: [\"" + VALUE + "\", \"" + VALUE + "\"]"
+            + "      }"
+            + "    }"
+            + "    query_param_map {"
+            + "      key: \"" + QUERY_PARAM + "\""
+            + "      value {"
+            + "        query_parameters: \"" + VALUE + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    execution = executionBuilder.build();
+  }
+
+  @Test
+  public void testSampleWritesDelimitedMessages() throws Exception {
+    ExecutionCapture capture =
+        new ExecutionCapture(captureFile.getPath(), 1024, 1, Collections.emptySet());
+    capture.sample(execution);
+    capture.sample(execution);
+
+    List<Execution> captured = readCapture();
+
+    assertEquals(2, captured.size());
+    assertEquals(execution, captured.get(0));
+    assertEquals(execution, captured.get(1));
+  }
+
+  @Test
+  public void testSampleRedactsValuesAndContent() throws Exception {
+    ExecutionCapture capture =
+        new ExecutionCapture(
+            captureFile.getPath(),
+            1024,
+            1,
+            ExecutionCapture.parseRedactedNames(HEADER + ", " + QUERY_PARAM + ",content"));
+    capture.sample(execution);
+
+    Execution.Builder expectedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    header_map {"
+            + "      key: \"" + HEADER + "\""
+            + "      value {"
+            + "        headers: [\"REDACTED\", \"REDACTED\"]"
+            + "      }"
+            + "    }"
+            + "    query_param_map {"
+            + "      key: \"" + QUERY_PARAM + "\""
+            + "      value {"
+            + "        query_parameters: \"REDACTED\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        expectedBuilder);
+
+    assertEquals(Collections.singletonList(expectedBuilder.build()), readCapture());
+  }
+
+  @Test
+  public void testSampleRedactsHeadersWithoutCase() throws Exception {
+    Execution.Builder executionBuilder = execution.toBuilder();
+    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
+        .putHeaderMap("X-API-Key",
+            Execute.Message.Headers.newBuilder().addHeaders(VALUE).build());
+    ExecutionCapture capture =
+        new ExecutionCapture(
+            captureFile.getPath(), 1024, 1,
+            ExecutionCapture.parseRedactedNames("Authorization, x-api-key"));
+    capture.sample(executionBuilder.build());
+
+    Execute.Message captured =
+        readCapture().get(0).getMessageContext().getTargetRequestMessage();
+    assertEquals(
+        Arrays.asList("REDACTED", "REDACTED"),
+        captured.getHeaderMapOrThrow(HEADER).getHeadersList());
+    assertEquals(
+        Collections.singletonList("REDACTED"),
+        captured.getHeaderMapOrThrow("X-API-Key").getHeadersList());
+  }
+
+  @Test
+  public void testSampleRedactsIndexedHeaders() throws Exception {
+    ExecutionCapture capture =
+        new ExecutionCapture(
+            captureFile.getPath(), 1024, 1, ExecutionCapture.parseRedactedNames(HEADER));
+    capture.sample(HeaderNameTable.encode(execution));
+
+    Execution captured = readCapture().get(0);
+    assertEquals(Execution.HeaderEncoding.INDEXED, captured.getHeaderEncoding());
+    for (Execute.Message.IndexedHeader indexedHeader :
+        captured.getMessageContext().getTargetRequestMessage().getIndexedHeadersList()) {
+      assertFalse(indexedHeader.getValuesList().contains(VALUE));
+    }
+    assertEquals(
+        Arrays.asList("REDACTED", "REDACTED"),
+        HeaderNameTable.decode(captured).getMessageContext().getTargetRequestMessage()
+            .getHeaderMapOrThrow(HEADER).getHeadersList());
+  }
+
+  @Test
+  public void testSampleStopsAtSizeCap() throws Exception {
+    int recordBytes = execution.getSerializedSize() + 1;
+    ExecutionCapture capture =
+        new ExecutionCapture(
+            captureFile.getPath(), recordBytes * 2 + 1, 1, Collections.emptySet());
+    capture.sample(execution);
+    capture.sample(execution);
+    capture.sample(execution);
+
+    assertEquals(2, readCapture().size());
+    assertEquals(recordBytes * 2, captureFile.length());
+  }
+
+  @Test
+  public void testSampleRateZeroCapturesNothing() throws Exception {
+    ExecutionCapture capture =
+        new ExecutionCapture(captureFile.getPath(), 1024, 0, Collections.emptySet());
+    capture.sample(execution);
+
+    assertEquals(0, captureFile.length());
+  }
+
+  @Test
+  public void testSampleRedactsFlowInfoVariables() throws Exception {
+    Execution.Builder executionBuilder = execution.toBuilder();
+    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
+        .putFlowVariables("request", Execute.Message.FlowMapValue.newBuilder()
+            .setFlowInfo(Execute.FlowInfo.newBuilder()
+                .setIdentifier("request")
+                .putTypedVariables("request.header.authorization",
+                    Execute.Value.newBuilder().setStringValue(VALUE).build())
+                .putTypedVariables("apikey",
+                    Execute.Value.newBuilder().setStringValue(VALUE).build())
+                .putTypedVariables("request.verb",
+                    Execute.Value.newBuilder().setStringValue("GET").build()))
+            .build());
+    ExecutionCapture capture =
+        new ExecutionCapture(
+            captureFile.getPath(), 1024, 1,
+            ExecutionCapture.parseRedactedNames(
+                "request.header.authorization, request:apikey"));
+    capture.sample(executionBuilder.build());
+
+    Execute.FlowInfo captured =
+        readCapture().get(0).getMessageContext().getTargetRequestMessage()
+            .getFlowVariablesOrThrow("request").getFlowInfo();
+    assertEquals(
+        "REDACTED",
+        captured.getTypedVariablesOrThrow("request.header.authorization").getStringValue());
+    assertEquals("REDACTED", captured.getTypedVariablesOrThrow("apikey").getStringValue());
+    assertEquals("GET", captured.getTypedVariablesOrThrow("request.verb").getStringValue());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConflictingSizeCaps() {
+    new ExecutionCapture(captureFile.getPath(), 1024, 1, Collections.emptySet());
+    new ExecutionCapture(captureFile.getPath(), 2048, 1, Collections.emptySet());
+  }
+
+  private List<Execution> readCapture() throws Exception {
+    List<Execution> captured = new ArrayList<>();
+    try (InputStream inputStream = new FileInputStream(captureFile)) {
+      Execution execution;
+      while ((execution = Execution.parseDelimitedFrom(inputStream)) != null) {
+        captured.add(execution);
+      }
+    }
+    return captured;
+  }
+}
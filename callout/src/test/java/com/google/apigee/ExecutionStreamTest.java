@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class ExecutionStreamTest {
+
+  private static final Execute.Execution EXECUTION =
+      Execute.Execution.newBuilder()
+          .setContentStreaming(true)
+          .setExecutionResult(
+              Execute.ExecutionResult.newBuilder()
+                  .setAction(Execute.ExecutionResult.Action.CONTINUE))
+          .build();
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] largeContent = new byte[ExecutionStream.CHUNK_SIZE * 2 + 7];
+    Arrays.fill(largeContent, (byte) 'x');
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+    writer.writeExecution(EXECUTION);
+    writer.writeContent(MessageType.TARGET_REQUEST_MESSAGE, new ByteArrayInputStream(largeContent));
+    try (OutputStream content = writer.openContent(MessageType.PROXY_RESPONSE_MESSAGE)) {
+      content.write('a');
+      content.write(new byte[] {'b', 'c'});
+    }
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+    assertEquals(EXECUTION, reader.readExecution());
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertArrayEquals(largeContent, readAll(reader.getContent()));
+    assertEquals(MessageType.PROXY_RESPONSE_MESSAGE, reader.nextContent());
+    assertArrayEquals(new byte[] {'a', 'b', 'c'}, readAll(reader.getContent()));
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testSkipUnreadContent() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+    writer.writeExecution(EXECUTION);
+    writer.writeContent(
+        MessageType.TARGET_REQUEST_MESSAGE,
+        new ByteArrayInputStream(new byte[ExecutionStream.CHUNK_SIZE * 3]));
+    writer.writeContent(MessageType.ERROR_MESSAGE, new ByteArrayInputStream(new byte[] {'e'}));
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+    reader.readExecution();
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertEquals(0, reader.getContent().read());
+    assertEquals(MessageType.ERROR_MESSAGE, reader.nextContent());
+    assertArrayEquals(new byte[] {'e'}, readAll(reader.getContent()));
+  }
+
+  @Test
+  public void testEmptyContent() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+    writer.writeExecution(EXECUTION);
+    writer.writeContent(MessageType.TARGET_REQUEST_MESSAGE, new ByteArrayInputStream(new byte[0]));
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+    reader.readExecution();
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertEquals(-1, reader.getContent().read());
+    assertNull(reader.nextContent());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedContent() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(outputStream);
+    writer.writeExecution(EXECUTION);
+    Execute.ContentChunk.newBuilder()
+        .setMessageType(MessageType.TARGET_REQUEST_MESSAGE)
+        .setData(ByteString.copyFromUtf8("first chunk"))
+        .build()
+        .writeDelimitedTo(outputStream);
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(outputStream.toByteArray()));
+    reader.readExecution();
+    reader.nextContent();
+    readAll(reader.getContent());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testMissingExecution() throws Exception {
+    new ExecutionStream.Reader(new ByteArrayInputStream(new byte[0])).readExecution();
+  }
+
+  @Test
+  public void testIsExecutionStream() {
+    assertTrue(ExecutionStream.isExecutionStream(ExecutionStream.CONTENT_TYPE));
+    assertFalse(ExecutionStream.isExecutionStream("application/octet-stream"));
+    assertFalse(ExecutionStream.isExecutionStream(null));
+  }
+
+  private static byte[] readAll(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    for (int read; (read = inputStream.read(buffer)) != -1; ) {
+      outputStream.write(buffer, 0, read);
+    }
+    return outputStream.toByteArray();
+  }
+}
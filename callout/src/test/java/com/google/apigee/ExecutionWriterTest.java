@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.apigee.Execute.Execution;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.TextFormat;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import org.junit.Test;
+
+public class ExecutionWriterTest {
+
+  private static final String EXECUTION =
+      "messageContext {"
+          + "  target_request_message {"
+          + "    content: \"<a>b</a>\""
+          + "    flow_variables {"
+          + "      key: \"conversion\""
+          + "      value {"
+          + "        flow_variable: \"xmltojson\""
+          + "      }"
+          + "    }"
+          + "  }"
+          + "}"
+          + "executionResult {"
+          + "  action: CONTINUE"
+          + "}";
+
+  @Test
+  public void testWrite() throws Exception {
+    Execution execution = execution(EXECUTION);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+    ExecutionWriter.write(first, execution);
+    ExecutionWriter.write(second, Execution.getDefaultInstance());
+
+    assertArrayEquals(execution.toByteArray(), first.toByteArray());
+    assertEquals(0, second.size());
+  }
+
+  @Test
+  public void testWriteLargerThanBuffer() throws Exception {
+    Execution.Builder executionBuilder = execution(EXECUTION).toBuilder();
+    executionBuilder
+        .getMessageContextBuilder()
+        .getTargetRequestMessageBuilder()
+        .setContent(ByteString.copyFrom(new byte[3 * ExecutionWriter.BUFFER_SIZE]));
+    Execution execution = executionBuilder.build();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    ExecutionWriter.write(outputStream, execution);
+
+    assertArrayEquals(execution.toByteArray(), outputStream.toByteArray());
+  }
+
+  @Test
+  public void testWriteDelimited() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    ExecutionWriter.writeDelimited(outputStream, execution(EXECUTION));
+    ExecutionWriter.writeDelimited(outputStream, Execution.getDefaultInstance());
+
+    ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+    assertEquals(execution(EXECUTION), Execution.parseDelimitedFrom(inputStream));
+    assertEquals(Execution.getDefaultInstance(), Execution.parseDelimitedFrom(inputStream));
+    assertEquals(0, inputStream.available());
+  }
+
+  @Test
+  public void testWriteLazyExecution() throws Exception {
+    LazyExecution lazyExecution =
+        LazyExecution.parse(
+            execution(EXECUTION).toByteArray(),
+            EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE),
+            Collections.singleton("conversion"));
+    lazyExecution
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .setContent(ByteString.copyFromUtf8("{\"a\":\"b\"}"));
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    ExecutionWriter.write(outputStream, lazyExecution);
+
+    assertEquals(lazyExecution.toExecution(), Execution.parseFrom(outputStream.toByteArray()));
+  }
+
+  @Test
+  public void testFlushesStream() throws Exception {
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+    ExecutionWriter.write(new BufferedOutputStream(target), execution(EXECUTION));
+
+    assertArrayEquals(execution(EXECUTION).toByteArray(), target.toByteArray());
+  }
+
+  @Test
+  public void testFailedWriteDoesNotLeak() throws Exception {
+    OutputStream failing =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException("closed");
+          }
+        };
+    try {
+      ExecutionWriter.writeDelimited(failing, execution(EXECUTION));
+      fail();
+    } catch (IOException e) {
+      assertEquals("closed", e.getMessage());
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    ExecutionWriter.write(outputStream, Execution.getDefaultInstance());
+
+    assertEquals(0, outputStream.size());
+  }
+
+  private static Execution execution(String text) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(text, executionBuilder);
+    return executionBuilder.build();
+  }
+}
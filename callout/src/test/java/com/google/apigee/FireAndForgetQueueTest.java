@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.apigee.FireAndForgetQueue.OverflowPolicy;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public class FireAndForgetQueueTest {
+
+  private static final String SERVER_URL = "url";
+  private static final byte[] FIRST = {1};
+  private static final byte[] SECOND = {2};
+  private static final byte[] THIRD = {3};
+  @Mock private RemotePolicyExecutionHandler remotePolicyExecutionHandler;
+
+  @Before
+  public void init() {
+    MockitoAnnotations.openMocks(this);
+  }
+
+  @Test
+  public void testParseOverflowPolicy() {
+    assertEquals(OverflowPolicy.DROP_NEWEST, FireAndForgetQueue.parseOverflowPolicy(null));
+    assertEquals(
+        OverflowPolicy.DROP_OLDEST, FireAndForgetQueue.parseOverflowPolicy("drop_oldest"));
+    assertEquals(OverflowPolicy.BLOCK, FireAndForgetQueue.parseOverflowPolicy(" BLOCK "));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseUnknownOverflowPolicy() {
+    FireAndForgetQueue.parseOverflowPolicy("drop_all");
+  }
+
+  @Test
+  public void testDropNewest() {
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.DROP_NEWEST, 0);
+
+    assertTrue(queue.offer(FIRST));
+    assertTrue(queue.offer(SECOND));
+    assertFalse(queue.offer(THIRD));
+    assertEquals(2, queue.getDepth());
+    assertEquals(1, queue.getDropped());
+  }
+
+  @Test
+  public void testDropOldest() {
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.DROP_OLDEST, 0);
+
+    assertTrue(queue.offer(FIRST));
+    assertTrue(queue.offer(SECOND));
+    assertTrue(queue.offer(THIRD));
+    assertEquals(2, queue.getDepth());
+    assertEquals(1, queue.getDropped());
+  }
+
+  @Test
+  public void testBlockWaitsForRoom() throws Exception {
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.BLOCK, 0);
+    queue.offer(FIRST);
+    queue.offer(SECOND);
+    AtomicBoolean offered = new AtomicBoolean(true);
+    Thread blocked = new Thread(() -> offered.set(queue.offer(THIRD)));
+
+    blocked.start();
+    blocked.join(50);
+    assertTrue(blocked.isAlive());
+    blocked.interrupt();
+    blocked.join(TimeUnit.SECONDS.toMillis(5));
+
+    assertFalse(offered.get());
+    assertEquals(1, queue.getDropped());
+  }
+
+  @Test
+  public void testSendsBatches() throws Exception {
+    List<byte[]> sent = new CopyOnWriteArrayList<>();
+    doAnswer(
+            invocation -> {
+              List<byte[]> batch = invocation.getArgument(0);
+              sent.addAll(batch);
+              return 0;
+            })
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerBatch(anyList(), eq(SERVER_URL));
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.DROP_NEWEST, 1);
+
+    queue.offer(FIRST);
+    queue.offer(SECOND);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (queue.getSent() < 2 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, queue.getSent());
+    assertEquals(0, queue.getDepth());
+    assertArrayEquals(FIRST, sent.get(0));
+    assertArrayEquals(SECOND, sent.get(1));
+  }
+
+  @Test
+  public void testSendsAfterIdle() throws Exception {
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.DROP_NEWEST, 1);
+
+    queue.offer(FIRST);
+    awaitSentOrFailed(queue, 1);
+    // The sender stopped with the queue empty, and is started again.
+    queue.offer(SECOND);
+    awaitSentOrFailed(queue, 2);
+
+    assertEquals(2, queue.getSent());
+    verify(remotePolicyExecutionHandler, times(2))
+        .sendRemoteHttpServerBatch(anyList(), eq(SERVER_URL));
+  }
+
+  @Test
+  public void testCountsFailed() throws Exception {
+    doReturn(1, 0)
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerBatch(anyList(), eq(SERVER_URL));
+    FireAndForgetQueue queue = buildQueue(OverflowPolicy.DROP_NEWEST, 1);
+
+    queue.offer(FIRST);
+    awaitSentOrFailed(queue, 1);
+    doThrow(new IOException("remote server answered a batch with HTTP 503"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerBatch(anyList(), eq(SERVER_URL));
+    queue.offer(SECOND);
+    awaitSentOrFailed(queue, 2);
+
+    assertEquals(0, queue.getSent());
+    assertEquals(2, queue.getFailed());
+  }
+
+  private static void awaitSentOrFailed(FireAndForgetQueue queue, long count) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (queue.getSent() + queue.getFailed() < count && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private FireAndForgetQueue buildQueue(OverflowPolicy overflowPolicy, int senders) {
+    return new FireAndForgetQueue(
+        remotePolicyExecutionHandler, SERVER_URL, 2, 10, overflowPolicy, senders);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.apigee.Execute.Execution;
+import com.google.protobuf.TextFormat;
+import org.junit.Test;
+
+public class HeaderNameTableTest {
+
+  private static final String EXECUTION =
+      "messageContext {"
+          + "  target_request_message {"
+          + "    header_map { key: \"content-type\" value { headers: \"application/json\" } }"
+          + "    header_map { key: \"User-Agent\" value { headers: \"curl/7.68.0\" } }"
+          + "    header_map { key: \"x-tenant\" value { headers: \"a\" headers: \"b\" } }"
+          + "    content: \"content\""
+          + "  }"
+          + "  proxy_request_message {"
+          + "    header_map { key: \"x-tenant\" value { headers: \"a\" } }"
+          + "    header_map { key: \"X-CUSTOM\" value { headers: \"c\" } }"
+          + "  }"
+          + "}"
+          + "executionContext {"
+          + "}";
+
+  @Test
+  public void testEncode() throws Exception {
+    Execution encoded = HeaderNameTable.encode(parse(EXECUTION));
+
+    assertEquals(Execution.HeaderEncoding.INDEXED, encoded.getHeaderEncoding());
+    Execute.Message targetRequest = encoded.getMessageContext().getTargetRequestMessage();
+    Execute.Message proxyRequest = encoded.getMessageContext().getProxyRequestMessage();
+    assertEquals(0, targetRequest.getHeaderMapCount());
+    assertEquals(3, targetRequest.getIndexedHeadersCount());
+    for (Execute.Message.IndexedHeader header : targetRequest.getIndexedHeadersList()) {
+      if (header.getNameCase() == Execute.Message.IndexedHeader.NameCase.LITERAL) {
+        assertEquals("x-tenant", header.getLiteral());
+      } else {
+        assertTrue(header.getIndex() < HeaderNameTable.STATIC_TABLE.length);
+      }
+    }
+    for (Execute.Message.IndexedHeader header : proxyRequest.getIndexedHeadersList()) {
+      if (header.getNameCase() == Execute.Message.IndexedHeader.NameCase.INDEX) {
+        assertEquals(HeaderNameTable.STATIC_TABLE.length, header.getIndex());
+      } else {
+        assertEquals("X-CUSTOM", header.getLiteral());
+      }
+    }
+    assertTrue(encoded.getSerializedSize() < parse(EXECUTION).getSerializedSize());
+  }
+
+  @Test
+  public void testDecode() throws Exception {
+    Execution execution = parse(EXECUTION);
+
+    assertEquals(execution, HeaderNameTable.decode(HeaderNameTable.encode(execution)));
+  }
+
+  @Test
+  public void testDecodeHeaderMap() throws Exception {
+    Execution execution = parse(EXECUTION);
+
+    assertSame(execution, HeaderNameTable.decode(execution));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeIndexOutOfRange() throws Exception {
+    HeaderNameTable.decode(
+        parse(
+            "header_encoding: INDEXED "
+                + "messageContext {"
+                + "  target_request_message {"
+                + "    indexed_headers { index: "
+                + HeaderNameTable.STATIC_TABLE.length
+                + " values: \"a\" }"
+                + "  }"
+                + "}"));
+  }
+
+  private static Execution parse(String text) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(text, executionBuilder);
+    return executionBuilder.build();
+  }
+}
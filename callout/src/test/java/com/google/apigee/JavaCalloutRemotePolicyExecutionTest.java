@@ -16,22 +16,35 @@ package com.google.apigee;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.apigee.flow.execution.Action;
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.FlowContext;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.Execute.Execution;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -193,6 +206,43 @@ public class JavaCalloutRemotePolicyExecutionTest {
     assertTrue(isSameExecutionResult(expected, actual));
   }
 
+  @Test
+  public void testExecutionRemotePolicies() throws Exception {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, SERVER_URL);
+    properties.put("remote_policies", "Convert, Validate,,Enrich");
+    callout = new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+
+    Execution.Builder sentBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "}"
+            + "executionContext {"
+            + "}"
+            + "policy_chain {"
+            + "  policies: \"Convert\""
+            + "  policies: \"Validate\""
+            + "  policies: \"Enrich\""
+            + "}",
+        sentBuilder);
+    Execution.Builder returnedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "executionResult {"
+            + "    action: ABORT"
+            + "    policy: \"Validate\""
+            + "}",
+        returnedBuilder);
+    doReturn(returnedBuilder.build())
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(sentBuilder.build(), SERVER_URL);
+
+    ExecutionResult actual = callout.execute(messageContext, executionContext);
+
+    assertEquals(Action.ABORT, actual.getAction());
+    verify(messageContext)
+        .setVariable(JavaCalloutRemotePolicyExecution.POLICY_FLOW_VARIABLE, "Validate");
+  }
+
   @Test
   public void testExecutionNoExecutionResult() throws Exception {
     Execution.Builder executionBuilder = Execution.newBuilder();
@@ -232,6 +282,264 @@ public class JavaCalloutRemotePolicyExecutionTest {
     assertEquals(expected, actual);
   }
 
+  @Test
+  public void testExecutionContentDedupResend() throws Exception {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, SERVER_URL);
+    properties.put("content_dedup", "true");
+    properties.put("content_dedup_min_bytes", "1");
+    callout = new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+    ByteString contentHash = ContentStore.hash(ByteString.copyFromUtf8(VALUE));
+    Execution continueExecution =
+        Execution.newBuilder()
+            .setExecutionResult(
+                Execute.ExecutionResult.newBuilder()
+                    .setAction(Execute.ExecutionResult.Action.CONTINUE))
+            .build();
+    Execution missingExecution =
+        Execution.newBuilder().addMissingContentHashes(contentHash).build();
+
+    doReturn(message).when(messageContext).getMessage(FlowContext.TARGET_REQUEST);
+    doReturn(VALUE).when(message).getContent();
+    doReturn(continueExecution, missingExecution, continueExecution)
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(SERVER_URL));
+
+    callout.execute(messageContext, executionContext);
+    callout.execute(messageContext, executionContext);
+
+    ArgumentCaptor<Execution> sent = ArgumentCaptor.forClass(Execution.class);
+    verify(remotePolicyExecutionHandler, times(3))
+        .sendRemoteHttpServerRequest(sent.capture(), eq(SERVER_URL));
+    List<Execute.Message> sentMessages =
+        sent.getAllValues().stream()
+            .map(execution -> execution.getMessageContext().getTargetRequestMessage())
+            .collect(Collectors.toList());
+    assertEquals(ByteString.copyFromUtf8(VALUE), sentMessages.get(0).getContent());
+    assertEquals(contentHash, sentMessages.get(0).getContentHash());
+    assertEquals(ByteString.EMPTY, sentMessages.get(1).getContent());
+    assertEquals(contentHash, sentMessages.get(1).getContentHash());
+    assertEquals(ByteString.copyFromUtf8(VALUE), sentMessages.get(2).getContent());
+    verify(messageContext).setVariable(ContentDeduplication.RESENT_FLOW_VARIABLE, "1");
+    verify(message, never()).setContent(any(String.class));
+  }
+
+  @Test
+  public void testExecutionContentDedupLocal() throws Exception {
+    String localUrl = LocalPolicies.URL_PREFIX + "XmlJsonConversion";
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, localUrl);
+    properties.put("content_dedup", "true");
+    properties.put("content_dedup_min_bytes", "1");
+    callout = new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+    Execution continueExecution =
+        Execution.newBuilder()
+            .setExecutionResult(
+                Execute.ExecutionResult.newBuilder()
+                    .setAction(Execute.ExecutionResult.Action.CONTINUE))
+            .build();
+
+    doReturn(message).when(messageContext).getMessage(FlowContext.TARGET_REQUEST);
+    doReturn(VALUE).when(message).getContent();
+    doReturn(continueExecution)
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(localUrl));
+
+    callout.execute(messageContext, executionContext);
+    callout.execute(messageContext, executionContext);
+
+    ArgumentCaptor<Execution> sent = ArgumentCaptor.forClass(Execution.class);
+    verify(remotePolicyExecutionHandler, times(2))
+        .sendRemoteHttpServerRequest(sent.capture(), eq(localUrl));
+    for (Execution execution : sent.getAllValues()) {
+      Execute.Message targetRequest = execution.getMessageContext().getTargetRequestMessage();
+      assertEquals(ByteString.copyFromUtf8(VALUE), targetRequest.getContent());
+      assertEquals(ByteString.EMPTY, targetRequest.getContentHash());
+    }
+    verify(messageContext, times(2))
+        .setVariable(ContentDeduplication.HASH_ONLY_FLOW_VARIABLE, "0");
+  }
+
+  @Test
+  public void testExecutionPrefetch() throws Exception {
+    Execution execution =
+        Execution.newBuilder()
+            .setMessageContext(
+                Execute.MessageContext.newBuilder()
+                    .setTargetRequestMessage(
+                        Execute.Message.newBuilder()
+                            .putFlowVariables(
+                                KEY,
+                                Execute.Message.FlowMapValue.newBuilder()
+                                    .setFlowVariable(VALUE)
+                                    .build())))
+            .setExecutionResult(
+                Execute.ExecutionResult.newBuilder()
+                    .setAction(Execute.ExecutionResult.Action.CONTINUE))
+            .build();
+    doReturn(execution)
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(SERVER_URL));
+    doReturn(message).when(messageContext).getMessage();
+
+    ExecutionResult started =
+        buildPrefetchCallout("start").execute(messageContext, executionContext);
+    ArgumentCaptor<Object> handle = ArgumentCaptor.forClass(Object.class);
+    verify(messageContext).setVariable(eq("remote_execution.prefetch"), handle.capture());
+    doReturn(handle.getValue()).when(messageContext).getVariable("remote_execution.prefetch");
+    ExecutionResult collected =
+        buildPrefetchCallout("collect").execute(messageContext, executionContext);
+
+    assertEquals(Action.CONTINUE, started.getAction());
+    assertEquals(Action.CONTINUE, collected.getAction());
+    verify(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(SERVER_URL));
+    verify(messageContext).removeVariable("remote_execution.prefetch");
+    verify(message).setContent(VALUE);
+  }
+
+  @Test
+  public void testExecutionPrefetchCollectWithoutStart() throws Exception {
+    doReturn(
+            Execution.newBuilder()
+                .setExecutionResult(
+                    Execute.ExecutionResult.newBuilder()
+                        .setAction(Execute.ExecutionResult.Action.CONTINUE))
+                .build())
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(SERVER_URL));
+
+    ExecutionResult collected =
+        buildPrefetchCallout("collect").execute(messageContext, executionContext);
+
+    assertEquals(Action.CONTINUE, collected.getAction());
+    verify(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq(SERVER_URL));
+  }
+
+  @Test
+  public void testExecutionPrefetchTimeout() throws Exception {
+    CompletableFuture<Object> neverCompleted = new CompletableFuture<>();
+    doReturn(neverCompleted).when(messageContext).getVariable("remote_execution.prefetch");
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, SERVER_URL);
+    properties.put("prefetch", "collect");
+    properties.put("prefetch_timeout_ms", "1");
+
+    ExecutionResult collected =
+        new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler)
+            .execute(messageContext, executionContext);
+
+    assertEquals(ExecutionResult.ABORT, collected);
+    assertTrue(neverCompleted.isCancelled());
+  }
+
+  @Test
+  public void testExecutionFireAndForget() throws Exception {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, SERVER_URL);
+    properties.put("fire_and_forget", "true");
+    callout = new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+
+    ExecutionResult actual = callout.execute(messageContext, executionContext);
+
+    assertEquals(ExecutionResult.SUCCESS, actual);
+    verify(remotePolicyExecutionHandler, never())
+        .sendRemoteHttpServerRequest(any(Execution.class), any(String.class));
+    verify(messageContext).setVariable(FireAndForgetQueue.DROPPED_FLOW_VARIABLE, "0");
+    verify(messageContext).setVariable(FireAndForgetQueue.FAILED_FLOW_VARIABLE, "0");
+    verify(remotePolicyExecutionHandler, timeout(TimeUnit.SECONDS.toMillis(5)))
+        .sendRemoteHttpServerBatch(anyList(), eq(SERVER_URL));
+  }
+
+  @Test
+  public void testExecutionFanOutUnionsFlowVariables() throws Exception {
+    doReturn(fanOutResult("CONTINUE", "fraud.score", "12"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("fraud"));
+    doReturn(fanOutResult("CONTINUE", "geo.country", "NL"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("geo"));
+
+    ExecutionResult actual =
+        buildFanOutCallout("fraud, geo", null).execute(messageContext, executionContext);
+
+    assertEquals(Action.CONTINUE, actual.getAction());
+    verify(messageContext).setVariable("fraud.score", "12");
+    verify(messageContext).setVariable("geo.country", "NL");
+  }
+
+  @Test
+  public void testExecutionFanOutFirstAbortWins() throws Exception {
+    doReturn(fanOutResult("CONTINUE", "fraud.score", "12"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("fraud"));
+    doReturn(fanOutResult("ABORT", "schema.error", "invalid"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("schema"));
+
+    ExecutionResult actual =
+        buildFanOutCallout("fraud,schema", null).execute(messageContext, executionContext);
+
+    assertEquals(Action.ABORT, actual.getAction());
+    verify(messageContext, never()).setVariable("fraud.score", "12");
+    verify(messageContext, never()).setVariable("schema.error", "invalid");
+  }
+
+  @Test
+  public void testExecutionFanOutIgnoreAbort() throws Exception {
+    doReturn(fanOutResult("ABORT", "geo.error", "timeout"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("geo"));
+    doReturn(fanOutResult("CONTINUE", "fraud.score", "12"))
+        .when(remotePolicyExecutionHandler)
+        .sendRemoteHttpServerRequest(any(Execution.class), eq("fraud"));
+
+    ExecutionResult actual =
+        buildFanOutCallout("geo,fraud", "ignore_abort").execute(messageContext, executionContext);
+
+    assertEquals(Action.CONTINUE, actual.getAction());
+    verify(messageContext).setVariable("fraud.score", "12");
+    verify(messageContext, never()).setVariable("geo.error", "timeout");
+  }
+
+  private JavaCalloutRemotePolicyExecution buildFanOutCallout(String urls, String merge) {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("remote_execution_urls", urls);
+    if (merge != null) {
+      properties.put("fan_out_merge", merge);
+    }
+    return new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+  }
+
+  private static Execution fanOutResult(String action, String key, String value)
+      throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    flow_variables {"
+            + "      key: \"" + key + "\""
+            + "      value {"
+            + "        flow_variable: \"" + value + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + "executionResult {"
+            + "    action: " + action
+            + "}",
+        executionBuilder);
+    return executionBuilder.build();
+  }
+
+  private JavaCalloutRemotePolicyExecution buildPrefetchCallout(String prefetch) {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(URL_PROPERTY_NAME, SERVER_URL);
+    properties.put("prefetch", prefetch);
+    return new JavaCalloutRemotePolicyExecution(properties, remotePolicyExecutionHandler);
+  }
+
   private boolean isSameExecutionResult(ExecutionResult er1, ExecutionResult er2) {
     return er1.getAction() == er2.getAction()
         && er1.getErrorResponse().equals(er2.getErrorResponse())
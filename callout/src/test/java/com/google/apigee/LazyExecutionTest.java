@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.apigee.Execute.Execution;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.TextFormat;
+import java.util.Collections;
+import java.util.EnumSet;
+import org.junit.Test;
+
+public class LazyExecutionTest {
+
+  private static final String EXECUTION =
+      "messageContext {"
+          + "  target_request_message {"
+          + "    header_map {"
+          + "      key: \"Content-Type\""
+          + "      value {"
+          + "        headers: \"application/xml\""
+          + "      }"
+          + "    }"
+          + "    content: \"<a>b</a>\""
+          + "    flow_variables {"
+          + "      key: \"conversion\""
+          + "      value {"
+          + "        flow_variable: \"xmltojson\""
+          + "      }"
+          + "    }"
+          + "    flow_variables {"
+          + "      key: \"other\""
+          + "      value {"
+          + "        flow_variable: \"value\""
+          + "      }"
+          + "    }"
+          + "    indexed_headers {"
+          + "      index: 3"
+          + "      values: \"gzip\""
+          + "    }"
+          + "  }"
+          + "  proxy_request_message {"
+          + "    content: \"<proxy/>\""
+          + "  }"
+          + "}"
+          + "executionContext {"
+          + "  flow_type: REQUEST"
+          + "}"
+          + "executionResult {"
+          + "  properties {"
+          + "    key: \"key\""
+          + "    value: \"value\""
+          + "  }"
+          + "}"
+          + "header_encoding: INDEXED";
+
+  @Test
+  public void testRoundTripUnchanged() throws Exception {
+    Execution execution = execution(EXECUTION);
+
+    assertEquals(execution, parse(execution).toExecution());
+  }
+
+  @Test
+  public void testDecodesDeclaredPaths() throws Exception {
+    LazyExecution lazyExecution = parse(execution(EXECUTION));
+
+    assertTrue(lazyExecution.hasMessageContext());
+    assertFalse(lazyExecution.isPolicyChain());
+    LazyExecution.Message targetRequest =
+        lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    assertEquals("<a>b</a>", targetRequest.getContent().toStringUtf8());
+    assertEquals("xmltojson", targetRequest.getFlowVariable("conversion").getFlowVariable());
+    assertEquals("value", lazyExecution.getExecutionResult().getPropertiesOrThrow("key"));
+  }
+
+  @Test
+  public void testMissingPaths() throws Exception {
+    LazyExecution lazyExecution = parse(execution("messageContext {}"));
+
+    assertTrue(lazyExecution.hasMessageContext());
+    assertNull(lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE));
+    assertFalse(parse(Execution.getDefaultInstance()).hasMessageContext());
+
+    LazyExecution.Message targetRequest =
+        parse(execution("messageContext { target_request_message {} }"))
+            .getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    assertEquals(ByteString.EMPTY, targetRequest.getContent());
+    assertNull(targetRequest.getFlowVariable("conversion"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUndeclaredMessage() throws Exception {
+    parse(execution(EXECUTION)).getMessage(MessageType.PROXY_REQUEST_MESSAGE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUndeclaredFlowVariable() throws Exception {
+    parse(execution(EXECUTION))
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .getFlowVariable("other");
+  }
+
+  @Test
+  public void testChanges() throws Exception {
+    LazyExecution lazyExecution = parse(execution(EXECUTION));
+    lazyExecution
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .setContent(ByteString.copyFromUtf8("{\"a\":\"b\"}"));
+    lazyExecution.setExecutionResult(
+        lazyExecution.getExecutionResult().toBuilder()
+            .setAction(Execute.ExecutionResult.Action.CONTINUE)
+            .build());
+
+    Execution.Builder expected = execution(EXECUTION).toBuilder();
+    expected
+        .getMessageContextBuilder()
+        .getTargetRequestMessageBuilder()
+        .setContent(ByteString.copyFromUtf8("{\"a\":\"b\"}"));
+    expected.getExecutionResultBuilder().setAction(Execute.ExecutionResult.Action.CONTINUE);
+    assertEquals(expected.build(), lazyExecution.toExecution());
+  }
+
+  @Test
+  public void testPutFlowVariable() throws Exception {
+    LazyExecution lazyExecution = parse(execution(EXECUTION));
+    LazyExecution.Message targetRequest =
+        lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    targetRequest.putFlowVariable("conversion", flowMapValue("jsontoxml"));
+    targetRequest.putFlowVariable("added", flowMapValue("Hello"));
+
+    assertEquals("jsontoxml", targetRequest.getFlowVariable("conversion").getFlowVariable());
+    Execute.Message result =
+        lazyExecution.toExecution().getMessageContext().getTargetRequestMessage();
+    assertEquals("jsontoxml", result.getFlowVariablesOrThrow("conversion").getFlowVariable());
+    assertEquals("value", result.getFlowVariablesOrThrow("other").getFlowVariable());
+    assertEquals("Hello", result.getFlowVariablesOrThrow("added").getFlowVariable());
+  }
+
+  @Test
+  public void testAddMessage() throws Exception {
+    LazyExecution lazyExecution = parse(Execution.getDefaultInstance());
+    lazyExecution.addMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    lazyExecution
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .setContent(ByteString.copyFromUtf8("<a>b</a>"));
+
+    assertTrue(lazyExecution.hasMessageContext());
+    assertEquals(
+        execution("messageContext { target_request_message { content: \"<a>b</a>\" } }"),
+        lazyExecution.toExecution());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAddPresentMessage() throws Exception {
+    parse(execution(EXECUTION)).addMessage(MessageType.TARGET_REQUEST_MESSAGE);
+  }
+
+  @Test
+  public void testSerializedSize() throws Exception {
+    LazyExecution lazyExecution = parse(execution(EXECUTION));
+    lazyExecution
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .setContent(ByteString.copyFromUtf8("{\"a\":\"b\"}"));
+
+    assertEquals(lazyExecution.toByteString().size(), lazyExecution.getSerializedSize());
+  }
+
+  @Test
+  public void testPolicyChain() throws Exception {
+    assertTrue(
+        parse(execution("policy_chain { policies: \"XmlJsonConversion\" }")).isPolicyChain());
+    assertFalse(parse(execution("policy_chain {}")).isPolicyChain());
+  }
+
+  private static LazyExecution parse(Execution execution) throws Exception {
+    return LazyExecution.parse(
+        execution.toByteArray(),
+        EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE),
+        Collections.singleton("conversion"));
+  }
+
+  private static Execute.Message.FlowMapValue flowMapValue(String value) {
+    return Execute.Message.FlowMapValue.newBuilder().setFlowVariable(value).build();
+  }
+
+  private static Execution execution(String text) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(text, executionBuilder);
+    return executionBuilder.build();
+  }
+}
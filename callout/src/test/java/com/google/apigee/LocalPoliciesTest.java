@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.apigee.Execute.Execution;
+import com.google.apigee.Execute.ExecutionResult.Action;
+import com.google.protobuf.TextFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class LocalPoliciesTest {
+
+  /** Listed in the test resources, so {@link LocalPolicies#shared()} finds it. */
+  public static class Echo implements RemotePolicy {
+    @Override
+    public Execution execute(Execution execution) {
+      Execution.Builder result = execution.toBuilder();
+      result.getExecutionResultBuilder().setAction(Action.CONTINUE);
+      return result.build();
+    }
+  }
+
+  private static class Failing implements RemotePolicy {
+    @Override
+    public Execution execute(Execution execution) throws Exception {
+      throw new IllegalStateException("failed");
+    }
+  }
+
+  private static class Passthrough implements RemotePolicy {
+    @Override
+    public Execution execute(Execution execution) {
+      return execution;
+    }
+  }
+
+  @Test
+  public void testLoadsPoliciesFromClassPath() {
+    assertEquals(
+        Collections.singletonList("Echo"), new ArrayList<>(LocalPolicies.shared().getNames()));
+  }
+
+  @Test
+  public void testRunsPolicyWithoutSerialization() throws Exception {
+    LocalPolicies localPolicies = new LocalPolicies(Collections.singletonList(new Passthrough()));
+    Execution execution = execution("");
+
+    assertSame(execution, localPolicies.execute(execution, "local://Passthrough", false));
+  }
+
+  @Test
+  public void testRunsPolicyWithSerialization() throws Exception {
+    LocalPolicies localPolicies = new LocalPolicies(Collections.singletonList(new Passthrough()));
+    Execution execution = execution("");
+
+    Execution result = localPolicies.execute(execution, "local://Passthrough", true);
+
+    assertNotSame(execution, result);
+    assertEquals(execution, result);
+  }
+
+  @Test
+  public void testRunsPolicyChain() throws Exception {
+    LocalPolicies localPolicies = new LocalPolicies(Arrays.asList(new Echo(), new Passthrough()));
+
+    Execution result =
+        localPolicies.execute(
+            execution("policy_chain {  policies: \"Passthrough\"  policies: \"Echo\"}"),
+            "local://",
+            false);
+
+    assertEquals(Action.CONTINUE, result.getExecutionResult().getAction());
+    assertEquals("Echo", result.getExecutionResult().getPolicy());
+  }
+
+  @Test
+  public void testFailingPolicyAborts() throws Exception {
+    LocalPolicies localPolicies = new LocalPolicies(Collections.singletonList(new Failing()));
+
+    Execution result = localPolicies.execute(execution(""), "local://Failing", false);
+
+    assertEquals(Action.ABORT, result.getExecutionResult().getAction());
+    assertEquals(
+        "java.lang.IllegalStateException: failed", result.getExecutionResult().getErrorResponse());
+  }
+
+  @Test
+  public void testUnknownPolicyAborts() throws Exception {
+    LocalPolicies localPolicies = new LocalPolicies(Collections.singletonList(new Echo()));
+
+    Execution result = localPolicies.execute(execution(""), "local://Unknown", false);
+
+    assertEquals(Action.ABORT, result.getExecutionResult().getAction());
+    assertEquals(
+        "java.lang.IllegalArgumentException: unknown policy: Unknown",
+        result.getExecutionResult().getErrorResponse());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDuplicatePolicy() {
+    new LocalPolicies(Arrays.asList(new Echo(), new Echo()));
+  }
+
+  private static Execution execution(String text) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"<a>b</a>\""
+            + "  }"
+            + "}"
+            + text,
+        executionBuilder);
+    return executionBuilder.build();
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.google.protobuf.TextFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+public class MessageContextUpdaterTest {
+
+  private static final String SENT_TARGET_REQUEST =
+      "target_request_message {"
+          + "  header_map { key: \"accept\" value { headers: \"application/json\" } }"
+          + "  header_map { key: \"x-forwarded-for\" value { headers: \"10.0.0.1\" } }"
+          + "  header_map { key: \"authorization\" value { headers: \"secret\" } }"
+          + "  query_param_map { key: \"page\" value { query_parameters: \"1\" } }"
+          + "  query_param_map { key: \"apikey\" value { query_parameters: \"key\" } }"
+          + "  flow_variables { key: \"unchanged\" value { flow_variable: \"same\" } }"
+          + "  content: \"content\""
+          + "}";
+  @Mock private MessageContext messageContext;
+  @Mock private Message targetRequestMessage;
+  @Mock private Message errorMessage;
+
+  @Before
+  public void init() {
+    MockitoAnnotations.openMocks(this);
+
+    doReturn(targetRequestMessage).when(messageContext).getMessage(FlowContext.TARGET_REQUEST);
+    doReturn(errorMessage).when(messageContext).getErrorMessage();
+  }
+
+  @Test
+  public void testApplyChangesUnchanged() throws Exception {
+    Execute.MessageContext sent = parse(SENT_TARGET_REQUEST);
+
+    assertEquals(0, MessageContextUpdater.applyChanges(sent, sent, messageContext));
+    verifyNoInteractions(targetRequestMessage);
+  }
+
+  @Test
+  public void testApplyChangesHeaders() throws Exception {
+    Execute.MessageContext sent = parse(SENT_TARGET_REQUEST);
+    Execute.MessageContext returned =
+        parse(
+            "target_request_message {"
+                + "  header_map { key: \"accept\" value { headers: \"application/json\" } }"
+                + "  header_map { key: \"x-forwarded-for\" value {"
+                + "    headers: \"10.0.0.1\" headers: \"10.0.0.2\" } }"
+                + "  header_map { key: \"x-added\" value { headers: \"added\" } }"
+                + "  query_param_map { key: \"page\" value { query_parameters: \"1\" } }"
+                + "  query_param_map { key: \"apikey\" value { query_parameters: \"key\" } }"
+                + "  flow_variables { key: \"unchanged\" value { flow_variable: \"same\" } }"
+                + "  content: \"content\""
+                + "}");
+
+    assertEquals(3, MessageContextUpdater.applyChanges(sent, returned, messageContext));
+    verify(targetRequestMessage)
+        .setHeaderWithMultipleValues("x-forwarded-for", Arrays.asList("10.0.0.1", "10.0.0.2"));
+    verify(targetRequestMessage)
+        .setHeaderWithMultipleValues("x-added", Collections.singletonList("added"));
+    verify(targetRequestMessage).removeHeader("authorization");
+    verifyNoMoreInteractions(targetRequestMessage);
+  }
+
+  @Test
+  public void testApplyChangesQueryParamsAndContent() throws Exception {
+    Execute.MessageContext sent = parse(SENT_TARGET_REQUEST);
+    Execute.MessageContext returned =
+        parse(
+            "target_request_message {"
+                + "  header_map { key: \"accept\" value { headers: \"application/json\" } }"
+                + "  header_map { key: \"x-forwarded-for\" value { headers: \"10.0.0.1\" } }"
+                + "  header_map { key: \"authorization\" value { headers: \"secret\" } }"
+                + "  query_param_map { key: \"page\" value { query_parameters: \"2\" } }"
+                + "  flow_variables { key: \"unchanged\" value { flow_variable: \"same\" } }"
+                + "  content: \"changed\""
+                + "}");
+
+    assertEquals(3, MessageContextUpdater.applyChanges(sent, returned, messageContext));
+    verify(targetRequestMessage).setQueryParam("page", 0, "2");
+    verify(targetRequestMessage).removeQueryParam("apikey");
+    verify(targetRequestMessage).setContent("changed");
+    verifyNoMoreInteractions(targetRequestMessage);
+  }
+
+  @Test
+  public void testApplyChangesFlowVariables() throws Exception {
+    Execute.MessageContext sent = parse(SENT_TARGET_REQUEST);
+    Execute.MessageContext returned =
+        parse(
+            SENT_TARGET_REQUEST.replace(
+                "flow_variables { key: \"unchanged\" value { flow_variable: \"same\" } }",
+                "flow_variables { key: \"unchanged\" value { flow_variable: \"same\" } }"
+                    + "flow_variables { key: \"added\" value { flow_variable: \"new\" } }")
+                + "error_message {"
+                + "  flow_variables { key: \"error.reason\" value { flow_variable: \"bad\" } }"
+                + "}");
+
+    assertEquals(2, MessageContextUpdater.applyChanges(sent, returned, messageContext));
+    verify(messageContext).setVariable("added", "new");
+    verify(messageContext).setVariable("error.reason", "bad");
+    verifyNoInteractions(targetRequestMessage, errorMessage);
+  }
+
+  @Test
+  public void testApplyChangesNewMessage() throws Exception {
+    Execute.MessageContext returned =
+        parse(
+            "error_message {"
+                + "  header_map { key: \"content-type\" value { headers: \"text/plain\" } }"
+                + "  content: \"error\""
+                + "}");
+
+    assertEquals(
+        2,
+        MessageContextUpdater.applyChanges(
+            Execute.MessageContext.getDefaultInstance(), returned, messageContext));
+    verify(errorMessage)
+        .setHeaderWithMultipleValues("content-type", Collections.singletonList("text/plain"));
+    verify(errorMessage).setContent("error");
+    verifyNoMoreInteractions(errorMessage);
+  }
+
+  @Test
+  public void testApplyChangesMissingMessage() throws Exception {
+    Execute.MessageContext returned =
+        parse(
+            "proxy_response_message {"
+                + "  header_map { key: \"content-type\" value { headers: \"text/plain\" } }"
+                + "  flow_variables { key: \"key\" value { flow_variable: \"value\" } }"
+                + "}");
+
+    assertEquals(
+        1,
+        MessageContextUpdater.applyChanges(
+            Execute.MessageContext.getDefaultInstance(), returned, messageContext));
+    verify(messageContext).setVariable("key", "value");
+  }
+
+  @Test
+  public void testApplyChangesToFakeMessage() throws Exception {
+    Execute.MessageContext sent = parse(SENT_TARGET_REQUEST);
+    Execute.MessageContext returned =
+        parse(
+            "target_request_message {"
+                + "  header_map { key: \"accept\" value { headers: \"application/json\" } }"
+                + "  header_map { key: \"x-forwarded-for\" value {"
+                + "    headers: \"10.0.0.1\" headers: \"10.0.0.2\" } }"
+                + "  query_param_map { key: \"page\" value { query_parameters: \"2\" } }"
+                + "  query_param_map { key: \"apikey\" value { query_parameters: \"key\" } }"
+                + "  flow_variables { key: \"added\" value { flow_variable: \"new\" } }"
+                + "  content: \"changed\""
+                + "}");
+    FakeMessage message =
+        FakeMessage.newBuilder()
+            .addHeader("accept", "application/json")
+            .addHeader("x-forwarded-for", "10.0.0.1")
+            .addHeader("authorization", "secret")
+            .addQueryParam("page", "1")
+            .addQueryParam("apikey", "key")
+            .setContent("content")
+            .build();
+    FakeMessageContext fakeMessageContext =
+        FakeMessageContext.newBuilder().setMessage(FlowContext.TARGET_REQUEST, message).build();
+
+    MessageContextUpdater.applyChanges(sent, returned, fakeMessageContext);
+    assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2"), message.getHeaders("x-forwarded-for"));
+    assertEquals(Collections.singletonList("application/json"), message.getHeaders("accept"));
+    assertEquals(
+        new HashSet<>(Arrays.asList("accept", "x-forwarded-for")), message.getHeaderNames());
+    assertEquals(Collections.singletonList("2"), message.getQueryParams("page"));
+    assertEquals(Collections.singletonList("key"), message.getQueryParams("apikey"));
+    assertEquals("changed", message.getContent());
+    assertEquals("new", fakeMessageContext.getVariable("added"));
+  }
+
+  @Test
+  public void testApplyChangesMultipleValues() throws Exception {
+    Execute.MessageContext sent =
+        parse(
+            "target_request_message {"
+                + "  header_map { key: \"via\" value { headers: \"a\" headers: \"b\" } }"
+                + "  header_map { key: \"x-hop\" value { headers: \"a\" headers: \"b\" } }"
+                + "  query_param_map { key: \"id\" value {"
+                + "    query_parameters: \"1\" query_parameters: \"2\" } }"
+                + "}");
+    Execute.MessageContext returned =
+        parse(
+            "target_request_message {"
+                + "  header_map { key: \"via\" value { headers: \"a\" headers: \"c\" } }"
+                + "  header_map { key: \"x-hop\" value { headers: \"a\" } }"
+                + "  query_param_map { key: \"id\" value {"
+                + "    query_parameters: \"2\" query_parameters: \"1\" } }"
+                + "}");
+    FakeMessage message =
+        FakeMessage.newBuilder()
+            .addHeader("via", "a")
+            .addHeader("via", "b")
+            .addHeader("x-hop", "a")
+            .addHeader("x-hop", "b")
+            .addQueryParam("id", "1")
+            .addQueryParam("id", "2")
+            .build();
+    FakeMessage spy = Mockito.spy(message);
+    doReturn(spy).when(messageContext).getMessage(FlowContext.TARGET_REQUEST);
+
+    assertEquals(3, MessageContextUpdater.applyChanges(sent, returned, messageContext));
+    verify(spy).setHeader("via", 1, "c");
+    verify(spy).removeHeader("x-hop", 1);
+    verify(spy).setQueryParamWithMultipleValues("id", Arrays.asList("2", "1"));
+    verifyNoMoreInteractions(spy);
+    assertEquals(Arrays.asList("a", "c"), spy.getHeaders("via"));
+    assertEquals(Collections.singletonList("a"), spy.getHeaders("x-hop"));
+    assertEquals(Arrays.asList("2", "1"), spy.getQueryParams("id"));
+  }
+
+  private static Execute.MessageContext parse(String text) throws Exception {
+    Execute.MessageContext.Builder builder = Execute.MessageContext.newBuilder();
+    TextFormat.merge(text, builder);
+    return builder.build();
+  }
+}
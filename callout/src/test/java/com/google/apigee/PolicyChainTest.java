@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.apigee.Execute.Execution;
+import com.google.apigee.Execute.ExecutionResult.Action;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.TextFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PolicyChainTest {
+
+  private final List<String> ran = new ArrayList<>();
+  private PolicyChain policyChain;
+
+  @Before
+  public void init() {
+    Map<String, RemotePolicy> policies = new LinkedHashMap<>();
+    policies.put("Convert", execution -> append(execution, "Convert", Action.CONTINUE));
+    policies.put("Validate", execution -> append(execution, "Validate", Action.ABORT));
+    policies.put("Enrich", execution -> append(execution, "Enrich", Action.CONTINUE));
+    policyChain = new PolicyChain(policies);
+  }
+
+  @Test
+  public void testIsPolicyChain() throws Exception {
+    assertFalse(PolicyChain.isPolicyChain(Execution.getDefaultInstance()));
+    assertTrue(PolicyChain.isPolicyChain(chain("Convert")));
+  }
+
+  @Test
+  public void testPassesExecutionToNextPolicy() throws Exception {
+    Execution result = policyChain.execute(chain("Convert", "Enrich"));
+
+    assertEquals(Arrays.asList("Convert", "Enrich"), ran);
+    assertEquals(
+        "Convert,Enrich",
+        result.getMessageContext().getTargetRequestMessage().getContent().toStringUtf8());
+    assertEquals(Action.CONTINUE, result.getExecutionResult().getAction());
+    assertEquals("Enrich", result.getExecutionResult().getPolicy());
+  }
+
+  @Test
+  public void testStopsAtFirstAbort() throws Exception {
+    Execution result = policyChain.execute(chain("Convert", "Validate", "Enrich"));
+
+    assertEquals(Arrays.asList("Convert", "Validate"), ran);
+    assertEquals(Action.ABORT, result.getExecutionResult().getAction());
+    assertEquals("Validate", result.getExecutionResult().getPolicy());
+  }
+
+  @Test
+  public void testUnknownPolicyRunsNothing() throws Exception {
+    try {
+      policyChain.execute(chain("Convert", "Unknown"));
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertEquals("unknown policy: Unknown", e.getMessage());
+    }
+    assertTrue(ran.isEmpty());
+  }
+
+  private Execution append(Execution execution, String name, Action action) {
+    assertFalse(execution.hasExecutionResult());
+    ran.add(name);
+    Execution.Builder executionBuilder = execution.toBuilder();
+    Execute.Message.Builder messageBuilder =
+        executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder();
+    String content = messageBuilder.getContent().toStringUtf8();
+    messageBuilder.setContent(
+        ByteString.copyFromUtf8(content.isEmpty() ? name : content + "," + name));
+    executionBuilder.getExecutionResultBuilder().setAction(action);
+    return executionBuilder.build();
+  }
+
+  private static Execution chain(String... policies) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge("messageContext { target_request_message { } }", executionBuilder);
+    executionBuilder.getPolicyChainBuilder().addAllPolicies(Arrays.asList(policies));
+    return executionBuilder.build();
+  }
+}
@@ -15,14 +15,24 @@
 package com.google.apigee.ProtoMessageBuilders;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import com.apigee.flow.FlowInfo;
 import com.apigee.flow.message.FlowContext;
 import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.Execute;
+import com.google.apigee.HeaderNameTable;
+import com.google.protobuf.StringValue;
 import com.google.protobuf.TextFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -149,6 +159,34 @@ public class MessageContextProtoMessageBuilderTest {
     assertEquals(expectedProtoBuilder.build(), actualProto);
   }
 
+  @Test
+  public void testBuildMessageWithIndexedHeaders() throws Exception {
+    message.setHeader(KEY1, VAL1);
+    message.setHeader(KEY1, VAL2);
+    message.setHeader("content-type", VAL2);
+    messageContext.setMessage(FlowContext.TARGET_REQUEST, message);
+    messageContext.setMessage(FlowContext.PROXY_REQUEST, message);
+    Execute.MessageContext actualProto =
+        MessageContextProtoMessageBuilder.buildMessageContextProto(
+            messageContext,
+            MessageContextProtoMessageBuilder.Options.newBuilder()
+                .setHeaderEncoding(Execute.Execution.HeaderEncoding.INDEXED)
+                .build());
+
+    assertEquals(2, actualProto.getTargetRequestMessage().getIndexedHeadersCount());
+    assertEquals(0, actualProto.getTargetRequestMessage().getHeaderMapCount());
+    assertEquals(
+        Execute.Execution.newBuilder()
+            .setMessageContext(
+                MessageContextProtoMessageBuilder.buildMessageContextProto(messageContext))
+            .build(),
+        HeaderNameTable.decode(
+            Execute.Execution.newBuilder()
+                .setMessageContext(actualProto)
+                .setHeaderEncoding(Execute.Execution.HeaderEncoding.INDEXED)
+                .build()));
+  }
+
   @Test
   public void testBuildMessageWithContent() throws Exception {
     Execute.MessageContext.Builder expectedProtoBuilder = Execute.MessageContext.newBuilder();
@@ -165,6 +203,31 @@ public class MessageContextProtoMessageBuilderTest {
     assertEquals(expectedProtoBuilder.build(), actualProto);
   }
 
+  @Test
+  public void testBuildMessageContextWithMessageCache() throws Exception {
+    MessageProtoCache cache = new MessageProtoCache();
+    message.setHeader(KEY1, VAL1);
+    message.setContent(CONTENT);
+    messageContext.setMessage(FlowContext.TARGET_REQUEST, message);
+
+    Execute.MessageContext first = buildWithCache(cache);
+    Execute.MessageContext second = buildWithCache(cache);
+    assertSame(first.getTargetRequestMessage(), second.getTargetRequestMessage());
+    assertEquals(1, cache.getBuilt());
+    assertEquals(1, cache.getReused());
+
+    message.setHeader(KEY2, VAL2);
+    Execute.MessageContext third = buildWithCache(cache);
+    assertEquals(VAL2, third.getTargetRequestMessage().getHeaderMapOrThrow(KEY2).getHeaders(0));
+
+    message.setContent(VAL1);
+    Execute.MessageContext fourth = buildWithCache(cache);
+    assertEquals(VAL1, fourth.getTargetRequestMessage().getContent().toStringUtf8());
+    assertEquals(3, cache.getBuilt());
+    assertEquals(
+        MessageContextProtoMessageBuilder.buildMessageContextProto(messageContext), fourth);
+  }
+
   @Test
   public void testBuildMessageWithQueryParamMap() throws Exception {
     Execute.MessageContext.Builder expectedProtoBuilder = Execute.MessageContext.newBuilder();
@@ -195,6 +258,121 @@ public class MessageContextProtoMessageBuilderTest {
     assertEquals(expectedProtoBuilder.build(), actualProto);
   }
 
+  @Test
+  public void testBuildMessageContextWithFlowVariables() throws Exception {
+    Execute.MessageContext.Builder expectedProtoBuilder = Execute.MessageContext.newBuilder();
+    TextFormat.merge(
+        "proxy_request_message {}"
+            + "target_request_message {"
+            + "    flow_variables {"
+            + "        key: \"" + KEY1 + "\""
+            + "        value {"
+            + "            flow_variable: \"" + VAL1 + "\""
+            + "        }"
+            + "    }"
+            + "}",
+        expectedProtoBuilder);
+
+    messageContext.setMessage(FlowContext.PROXY_REQUEST, message);
+    messageContext.setMessage(FlowContext.TARGET_REQUEST, message);
+    doReturn(VAL1).when(messageContext).getVariable(KEY1);
+    doReturn(VAL2).when(messageContext).getVariable(KEY2);
+    Execute.MessageContext actualProto =
+        MessageContextProtoMessageBuilder.buildMessageContextProto(
+            messageContext,
+            MessageContextProtoMessageBuilder.Options.newBuilder()
+                .setFlowVariableAllowlist(FlowVariableAllowlist.parse(KEY1 + ", unset", null))
+                .build());
+
+    assertEquals(expectedProtoBuilder.build(), actualProto);
+    verify(messageContext, never()).getVariable(KEY2);
+  }
+
+  @Test
+  public void testBuildMessageContextWithFlowVariablesWithoutTargetRequest() throws Exception {
+    messageContext.setMessage(FlowContext.PROXY_RESPONSE, message);
+    doReturn(VAL1).when(messageContext).getVariable(KEY1);
+    Execute.MessageContext actualProto =
+        MessageContextProtoMessageBuilder.buildMessageContextProto(
+            messageContext,
+            MessageContextProtoMessageBuilder.Options.newBuilder()
+                .setFlowVariableAllowlist(FlowVariableAllowlist.parse(KEY1, null))
+                .build());
+
+    assertFalse(actualProto.hasTargetRequestMessage());
+    assertTrue(actualProto.hasProxyResponseMessage());
+    verify(messageContext, never()).getVariable(KEY1);
+  }
+
+  @Test
+  public void testBuildMessageContextWithFlowInfoVariables() throws Exception {
+    flowInfo.setIdentifier(FLOW_INFO_IDENTIFIER);
+    Execute.MessageContext.Builder expectedProtoBuilder = Execute.MessageContext.newBuilder();
+    expectedProtoBuilder
+        .getTargetRequestMessageBuilder()
+        .putFlowVariables(
+            FLOW_INFO_IDENTIFIER,
+            Execute.Message.FlowMapValue.newBuilder()
+                .setFlowInfo(
+                    Execute.FlowInfo.newBuilder()
+                        .setIdentifier(FLOW_INFO_IDENTIFIER)
+                        .putTypedVariables(
+                            KEY1, Execute.Value.newBuilder().setStringValue(VAL1).build()))
+                .build());
+
+    messageContext.setMessage(FlowContext.TARGET_REQUEST, message);
+    doReturn(flowInfo).when(messageContext).getVariable(FLOW_INFO_IDENTIFIER);
+    doReturn(VAL1).when(flowInfo).getVariable(KEY1);
+    doReturn(VAL2).when(flowInfo).getVariable(KEY2);
+    Execute.MessageContext actualProto =
+        MessageContextProtoMessageBuilder.buildMessageContextProto(
+            messageContext,
+            MessageContextProtoMessageBuilder.Options.newBuilder()
+                .setFlowVariableAllowlist(
+                    FlowVariableAllowlist.parse(null, FLOW_INFO_IDENTIFIER + ":" + KEY1))
+                .build());
+
+    assertEquals(expectedProtoBuilder.build(), actualProto);
+    verify(flowInfo, never()).getVariable(KEY2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFlowVariableAllowlistIllegalFlowInfoVariable() {
+    FlowVariableAllowlist.parse(null, FLOW_INFO_IDENTIFIER);
+  }
+
+  @Test
+  public void testBuildValue() throws Exception {
+    assertEquals(parseValue("string_value: \"" + VAL1 + "\""), buildValue(VAL1));
+    assertEquals(parseValue("int64_value: 42"), buildValue(42));
+    assertEquals(parseValue("int64_value: 42"), buildValue(42L));
+    assertEquals(parseValue("double_value: 0.5"), buildValue(0.5f));
+    assertEquals(parseValue("bool_value: true"), buildValue(true));
+    assertEquals(
+        parseValue("bytes_value: \"" + VAL1 + "\""),
+        buildValue(VAL1.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(
+        parseValue(
+            "string_list_value { values: [\"" + VAL1 + "\", \"" + VAL2 + "\"] }"),
+        buildValue(Arrays.asList(VAL1, VAL2)));
+  }
+
+  @Test
+  public void testBuildValueAny() throws Exception {
+    StringValue value = StringValue.of(VAL1);
+
+    Execute.Value actualProto = buildValue(value);
+
+    assertEquals(value, actualProto.getAnyValue().unpack(StringValue.class));
+  }
+
+  @Test
+  public void testBuildValueOtherType() throws Exception {
+    assertEquals(
+        parseValue("string_value: \"" + FlowContext.TARGET_REQUEST + "\""),
+        buildValue(FlowContext.TARGET_REQUEST));
+  }
+
   @Test
   public void testBuildFlowMapValueString() throws Exception {
     Execute.Message.FlowMapValue.Builder expectedProtoBuilder =
@@ -231,6 +409,22 @@ public class MessageContextProtoMessageBuilderTest {
     MessageContextProtoMessageBuilder.buildFlowMapValue(0);
   }
 
+  private static Execute.Value buildValue(Object value) {
+    return MessageContextProtoMessageBuilder.buildValue(value);
+  }
+
+  private Execute.MessageContext buildWithCache(MessageProtoCache cache) {
+    return MessageContextProtoMessageBuilder.buildMessageContextProto(
+        messageContext,
+        MessageContextProtoMessageBuilder.Options.newBuilder().setCache(cache).build());
+  }
+
+  private static Execute.Value parseValue(String text) throws Exception {
+    Execute.Value.Builder valueBuilder = Execute.Value.newBuilder();
+    TextFormat.merge(text, valueBuilder);
+    return valueBuilder.build();
+  }
+
   abstract static class FakeMessageContext implements MessageContext {
     private Message proxyRequestMessage;
     private Message targetRequestMessage;
@@ -15,17 +15,35 @@
 package com.google.apigee;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 import com.google.apigee.Execute.Execution;
 import com.google.protobuf.TextFormat;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicStatusLine;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -37,6 +55,7 @@ public class RemotePolicyExecutionHandlerTest {
   @Mock private CloseableHttpClient httpClient;
   @Mock private HttpPost httpPost;
   @Mock private CloseableHttpResponse httpResponse;
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
   @Before
   public void init() {
@@ -81,4 +100,101 @@ public class RemotePolicyExecutionHandlerTest {
 
     assertEquals(expected, result);
   }
+
+  @Test
+  public void testSendBatchCountsFailed() throws Exception {
+    Execution aborted =
+        Execution.newBuilder()
+            .setExecutionResult(
+                Execute.ExecutionResult.newBuilder()
+                    .setAction(Execute.ExecutionResult.Action.ABORT))
+            .build();
+    ByteArrayOutputStream results = new ByteArrayOutputStream();
+    ExecutionBatch.write(
+        results,
+        Arrays.asList(Execution.getDefaultInstance().toByteArray(), aborted.toByteArray()));
+    List<byte[]> batch =
+        Arrays.asList(
+            Execution.getDefaultInstance().toByteArray(),
+            Execution.getDefaultInstance().toByteArray(),
+            Execution.getDefaultInstance().toByteArray());
+
+    doReturn(httpResponse).when(httpClient).execute(httpPost);
+    doReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"))
+        .when(httpResponse)
+        .getStatusLine();
+    doReturn(
+            new ByteArrayEntity(
+                results.toByteArray(), ContentType.create(ExecutionBatch.CONTENT_TYPE)))
+        .when(httpResponse)
+        .getEntity();
+    // One result aborted and one is missing.
+    assertEquals(2, remotePolicyExecutionHandler.sendRemoteHttpServerBatch(batch, ""));
+
+    // A policy that does not take batches answers with a single Execution.
+    doReturn(new ByteArrayEntity(aborted.toByteArray(), ContentType.APPLICATION_OCTET_STREAM))
+        .when(httpResponse)
+        .getEntity();
+    assertEquals(3, remotePolicyExecutionHandler.sendRemoteHttpServerBatch(batch, ""));
+
+    doReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, 503, "Service Unavailable"))
+        .when(httpResponse)
+        .getStatusLine();
+    try {
+      remotePolicyExecutionHandler.sendRemoteHttpServerBatch(batch, "");
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertEquals("remote server answered a batch with HTTP 503", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSendRequestOverUnixDomainSocket() throws Exception {
+    String path = temporaryFolder.getRoot().toPath().resolve("executor.sock").toString();
+    AtomicInteger connections = new AtomicInteger();
+    try (ServerSocketChannel serverSocketChannel = UnixDomainSockets.bind(path)) {
+      Thread server =
+          new Thread(
+              () -> {
+                try (SocketChannel socketChannel = serverSocketChannel.accept()) {
+                  connections.incrementAndGet();
+                  InputStream inputStream = Channels.newInputStream(socketChannel);
+                  OutputStream outputStream = Channels.newOutputStream(socketChannel);
+                  for (Execution execution;
+                      (execution = UnixDomainSockets.readFrame(inputStream)) != null; ) {
+                    Execution.Builder result = execution.toBuilder();
+                    result.getExecutionResultBuilder().setPolicy(KEY);
+                    UnixDomainSockets.writeFrame(outputStream, result.build());
+                  }
+                } catch (Exception e) {
+                  // The test fails on the client side.
+                }
+              });
+      server.setDaemon(true);
+      server.start();
+
+      Execute.Execution result =
+          remotePolicyExecutionHandler.sendRemoteHttpServerRequest(
+              Execution.getDefaultInstance(), UnixDomainSockets.URL_PREFIX + path);
+      remotePolicyExecutionHandler.sendRemoteHttpServerBatch(
+          Arrays.asList(
+              Execution.getDefaultInstance().toByteArray(),
+              Execution.getDefaultInstance().toByteArray()),
+          UnixDomainSockets.URL_PREFIX + path);
+
+      assertEquals(KEY, result.getExecutionResult().getPolicy());
+      assertEquals(1, connections.get());
+    }
+  }
+
+  @Test
+  public void testSendRequestToLocalPolicy() throws Exception {
+    Execute.Execution result =
+        remotePolicyExecutionHandler.sendRemoteHttpServerRequest(
+            Execution.getDefaultInstance(), "local://Echo");
+
+    assertEquals(
+        Execute.ExecutionResult.Action.CONTINUE, result.getExecutionResult().getAction());
+    verifyNoInteractions(httpClient);
+  }
 }
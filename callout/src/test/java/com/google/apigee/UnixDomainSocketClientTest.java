@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.apigee.Execute.Execution;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UnixDomainSocketClientTest {
+
+  private static final String POLICY = "policy";
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testExchangeReplacesClosedConnection() throws Exception {
+    String path = temporaryFolder.getRoot().toPath().resolve("executor.sock").toString();
+    AtomicInteger connections = new AtomicInteger();
+    try (ServerSocketChannel serverSocketChannel = UnixDomainSockets.bind(path)) {
+      // Answers one Execution per connection and closes it, as an idle timeout would.
+      startServer(
+          () -> {
+            while (true) {
+              try (SocketChannel socketChannel = serverSocketChannel.accept()) {
+                connections.incrementAndGet();
+                InputStream inputStream = Channels.newInputStream(socketChannel);
+                OutputStream outputStream = Channels.newOutputStream(socketChannel);
+                Execution.Builder result =
+                    UnixDomainSockets.readFrame(inputStream).toBuilder();
+                result.getExecutionResultBuilder().setPolicy(POLICY);
+                UnixDomainSockets.writeFrame(outputStream, result.build());
+              }
+            }
+          });
+      UnixDomainSocketClient client = new UnixDomainSocketClient(path, 1, 10_000);
+
+      for (int i = 0; i < 3; i++) {
+        Execution result = client.exchange(Execution.getDefaultInstance());
+        assertEquals(POLICY, result.getExecutionResult().getPolicy());
+      }
+      assertEquals(3, connections.get());
+    }
+  }
+
+  @Test
+  public void testExchangeTimesOut() throws Exception {
+    String path = temporaryFolder.getRoot().toPath().resolve("executor.sock").toString();
+    CountDownLatch closed = new CountDownLatch(1);
+    try (ServerSocketChannel serverSocketChannel = UnixDomainSockets.bind(path)) {
+      // Never answers.
+      startServer(
+          () -> {
+            try (SocketChannel socketChannel = serverSocketChannel.accept()) {
+              closed.await();
+            }
+          });
+      UnixDomainSocketClient client = new UnixDomainSocketClient(path, 1, 100);
+
+      try {
+        client.exchange(Execution.getDefaultInstance());
+        fail("expected SocketTimeoutException");
+      } catch (SocketTimeoutException e) {
+        // Expected.
+      } finally {
+        closed.countDown();
+      }
+    }
+  }
+
+  private interface Server {
+    void serve() throws Exception;
+  }
+
+  private static void startServer(Server server) {
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                server.serve();
+              } catch (Exception e) {
+                // The test fails on the client side.
+              }
+            });
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.protobuf.ByteString;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded store of message content keyed by its SHA-256 hash, kept by a remote server so that
+ * callers can send the hash of content it already holds instead of the content. The least recently
+ * used content is evicted once the total size of the stored content would exceed the bound.
+ */
+public final class ContentStore {
+
+  /** Environment variable holding the bound of a store built by {@link #fromEnvironment()}. */
+  public static final String MAX_BYTES_ENVIRONMENT_VARIABLE = "CONTENT_STORE_MAX_BYTES";
+  /** Bound of a store built by {@link #fromEnvironment()} when the variable is not set. */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final long maxBytes;
+  private final LinkedHashMap<ByteString, ByteString> contents =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeBytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /** @param maxBytes Maximum total size of the stored content. */
+  public ContentStore(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** @return ContentStore bounded by {@link #MAX_BYTES_ENVIRONMENT_VARIABLE} */
+  public static ContentStore fromEnvironment() {
+    String maxBytes = System.getenv(MAX_BYTES_ENVIRONMENT_VARIABLE);
+    return new ContentStore(
+        maxBytes == null || maxBytes.trim().isEmpty()
+            ? DEFAULT_MAX_BYTES
+            : Long.parseLong(maxBytes.trim()));
+  }
+
+  /**
+   * @param content Message content.
+   * @return SHA-256 hash of the content
+   */
+  public static ByteString hash(ByteString content) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+    }
+    digest.update(content.asReadOnlyByteBuffer());
+    return ByteString.copyFrom(digest.digest());
+  }
+
+  /**
+   * Resolves the content hashes of every message of the Execution. Messages sent with content and
+   * a content hash have their content stored; messages sent with only a content hash get the
+   * stored content back. The content hash is cleared from resolved messages.
+   *
+   * @param executionBuilder Execution to resolve in place.
+   * @return Content hashes that are not stored, empty if every message was resolved
+   * @throws IllegalArgumentException if content does not match its content hash
+   */
+  public List<ByteString> resolve(Execute.Execution.Builder executionBuilder) {
+    List<ByteString> missingContentHashes = new ArrayList<>();
+    if (!executionBuilder.hasMessageContext()) {
+      return missingContentHashes;
+    }
+    Execute.MessageContext.Builder messageContextBuilder =
+        executionBuilder.getMessageContextBuilder();
+    if (messageContextBuilder.hasTargetRequestMessage()) {
+      resolve(messageContextBuilder.getTargetRequestMessageBuilder(), missingContentHashes);
+    }
+    if (messageContextBuilder.hasProxyRequestMessage()) {
+      resolve(messageContextBuilder.getProxyRequestMessageBuilder(), missingContentHashes);
+    }
+    if (messageContextBuilder.hasTargetResponseMessage()) {
+      resolve(messageContextBuilder.getTargetResponseMessageBuilder(), missingContentHashes);
+    }
+    if (messageContextBuilder.hasProxyResponseMessage()) {
+      resolve(messageContextBuilder.getProxyResponseMessageBuilder(), missingContentHashes);
+    }
+    if (messageContextBuilder.hasErrorMessage()) {
+      resolve(messageContextBuilder.getErrorMessageBuilder(), missingContentHashes);
+    }
+    return missingContentHashes;
+  }
+
+  /**
+   * Resolves the content hashes of the messages of a {@link LazyExecution} that were decoded, like
+   * {@link #resolve(Execute.Execution.Builder)}. Content hashes of the other messages are left as
+   * they were received.
+   *
+   * @param lazyExecution Execution to resolve in place.
+   * @return Content hashes that are not stored, empty if every decoded message was resolved
+   * @throws IllegalArgumentException if content does not match its content hash
+   */
+  public List<ByteString> resolve(LazyExecution lazyExecution) {
+    List<ByteString> missingContentHashes = new ArrayList<>();
+    for (MessageType messageType : MessageType.values()) {
+      LazyExecution.Message message =
+          lazyExecution.isDecoded(messageType) ? lazyExecution.getMessage(messageType) : null;
+      if (message == null || message.getContentHash().isEmpty()) {
+        continue;
+      }
+      if (!message.getContent().isEmpty()) {
+        if (!hash(message.getContent()).equals(message.getContentHash())) {
+          throw new IllegalArgumentException("content does not match content_hash");
+        }
+        put(message.getContentHash(), message.getContent());
+        message.setContentHash(ByteString.EMPTY);
+        continue;
+      }
+      ByteString content = get(message.getContentHash());
+      if (content == null) {
+        missingContentHashes.add(message.getContentHash());
+      } else {
+        message.setContent(content);
+        message.setContentHash(ByteString.EMPTY);
+      }
+    }
+    return missingContentHashes;
+  }
+
+  private void resolve(Execute.Message.Builder messageBuilder, List<ByteString> missing) {
+    ByteString contentHash = messageBuilder.getContentHash();
+    if (contentHash.isEmpty()) {
+      return;
+    }
+    if (!messageBuilder.getContent().isEmpty()) {
+      if (!hash(messageBuilder.getContent()).equals(contentHash)) {
+        throw new IllegalArgumentException("content does not match content_hash");
+      }
+      put(contentHash, messageBuilder.getContent());
+      messageBuilder.clearContentHash();
+      return;
+    }
+    ByteString content = get(contentHash);
+    if (content == null) {
+      missing.add(contentHash);
+    } else {
+      messageBuilder.setContent(content).clearContentHash();
+    }
+  }
+
+  /**
+   * Stores content, evicting the least recently used content until it fits. Content larger than
+   * the bound is not stored.
+   *
+   * @param contentHash SHA-256 hash of the content.
+   * @param content Content to store.
+   */
+  public synchronized void put(ByteString contentHash, ByteString content) {
+    if (content.size() > maxBytes) {
+      return;
+    }
+    ByteString previous = contents.put(contentHash, content);
+    if (previous != null) {
+      sizeBytes -= previous.size();
+    }
+    sizeBytes += content.size();
+    Iterator<Map.Entry<ByteString, ByteString>> eldest = contents.entrySet().iterator();
+    while (sizeBytes > maxBytes) {
+      sizeBytes -= eldest.next().getValue().size();
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * @param contentHash SHA-256 hash of the content.
+   * @return Stored content, or null if it is not stored
+   */
+  public synchronized ByteString get(ByteString contentHash) {
+    ByteString content = contents.get(contentHash);
+    if (content == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return content;
+  }
+
+  /** @return Maximum total size of the stored content */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** @return Total size of the stored content */
+  public synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /** @return Number of stored contents */
+  public synchronized int getEntryCount() {
+    return contents.size();
+  }
+
+  /** @return Number of content hashes found */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return Number of content hashes not found */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return Number of contents evicted to stay within the bound */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of Execution Protocol Buffer Messages sent in one HTTP request, each length delimited. A
+ * remote server answers a batch with a batch of the same size, holding the result of each
+ * Execution in order.
+ */
+public final class ExecutionBatch {
+
+  /** Content type of HTTP requests and responses holding a batch. */
+  public static final String CONTENT_TYPE = "application/x-apigee-execution-batch";
+
+  private ExecutionBatch() {}
+
+  /**
+   * @param contentType Content type of an HTTP request or response, may be null.
+   * @return Whether the content type is that of a batch
+   */
+  public static boolean isExecutionBatch(String contentType) {
+    return contentType != null && contentType.trim().startsWith(CONTENT_TYPE);
+  }
+
+  /**
+   * Writes Executions that were serialized before, without parsing them again.
+   *
+   * @param outputStream Stream to write the batch to.
+   * @param serializedExecutions Serialized Execution Protocol Buffer Messages.
+   * @throws IOException if writing to the stream fails
+   */
+  public static void write(OutputStream outputStream, List<byte[]> serializedExecutions)
+      throws IOException {
+    CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(outputStream);
+    for (byte[] serializedExecution : serializedExecutions) {
+      codedOutputStream.writeUInt32NoTag(serializedExecution.length);
+      codedOutputStream.writeRawBytes(serializedExecution);
+    }
+    codedOutputStream.flush();
+  }
+
+  /**
+   * @param inputStream Stream holding a batch, read until its end.
+   * @return Execution Protocol Buffer Messages of the batch
+   * @throws IOException if the batch cannot be read or parsed
+   */
+  public static List<Execute.Execution> read(InputStream inputStream) throws IOException {
+    List<Execute.Execution> executions = new ArrayList<>();
+    for (Execute.Execution execution;
+        (execution = Execute.Execution.parseDelimitedFrom(inputStream)) != null; ) {
+      executions.add(execution);
+    }
+    return executions;
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.protobuf.ByteString;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stream of an Execution Protocol Buffer Message followed by the content of its messages, split
+ * into ContentChunk frames. Every frame is length delimited, so either end holds at most one chunk
+ * of content in memory however large the content is.
+ */
+public final class ExecutionStream {
+
+  /** Content type of HTTP requests and responses holding an execution stream. */
+  public static final String CONTENT_TYPE = "application/x-apigee-execution-stream";
+  /** Maximum size of the data of one ContentChunk. */
+  public static final int CHUNK_SIZE = 64 * 1024;
+
+  private ExecutionStream() {}
+
+  /**
+   * @param contentType Content type of an HTTP request or response, may be null.
+   * @return Whether the content type is that of an execution stream
+   */
+  public static boolean isExecutionStream(String contentType) {
+    return contentType != null && contentType.trim().startsWith(CONTENT_TYPE);
+  }
+
+  /**
+   * Writes an execution stream. The Execution is written first, then the content of each message
+   * in the order of {@link MessageType}.
+   */
+  public static final class Writer {
+    private final OutputStream outputStream;
+
+    public Writer(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    /**
+     * @param execution Execution Protocol Buffer Message, without the content that is streamed.
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeExecution(Execute.Execution execution) throws IOException {
+      execution.writeDelimitedTo(outputStream);
+    }
+
+    /**
+     * Copies the content of a message into chunks.
+     *
+     * @param messageType Message the content belongs to.
+     * @param content Content to copy, read until its end but not closed.
+     * @throws IOException if reading the content or writing to the stream fails
+     */
+    public void writeContent(MessageType messageType, InputStream content) throws IOException {
+      byte[] buffer = new byte[CHUNK_SIZE];
+      try (OutputStream chunkOutputStream = openContent(messageType)) {
+        for (int read; (read = content.read(buffer)) != -1; ) {
+          chunkOutputStream.write(buffer, 0, read);
+        }
+      }
+    }
+
+    /**
+     * Opens the content of a message for writing. Closing the returned stream writes the last chunk
+     * of the content, and must happen before the content of another message is opened.
+     *
+     * @param messageType Message the content belongs to.
+     * @return OutputStream that buffers up to one chunk
+     */
+    public OutputStream openContent(MessageType messageType) {
+      return new ChunkOutputStream(outputStream, messageType);
+    }
+
+    /** @throws IOException if flushing the stream fails */
+    public void flush() throws IOException {
+      outputStream.flush();
+    }
+  }
+
+  /**
+   * Reads an execution stream. The Execution is read first, then the content of each message that
+   * has content, in the order it was written.
+   */
+  public static final class Reader {
+    private final InputStream inputStream;
+    private ChunkInputStream content;
+
+    public Reader(InputStream inputStream) {
+      this.inputStream = inputStream;
+    }
+
+    /**
+     * @return Execution Protocol Buffer Message at the start of the stream
+     * @throws IOException if the stream is empty or cannot be parsed
+     */
+    public Execute.Execution readExecution() throws IOException {
+      Execute.Execution execution = Execute.Execution.parseDelimitedFrom(inputStream);
+      if (execution == null) {
+        throw new EOFException("missing Execution");
+      }
+      return execution;
+    }
+
+    /**
+     * Moves to the content of the next message, skipping what was not read of the previous one.
+     *
+     * @return Message the content belongs to, or null at the end of the stream
+     * @throws IOException if reading from the stream fails
+     */
+    public MessageType nextContent() throws IOException {
+      if (content != null) {
+        content.skipToEnd();
+      }
+      Execute.ContentChunk chunk = Execute.ContentChunk.parseDelimitedFrom(inputStream);
+      content = chunk == null ? null : new ChunkInputStream(inputStream, chunk);
+      return chunk == null ? null : chunk.getMessageType();
+    }
+
+    /**
+     * @return InputStream of the content moved to by {@link #nextContent()}, which reads the chunks
+     *     of that content as they arrive
+     */
+    public InputStream getContent() {
+      return content;
+    }
+  }
+
+  private static class ChunkOutputStream extends OutputStream {
+    private final OutputStream outputStream;
+    private final MessageType messageType;
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int size;
+    private boolean closed;
+
+    ChunkOutputStream(OutputStream outputStream, MessageType messageType) {
+      this.outputStream = outputStream;
+      this.messageType = messageType;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (size == buffer.length) {
+        writeChunk(false);
+      }
+      buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (size == buffer.length) {
+          writeChunk(false);
+        }
+        int copied = Math.min(length, buffer.length - size);
+        System.arraycopy(bytes, offset, buffer, size, copied);
+        size += copied;
+        offset += copied;
+        length -= copied;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        writeChunk(true);
+      }
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+      Execute.ContentChunk.newBuilder()
+          .setMessageType(messageType)
+          .setData(ByteString.copyFrom(buffer, 0, size))
+          .setLast(last)
+          .build()
+          .writeDelimitedTo(outputStream);
+      size = 0;
+    }
+  }
+
+  private static class ChunkInputStream extends InputStream {
+    private final InputStream inputStream;
+    private final MessageType messageType;
+    private InputStream data;
+    private boolean last;
+
+    ChunkInputStream(InputStream inputStream, Execute.ContentChunk chunk) {
+      this.inputStream = inputStream;
+      this.messageType = chunk.getMessageType();
+      this.data = chunk.getData().newInput();
+      this.last = chunk.getLast();
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b;
+      while ((b = data.read()) == -1) {
+        if (!nextChunk()) {
+          return -1;
+        }
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      int read;
+      while ((read = data.read(bytes, offset, length)) == -1) {
+        if (!nextChunk()) {
+          return -1;
+        }
+      }
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return data.available();
+    }
+
+    void skipToEnd() throws IOException {
+      while (nextChunk()) {
+        // Each chunk is discarded as the next one is read.
+      }
+    }
+
+    private boolean nextChunk() throws IOException {
+      if (last) {
+        return false;
+      }
+      Execute.ContentChunk chunk = Execute.ContentChunk.parseDelimitedFrom(inputStream);
+      if (chunk == null) {
+        throw new EOFException("content of " + messageType + " ended without its last chunk");
+      }
+      if (chunk.getMessageType() != messageType) {
+        throw new IOException(
+            "expected a chunk of " + messageType + " but got " + chunk.getMessageType());
+      }
+      data = chunk.getData().newInput();
+      last = chunk.getLast();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes Execution Protocol Buffer Messages straight into an output stream, such as the body of an
+ * HTTP response, through a {@link CodedOutputStream} whose buffer is pooled per thread, instead of
+ * serializing them into a byte array first. Large byte fields, and the fields a {@link
+ * LazyExecution} did not decode, bypass the buffer and are written from the bytes they are held in.
+ */
+public final class ExecutionWriter {
+
+  /** Size of the buffer pooled by each thread. */
+  static final int BUFFER_SIZE = 8 * 1024;
+
+  private static final ThreadLocal<PooledEncoder> ENCODERS =
+      ThreadLocal.withInitial(PooledEncoder::new);
+
+  private ExecutionWriter() {}
+
+  /**
+   * @param outputStream Stream to write to, flushed but not closed.
+   * @param message Protocol Buffer Message to write.
+   * @throws IOException if writing to the stream fails
+   */
+  public static void write(OutputStream outputStream, MessageLite message) throws IOException {
+    write(outputStream, message::writeTo);
+  }
+
+  /**
+   * Writes a Protocol Buffer Message prefixed with its varint length, as {@link
+   * MessageLite#writeDelimitedTo} does.
+   *
+   * @param outputStream Stream to write to, flushed but not closed.
+   * @param message Protocol Buffer Message to write.
+   * @throws IOException if writing to the stream fails
+   */
+  public static void writeDelimited(OutputStream outputStream, MessageLite message)
+      throws IOException {
+    write(
+        outputStream,
+        codedOutputStream -> {
+          codedOutputStream.writeUInt32NoTag(message.getSerializedSize());
+          message.writeTo(codedOutputStream);
+        });
+  }
+
+  /**
+   * @param outputStream Stream to write to, flushed but not closed.
+   * @param lazyExecution Execution to write, with the changes made to it.
+   * @throws IOException if writing to the stream fails
+   */
+  public static void write(OutputStream outputStream, LazyExecution lazyExecution)
+      throws IOException {
+    write(outputStream, lazyExecution::writeTo);
+  }
+
+  private static void write(OutputStream outputStream, Encoding encoding) throws IOException {
+    PooledEncoder encoder = ENCODERS.get();
+    if (encoder.target.outputStream != null) {
+      // Already writing on this thread, so the pooled buffer is in use.
+      CodedOutputStream codedOutputStream = CodedOutputStream.newInstance(outputStream);
+      encoding.encode(codedOutputStream);
+      codedOutputStream.flush();
+      outputStream.flush();
+      return;
+    }
+    encoder.target.outputStream = outputStream;
+    boolean written = false;
+    try {
+      encoding.encode(encoder.codedOutputStream);
+      // Flushing the CodedOutputStream only empties its buffer into the stream.
+      encoder.codedOutputStream.flush();
+      outputStream.flush();
+      written = true;
+    } finally {
+      encoder.target.outputStream = null;
+      if (!written) {
+        // The buffer may still hold part of the message.
+        ENCODERS.remove();
+      }
+    }
+  }
+
+  private interface Encoding {
+    void encode(CodedOutputStream codedOutputStream) throws IOException;
+  }
+
+  /** CodedOutputStream and its buffer, kept by a thread and pointed at each stream in turn. */
+  private static final class PooledEncoder {
+    private final TargetOutputStream target = new TargetOutputStream();
+    private final CodedOutputStream codedOutputStream =
+        CodedOutputStream.newInstance(target, BUFFER_SIZE);
+  }
+
+  private static final class TargetOutputStream extends OutputStream {
+    private OutputStream outputStream;
+
+    @Override
+    public void write(int b) throws IOException {
+      outputStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      outputStream.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      outputStream.flush();
+    }
+  }
+}
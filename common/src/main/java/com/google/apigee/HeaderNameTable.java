@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.Execution.HeaderEncoding;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the header names of an Execution Protocol Buffer Message as indexes into a table of
+ * header names, similar to HPACK. The static table holds common header names. The dynamic table
+ * starts empty for every Execution and grows with each name missing from the static table, so a
+ * name repeated across the messages of an Execution is sent once.
+ */
+public final class HeaderNameTable {
+
+  /** Common header names, in lower case. Entries may only be appended. */
+  static final String[] STATIC_TABLE = {
+    "accept",
+    "accept-charset",
+    "accept-encoding",
+    "accept-language",
+    "accept-ranges",
+    "access-control-allow-credentials",
+    "access-control-allow-headers",
+    "access-control-allow-methods",
+    "access-control-allow-origin",
+    "access-control-expose-headers",
+    "access-control-max-age",
+    "access-control-request-headers",
+    "access-control-request-method",
+    "age",
+    "allow",
+    "authorization",
+    "cache-control",
+    "connection",
+    "content-disposition",
+    "content-encoding",
+    "content-language",
+    "content-length",
+    "content-location",
+    "content-range",
+    "content-type",
+    "cookie",
+    "date",
+    "etag",
+    "expect",
+    "expires",
+    "forwarded",
+    "from",
+    "host",
+    "if-match",
+    "if-modified-since",
+    "if-none-match",
+    "if-range",
+    "if-unmodified-since",
+    "keep-alive",
+    "last-modified",
+    "link",
+    "location",
+    "max-forwards",
+    "origin",
+    "pragma",
+    "proxy-authenticate",
+    "proxy-authorization",
+    "range",
+    "referer",
+    "refresh",
+    "retry-after",
+    "server",
+    "set-cookie",
+    "strict-transport-security",
+    "te",
+    "traceparent",
+    "transfer-encoding",
+    "upgrade-insecure-requests",
+    "user-agent",
+    "vary",
+    "via",
+    "www-authenticate",
+    "x-api-key",
+    "x-b3-traceid",
+    "x-cloud-trace-context",
+    "x-content-type-options",
+    "x-correlation-id",
+    "x-forwarded-for",
+    "x-forwarded-host",
+    "x-forwarded-port",
+    "x-forwarded-proto",
+    "x-frame-options",
+    "x-real-ip",
+    "x-request-id",
+  };
+  private static final String[] TITLE_CASE_TABLE = new String[STATIC_TABLE.length];
+  private static final Map<String, Integer> STATIC_INDEX = new HashMap<>();
+  private static final Map<String, Integer> TITLE_CASE_INDEX = new HashMap<>();
+
+  static {
+    for (int i = 0; i < STATIC_TABLE.length; i++) {
+      TITLE_CASE_TABLE[i] = toTitleCase(STATIC_TABLE[i]);
+      STATIC_INDEX.put(STATIC_TABLE[i], i);
+      TITLE_CASE_INDEX.put(TITLE_CASE_TABLE[i], i);
+    }
+  }
+
+  private HeaderNameTable() {}
+
+  /**
+   * Moves the headers of every message from header_map to indexed_headers.
+   *
+   * @param execution Execution Protocol Buffer Message with HEADER_MAP encoding.
+   * @return Execution Protocol Buffer Message with INDEXED encoding
+   */
+  public static Execute.Execution encode(Execute.Execution execution) {
+    if (execution.getHeaderEncoding() == HeaderEncoding.INDEXED) {
+      return execution;
+    }
+    Execute.Execution.Builder executionBuilder =
+        execution.toBuilder().setHeaderEncoding(HeaderEncoding.INDEXED);
+    if (execution.hasMessageContext()) {
+      Execute.MessageContext.Builder messageContextBuilder =
+          executionBuilder.getMessageContextBuilder();
+      Encoder encoder = new Encoder();
+      if (messageContextBuilder.hasTargetRequestMessage()) {
+        encoder.encode(messageContextBuilder.getTargetRequestMessageBuilder());
+      }
+      if (messageContextBuilder.hasProxyRequestMessage()) {
+        encoder.encode(messageContextBuilder.getProxyRequestMessageBuilder());
+      }
+      if (messageContextBuilder.hasTargetResponseMessage()) {
+        encoder.encode(messageContextBuilder.getTargetResponseMessageBuilder());
+      }
+      if (messageContextBuilder.hasProxyResponseMessage()) {
+        encoder.encode(messageContextBuilder.getProxyResponseMessageBuilder());
+      }
+      if (messageContextBuilder.hasErrorMessage()) {
+        encoder.encode(messageContextBuilder.getErrorMessageBuilder());
+      }
+    }
+    return executionBuilder.build();
+  }
+
+  /**
+   * Moves the headers of every message from indexed_headers back to header_map.
+   *
+   * @param execution Execution Protocol Buffer Message with any header encoding.
+   * @return Execution Protocol Buffer Message with HEADER_MAP encoding
+   * @throws IllegalArgumentException if a header refers to a name missing from both tables
+   */
+  public static Execute.Execution decode(Execute.Execution execution) {
+    if (execution.getHeaderEncoding() != HeaderEncoding.INDEXED) {
+      return execution;
+    }
+    Execute.Execution.Builder executionBuilder =
+        execution.toBuilder().setHeaderEncoding(HeaderEncoding.HEADER_MAP);
+    if (execution.hasMessageContext()) {
+      Execute.MessageContext.Builder messageContextBuilder =
+          executionBuilder.getMessageContextBuilder();
+      List<String> dynamicTable = new ArrayList<>();
+      if (messageContextBuilder.hasTargetRequestMessage()) {
+        decode(messageContextBuilder.getTargetRequestMessageBuilder(), dynamicTable);
+      }
+      if (messageContextBuilder.hasProxyRequestMessage()) {
+        decode(messageContextBuilder.getProxyRequestMessageBuilder(), dynamicTable);
+      }
+      if (messageContextBuilder.hasTargetResponseMessage()) {
+        decode(messageContextBuilder.getTargetResponseMessageBuilder(), dynamicTable);
+      }
+      if (messageContextBuilder.hasProxyResponseMessage()) {
+        decode(messageContextBuilder.getProxyResponseMessageBuilder(), dynamicTable);
+      }
+      if (messageContextBuilder.hasErrorMessage()) {
+        decode(messageContextBuilder.getErrorMessageBuilder(), dynamicTable);
+      }
+    }
+    return executionBuilder.build();
+  }
+
+  private static void decode(Execute.Message.Builder message, List<String> dynamicTable) {
+    Map<String, Execute.Message.Headers> headerMap = new HashMap<>();
+    for (Execute.Message.IndexedHeader indexedHeader : message.getIndexedHeadersList()) {
+      String name = getName(indexedHeader, dynamicTable);
+      Execute.Message.Headers headers = headerMap.get(name);
+      headerMap.put(
+          name,
+          (headers == null ? Execute.Message.Headers.newBuilder() : headers.toBuilder())
+              .addAllHeaders(indexedHeader.getValuesList())
+              .build());
+    }
+    message.clearIndexedHeaders().putAllHeaderMap(headerMap);
+  }
+
+  private static String getName(
+      Execute.Message.IndexedHeader indexedHeader, List<String> dynamicTable) {
+    switch (indexedHeader.getNameCase()) {
+      case LITERAL:
+        dynamicTable.add(indexedHeader.getLiteral());
+        return indexedHeader.getLiteral();
+      case INDEX:
+        int index = indexedHeader.getIndex();
+        if (index >= 0 && index < STATIC_TABLE.length) {
+          return indexedHeader.getTitleCase() ? TITLE_CASE_TABLE[index] : STATIC_TABLE[index];
+        }
+        int dynamicIndex = index - STATIC_TABLE.length;
+        if (dynamicIndex >= 0 && dynamicIndex < dynamicTable.size()) {
+          return dynamicTable.get(dynamicIndex);
+        }
+        throw new IllegalArgumentException(
+            "header name index out of range: " + Integer.toUnsignedString(index));
+      default:
+        throw new IllegalArgumentException("header without name");
+    }
+  }
+
+  /**
+   * Encoder of the header names of one Execution, holding its dynamic table. Messages must be
+   * encoded in the order of their fields in MessageContext, as they are decoded in that order.
+   */
+  public static final class Encoder {
+    private final Map<String, Integer> dynamicTable = new HashMap<>();
+
+    /**
+     * Adds a header to the indexed headers of a message.
+     *
+     * @param message Builder of the Message Protocol Buffer Message.
+     * @param name Header name.
+     * @param values Header values.
+     */
+    public void addHeader(Execute.Message.Builder message, String name, Iterable<String> values) {
+      Execute.Message.IndexedHeader.Builder indexedHeader =
+          Execute.Message.IndexedHeader.newBuilder().addAllValues(values);
+      Integer index;
+      if ((index = STATIC_INDEX.get(name)) != null) {
+        indexedHeader.setIndex(index);
+      } else if ((index = TITLE_CASE_INDEX.get(name)) != null) {
+        indexedHeader.setIndex(index).setTitleCase(true);
+      } else if ((index = dynamicTable.get(name)) != null) {
+        indexedHeader.setIndex(index);
+      } else {
+        indexedHeader.setLiteral(name);
+        dynamicTable.put(name, STATIC_TABLE.length + dynamicTable.size());
+      }
+      message.addIndexedHeaders(indexedHeader);
+    }
+
+    private void encode(Execute.Message.Builder message) {
+      for (Map.Entry<String, Execute.Message.Headers> header :
+          message.getHeaderMapMap().entrySet()) {
+        addHeader(message, header.getKey(), header.getValue().getHeadersList());
+      }
+      message.clearHeaderMap();
+    }
+  }
+
+  private static String toTitleCase(String name) {
+    char[] chars = name.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      if (i == 0 || chars[i - 1] == '-') {
+        chars[i] = Character.toUpperCase(chars[i]);
+      }
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Serialized Execution Protocol Buffer Message decoded only along the paths a policy declares: the
+ * content, content hash and named flow variables of some messages of the MessageContext. The wire
+ * format is walked with {@link CodedInputStream}, and every other field, such as headers, other
+ * flow variables, other messages and the ExecutionContext, is kept as a slice of the received
+ * bytes and written back unchanged, without being decoded, copied or encoded again.
+ */
+public final class LazyExecution {
+
+  // Tags of the key and value fields of a map entry, both length delimited.
+  private static final int MAP_ENTRY_KEY_TAG = 1 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+  private static final int MAP_ENTRY_VALUE_TAG = 2 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+  private final Set<MessageType> messageTypes;
+  private final Map<ByteString, String> flowVariableNames = new HashMap<>();
+  private final List<ByteString> otherFields = new ArrayList<>();
+  private final List<ByteString> otherMessageContextFields = new ArrayList<>();
+  private final Map<MessageType, Message> messages = new EnumMap<>(MessageType.class);
+  private boolean hasMessageContext;
+  private boolean isPolicyChain;
+  private Execute.ExecutionResult executionResult;
+
+  private LazyExecution(Set<MessageType> messageTypes, Set<String> flowVariableNames) {
+    this.messageTypes = messageTypes;
+    for (String flowVariableName : flowVariableNames) {
+      this.flowVariableNames.put(ByteString.copyFromUtf8(flowVariableName), flowVariableName);
+    }
+  }
+
+  /**
+   * @param data Serialized Execution Protocol Buffer Message, which must not change while the
+   *     returned LazyExecution is in use.
+   * @param messageTypes Messages of the MessageContext to decode.
+   * @param flowVariableNames Flow variables of those messages to decode.
+   * @return LazyExecution of the data
+   * @throws InvalidProtocolBufferException if the data is not a valid Execution
+   */
+  public static LazyExecution parse(
+      byte[] data, Set<MessageType> messageTypes, Set<String> flowVariableNames)
+      throws InvalidProtocolBufferException {
+    LazyExecution lazyExecution = new LazyExecution(messageTypes, flowVariableNames);
+    lazyExecution.mergeExecution(UnsafeByteOperations.unsafeWrap(data));
+    return lazyExecution;
+  }
+
+  /** @return Whether the Execution has a MessageContext */
+  public boolean hasMessageContext() {
+    return hasMessageContext;
+  }
+
+  /**
+   * @return Whether the Execution names policies to run in a chain, see {@link
+   *     PolicyChain#isPolicyChain}
+   */
+  public boolean isPolicyChain() {
+    return isPolicyChain;
+  }
+
+  /**
+   * @param messageType Message of the MessageContext.
+   * @return Whether the message was declared when parsing
+   */
+  public boolean isDecoded(MessageType messageType) {
+    return messageTypes.contains(messageType);
+  }
+
+  /**
+   * @param messageType Message declared when parsing.
+   * @return Decoded message, or null if the MessageContext does not have it
+   * @throws IllegalArgumentException if the message was not declared
+   */
+  public Message getMessage(MessageType messageType) {
+    if (!messageTypes.contains(messageType)) {
+      throw new IllegalArgumentException("not decoded: " + messageType);
+    }
+    return messages.get(messageType);
+  }
+
+  /**
+   * Adds an empty message to the MessageContext, adding the MessageContext if there is none.
+   *
+   * @param messageType Message declared when parsing, that the MessageContext does not have.
+   * @throws IllegalArgumentException if the message was not declared or is already there
+   */
+  public void addMessage(MessageType messageType) {
+    if (getMessage(messageType) != null) {
+      throw new IllegalArgumentException("already present: " + messageType);
+    }
+    hasMessageContext = true;
+    messages.put(messageType, new Message());
+  }
+
+  /** @return ExecutionResult received or set, the default instance if there is none */
+  public Execute.ExecutionResult getExecutionResult() {
+    return executionResult == null ? Execute.ExecutionResult.getDefaultInstance() : executionResult;
+  }
+
+  /** @param executionResult ExecutionResult replacing the one received. */
+  public void setExecutionResult(Execute.ExecutionResult executionResult) {
+    this.executionResult = executionResult;
+  }
+
+  /**
+   * Serializes the Execution with the changes made to it. Fields that were not decoded are written
+   * as the slices of the received bytes they are, so the result shares them with the received
+   * bytes.
+   *
+   * @return Serialized Execution Protocol Buffer Message
+   */
+  public ByteString toByteString() {
+    ByteString execution = concat(otherFields);
+    if (hasMessageContext) {
+      ByteString messageContext = concat(otherMessageContextFields);
+      for (Map.Entry<MessageType, Message> message : messages.entrySet()) {
+        messageContext =
+            messageContext.concat(
+                lengthDelimited(message.getKey().getNumber(), message.getValue().toByteString()));
+      }
+      execution =
+          execution.concat(
+              lengthDelimited(Execute.Execution.MESSAGECONTEXT_FIELD_NUMBER, messageContext));
+    }
+    if (executionResult != null) {
+      execution =
+          execution.concat(
+              lengthDelimited(
+                  Execute.Execution.EXECUTIONRESULT_FIELD_NUMBER, executionResult.toByteString()));
+    }
+    return execution;
+  }
+
+  /**
+   * Writes the Execution with the changes made to it. Fields that were not decoded are handed to
+   * the stream as the slices of the received bytes they are, see {@link ExecutionWriter}.
+   *
+   * @param output Stream to write the serialized Execution Protocol Buffer Message to.
+   * @throws IOException if writing fails
+   */
+  public void writeTo(CodedOutputStream output) throws IOException {
+    output.writeRawBytes(toByteString());
+  }
+
+  /** @return Size of the serialized Execution with the changes made to it */
+  public int getSerializedSize() {
+    return toByteString().size();
+  }
+
+  /**
+   * @return Execution Protocol Buffer Message with the changes made to it, parsed in full
+   * @throws InvalidProtocolBufferException if the data is not a valid Execution
+   */
+  public Execute.Execution toExecution() throws InvalidProtocolBufferException {
+    return Execute.Execution.parseFrom(toByteString());
+  }
+
+  private void mergeExecution(ByteString data) throws InvalidProtocolBufferException {
+    walk(
+        data,
+        otherFields,
+        (fieldNumber, value) -> {
+          switch (fieldNumber) {
+            case Execute.Execution.MESSAGECONTEXT_FIELD_NUMBER:
+              hasMessageContext = true;
+              mergeMessageContext(value);
+              return true;
+            case Execute.Execution.EXECUTIONRESULT_FIELD_NUMBER:
+              executionResult =
+                  executionResult == null
+                      ? Execute.ExecutionResult.parseFrom(value)
+                      : executionResult.toBuilder().mergeFrom(value).build();
+              return true;
+            case Execute.Execution.POLICY_CHAIN_FIELD_NUMBER:
+              isPolicyChain |= Execute.PolicyChain.parseFrom(value).getPoliciesCount() > 0;
+              return false;
+            default:
+              return false;
+          }
+        });
+  }
+
+  private void mergeMessageContext(ByteString data) throws InvalidProtocolBufferException {
+    walk(
+        data,
+        otherMessageContextFields,
+        (fieldNumber, value) -> {
+          // The MessageContext field numbers of the messages are those of their MessageType.
+          MessageType messageType = MessageType.forNumber(fieldNumber);
+          if (messageType == null || !messageTypes.contains(messageType)) {
+            return false;
+          }
+          Message message = messages.get(messageType);
+          if (message == null) {
+            message = new Message();
+            messages.put(messageType, message);
+          }
+          message.merge(value);
+          return true;
+        });
+  }
+
+  /**
+   * Walks the fields of a serialized Protocol Buffer Message. Length delimited fields are passed to
+   * the visitor; those it does not consume, and every other field, are kept as they are.
+   *
+   * @param data Serialized Protocol Buffer Message.
+   * @param otherFields Fields kept as received, tag and length included.
+   * @param visitor Visitor of the length delimited fields.
+   */
+  private static void walk(ByteString data, List<ByteString> otherFields, FieldVisitor visitor)
+      throws InvalidProtocolBufferException {
+    CodedInputStream input = data.newCodedInput();
+    try {
+      while (true) {
+        int start = input.getTotalBytesRead();
+        int tag = input.readTag();
+        if (tag == 0) {
+          return;
+        }
+        boolean consumed = false;
+        if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+          int length = input.readRawVarint32();
+          int valueStart = input.getTotalBytesRead();
+          input.skipRawBytes(length);
+          consumed =
+              visitor.visit(
+                  WireFormat.getTagFieldNumber(tag),
+                  data.substring(valueStart, valueStart + length));
+        } else {
+          input.skipField(tag);
+        }
+        if (!consumed) {
+          otherFields.add(data.substring(start, input.getTotalBytesRead()));
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e);
+    }
+  }
+
+  private static ByteString concat(List<ByteString> fields) {
+    ByteString concatenated = ByteString.EMPTY;
+    for (ByteString field : fields) {
+      concatenated = concatenated.concat(field);
+    }
+    return concatenated;
+  }
+
+  private static ByteString lengthDelimited(int fieldNumber, ByteString value) {
+    byte[] prefix =
+        new byte
+            [CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(value.size())];
+    CodedOutputStream output = CodedOutputStream.newInstance(prefix);
+    try {
+      output.writeTag(fieldNumber, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(value.size());
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return UnsafeByteOperations.unsafeWrap(prefix).concat(value);
+  }
+
+  private interface FieldVisitor {
+    /**
+     * @param fieldNumber Number of a length delimited field.
+     * @param value Value of the field.
+     * @return Whether the field is consumed rather than kept as it is
+     */
+    boolean visit(int fieldNumber, ByteString value) throws InvalidProtocolBufferException;
+  }
+
+  /**
+   * Message of the MessageContext whose content, content hash and declared flow variables are
+   * decoded. Headers, query parameters and other flow variables are kept as received.
+   */
+  public final class Message {
+    private final List<ByteString> otherFields = new ArrayList<>();
+    private final Map<String, Execute.Message.FlowMapValue> flowVariables = new HashMap<>();
+    private ByteString content = ByteString.EMPTY;
+    private ByteString contentHash = ByteString.EMPTY;
+
+    private Message() {}
+
+    /** @return Content of the message, empty if it has none */
+    public ByteString getContent() {
+      return content;
+    }
+
+    /** @param content Content replacing the content of the message. */
+    public void setContent(ByteString content) {
+      this.content = content;
+    }
+
+    /** @return Content hash of the message, empty if it has none */
+    public ByteString getContentHash() {
+      return contentHash;
+    }
+
+    /** @param contentHash Content hash replacing the content hash of the message. */
+    public void setContentHash(ByteString contentHash) {
+      this.contentHash = contentHash;
+    }
+
+    /**
+     * @param name Flow variable declared when parsing.
+     * @return Value of the flow variable, or null if the message does not have it
+     * @throws IllegalArgumentException if the flow variable was not declared
+     */
+    public Execute.Message.FlowMapValue getFlowVariable(String name) {
+      if (!flowVariableNames.containsValue(name)) {
+        throw new IllegalArgumentException("not decoded: " + name);
+      }
+      return flowVariables.get(name);
+    }
+
+    /**
+     * Sets a flow variable of the message. The entry is added after those received, so it replaces
+     * an entry of the same name when parsed, without decoding the others.
+     *
+     * @param name Name of the flow variable.
+     * @param value Value of the flow variable.
+     */
+    public void putFlowVariable(String name, Execute.Message.FlowMapValue value) {
+      otherFields.add(
+          lengthDelimited(
+              Execute.Message.FLOW_VARIABLES_FIELD_NUMBER,
+              lengthDelimited(1, ByteString.copyFromUtf8(name))
+                  .concat(lengthDelimited(2, value.toByteString()))));
+      if (flowVariableNames.containsValue(name)) {
+        flowVariables.put(name, value);
+      }
+    }
+
+    private void merge(ByteString data) throws InvalidProtocolBufferException {
+      walk(
+          data,
+          otherFields,
+          (fieldNumber, value) -> {
+            switch (fieldNumber) {
+              case Execute.Message.CONTENT_FIELD_NUMBER:
+                content = value;
+                return true;
+              case Execute.Message.CONTENT_HASH_FIELD_NUMBER:
+                contentHash = value;
+                return true;
+              case Execute.Message.FLOW_VARIABLES_FIELD_NUMBER:
+                mergeFlowVariable(value);
+                return false;
+              default:
+                return false;
+            }
+          });
+    }
+
+    /** Decodes a flow variable map entry if its key was declared; the entry is kept either way. */
+    private void mergeFlowVariable(ByteString entry) throws InvalidProtocolBufferException {
+      ByteString key = ByteString.EMPTY;
+      ByteString value = null;
+      CodedInputStream input = entry.newCodedInput();
+      try {
+        for (int tag; (tag = input.readTag()) != 0; ) {
+          if (tag == MAP_ENTRY_KEY_TAG) {
+            key = input.readBytes();
+          } else if (tag == MAP_ENTRY_VALUE_TAG) {
+            value = input.readBytes();
+          } else {
+            input.skipField(tag);
+          }
+        }
+      } catch (InvalidProtocolBufferException e) {
+        throw e;
+      } catch (IOException e) {
+        throw new InvalidProtocolBufferException(e);
+      }
+      String name = flowVariableNames.get(key);
+      if (name != null) {
+        flowVariables.put(
+            name,
+            value == null
+                ? Execute.Message.FlowMapValue.getDefaultInstance()
+                : Execute.Message.FlowMapValue.parseFrom(value));
+      }
+    }
+
+    private ByteString toByteString() {
+      ByteString message = concat(otherFields);
+      if (!content.isEmpty()) {
+        message = message.concat(lengthDelimited(Execute.Message.CONTENT_FIELD_NUMBER, content));
+      }
+      if (!contentHash.isEmpty()) {
+        message =
+            message.concat(
+                lengthDelimited(Execute.Message.CONTENT_HASH_FIELD_NUMBER, contentHash));
+      }
+      return message;
+    }
+  }
+}
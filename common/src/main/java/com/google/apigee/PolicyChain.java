@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ExecutionResult.Action;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the policies named by the PolicyChain of an Execution in order, in one round trip. Each
+ * policy receives the Execution returned by the previous one, with its ExecutionResult cleared,
+ * and the chain stops at the first policy that aborts. The result names the policy it came from.
+ */
+public final class PolicyChain {
+
+  private final Map<String, RemotePolicy> policies;
+
+  /** @param policies Policies a chain may name, by name. */
+  public PolicyChain(Map<String, RemotePolicy> policies) {
+    this.policies = new LinkedHashMap<>(policies);
+  }
+
+  /**
+   * @param execution Execution Protocol Buffer Message received.
+   * @return Whether the Execution names policies to run in a chain
+   */
+  public static boolean isPolicyChain(Execute.Execution execution) {
+    return execution.getPolicyChain().getPoliciesCount() > 0;
+  }
+
+  /**
+   * Runs the policy chain of an Execution. Every policy is looked up before the first one runs, so
+   * a chain naming an unknown policy changes nothing.
+   *
+   * @param execution Execution Protocol Buffer Message with a policy chain.
+   * @return Execution returned by the last policy run, with the policy named in its ExecutionResult
+   * @throws IllegalArgumentException if a policy of the chain is unknown
+   * @throws Exception if a policy fails
+   */
+  public Execute.Execution execute(Execute.Execution execution) throws Exception {
+    return execute(execution, RemotePolicy::execute);
+  }
+
+  /**
+   * Runs the policy chain of an Execution as {@link #execute(Execute.Execution)} does, sharing the
+   * scope of the request with every policy.
+   *
+   * @param execution Execution Protocol Buffer Message with a policy chain.
+   * @param scope Scope of the request, closed by the caller.
+   * @return Execution returned by the last policy run, with the policy named in its ExecutionResult
+   * @throws IllegalArgumentException if a policy of the chain is unknown
+   * @throws Exception if a policy fails
+   */
+  public Execute.Execution execute(Execute.Execution execution, RequestScope scope)
+      throws Exception {
+    return execute(execution, (policy, policyExecution) -> policy.execute(policyExecution, scope));
+  }
+
+  private Execute.Execution execute(Execute.Execution execution, Step step) throws Exception {
+    List<String> names = execution.getPolicyChain().getPoliciesList();
+    for (String name : names) {
+      if (!policies.containsKey(name)) {
+        throw new IllegalArgumentException("unknown policy: " + name);
+      }
+    }
+    Execute.Execution result = execution;
+    for (String name : names) {
+      result = step.run(policies.get(name), result.toBuilder().clearExecutionResult().build());
+      Execute.Execution.Builder resultBuilder = result.toBuilder();
+      resultBuilder.getExecutionResultBuilder().setPolicy(name);
+      result = resultBuilder.build();
+      if (result.getExecutionResult().getAction() == Action.ABORT) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /** Runs one policy of a chain. */
+  private interface Step {
+    Execute.Execution run(RemotePolicy policy, Execute.Execution execution) throws Exception;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+/**
+ * Policy a remote server runs on an Execution Protocol Buffer Message. Implementations listed in
+ * {@code META-INF/services/com.google.apigee.RemotePolicy} are found by a remote executor hosting
+ * many policies, and need a public constructor without arguments.
+ */
+public interface RemotePolicy {
+
+  /** @return Name of the policy in a {@link PolicyChain} and in the path of a remote executor */
+  default String getName() {
+    return getClass().getSimpleName();
+  }
+
+  /**
+   * @param execution Execution Protocol Buffer Message received, or returned by the previous
+   *     policy of a {@link PolicyChain}.
+   * @return Execution Protocol Buffer Message with its ExecutionResult set
+   * @throws Exception if the policy fails, answered with ABORT by the remote server
+   */
+  Execute.Execution execute(Execute.Execution execution) throws Exception;
+
+  /**
+   * Runs the policy with a scope for the subtasks it forks, which is closed once this returns,
+   * cancelling the subtasks still running. A policy forking subtasks overrides this method, and
+   * runs it from {@link #execute(Execute.Execution)} in a scope of its own.
+   *
+   * @param execution Execution Protocol Buffer Message received, or returned by the previous
+   *     policy of a {@link PolicyChain}.
+   * @param scope Scope of the request, closed by the caller.
+   * @return Execution Protocol Buffer Message with its ExecutionResult set
+   * @throws Exception if the policy fails, answered with ABORT by the remote server
+   */
+  default Execute.Execution execute(Execute.Execution execution, RequestScope scope)
+      throws Exception {
+    return execute(execution);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subtasks a policy forks while it serves one request, as with structured concurrency. A scope is
+ * opened per request and closed once the policy returns: closing cancels the subtasks still
+ * running and waits for them to stop, so none outlives its request or keeps a thread busy for it.
+ */
+public final class RequestScope implements AutoCloseable {
+
+  private final ExecutorService executorService;
+
+  /** @param executorService Threads of this scope only, shut down when the scope is closed. */
+  public RequestScope(ExecutorService executorService) {
+    this.executorService = executorService;
+  }
+
+  /** @return Scope running each subtask on a cached platform thread */
+  public static RequestScope open() {
+    return new RequestScope(Executors.newCachedThreadPool());
+  }
+
+  /**
+   * @param task Subtask to run.
+   * @return Future of the subtask, cancelled if it is still running when the scope is closed
+   * @throws java.util.concurrent.RejectedExecutionException if the scope is closed
+   */
+  public <T> Future<T> fork(Callable<T> task) {
+    return executorService.submit(task);
+  }
+
+  /** Interrupts the subtasks still running and waits for every subtask to stop. */
+  @Override
+  public void close() {
+    executorService.shutdownNow();
+    try {
+      executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
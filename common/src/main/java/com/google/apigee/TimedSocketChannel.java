@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking {@link SocketChannel} read and written through blocking streams that give up after
+ * a timeout. Unix domain socket channels have no socket to set a read timeout on, so the streams
+ * wait for the channel on a {@link Selector} of their own instead. The channel stays non-blocking,
+ * so it can also be registered with another selector while it is idle. One thread at a time reads
+ * or writes a channel.
+ */
+public final class TimedSocketChannel implements Closeable {
+  private final SocketChannel socketChannel;
+  private final long timeoutMillis;
+  private final Selector selector;
+  private final SelectionKey selectionKey;
+  private final InputStream inputStream = new ChannelInputStream();
+  private final OutputStream outputStream = new ChannelOutputStream();
+
+  /**
+   * @param socketChannel Connected channel, made non-blocking.
+   * @param timeoutMillis Time a read or write waits for the channel before it fails.
+   * @throws IOException if the channel cannot be made non-blocking
+   */
+  public TimedSocketChannel(SocketChannel socketChannel, long timeoutMillis) throws IOException {
+    this.socketChannel = socketChannel;
+    this.timeoutMillis = timeoutMillis;
+    socketChannel.configureBlocking(false);
+    this.selector = Selector.open();
+    try {
+      this.selectionKey = socketChannel.register(selector, 0);
+    } catch (IOException e) {
+      selector.close();
+      throw e;
+    }
+  }
+
+  /** @return Channel read and written by the streams */
+  public SocketChannel getSocketChannel() {
+    return socketChannel;
+  }
+
+  /** @return Unbuffered stream reading the channel */
+  public InputStream getInputStream() {
+    return inputStream;
+  }
+
+  /** @return Unbuffered stream writing the channel */
+  public OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public void close() {
+    try {
+      selector.close();
+    } catch (IOException e) {
+      // The channel is closed either way.
+    }
+    try {
+      socketChannel.close();
+    } catch (IOException e) {
+      // Nothing is left to release.
+    }
+  }
+
+  /**
+   * Waits until the channel is ready for an operation.
+   *
+   * @param operation {@link SelectionKey#OP_READ} or {@link SelectionKey#OP_WRITE}.
+   * @throws SocketTimeoutException if the channel is not ready within the timeout
+   */
+  private void await(int operation) throws IOException {
+    selectionKey.interestOps(operation);
+    long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+    for (long remaining = timeoutMillis; remaining > 0; ) {
+      if (selector.select(remaining) > 0) {
+        selector.selectedKeys().clear();
+        return;
+      }
+      // Woken up early, or interrupted.
+      if (Thread.currentThread().isInterrupted()) {
+        throw new SocketTimeoutException("interrupted waiting for the socket");
+      }
+      remaining = (deadline - System.nanoTime()) / 1_000_000L;
+    }
+    throw new SocketTimeoutException("socket not ready after " + timeoutMillis + " ms");
+  }
+
+  private final class ChannelInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      int read;
+      while ((read = socketChannel.read(buffer)) == 0) {
+        await(SelectionKey.OP_READ);
+      }
+      return read;
+    }
+  }
+
+  private final class ChannelOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        if (socketChannel.write(buffer) == 0) {
+          await(SelectionKey.OP_WRITE);
+        }
+      }
+    }
+  }
+}
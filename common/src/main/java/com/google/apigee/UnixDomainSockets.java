@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport of Execution Protocol Buffer Messages over a Unix domain socket to a co-located remote
+ * executor, named by a {@code unix:///path/to/socket} URL. Each request and response is one
+ * Execution prefixed with its varint length, and a connection carries any number of them in turn.
+ * Unix domain socket channels need Java 16, so they are looked up reflectively and this class
+ * still loads on Java 8.
+ */
+public final class UnixDomainSockets {
+
+  /** Scheme of URLs naming a Unix domain socket. */
+  public static final String URL_PREFIX = "unix://";
+
+  private UnixDomainSockets() {}
+
+  /**
+   * @param url URL of a remote server, may be null.
+   * @return Whether the URL names a Unix domain socket
+   */
+  public static boolean isUnixDomainSocketUrl(String url) {
+    return url != null && url.startsWith(URL_PREFIX);
+  }
+
+  /**
+   * @param url {@code unix://} URL.
+   * @return Path of the socket file
+   */
+  public static String getPath(String url) {
+    return url.substring(URL_PREFIX.length());
+  }
+
+  /**
+   * @param path Path of the socket file.
+   * @return Blocking channel connected to the socket
+   * @throws IOException if the socket cannot be connected to, or Unix domain sockets are not
+   *     supported
+   */
+  public static SocketChannel connect(String path) throws IOException {
+    SocketChannel socketChannel =
+        (SocketChannel) invoke(SocketChannel.class, "open", getUnixProtocolFamily());
+    try {
+      socketChannel.connect(getAddress(path));
+    } catch (IOException e) {
+      socketChannel.close();
+      throw e;
+    }
+    return socketChannel;
+  }
+
+  /**
+   * @param path Path of the socket file, which must not exist.
+   * @return Blocking channel accepting connections on the socket
+   * @throws IOException if the socket cannot be bound, or Unix domain sockets are not supported
+   */
+  public static ServerSocketChannel bind(String path) throws IOException {
+    ServerSocketChannel serverSocketChannel =
+        (ServerSocketChannel) invoke(ServerSocketChannel.class, "open", getUnixProtocolFamily());
+    try {
+      serverSocketChannel.bind(getAddress(path));
+    } catch (IOException e) {
+      serverSocketChannel.close();
+      throw e;
+    }
+    return serverSocketChannel;
+  }
+
+  /**
+   * @param outputStream Stream of a connection.
+   * @param execution Execution Protocol Buffer Message to write as one frame.
+   * @throws IOException if writing fails
+   */
+  public static void writeFrame(OutputStream outputStream, Execute.Execution execution)
+      throws IOException {
+    ExecutionWriter.writeDelimited(outputStream, execution);
+  }
+
+  /**
+   * @param inputStream Stream of a connection.
+   * @return Execution Protocol Buffer Message of the next frame, or null at the end of the stream
+   * @throws IOException if reading fails or the frame is truncated
+   */
+  public static Execute.Execution readFrame(InputStream inputStream) throws IOException {
+    return Execute.Execution.parseDelimitedFrom(inputStream);
+  }
+
+  private static ProtocolFamily getUnixProtocolFamily() throws IOException {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      throw new IOException(
+          "Unix domain sockets need Java 16, running " + System.getProperty("java.version"));
+    }
+  }
+
+  private static SocketAddress getAddress(String path) throws IOException {
+    try {
+      return (SocketAddress)
+          invoke(Class.forName("java.net.UnixDomainSocketAddress"), "of", path);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unix domain sockets are not supported", e);
+    }
+  }
+
+  private static Object invoke(Class<?> type, String method, Object argument) throws IOException {
+    try {
+      return type.getMethod(
+              method,
+              argument instanceof ProtocolFamily ? ProtocolFamily.class : argument.getClass())
+          .invoke(null, argument);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unix domain sockets are not supported", e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.lang.management.ManagementFactory;
+
+/** Measures the bytes a call allocates on the calling thread, for benchmarks to print. */
+final class AllocationMeter {
+
+  private static final int SAMPLES = 1000;
+
+  private AllocationMeter() {}
+
+  interface Call {
+    void run() throws Exception;
+  }
+
+  /**
+   * @param call Call to measure, run twice as many times as measured to warm it up first.
+   * @return Bytes allocated per call
+   */
+  static long bytesPerCall(Call call) throws Exception {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    for (int i = 0; i < SAMPLES; i++) {
+      call.run();
+    }
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < SAMPLES; i++) {
+      call.run();
+    }
+    return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / SAMPLES;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replays Execution Protocol Buffer Messages captured by the callout's {@code capture_file}
+ * property against a remote executor, at a target rate or as fast as possible, and reports latency
+ * and throughput.
+ *
+ * <p>Options are passed as {@code --name=value}:
+ *
+ * <ul>
+ *   <li>{@code file}: capture file of length-delimited Execution messages, required
+ *   <li>{@code url}: remote execution URL to send the captured messages to, required
+ *   <li>{@code rate}: target requests per second, or 0 (default) for as fast as possible
+ *   <li>{@code threads}: number of sending threads, default 16
+ *   <li>{@code loops}: number of times to replay the whole capture, default 1
+ * </ul>
+ *
+ * <p>When pacing, latency is measured from the time a request was scheduled to be sent, so a slow
+ * remote executor is not hidden by the replay falling behind schedule.
+ */
+public class CaptureReplay {
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = LoadTest.parseOptions(args);
+    if (!options.containsKey("file") || !options.containsKey("url")) {
+      throw new IllegalArgumentException("--file and --url are required");
+    }
+    List<Execute.Execution> executions = readCapture(options.get("file"));
+    if (executions.isEmpty()) {
+      throw new IllegalArgumentException("no executions captured in " + options.get("file"));
+    }
+    int threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+    double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+    long total = executions.size() * Long.parseLong(options.getOrDefault("loops", "1"));
+    String url = options.get("url");
+
+    RemotePolicyExecutionHandler handler = new RemotePolicyExecutionHandler(threads);
+    AtomicLong next = new AtomicLong();
+    LongAdder failures = new LongAdder();
+    Map<Execute.ExecutionResult.Action, LongAdder> outcomes =
+        new EnumMap<>(Execute.ExecutionResult.Action.class);
+    for (Execute.ExecutionResult.Action action : Execute.ExecutionResult.Action.values()) {
+      outcomes.put(action, new LongAdder());
+    }
+    List<LatencyRecorder> recorders = new ArrayList<>();
+    List<Thread> senders = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      LatencyRecorder recorder = new LatencyRecorder();
+      recorders.add(recorder);
+      Thread sender =
+          new Thread(
+              () -> {
+                long index;
+                while ((index = next.getAndIncrement()) < total) {
+                  long scheduled =
+                      rate > 0 ? start + (long) (index * 1e9 / rate) : System.nanoTime();
+                  long delay = scheduled - System.nanoTime();
+                  if (delay > 0) {
+                    sleepNanos(delay);
+                  }
+                  try {
+                    Execute.Execution result =
+                        handler.sendRemoteHttpServerRequest(
+                            executions.get((int) (index % executions.size())), url);
+                    outcomes.get(result.getExecutionResult().getAction()).increment();
+                  } catch (IOException | RuntimeException e) {
+                    failures.increment();
+                  }
+                  recorder.record(System.nanoTime() - scheduled);
+                }
+              },
+              "capture-replay-" + i);
+      senders.add(sender);
+      sender.start();
+    }
+    for (Thread sender : senders) {
+      sender.join();
+    }
+    double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+    long[] latencies = LatencyRecorder.mergeSorted(recorders);
+    System.out.printf(
+        "Requests:     %d from %d captured (CONTINUE %d, PAUSE %d, ABORT %d, failed %d)%n",
+        latencies.length,
+        executions.size(),
+        outcomes.get(Execute.ExecutionResult.Action.CONTINUE).sum(),
+        outcomes.get(Execute.ExecutionResult.Action.PAUSE).sum(),
+        outcomes.get(Execute.ExecutionResult.Action.ABORT).sum(),
+        failures.sum());
+    System.out.printf("Throughput:   %.1f requests/s%n", latencies.length / elapsedSeconds);
+    System.out.println("Latency (ms): " + LatencyRecorder.formatPercentiles(latencies));
+  }
+
+  /**
+   * @param path Capture file of length-delimited Execution messages.
+   * @return Every execution in the capture, in capture order
+   * @throws IOException if the capture cannot be read
+   */
+  static List<Execute.Execution> readCapture(String path) throws IOException {
+    List<Execute.Execution> executions = new ArrayList<>();
+    try (InputStream inputStream = new BufferedInputStream(new FileInputStream(path))) {
+      Execute.Execution execution;
+      while ((execution = Execute.Execution.parseDelimitedFrom(inputStream)) != null) {
+        executions.add(execution);
+      }
+    }
+    return executions;
+  }
+
+  private static void sleepNanos(long nanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
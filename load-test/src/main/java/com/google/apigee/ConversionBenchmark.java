@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.json.XML;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares converting content of {@code contentBytes} with org.json, building a JSONObject of the
+ * document from a String as {@code XmlJsonConversion} did, with {@link XmlJsonConverter}, reading
+ * the content ByteString with a pull parser, and with a {@link ConversionCache} holding the result,
+ * which hashes the content instead of parsing it. The setup prints the bytes each allocates per
+ * conversion, measured on the benchmark thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+  @Param({"1024", "65536"})
+  private int contentBytes;
+
+  private ByteString xml;
+  private ByteString json;
+  private ConversionCache conversionCache;
+
+  @Setup
+  public void setup() throws Exception {
+    xml = ByteString.copyFromUtf8(FakeMessageShapes.xmlContent(contentBytes));
+    json = ByteString.copyFromUtf8(FakeMessageShapes.jsonContent(contentBytes));
+    conversionCache = new ConversionCache(ConversionCache.DEFAULT_MAX_BYTES, false);
+    System.out.printf(
+        "%nxmlToJsonOrgJson: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::xmlToJsonOrgJson));
+    System.out.printf(
+        "xmlToJsonStreaming: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::xmlToJsonStreaming));
+    System.out.printf(
+        "jsonToXmlOrgJson: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::jsonToXmlOrgJson));
+    System.out.printf(
+        "jsonToXmlStreaming: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::jsonToXmlStreaming));
+    System.out.printf(
+        "xmlToJsonCached: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::xmlToJsonCached));
+    System.out.printf(
+        "jsonToXmlCached: %d bytes allocated per conversion%n",
+        AllocationMeter.bytesPerCall(this::jsonToXmlCached));
+  }
+
+  @Benchmark
+  public ByteString xmlToJsonOrgJson() {
+    return ByteString.copyFromUtf8(XML.toJSONObject(xml.toStringUtf8()).toString());
+  }
+
+  @Benchmark
+  public ByteString xmlToJsonStreaming() throws Exception {
+    return XmlJsonConverter.xmlToJson(xml);
+  }
+
+  @Benchmark
+  public ByteString jsonToXmlOrgJson() {
+    return ByteString.copyFromUtf8(XML.toString(new JSONObject(json.toStringUtf8())));
+  }
+
+  @Benchmark
+  public ByteString jsonToXmlStreaming() throws Exception {
+    return XmlJsonConverter.jsonToXml(json);
+  }
+
+  @Benchmark
+  public ByteString xmlToJsonCached() throws Exception {
+    return conversionCache.convert("xmltojson", xml, XmlJsonConverter::xmlToJson);
+  }
+
+  @Benchmark
+  public ByteString jsonToXmlCached() throws Exception {
+    return conversionCache.convert("jsontoxml", json, XmlJsonConverter::jsonToXml);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a {@link RemoteExecutor} serving requests on a fixed pool of platform threads with one
+ * serving each request on a virtual thread, for an I/O-bound policy that blocks for a fixed
+ * latency. Each operation sends a burst of concurrent requests and waits for all of them, so with
+ * platform threads a burst takes about {@code concurrency / platformThreads} latencies, and with
+ * virtual threads about one. The virtual mode needs Java 21 and fails its setup on earlier
+ * versions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorModeBenchmark {
+
+  @Param({"platform", "virtual"})
+  private String mode;
+
+  @Param({"32"})
+  private int platformThreads;
+
+  @Param({"256"})
+  private int concurrency;
+
+  @Param({"5"})
+  private long latencyMillis;
+
+  private RemoteExecutor remoteExecutor;
+  private ExecutorService clientExecutorService;
+  private HttpClient httpClient;
+  private HttpRequest request;
+
+  @Setup
+  public void setup() throws Exception {
+    PolicyRegistry policyRegistry =
+        new PolicyRegistry()
+            .register(
+                "Sleep",
+                execution -> {
+                  Thread.sleep(latencyMillis);
+                  return execution.toBuilder()
+                      .setExecutionResult(
+                          Execute.ExecutionResult.newBuilder()
+                              .setAction(Execute.ExecutionResult.Action.CONTINUE))
+                      .build();
+                });
+    remoteExecutor =
+        new RemoteExecutor(
+            policyRegistry,
+            new ContentStore(0),
+            new InetSocketAddress("127.0.0.1", 0),
+            mode.equals("virtual")
+                ? RequestExecutors.virtual()
+                : RequestExecutors.platform(platformThreads));
+    clientExecutorService = Executors.newFixedThreadPool(4);
+    httpClient =
+        HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(clientExecutorService)
+            .build();
+    request =
+        HttpRequest.newBuilder(URI.create(remoteExecutor.getUrl() + "Sleep"))
+            .POST(
+                HttpRequest.BodyPublishers.ofByteArray(
+                    Execute.Execution.getDefaultInstance().toByteArray()))
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    remoteExecutor.close();
+    clientExecutorService.shutdownNow();
+  }
+
+  /** A burst of concurrent requests to the I/O-bound policy. */
+  @Benchmark
+  public int burst() {
+    List<CompletableFuture<HttpResponse<byte[]>>> responses = new ArrayList<>(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      responses.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+    }
+    int bytes = 0;
+    for (CompletableFuture<HttpResponse<byte[]>> response : responses) {
+      bytes += response.join().body().length;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.ProtoMessageBuilders.MessageContextProtoMessageBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the header_map encoding of an Execution with the indexed encoding of {@link
+ * HeaderNameTable} for the four messages of a proxied call without content: the cost of building
+ * and serializing on the sending side, and of parsing, with and without decoding, on the receiving
+ * side. The setup prints the encoded sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderEncodingBenchmark {
+
+  @Param({"header_map", "indexed"})
+  private String encoding;
+
+  private FakeMessageContext messageContext;
+  private byte[] bytes;
+
+  @Setup
+  public void setup() {
+    messageContext =
+        FakeMessageShapes.proxiedCall(FakeMessageShapes.APPLICATION_JSON, null, null).build();
+    bytes = send();
+    System.out.printf("%n%s: %d bytes per Execution%n", encoding, bytes.length);
+  }
+
+  /** Building and serializing on the sending side, as the callout does. */
+  @Benchmark
+  public byte[] send() {
+    Execute.Execution.HeaderEncoding headerEncoding =
+        encoding.equals("indexed")
+            ? Execute.Execution.HeaderEncoding.INDEXED
+            : Execute.Execution.HeaderEncoding.HEADER_MAP;
+    return Execute.Execution.newBuilder()
+        .setMessageContext(
+            MessageContextProtoMessageBuilder.buildMessageContextProto(
+                messageContext,
+                MessageContextProtoMessageBuilder.Options.newBuilder()
+                    .setHeaderEncoding(headerEncoding)
+                    .build()))
+        .setHeaderEncoding(headerEncoding)
+        .build()
+        .toByteArray();
+  }
+
+  /** Parsing on the receiving side, as remote policies that do not read headers do. */
+  @Benchmark
+  public Execute.Execution receive() throws InvalidProtocolBufferException {
+    return Execute.Execution.parseFrom(bytes);
+  }
+
+  /** Parsing and decoding to header_map, as the callout and policies reading headers do. */
+  @Benchmark
+  public Execute.Execution receiveAndDecode() throws InvalidProtocolBufferException {
+    return HeaderNameTable.decode(Execute.Execution.parseFrom(bytes));
+  }
+}
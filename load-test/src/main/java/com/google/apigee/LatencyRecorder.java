@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records request latencies for a single driver thread without synchronization. Recorders of all
+ * threads are merged once the run is over to compute percentiles.
+ */
+public class LatencyRecorder {
+
+  private long[] latencies = new long[1024];
+  private int count;
+
+  /** @param latencyNanos Latency of one request in nanoseconds. */
+  public void record(long latencyNanos) {
+    if (count == latencies.length) {
+      latencies = Arrays.copyOf(latencies, count * 2);
+    }
+    latencies[count++] = latencyNanos;
+  }
+
+  /** @return Number of latencies recorded */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Merges the latencies of several recorders into one sorted array.
+   *
+   * @param recorders Recorders to merge.
+   * @return Sorted latencies in nanoseconds
+   */
+  public static long[] mergeSorted(List<LatencyRecorder> recorders) {
+    long[] merged = new long[recorders.stream().mapToInt(LatencyRecorder::getCount).sum()];
+    int offset = 0;
+    for (LatencyRecorder recorder : recorders) {
+      System.arraycopy(recorder.latencies, 0, merged, offset, recorder.count);
+      offset += recorder.count;
+    }
+    Arrays.sort(merged);
+    return merged;
+  }
+
+  /**
+   * @param sortedLatencies Latencies sorted in ascending order.
+   * @param percentile Percentile between 0 and 100.
+   * @return Latency at the given percentile in nanoseconds, or 0 if nothing was recorded
+   */
+  public static long percentile(long[] sortedLatencies, double percentile) {
+    if (sortedLatencies.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+  }
+
+  /**
+   * @param sortedLatencies Latencies sorted in ascending order.
+   * @return Latency percentiles in milliseconds formatted on one line
+   */
+  public static String formatPercentiles(long[] sortedLatencies) {
+    return String.format(
+        "p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+        percentile(sortedLatencies, 50) / 1e6,
+        percentile(sortedLatencies, 90) / 1e6,
+        percentile(sortedLatencies, 99) / 1e6,
+        percentile(sortedLatencies, 99.9) / 1e6,
+        percentile(sortedLatencies, 100) / 1e6);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.apigee.ProtoMessageBuilders.MessageContextProtoMessageBuilder;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing an Execution in full with parsing it as a {@link LazyExecution}, for a policy
+ * that replaces the target request content and sets the result, as {@code XmlJsonConversion} does.
+ * The Execution holds the four messages of a proxied call with content of {@code contentBytes}
+ * each. The conversion itself is left out, so the time is decoding and encoding only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LazyExecutionBenchmark {
+
+  private static final Set<MessageType> DECODED_MESSAGES =
+      EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE);
+  private static final Set<String> DECODED_FLOW_VARIABLES = Collections.singleton("conversion");
+  private static final Execute.ExecutionResult CONTINUE =
+      Execute.ExecutionResult.newBuilder()
+          .setAction(Execute.ExecutionResult.Action.CONTINUE)
+          .build();
+
+  @Param({"1024", "65536"})
+  private int contentBytes;
+
+  private byte[] bytes;
+  private ByteString converted;
+
+  @Setup
+  public void setup() {
+    String content = FakeMessageShapes.xmlContent(contentBytes);
+    Execute.Execution.Builder executionBuilder =
+        Execute.Execution.newBuilder()
+            .setMessageContext(
+                MessageContextProtoMessageBuilder.buildMessageContextProto(
+                    FakeMessageShapes.proxiedCall(
+                            FakeMessageShapes.APPLICATION_XML, content, content)
+                        .build()));
+    executionBuilder
+        .getMessageContextBuilder()
+        .getTargetRequestMessageBuilder()
+        .putFlowVariables(
+            "conversion",
+            Execute.Message.FlowMapValue.newBuilder().setFlowVariable("xmltojson").build());
+    bytes = executionBuilder.build().toByteArray();
+    converted = ByteString.copyFromUtf8(FakeMessageShapes.jsonContent(contentBytes));
+    System.out.printf("%n%d bytes per Execution%n", bytes.length);
+  }
+
+  /** Parsing every field, changing the builder and serializing it again. */
+  @Benchmark
+  public String full() throws IOException {
+    Execute.Execution.Builder executionBuilder = Execute.Execution.parseFrom(bytes).toBuilder();
+    Execute.Message.Builder targetRequest =
+        executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder();
+    String conversion = targetRequest.getFlowVariablesOrThrow("conversion").getFlowVariable();
+    targetRequest.setContent(converted);
+    executionBuilder.getExecutionResultBuilder().setAction(CONTINUE.getAction());
+    executionBuilder.build().writeTo(OutputStream.nullOutputStream());
+    return conversion;
+  }
+
+  /** Decoding the declared paths only and writing the other fields back as received. */
+  @Benchmark
+  public String lazy() throws IOException {
+    LazyExecution lazyExecution =
+        LazyExecution.parse(bytes, DECODED_MESSAGES, DECODED_FLOW_VARIABLES);
+    LazyExecution.Message targetRequest =
+        lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    String conversion = targetRequest.getFlowVariable("conversion").getFlowVariable();
+    targetRequest.setContent(converted);
+    lazyExecution.setExecutionResult(CONTINUE);
+    ExecutionWriter.write(OutputStream.nullOutputStream(), lazyExecution);
+    return conversion;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.execution.Action;
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.google.cloud.functions.HttpFunction;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test driving {@link JavaCalloutRemotePolicyExecution#execute} from many threads against a
+ * remote policy hosted on this machine, or against any remote URL. Reports throughput, latency
+ * percentiles, garbage collection and the number of connections the callout opened.
+ *
+ * <p>Options are passed as {@code --name=value}:
+ *
+ * <ul>
+ *   <li>{@code server}: {@code stub} (default), {@code remote-policy} or {@code
+ *       xml-json-conversion} to host locally; ignored when {@code url} is set
+ *   <li>{@code url}: remote execution URL to drive instead of a local server
+ *   <li>{@code threads}: number of threads calling the callout, default 16
+ *   <li>{@code server-threads}: number of local server threads, default 64
+ *   <li>{@code warmup-seconds} and {@code duration-seconds}: default 5 and 30
+ *   <li>{@code payload-bytes}: size of the request and response content, default 1024
+ *   <li>{@code max-connections}: connection pool size of the callout, default {@code threads}
+ *   <li>{@code stub-latency-micros}, {@code stub-tail-latency-micros}: fixed and mean exponential
+ *       latency of the stub, default 1000 and 0
+ *   <li>{@code stub-abort-rate}, {@code stub-error-rate}: fraction of stub responses that ABORT or
+ *       fail with HTTP 500, default 0
+ *   <li>{@code callout.<property>}: sets a property of the Java Callout policy, for example {@code
+ *       --callout.capture_file=capture.bin}
+ * </ul>
+ */
+public class LoadTest {
+
+  private final Map<String, String> options;
+
+  public LoadTest(Map<String, String> options) {
+    this.options = options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new LoadTest(parseOptions(args)).run();
+  }
+
+  /**
+   * @param args Command line arguments of the form {@code --name=value}.
+   * @return Map of option name to value
+   */
+  static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("expected --name=value but got: " + arg);
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    return options;
+  }
+
+  /**
+   * Starts the local server if needed, warms up, then measures for the configured duration.
+   *
+   * @throws Exception if the local server cannot be started or a driver thread is interrupted
+   */
+  public void run() throws Exception {
+    int threads = getInt("threads", 16);
+    LocalFunctionServer server = null;
+    String url = options.get("url");
+    if (url == null) {
+      server = new LocalFunctionServer(createFunction(), getInt("server-threads", 64));
+      url = server.getUrl();
+    }
+    try {
+      Map<String, String> properties = new HashMap<>();
+      properties.put("remote_execution_url", url);
+      properties.put("max_connections", String.valueOf(getInt("max-connections", threads)));
+      options.forEach(
+          (name, value) -> {
+            if (name.startsWith("callout.")) {
+              properties.put(name.substring("callout.".length()), value);
+            }
+          });
+      JavaCalloutRemotePolicyExecution callout = new JavaCalloutRemotePolicyExecution(properties);
+      String content = FakeMessageShapes.xmlContent(getInt("payload-bytes", 1024));
+
+      drive(callout, content, threads, getInt("warmup-seconds", 5));
+      long gcCountBefore = getGcCount();
+      long gcMillisBefore = getGcMillis();
+      long start = System.nanoTime();
+      Result result = drive(callout, content, threads, getInt("duration-seconds", 30));
+      double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+      long[] latencies = LatencyRecorder.mergeSorted(result.recorders);
+      System.out.printf(
+          "Requests:     %d (CONTINUE %d, PAUSE %d, ABORT %d)%n",
+          latencies.length,
+          result.outcomes.get(Action.CONTINUE).sum(),
+          result.outcomes.get(Action.PAUSE).sum(),
+          result.outcomes.get(Action.ABORT).sum());
+      System.out.printf("Throughput:   %.1f requests/s%n", latencies.length / elapsedSeconds);
+      System.out.println("Latency (ms): " + LatencyRecorder.formatPercentiles(latencies));
+      System.out.printf(
+          "GC:           %d collections, %d ms paused%n",
+          getGcCount() - gcCountBefore, getGcMillis() - gcMillisBefore);
+      if (server != null) {
+        System.out.printf(
+            "Connections:  %d opened to the local server for %d requests%n",
+            server.getConnectionCount(), server.getRequestsServed());
+      }
+    } finally {
+      if (server != null) {
+        server.close();
+      }
+    }
+  }
+
+  /**
+   * Calls the callout from the given number of threads until the duration elapses.
+   *
+   * @param callout Callout shared by all threads, as a policy is shared on a message processor.
+   * @param content Content of the request and response messages of every call.
+   * @param threads Number of driver threads.
+   * @param durationSeconds How long to keep calling the callout.
+   * @return Latencies and outcomes of the calls
+   * @throws InterruptedException if interrupted while waiting for the driver threads
+   */
+  private Result drive(
+      JavaCalloutRemotePolicyExecution callout, String content, int threads, int durationSeconds)
+      throws InterruptedException {
+    Result result = new Result();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+    List<Thread> drivers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      LatencyRecorder recorder = new LatencyRecorder();
+      result.recorders.add(recorder);
+      Thread driver =
+          new Thread(
+              () -> {
+                ExecutionContext executionContext = new FakeExecutionContext();
+                while (System.nanoTime() < deadline) {
+                  FakeMessageContext messageContext =
+                      FakeMessageShapes.proxiedCall(
+                              FakeMessageShapes.APPLICATION_XML, content, content)
+                          .build();
+                  long start = System.nanoTime();
+                  ExecutionResult executionResult =
+                      callout.execute(messageContext, executionContext);
+                  recorder.record(System.nanoTime() - start);
+                  result.outcomes.get(executionResult.getAction()).increment();
+                }
+              },
+              "load-test-driver-" + i);
+      drivers.add(driver);
+      driver.start();
+    }
+    for (Thread driver : drivers) {
+      driver.join();
+    }
+    return result;
+  }
+
+  /** @return Function hosted by the local server, selected by the {@code server} option */
+  private HttpFunction createFunction() {
+    String server = options.getOrDefault("server", "stub");
+    switch (server) {
+      case "stub":
+        return new StubRemotePolicy(
+            getInt("stub-latency-micros", 1000),
+            getInt("stub-tail-latency-micros", 0),
+            getDouble("stub-abort-rate", 0),
+            getDouble("stub-error-rate", 0));
+      case "remote-policy":
+        return new RemotePolicyExecution();
+      case "xml-json-conversion":
+        return new XmlJsonConversion();
+      default:
+        throw new IllegalArgumentException("unknown server: " + server);
+    }
+  }
+
+  private static long getGcCount() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream()
+        .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+        .sum();
+  }
+
+  private static long getGcMillis() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream()
+        .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+        .sum();
+  }
+
+  private int getInt(String name, int defaultValue) {
+    return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+  }
+
+  private double getDouble(String name, double defaultValue) {
+    return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+  }
+
+  /** Latencies and outcomes collected by the driver threads of one phase. */
+  private static class Result {
+    private final List<LatencyRecorder> recorders = new ArrayList<>();
+    private final Map<Action, LongAdder> outcomes = new HashMap<>();
+
+    Result() {
+      for (Action action : Action.values()) {
+        outcomes.put(action, new LongAdder());
+      }
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.cloud.functions.HttpFunction;
+import com.google.cloud.functions.HttpRequest;
+import com.google.cloud.functions.HttpResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts a Cloud Functions {@link HttpFunction} on a local HTTP server, standing in for the Cloud
+ * Functions runtime so the remote policies can be exercised on a single machine. Counts the
+ * requests served and the TCP connections opened by clients.
+ */
+public class LocalFunctionServer implements AutoCloseable {
+
+  private final HttpServer httpServer;
+  private final ExecutorService executorService;
+  private final Set<InetSocketAddress> clientConnections = ConcurrentHashMap.newKeySet();
+  private final AtomicLong requestsServed = new AtomicLong();
+
+  /**
+   * Starts serving the function on an ephemeral port of the loopback interface.
+   *
+   * @param httpFunction Function to invoke for every request.
+   * @param threads Number of server threads handling requests.
+   * @throws IOException if the server socket cannot be bound
+   */
+  public LocalFunctionServer(HttpFunction httpFunction, int threads) throws IOException {
+    // Without TCP_NODELAY the separately written status line and body wait on delayed ACKs.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    executorService = Executors.newFixedThreadPool(threads);
+    httpServer.setExecutor(executorService);
+    httpServer.createContext("/", exchange -> handle(httpFunction, exchange));
+    httpServer.start();
+  }
+
+  /** @return URL clients use to reach the hosted function */
+  public String getUrl() {
+    return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/";
+  }
+
+  /** @return Number of distinct client TCP connections seen since the server started */
+  public int getConnectionCount() {
+    return clientConnections.size();
+  }
+
+  /** @return Number of requests the hosted function has served */
+  public long getRequestsServed() {
+    return requestsServed.get();
+  }
+
+  @Override
+  public void close() {
+    httpServer.stop(0);
+    executorService.shutdownNow();
+  }
+
+  /**
+   * Invokes the function for a single exchange. Responses are buffered so the content length is
+   * known before the status line is sent, matching the behaviour of the Cloud Functions runtime.
+   *
+   * @param httpFunction Function to invoke.
+   * @param exchange Exchange holding the client request.
+   * @throws IOException if the exchange cannot be read or written
+   */
+  private void handle(HttpFunction httpFunction, HttpExchange exchange) throws IOException {
+    // Each client connection has its own source port, so remote addresses identify connections.
+    clientConnections.add(exchange.getRemoteAddress());
+    requestsServed.incrementAndGet();
+    ExchangeHttpResponse response = new ExchangeHttpResponse();
+    try {
+      try {
+        httpFunction.service(new ExchangeHttpRequest(exchange), response);
+        response.flushWriter();
+      } catch (Exception e) {
+        response.setStatusCode(500);
+      }
+      response.getHeaders().forEach(exchange.getResponseHeaders()::put);
+      byte[] body = response.body.toByteArray();
+      exchange.sendResponseHeaders(response.statusCode, body.length == 0 ? -1 : body.length);
+      if (body.length > 0) {
+        exchange.getResponseBody().write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /** {@link HttpRequest} view over an {@link HttpExchange}. */
+  private static class ExchangeHttpRequest implements HttpRequest {
+    private final HttpExchange exchange;
+
+    ExchangeHttpRequest(HttpExchange exchange) {
+      this.exchange = exchange;
+    }
+
+    @Override
+    public String getMethod() {
+      return exchange.getRequestMethod();
+    }
+
+    @Override
+    public String getUri() {
+      return exchange.getRequestURI().toString();
+    }
+
+    @Override
+    public String getPath() {
+      return exchange.getRequestURI().getPath();
+    }
+
+    @Override
+    public Optional<String> getQuery() {
+      return Optional.ofNullable(exchange.getRequestURI().getRawQuery());
+    }
+
+    @Override
+    public Map<String, List<String>> getQueryParameters() {
+      Map<String, List<String>> queryParameters = new HashMap<>();
+      URI uri = exchange.getRequestURI();
+      if (uri.getQuery() != null) {
+        for (String parameter : uri.getQuery().split("&")) {
+          int separator = parameter.indexOf('=');
+          String name = separator < 0 ? parameter : parameter.substring(0, separator);
+          String value = separator < 0 ? "" : parameter.substring(separator + 1);
+          queryParameters.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+      }
+      return queryParameters;
+    }
+
+    @Override
+    public Map<String, HttpPart> getParts() {
+      // Multipart bodies are not parsed, so no request has parts.
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Optional<String> getContentType() {
+      return Optional.ofNullable(exchange.getRequestHeaders().getFirst("content-type"));
+    }
+
+    @Override
+    public long getContentLength() {
+      String contentLength = exchange.getRequestHeaders().getFirst("content-length");
+      return contentLength == null ? -1 : Long.parseLong(contentLength);
+    }
+
+    @Override
+    public Optional<String> getCharacterEncoding() {
+      return Optional.empty();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return exchange.getRequestBody();
+    }
+
+    @Override
+    public BufferedReader getReader() {
+      return new BufferedReader(
+          new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaders() {
+      return Collections.unmodifiableMap(exchange.getRequestHeaders());
+    }
+  }
+
+  /** Buffered {@link HttpResponse} written to the exchange once the function returns. */
+  private static class ExchangeHttpResponse implements HttpResponse {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final Map<String, List<String>> headers = new HashMap<>();
+    private int statusCode = 200;
+    private BufferedWriter writer;
+
+    @Override
+    public void setStatusCode(int code) {
+      statusCode = code;
+    }
+
+    @Override
+    public void setStatusCode(int code, String message) {
+      statusCode = code;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+      headers.put("content-type", new ArrayList<>(List.of(contentType)));
+    }
+
+    @Override
+    public Optional<String> getContentType() {
+      return Optional.ofNullable(headers.get("content-type")).map(values -> values.get(0));
+    }
+
+    @Override
+    public void appendHeader(String header, String value) {
+      headers.computeIfAbsent(header, k -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaders() {
+      return headers;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return body;
+    }
+
+    @Override
+    public synchronized BufferedWriter getWriter() {
+      if (writer == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+      }
+      return writer;
+    }
+
+    /** Flushes any text written through {@link #getWriter()} into the body. */
+    private void flushWriter() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      }
+    }
+  }
+}
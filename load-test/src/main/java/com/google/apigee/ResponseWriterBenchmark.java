@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.apigee.Execute.ContentChunk.MessageType;
+import com.google.apigee.ProtoMessageBuilders.MessageContextProtoMessageBuilder;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a response Execution into a stream through a byte array, as the remote policies
+ * did, with writing it through {@link ExecutionWriter}, for an Execution of the four messages of a
+ * proxied call with content of {@code contentBytes} each. The setup prints the bytes each way
+ * allocates per response, measured on the benchmark thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseWriterBenchmark {
+
+  @Param({"1024", "65536"})
+  private int contentBytes;
+
+  private Execute.Execution execution;
+  private LazyExecution lazyExecution;
+
+  @Setup
+  public void setup() throws Exception {
+    String content = FakeMessageShapes.xmlContent(contentBytes);
+    execution =
+        Execute.Execution.newBuilder()
+            .setMessageContext(
+                MessageContextProtoMessageBuilder.buildMessageContextProto(
+                    FakeMessageShapes.proxiedCall(
+                            FakeMessageShapes.APPLICATION_XML, content, content)
+                        .build()))
+            .build();
+    lazyExecution =
+        LazyExecution.parse(
+            execution.toByteArray(),
+            EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE),
+            Collections.emptySet());
+    lazyExecution
+        .getMessage(MessageType.TARGET_REQUEST_MESSAGE)
+        .setContent(ByteString.copyFromUtf8(FakeMessageShapes.jsonContent(contentBytes)));
+
+    System.out.printf("%n%d bytes per Execution%n", execution.getSerializedSize());
+    System.out.printf(
+        "byteArray: %d bytes allocated per response%n",
+        AllocationMeter.bytesPerCall(this::byteArray));
+    System.out.printf(
+        "executionWriter: %d bytes allocated per response%n",
+        AllocationMeter.bytesPerCall(this::executionWriter));
+    System.out.printf(
+        "lazyByteArray: %d bytes allocated per response%n",
+        AllocationMeter.bytesPerCall(this::lazyByteArray));
+    System.out.printf(
+        "lazyExecutionWriter: %d bytes allocated per response%n",
+        AllocationMeter.bytesPerCall(this::lazyExecutionWriter));
+  }
+
+  /** Serializing into a byte array and writing that, as the remote policies did. */
+  @Benchmark
+  public void byteArray() throws IOException {
+    OutputStream.nullOutputStream().write(execution.toByteArray());
+  }
+
+  /** Encoding straight into the stream through the pooled buffer. */
+  @Benchmark
+  public void executionWriter() throws IOException {
+    ExecutionWriter.write(OutputStream.nullOutputStream(), execution);
+  }
+
+  /** Concatenating the changed and undecoded fields of a LazyExecution into a byte array. */
+  @Benchmark
+  public void lazyByteArray() throws IOException {
+    OutputStream.nullOutputStream().write(lazyExecution.toByteString().toByteArray());
+  }
+
+  /** Writing the undecoded fields of a LazyExecution from the bytes they were received in. */
+  @Benchmark
+  public void lazyExecutionWriter() throws IOException {
+    ExecutionWriter.write(OutputStream.nullOutputStream(), lazyExecution);
+  }
+}
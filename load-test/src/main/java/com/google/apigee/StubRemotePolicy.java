@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.cloud.functions.HttpFunction;
+import com.google.cloud.functions.HttpRequest;
+import com.google.cloud.functions.HttpResponse;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in remote policy with injected latency and errors. Echoes the Execution Protocol Buffer
+ * Message back with the same flow variable {@link RemotePolicyExecution} sets, after sleeping for a
+ * latency drawn from a fixed base plus an exponentially distributed tail.
+ */
+public class StubRemotePolicy implements HttpFunction {
+
+  private final long baseLatencyMicros;
+  private final long meanTailLatencyMicros;
+  private final double abortRate;
+  private final double serverErrorRate;
+
+  /**
+   * @param baseLatencyMicros Latency added to every request.
+   * @param meanTailLatencyMicros Mean of the exponentially distributed latency added on top of the
+   *     base latency, or 0 for none.
+   * @param abortRate Fraction of requests answered with an ABORT ExecutionResult.
+   * @param serverErrorRate Fraction of requests answered with an HTTP 500 and no body.
+   */
+  public StubRemotePolicy(
+      long baseLatencyMicros,
+      long meanTailLatencyMicros,
+      double abortRate,
+      double serverErrorRate) {
+    this.baseLatencyMicros = baseLatencyMicros;
+    this.meanTailLatencyMicros = meanTailLatencyMicros;
+    this.abortRate = abortRate;
+    this.serverErrorRate = serverErrorRate;
+  }
+
+  @Override
+  public void service(HttpRequest request, HttpResponse response) throws IOException {
+    Execute.Execution execution = Execute.Execution.parseFrom(request.getInputStream());
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long latencyMicros = baseLatencyMicros;
+    if (meanTailLatencyMicros > 0) {
+      latencyMicros += (long) (-Math.log(1 - random.nextDouble()) * meanTailLatencyMicros);
+    }
+    if (latencyMicros > 0) {
+      try {
+        TimeUnit.MICROSECONDS.sleep(latencyMicros);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    double outcome = random.nextDouble();
+    if (outcome < serverErrorRate) {
+      response.setStatusCode(500);
+      return;
+    }
+    Execute.Execution.Builder executionBuilder = execution.toBuilder();
+    if (outcome < serverErrorRate + abortRate) {
+      executionBuilder.setExecutionResult(
+          Execute.ExecutionResult.newBuilder()
+              .setAction(Execute.ExecutionResult.Action.ABORT)
+              .setErrorResponse("injected abort"));
+    } else {
+      executionBuilder
+          .getMessageContextBuilder()
+          .getTargetRequestMessageBuilder()
+          .putFlowVariables(
+              "Example",
+              Execute.Message.FlowMapValue.newBuilder().setFlowVariable("Hello").build());
+      executionBuilder.setExecutionResult(
+          Execute.ExecutionResult.newBuilder().setAction(Execute.ExecutionResult.Action.CONTINUE));
+    }
+    executionBuilder.build().writeTo(response.getOutputStream());
+  }
+}
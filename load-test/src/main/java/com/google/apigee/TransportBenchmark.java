@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares sending an Execution to a co-located {@link RemoteExecutor} over loopback HTTP with
+ * sending it over a Unix domain socket, through the {@link RemotePolicyExecutionHandler} of the
+ * callout. The policy returns the Execution unchanged, so the time is the transport. Client and
+ * executor share the JVM, so the process CPU time per call printed after each iteration covers
+ * both sides.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+
+  @Param({"http", "unix"})
+  private String transport;
+
+  @Param({"1024"})
+  private int contentBytes;
+
+  private Path socketDirectory;
+  private RemoteExecutor remoteExecutor;
+  private RemotePolicyExecutionHandler remotePolicyExecutionHandler;
+  private String url;
+  private Execute.Execution execution;
+  private long calls;
+  private long cpuNanos;
+
+  @Setup
+  public void setup() throws Exception {
+    PolicyRegistry policyRegistry =
+        new PolicyRegistry()
+            .register(
+                "Echo",
+                execution ->
+                    execution.toBuilder()
+                        .setExecutionResult(
+                            Execute.ExecutionResult.newBuilder()
+                                .setAction(Execute.ExecutionResult.Action.CONTINUE))
+                        .build());
+    remoteExecutor =
+        new RemoteExecutor(
+            policyRegistry,
+            new ContentStore(0),
+            new InetSocketAddress("127.0.0.1", 0),
+            RequestExecutors.platform(4));
+    if (transport.equals("unix")) {
+      socketDirectory = Files.createTempDirectory("transport-benchmark");
+      String path = socketDirectory.resolve("executor.sock").toString();
+      remoteExecutor.listenUnixDomainSocket(path);
+      url = UnixDomainSockets.URL_PREFIX + path;
+    } else {
+      url = remoteExecutor.getUrl();
+    }
+    remotePolicyExecutionHandler = new RemotePolicyExecutionHandler();
+    byte[] content = new byte[contentBytes];
+    Arrays.fill(content, (byte) 'a');
+    execution =
+        Execute.Execution.newBuilder()
+            .setPolicyChain(Execute.PolicyChain.newBuilder().addPolicies("Echo"))
+            .setMessageContext(
+                Execute.MessageContext.newBuilder()
+                    .setTargetRequestMessage(
+                        Execute.Message.newBuilder().setContent(ByteString.copyFrom(content))))
+            .build();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    remoteExecutor.close();
+    if (socketDirectory != null) {
+      Files.deleteIfExists(socketDirectory.resolve("executor.sock"));
+      Files.deleteIfExists(socketDirectory);
+    }
+  }
+
+  @Setup(Level.Iteration)
+  public void startIteration() {
+    calls = 0;
+    cpuNanos = getProcessCpuNanos();
+  }
+
+  @TearDown(Level.Iteration)
+  public void reportIteration() {
+    if (calls > 0) {
+      System.out.printf(
+          "%n%s: %.1f us process CPU per call%n",
+          transport, (getProcessCpuNanos() - cpuNanos) / 1e3 / calls);
+    }
+  }
+
+  /** One call to the echo policy. */
+  @Benchmark
+  public Execute.Execution call() throws Exception {
+    calls++;
+    return remotePolicyExecutionHandler.sendRemoteHttpServerRequest(execution, url);
+  }
+
+  private static long getProcessCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean)
+            ManagementFactory.getOperatingSystemMXBean())
+        .getProcessCpuTime();
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.Fault;
+import com.apigee.flow.execution.ExecutionContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** In-memory {@link ExecutionContext} for a request or error flow. */
+public class FakeExecutionContext implements ExecutionContext {
+
+  private final List<Fault> faults = new ArrayList<>();
+  private boolean requestFlow = true;
+  private boolean errorFlow;
+
+  @Override
+  public boolean isRequestFlow() {
+    return requestFlow;
+  }
+
+  public void setRequestFlow(boolean requestFlow) {
+    this.requestFlow = requestFlow;
+  }
+
+  @Override
+  public boolean isErrorFlow() {
+    return errorFlow;
+  }
+
+  public void setErrorFlow(boolean errorFlow) {
+    this.errorFlow = errorFlow;
+  }
+
+  @Override
+  public Collection<Fault> getFaults() {
+    return faults;
+  }
+
+  @Override
+  public void addFault(Fault fault) {
+    faults.add(fault);
+  }
+}
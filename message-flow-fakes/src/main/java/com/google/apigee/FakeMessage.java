@@ -0,0 +1,299 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.TransportMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory {@link Message} backed by plain collections, for tests and benchmarks that should not
+ * pay for a mocking framework. Collections are only allocated once something is stored in them.
+ * Setting a header or query parameter that already exists appends another value, as in the Message
+ * fakes of the callout tests.
+ */
+public class FakeMessage implements Message {
+
+  private Map<String, List<String>> headers;
+  private Map<String, List<String>> queryParams;
+  private Map<String, Object> variables;
+  private String content;
+
+  /** @return Builder of a FakeMessage */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  @Override
+  public String getHeader(String name) {
+    return getHeader(name, 0);
+  }
+
+  @Override
+  public String getHeader(String name, int index) {
+    return get(headers, name, index);
+  }
+
+  @Override
+  public List<String> getHeaders(String name) {
+    return headers == null ? null : headers.get(name);
+  }
+
+  @Override
+  public String getHeadersAsString(String name) {
+    return join(getHeaders(name));
+  }
+
+  @Override
+  public Set<String> getHeaderNames() {
+    return headers == null ? Collections.emptySet() : headers.keySet();
+  }
+
+  @Override
+  public boolean setHeader(String name, Object value) {
+    headers = add(headers, name, value);
+    return true;
+  }
+
+  @Override
+  public boolean setHeader(String name, int index, Object value) {
+    headers = set(headers, name, index, value);
+    return true;
+  }
+
+  @Override
+  public boolean setHeaderWithMultipleValues(String name, Collection<String> values) {
+    headers = put(headers, name, values);
+    return true;
+  }
+
+  @Override
+  public boolean removeHeader(String name) {
+    return headers != null && headers.remove(name) != null;
+  }
+
+  @Override
+  public boolean removeHeader(String name, int index) {
+    return remove(headers, name, index);
+  }
+
+  @Override
+  public String getQueryParam(String name) {
+    return getQueryParam(name, 0);
+  }
+
+  @Override
+  public String getQueryParam(String name, int index) {
+    return get(queryParams, name, index);
+  }
+
+  @Override
+  public List<String> getQueryParams(String name) {
+    return queryParams == null ? null : queryParams.get(name);
+  }
+
+  @Override
+  public String getQueryParamsAsString(String name) {
+    return join(getQueryParams(name));
+  }
+
+  @Override
+  public Set<String> getQueryParamNames() {
+    return queryParams == null ? Collections.emptySet() : queryParams.keySet();
+  }
+
+  @Override
+  public boolean setQueryParam(String name, Object value) {
+    queryParams = add(queryParams, name, value);
+    return true;
+  }
+
+  @Override
+  public boolean setQueryParam(String name, int index, Object value) {
+    queryParams = set(queryParams, name, index, value);
+    return true;
+  }
+
+  @Override
+  public boolean setQueryParamWithMultipleValues(String name, Collection<String> values) {
+    queryParams = put(queryParams, name, values);
+    return true;
+  }
+
+  @Override
+  public boolean removeQueryParam(String name) {
+    return queryParams != null && queryParams.remove(name) != null;
+  }
+
+  @Override
+  public boolean removeQueryParam(String name, int index) {
+    return remove(queryParams, name, index);
+  }
+
+  @Override
+  public String getContent() {
+    return content;
+  }
+
+  @Override
+  public InputStream getContentAsStream() {
+    return content == null
+        ? null
+        : new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void setContent(String content) {
+    this.content = content;
+  }
+
+  @Override
+  public void setContent(InputStream content) {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try {
+      for (int read; (read = content.read(buffer)) != -1; ) {
+        outputStream.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.content = new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name) {
+    return variables == null ? null : (T) variables.get(name);
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    if (variables == null) {
+      variables = new HashMap<>();
+    }
+    variables.put(name, value);
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    return variables != null && variables.remove(name) != null;
+  }
+
+  @Override
+  public TransportMessage getTransportMessage() {
+    return null;
+  }
+
+  private static String get(Map<String, List<String>> map, String name, int index) {
+    List<String> values = map == null ? null : map.get(name);
+    return values == null || index >= values.size() ? null : values.get(index);
+  }
+
+  private static String join(List<String> values) {
+    return values == null ? null : String.join(",", values);
+  }
+
+  private static Map<String, List<String>> add(
+      Map<String, List<String>> map, String name, Object value) {
+    if (map == null) {
+      map = new LinkedHashMap<>();
+    }
+    map.computeIfAbsent(name, k -> new ArrayList<>(1)).add(String.valueOf(value));
+    return map;
+  }
+
+  private static Map<String, List<String>> set(
+      Map<String, List<String>> map, String name, int index, Object value) {
+    if (map == null) {
+      map = new LinkedHashMap<>();
+    }
+    List<String> values = map.computeIfAbsent(name, k -> new ArrayList<>(1));
+    if (index < values.size()) {
+      values.set(index, String.valueOf(value));
+    } else {
+      values.add(String.valueOf(value));
+    }
+    return map;
+  }
+
+  private static Map<String, List<String>> put(
+      Map<String, List<String>> map, String name, Collection<String> values) {
+    if (map == null) {
+      map = new LinkedHashMap<>();
+    }
+    map.put(name, new ArrayList<>(values));
+    return map;
+  }
+
+  private static boolean remove(Map<String, List<String>> map, String name, int index) {
+    List<String> values = map == null ? null : map.get(name);
+    if (values == null || index >= values.size()) {
+      return false;
+    }
+    values.remove(index);
+    if (values.isEmpty()) {
+      map.remove(name);
+    }
+    return true;
+  }
+
+  /** Builder of a {@link FakeMessage}. */
+  public static class Builder {
+    private final FakeMessage message = new FakeMessage();
+
+    private Builder() {}
+
+    /** Adds a value to a header, keeping any value already set. */
+    public Builder addHeader(String name, String value) {
+      message.setHeader(name, value);
+      return this;
+    }
+
+    /** Adds a value to a query parameter, keeping any value already set. */
+    public Builder addQueryParam(String name, String value) {
+      message.setQueryParam(name, value);
+      return this;
+    }
+
+    public Builder setContent(String content) {
+      message.setContent(content);
+      return this;
+    }
+
+    public Builder setVariable(String name, Object value) {
+      message.setVariable(name, value);
+      return this;
+    }
+
+    public FakeMessage build() {
+      return message;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.apigee.flow.message.TransportMessage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory {@link MessageContext} holding one {@link Message} per {@link FlowContext}, for tests
+ * and benchmarks that should not pay for a mocking framework. {@link #getMessage()} returns the
+ * message of the flow the context is currently in, which defaults to the proxy request.
+ */
+public class FakeMessageContext implements MessageContext {
+
+  private static final FlowContext[] FLOW_CONTEXTS = FlowContext.values();
+  private final Message[] messages = new Message[FLOW_CONTEXTS.length];
+  private Map<String, Object> variables;
+  private FlowContext currentFlowContext = FlowContext.PROXY_REQUEST;
+  private Message errorMessage;
+
+  /** @return Builder of a FakeMessageContext */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** @param flowContext Flow whose message {@link #getMessage()} returns. */
+  public void setCurrentFlowContext(FlowContext flowContext) {
+    this.currentFlowContext = flowContext;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name) {
+    return variables == null ? null : (T) variables.get(name);
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    if (variables == null) {
+      variables = new HashMap<>();
+    }
+    variables.put(name, value);
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    return variables != null && variables.remove(name) != null;
+  }
+
+  @Override
+  public Message getMessage() {
+    return messages[currentFlowContext.ordinal()];
+  }
+
+  @Override
+  public Message getMessage(FlowContext flowContext) {
+    return messages[flowContext.ordinal()];
+  }
+
+  @Override
+  public void setMessage(FlowContext flowContext, Message message) {
+    messages[flowContext.ordinal()] = message;
+  }
+
+  @Override
+  public Message getRequestMessage() {
+    return getMessage(FlowContext.PROXY_REQUEST);
+  }
+
+  @Override
+  public void setRequestMessage(Message message) {
+    setMessage(FlowContext.PROXY_REQUEST, message);
+  }
+
+  @Override
+  public Message getResponseMessage() {
+    return getMessage(FlowContext.PROXY_RESPONSE);
+  }
+
+  @Override
+  public void setResponseMessage(Message message) {
+    setMessage(FlowContext.PROXY_RESPONSE, message);
+  }
+
+  @Override
+  public Message getErrorMessage() {
+    return errorMessage;
+  }
+
+  @Override
+  public void setErrorMessage(Message message) {
+    this.errorMessage = message;
+  }
+
+  @Override
+  public Message createMessage(TransportMessage transportMessage) {
+    return new FakeMessage();
+  }
+
+  /** Builder of a {@link FakeMessageContext}. */
+  public static class Builder {
+    private final FakeMessageContext messageContext = new FakeMessageContext();
+
+    private Builder() {}
+
+    public Builder setMessage(FlowContext flowContext, Message message) {
+      messageContext.setMessage(flowContext, message);
+      return this;
+    }
+
+    public Builder setErrorMessage(Message message) {
+      messageContext.setErrorMessage(message);
+      return this;
+    }
+
+    public Builder setVariable(String name, Object value) {
+      messageContext.setVariable(name, value);
+      return this;
+    }
+
+    public Builder setCurrentFlowContext(FlowContext flowContext) {
+      messageContext.setCurrentFlowContext(flowContext);
+      return this;
+    }
+
+    public FakeMessageContext build() {
+      return messageContext;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.apigee.flow.message.FlowContext;
+import org.junit.Test;
+
+public class FakeMessageContextTest {
+
+  private static final String KEY = "key";
+  private static final String VALUE = "value";
+
+  @Test
+  public void testMessagesPerFlowContext() {
+    FakeMessage request = new FakeMessage();
+    FakeMessage response = new FakeMessage();
+    FakeMessage error = new FakeMessage();
+    FakeMessageContext messageContext =
+        FakeMessageContext.newBuilder()
+            .setMessage(FlowContext.TARGET_REQUEST, request)
+            .setMessage(FlowContext.PROXY_RESPONSE, response)
+            .setErrorMessage(error)
+            .build();
+
+    assertSame(request, messageContext.getMessage(FlowContext.TARGET_REQUEST));
+    assertSame(response, messageContext.getResponseMessage());
+    assertSame(error, messageContext.getErrorMessage());
+    assertNull(messageContext.getMessage(FlowContext.PROXY_REQUEST));
+    assertNull(messageContext.getMessage());
+  }
+
+  @Test
+  public void testCurrentFlowContext() {
+    FakeMessage response = new FakeMessage();
+    FakeMessageContext messageContext =
+        FakeMessageContext.newBuilder()
+            .setMessage(FlowContext.TARGET_RESPONSE, response)
+            .setCurrentFlowContext(FlowContext.TARGET_RESPONSE)
+            .build();
+
+    assertSame(response, messageContext.getMessage());
+  }
+
+  @Test
+  public void testVariables() {
+    FakeMessageContext messageContext =
+        FakeMessageContext.newBuilder().setVariable(KEY, VALUE).build();
+
+    assertEquals(VALUE, messageContext.getVariable(KEY));
+    assertTrue(messageContext.removeVariable(KEY));
+    assertNull(messageContext.getVariable(KEY));
+  }
+
+  @Test
+  public void testProxiedCallShape() {
+    String content = FakeMessageShapes.jsonContent(256);
+    FakeMessageContext messageContext =
+        FakeMessageShapes.proxiedCall(FakeMessageShapes.APPLICATION_JSON, content, content)
+            .build();
+
+    for (FlowContext flowContext : FlowContext.values()) {
+      assertEquals(content, messageContext.getMessage(flowContext).getContent());
+      assertEquals(
+          FakeMessageShapes.APPLICATION_JSON,
+          messageContext.getMessage(flowContext).getHeader("content-type"));
+    }
+    assertSame(
+        messageContext.getMessage(FlowContext.PROXY_RESPONSE), messageContext.getMessage());
+    assertEquals(2, messageContext.getRequestMessage().getHeaders("x-forwarded-for").size());
+    assertTrue(content.length() >= 256 - 2);
+  }
+
+  @Test
+  public void testXmlContentSize() {
+    String content = FakeMessageShapes.xmlContent(1024);
+
+    assertTrue(content.startsWith("<items>"));
+    assertTrue(content.endsWith("</items>"));
+    assertTrue(content.length() >= 1024 - "</items>".length());
+  }
+}
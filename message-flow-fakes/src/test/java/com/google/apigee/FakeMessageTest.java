@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class FakeMessageTest {
+
+  private static final String KEY1 = "key1";
+  private static final String KEY2 = "key2";
+  private static final String VAL1 = "val1";
+  private static final String VAL2 = "val2";
+
+  @Test
+  public void testEmptyMessage() {
+    FakeMessage message = new FakeMessage();
+
+    assertEquals(Collections.emptySet(), message.getHeaderNames());
+    assertEquals(Collections.emptySet(), message.getQueryParamNames());
+    assertNull(message.getHeaders(KEY1));
+    assertNull(message.getContent());
+    assertNull(message.getContentAsStream());
+    assertNull(message.getVariable(KEY1));
+  }
+
+  @Test
+  public void testSetHeaderAppendsValues() {
+    FakeMessage message =
+        FakeMessage.newBuilder().addHeader(KEY1, VAL1).addHeader(KEY1, VAL2).build();
+
+    assertEquals(Arrays.asList(VAL1, VAL2), message.getHeaders(KEY1));
+    assertEquals(VAL2, message.getHeader(KEY1, 1));
+    assertEquals(VAL1 + "," + VAL2, message.getHeadersAsString(KEY1));
+  }
+
+  @Test
+  public void testRemoveHeader() {
+    FakeMessage message =
+        FakeMessage.newBuilder().addHeader(KEY1, VAL1).addHeader(KEY2, VAL2).build();
+
+    assertTrue(message.removeHeader(KEY1));
+    assertFalse(message.removeHeader(KEY1));
+    assertTrue(message.removeHeader(KEY2, 0));
+    assertEquals(Collections.emptySet(), message.getHeaderNames());
+  }
+
+  @Test
+  public void testSetQueryParamWithMultipleValuesReplacesValues() {
+    FakeMessage message = FakeMessage.newBuilder().addQueryParam(KEY1, VAL1).build();
+    message.setQueryParamWithMultipleValues(KEY1, Arrays.asList(VAL2, VAL2));
+
+    assertEquals(Arrays.asList(VAL2, VAL2), message.getQueryParams(KEY1));
+  }
+
+  @Test
+  public void testContentFromStream() throws Exception {
+    FakeMessage message = new FakeMessage();
+    message.setContent(new ByteArrayInputStream(VAL1.getBytes(StandardCharsets.UTF_8)));
+
+    assertEquals(VAL1, message.getContent());
+    byte[] content = new byte[VAL1.length()];
+    assertEquals(VAL1.length(), message.getContentAsStream().read(content));
+    assertEquals(VAL1, new String(content, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testVariables() {
+    FakeMessage message = FakeMessage.newBuilder().setVariable(KEY1, 1).build();
+
+    assertEquals(Integer.valueOf(1), message.getVariable(KEY1));
+    assertTrue(message.removeVariable(KEY1));
+    assertNull(message.getVariable(KEY1));
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Policies hosted by a {@link RemoteExecutor}, by name. Policies are registered before the executor
+ * starts and only read while it serves requests. A policy may be limited to a number of concurrent
+ * executions, directly or in a {@link PolicyChain}; further requests wait for a permit, which is
+ * cheap on virtual threads, so a slow policy cannot take over the executor.
+ */
+public class PolicyRegistry {
+
+  private final Map<String, RemotePolicy> policies = new LinkedHashMap<>();
+
+  /**
+   * Registers every {@link RemotePolicy} listed in {@code
+   * META-INF/services/com.google.apigee.RemotePolicy} on the class path.
+   *
+   * @return PolicyRegistry holding the policies found
+   * @throws IllegalArgumentException if two policies have the same name
+   */
+  public static PolicyRegistry load() {
+    return load(0);
+  }
+
+  /**
+   * Registers every {@link RemotePolicy} listed in {@code
+   * META-INF/services/com.google.apigee.RemotePolicy} on the class path, each with the same limit.
+   *
+   * @param maxConcurrency Maximum concurrent executions of each policy, 0 for no limit.
+   * @return PolicyRegistry holding the policies found
+   * @throws IllegalArgumentException if two policies have the same name
+   */
+  public static PolicyRegistry load(int maxConcurrency) {
+    PolicyRegistry policyRegistry = new PolicyRegistry();
+    for (RemotePolicy policy : ServiceLoader.load(RemotePolicy.class)) {
+      policyRegistry.register(policy.getName(), policy, maxConcurrency);
+    }
+    return policyRegistry;
+  }
+
+  /**
+   * @param policy Policy to host under its own name.
+   * @return This registry
+   * @throws IllegalArgumentException if a policy with the same name is registered
+   */
+  public PolicyRegistry register(RemotePolicy policy) {
+    return register(policy.getName(), policy);
+  }
+
+  /**
+   * @param name Name of the policy in a {@link PolicyChain} and in the path of requests.
+   * @param policy Policy to host.
+   * @return This registry
+   * @throws IllegalArgumentException if a policy with the same name is registered
+   */
+  public PolicyRegistry register(String name, RemotePolicy policy) {
+    return register(name, policy, 0);
+  }
+
+  /**
+   * @param name Name of the policy in a {@link PolicyChain} and in the path of requests.
+   * @param policy Policy to host.
+   * @param maxConcurrency Maximum concurrent executions of the policy, 0 for no limit.
+   * @return This registry
+   * @throws IllegalArgumentException if a policy with the same name is registered
+   */
+  public PolicyRegistry register(String name, RemotePolicy policy, int maxConcurrency) {
+    if (maxConcurrency < 0) {
+      throw new IllegalArgumentException("negative concurrency limit: " + maxConcurrency);
+    }
+    if (maxConcurrency > 0) {
+      policy = new ConcurrencyLimitedPolicy(policy, maxConcurrency);
+    }
+    if (name.isEmpty() || name.contains("/")) {
+      throw new IllegalArgumentException("invalid policy name: " + name);
+    }
+    if (policies.putIfAbsent(name, policy) != null) {
+      throw new IllegalArgumentException("duplicate policy: " + name);
+    }
+    return this;
+  }
+
+  /**
+   * @param name Name of a policy.
+   * @return Policy registered under the name, or null if there is none
+   */
+  public RemotePolicy get(String name) {
+    return policies.get(name);
+  }
+
+  /** @return Names of the registered policies, in the order they were registered */
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(policies.keySet());
+  }
+
+  /** @return PolicyChain that may name every registered policy */
+  public PolicyChain toPolicyChain() {
+    return new PolicyChain(policies);
+  }
+
+  /** Policy running at most a number of executions at once. */
+  private static final class ConcurrencyLimitedPolicy implements RemotePolicy {
+    private final RemotePolicy policy;
+    private final Semaphore permits;
+
+    ConcurrencyLimitedPolicy(RemotePolicy policy, int maxConcurrency) {
+      this.policy = policy;
+      this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    public String getName() {
+      return policy.getName();
+    }
+
+    @Override
+    public Execute.Execution execute(Execute.Execution execution) throws Exception {
+      permits.acquire();
+      try {
+        return policy.execute(execution);
+      } finally {
+        permits.release();
+      }
+    }
+
+    @Override
+    public Execute.Execution execute(Execute.Execution execution, RequestScope scope)
+        throws Exception {
+      permits.acquire();
+      try {
+        return policy.execute(execution, scope);
+      } finally {
+        permits.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Hosts many remote policies in one JVM on the JDK HTTP server, as a standalone server or a local
+ * sidecar instead of one Cloud Function per policy. A POST to {@code /PolicyName} runs that policy,
+ * and a POST to {@code /} runs the {@link PolicyChain} of the Execution; an Execution with a policy
+ * chain always runs its chain, over every policy of the {@link PolicyRegistry}. Requests hold an
+ * Execution or an {@link ExecutionBatch}, and content hashes are resolved from a {@link
+ * ContentStore} shared by every policy. Content streaming is not supported. A GET lists the hosted
+ * policies. Requests run on platform or virtual threads, see {@link RequestExecutors}; policies are
+ * plain blocking calls, so they run unchanged on either, and fork subtasks into the {@link
+ * RequestScope} of their request, which cancels those still running once the policy returns.
+ */
+public class RemoteExecutor implements AutoCloseable {
+
+  /** Environment variable holding the port {@link #main} listens on. */
+  public static final String PORT_ENVIRONMENT_VARIABLE = "PORT";
+  /** Environment variable holding the path of a Unix domain socket {@link #main} listens on. */
+  public static final String UNIX_SOCKET_ENVIRONMENT_VARIABLE = "REMOTE_EXECUTOR_UNIX_SOCKET";
+  /** Environment variable holding the concurrency limit {@link #main} sets on every policy. */
+  public static final String POLICY_CONCURRENCY_ENVIRONMENT_VARIABLE =
+      "REMOTE_EXECUTOR_POLICY_CONCURRENCY";
+  private static final int DEFAULT_PORT = 8080;
+  // Bursts of new connections beyond the default backlog of 50 are dropped and retried a second
+  // later.
+  private static final int BACKLOG = 1024;
+  private final PolicyRegistry policyRegistry;
+  private final PolicyChain policyChain;
+  private final ContentStore contentStore;
+  private final HttpServer httpServer;
+  private final ExecutorService executorService;
+  private final List<UnixDomainSocketServer> unixDomainSocketServers =
+      new CopyOnWriteArrayList<>();
+
+  /**
+   * Starts serving the policies.
+   *
+   * @param policyRegistry Policies to host.
+   * @param contentStore Store resolving content hashes.
+   * @param address Address to listen on, port 0 for an ephemeral port.
+   * @param executorService Threads serving requests, shut down when the executor is closed.
+   * @throws IOException if the server socket cannot be bound
+   */
+  public RemoteExecutor(
+      PolicyRegistry policyRegistry,
+      ContentStore contentStore,
+      InetSocketAddress address,
+      ExecutorService executorService)
+      throws IOException {
+    // Without TCP_NODELAY the separately written status line and body wait on delayed ACKs.
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    this.policyRegistry = policyRegistry;
+    this.policyChain = policyRegistry.toPolicyChain();
+    this.contentStore = contentStore;
+    this.executorService = executorService;
+    httpServer = HttpServer.create(address, BACKLOG);
+    httpServer.setExecutor(executorService);
+    httpServer.createContext("/", this::handle);
+    httpServer.start();
+  }
+
+  /**
+   * Serves every policy found on the class path on the port of the {@link
+   * #PORT_ENVIRONMENT_VARIABLE}, 8080 by default, with the threads of {@link
+   * RequestExecutors#fromEnvironment()}. Each policy runs at most {@link
+   * #POLICY_CONCURRENCY_ENVIRONMENT_VARIABLE} requests at once, without limit by default. With
+   * {@link #UNIX_SOCKET_ENVIRONMENT_VARIABLE} set, requests are served on that socket too.
+   *
+   * @param args Unused.
+   * @throws IOException if the server socket cannot be bound
+   */
+  public static void main(String[] args) throws IOException {
+    String port = System.getenv(PORT_ENVIRONMENT_VARIABLE);
+    String policyConcurrency = System.getenv(POLICY_CONCURRENCY_ENVIRONMENT_VARIABLE);
+    PolicyRegistry policyRegistry =
+        PolicyRegistry.load(
+            policyConcurrency == null ? 0 : Integer.parseInt(policyConcurrency.trim()));
+    RemoteExecutor remoteExecutor =
+        new RemoteExecutor(
+            policyRegistry,
+            ContentStore.fromEnvironment(),
+            new InetSocketAddress(port == null ? DEFAULT_PORT : Integer.parseInt(port.trim())),
+            RequestExecutors.fromEnvironment());
+    String unixSocket = System.getenv(UNIX_SOCKET_ENVIRONMENT_VARIABLE);
+    if (unixSocket != null) {
+      remoteExecutor.listenUnixDomainSocket(unixSocket.trim());
+      System.out.println("Listening on " + UnixDomainSockets.URL_PREFIX + unixSocket.trim());
+    }
+    System.out.println("Serving " + policyRegistry.getNames() + " on " + remoteExecutor.getUrl());
+  }
+
+  /** @return URL of the executor, to which a policy name is appended */
+  public String getUrl() {
+    InetSocketAddress address = httpServer.getAddress();
+    String host =
+        address.getAddress().isAnyLocalAddress()
+            ? "127.0.0.1"
+            : address.getAddress().getHostAddress();
+    return "http://" + host + ":" + address.getPort() + "/";
+  }
+
+  /**
+   * Also serves requests on a Unix domain socket, see {@link UnixDomainSockets}. An Execution
+   * received on the socket runs its policy chain, like a request to {@code /}, so a single policy
+   * is named by a chain of one. Frames are served on the threads of the executor, and idle
+   * connections hold none of them, see {@link UnixDomainSocketServer}. A file left at the path by
+   * an earlier executor is replaced.
+   *
+   * @param path Path of the socket file.
+   * @throws IOException if the socket cannot be bound, or Unix domain sockets are not supported
+   */
+  public void listenUnixDomainSocket(String path) throws IOException {
+    unixDomainSocketServers.add(
+        new UnixDomainSocketServer(
+            path,
+            executorService,
+            execution -> execute("", execution),
+            UnixDomainSocketServer.DEFAULT_TIMEOUT_MILLIS));
+  }
+
+  @Override
+  public void close() {
+    httpServer.stop(0);
+    for (UnixDomainSocketServer unixDomainSocketServer : unixDomainSocketServers) {
+      try {
+        unixDomainSocketServer.close();
+      } catch (IOException e) {
+        // Closing the other sockets matters more.
+      }
+    }
+    executorService.shutdownNow();
+  }
+
+  /**
+   * Serves a single exchange. The content length of a response is known before the status line is
+   * sent: an Execution is sized before it is written, other responses are buffered.
+   *
+   * @param exchange Exchange holding the client request.
+   * @throws IOException if the exchange cannot be read or written
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if ("GET".equals(exchange.getRequestMethod())) {
+        send(
+            exchange,
+            "text/plain",
+            String.join("\n", policyRegistry.getNames()).getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      String policyName = path.replaceAll("^/+|/+$", "");
+      String contentType = exchange.getRequestHeaders().getFirst("content-type");
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      if (ExecutionBatch.isExecutionBatch(contentType)) {
+        List<byte[]> results = new ArrayList<>();
+        try {
+          for (Execute.Execution execution :
+              ExecutionBatch.read(new ByteArrayInputStream(body))) {
+            results.add(execute(policyName, execution).toByteArray());
+          }
+        } catch (IOException e) {
+          results.add(abort(e).toByteArray());
+        }
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        ExecutionBatch.write(batch, results);
+        send(exchange, ExecutionBatch.CONTENT_TYPE, batch.toByteArray());
+      } else if (ExecutionStream.isExecutionStream(contentType)) {
+        send(exchange, abort(new IllegalArgumentException("content streaming is not supported")));
+      } else {
+        Execute.Execution execution;
+        try {
+          execution = execute(policyName, Execute.Execution.parseFrom(body));
+        } catch (IOException e) {
+          execution = abort(e);
+        }
+        send(exchange, execution);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Runs a policy, or the policy chain of the Execution, after resolving its content hashes, in a
+   * {@link RequestScope} of {@link RequestExecutors#newScope()} closed once it returns. A policy
+   * that fails is answered with ABORT.
+   *
+   * @param policyName Name of the policy from the request path, empty to run the policy chain.
+   * @param execution Execution Protocol Buffer Message received.
+   * @return Execution Protocol Buffer Message to return
+   */
+  Execute.Execution execute(String policyName, Execute.Execution execution) {
+    try (RequestScope scope = RequestExecutors.newScope()) {
+      Execute.Execution.Builder executionBuilder = execution.toBuilder();
+      List<ByteString> missingContentHashes = contentStore.resolve(executionBuilder);
+      if (!missingContentHashes.isEmpty()) {
+        return Execute.Execution.newBuilder()
+            .addAllMissingContentHashes(missingContentHashes)
+            .build();
+      }
+      execution = executionBuilder.build();
+      if (PolicyChain.isPolicyChain(execution)) {
+        return policyChain.execute(execution, scope);
+      }
+      if (policyName.isEmpty()) {
+        throw new IllegalArgumentException("missing policy_chain");
+      }
+      RemotePolicy policy = policyRegistry.get(policyName);
+      if (policy == null) {
+        throw new IllegalArgumentException("unknown policy: " + policyName);
+      }
+      return policy.execute(execution, scope);
+    } catch (Exception e) {
+      return abort(e);
+    }
+  }
+
+  private static Execute.Execution abort(Throwable throwable) {
+    return Execute.Execution.newBuilder()
+        .setExecutionResult(
+            Execute.ExecutionResult.newBuilder()
+                .setAction(Execute.ExecutionResult.Action.ABORT)
+                .setErrorResponse(throwable.toString()))
+        .build();
+  }
+
+  /**
+   * Writes an Execution straight into the response body with {@link ExecutionWriter}, without
+   * serializing it into a byte array first.
+   *
+   * @param exchange Exchange to answer.
+   * @param execution Execution Protocol Buffer Message to write.
+   * @throws IOException if the response cannot be written
+   */
+  private static void send(HttpExchange exchange, Execute.Execution execution)
+      throws IOException {
+    int size = execution.getSerializedSize();
+    exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+    if (size > 0) {
+      ExecutionWriter.write(exchange.getResponseBody(), execution);
+    }
+  }
+
+  private static void send(HttpExchange exchange, String contentType, byte[] body)
+      throws IOException {
+    if (contentType != null) {
+      exchange.getResponseHeaders().set("content-type", contentType);
+    }
+    exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+    if (body.length > 0) {
+      exchange.getResponseBody().write(body);
+    }
+  }
+}
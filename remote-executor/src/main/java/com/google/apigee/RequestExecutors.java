@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor services serving the requests of a {@link RemoteExecutor}: a fixed pool of platform
+ * threads, or a virtual thread per request on Java 21 and later. Policies block while they wait on
+ * I/O, which ties up a platform thread but only parks a virtual one, so with virtual threads the
+ * number of requests waiting at once is bounded by the per-policy limits of the {@link
+ * PolicyRegistry} rather than by the pool size. Virtual threads are looked up reflectively so the
+ * executor still builds and runs on Java 11.
+ */
+public final class RequestExecutors {
+
+  /** Environment variable selecting {@code platform} or {@code virtual} threads. */
+  public static final String MODE_ENVIRONMENT_VARIABLE = "REMOTE_EXECUTOR_MODE";
+  /** Environment variable holding the number of platform threads. */
+  public static final String THREADS_ENVIRONMENT_VARIABLE = "REMOTE_EXECUTOR_THREADS";
+  private static final String VIRTUAL_THREAD_FACTORY_METHOD = "newVirtualThreadPerTaskExecutor";
+
+  private RequestExecutors() {}
+
+  /**
+   * @param threads Number of platform threads.
+   * @return Fixed pool of platform threads
+   */
+  public static ExecutorService platform(int threads) {
+    return Executors.newFixedThreadPool(threads);
+  }
+
+  /** @return Whether the running JVM has virtual threads */
+  public static boolean isVirtualThreadSupported() {
+    return getVirtualThreadFactoryMethod() != null;
+  }
+
+  /**
+   * @return ExecutorService starting a virtual thread per request
+   * @throws UnsupportedOperationException if the running JVM has no virtual threads
+   */
+  public static ExecutorService virtual() {
+    Method factoryMethod = getVirtualThreadFactoryMethod();
+    if (factoryMethod == null) {
+      throw new UnsupportedOperationException(
+          "virtual threads need Java 21, running " + System.getProperty("java.version"));
+    }
+    try {
+      return (ExecutorService) factoryMethod.invoke(null);
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("cannot create virtual thread executor", e);
+    }
+  }
+
+  /**
+   * Opens the scope of one request, running each subtask a policy forks on a virtual thread when
+   * the running JVM has them and on a cached platform thread otherwise.
+   *
+   * @return RequestScope to close once the policy returns
+   */
+  public static RequestScope newScope() {
+    return isVirtualThreadSupported() ? new RequestScope(virtual()) : RequestScope.open();
+  }
+
+  /**
+   * Builds the executor selected by {@link #MODE_ENVIRONMENT_VARIABLE}, {@code platform} by
+   * default, with {@link #THREADS_ENVIRONMENT_VARIABLE} platform threads, four per processor by
+   * default.
+   *
+   * @return ExecutorService serving requests
+   * @throws IllegalArgumentException if the mode is unknown
+   */
+  public static ExecutorService fromEnvironment() {
+    String mode = System.getenv(MODE_ENVIRONMENT_VARIABLE);
+    if (mode != null && mode.trim().equalsIgnoreCase("virtual")) {
+      return virtual();
+    }
+    if (mode != null && !mode.trim().equalsIgnoreCase("platform")) {
+      throw new IllegalArgumentException("unknown " + MODE_ENVIRONMENT_VARIABLE + ": " + mode);
+    }
+    String threads = System.getenv(THREADS_ENVIRONMENT_VARIABLE);
+    return platform(
+        threads == null
+            ? 4 * Runtime.getRuntime().availableProcessors()
+            : Integer.parseInt(threads.trim()));
+  }
+
+  private static Method getVirtualThreadFactoryMethod() {
+    try {
+      return Executors.class.getMethod(VIRTUAL_THREAD_FACTORY_METHOD);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Serves Execution frames on a Unix domain socket, see {@link UnixDomainSockets}. Connections wait
+ * for their next frame on one selector thread, so a connection a client keeps open between calls
+ * holds no thread of the executor while it is idle. A connection with a frame to read is handed to
+ * the executor, which serves its frames until none is left to read and hands it back. A frame
+ * that is not fully received, or a response that is not taken, within the timeout drops the
+ * connection, and so does a malformed frame, as the next frame cannot be found.
+ */
+final class UnixDomainSocketServer implements AutoCloseable {
+  /** Time a started frame or a response waits on the connection before it is dropped. */
+  static final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+  private final String path;
+  private final ServerSocketChannel serverSocketChannel;
+  private final Selector selector;
+  private final ExecutorService executorService;
+  private final UnaryOperator<Execute.Execution> handler;
+  private final long timeoutMillis;
+  private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+  private final Queue<Connection> idleConnections = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Starts serving the socket. A file left at the path by an earlier server is replaced.
+   *
+   * @param path Path of the socket file.
+   * @param executorService Threads serving frames.
+   * @param handler Runs an Execution received and returns the Execution to answer with.
+   * @param timeoutMillis Time a started frame or a response waits on the connection.
+   * @throws IOException if the socket cannot be bound, or Unix domain sockets are not supported
+   */
+  UnixDomainSocketServer(
+      String path,
+      ExecutorService executorService,
+      UnaryOperator<Execute.Execution> handler,
+      long timeoutMillis)
+      throws IOException {
+    this.path = path;
+    this.executorService = executorService;
+    this.handler = handler;
+    this.timeoutMillis = timeoutMillis;
+    Files.deleteIfExists(Paths.get(path));
+    serverSocketChannel = UnixDomainSockets.bind(path);
+    try {
+      serverSocketChannel.configureBlocking(false);
+      selector = Selector.open();
+      serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      serverSocketChannel.close();
+      throw e;
+    }
+    Thread selectorThread = new Thread(this::select, "remote-executor-unix-socket-select");
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      selector.close();
+      serverSocketChannel.close();
+    } finally {
+      for (Connection connection : connections) {
+        connection.close();
+      }
+      Files.deleteIfExists(Paths.get(path));
+    }
+  }
+
+  private void select() {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        for (Connection connection; (connection = idleConnections.poll()) != null; ) {
+          try {
+            connection.selectionKey.interestOps(SelectionKey.OP_READ);
+          } catch (CancelledKeyException e) {
+            // Closed while it was served.
+          }
+        }
+        Iterator<SelectionKey> selectionKeys = selector.selectedKeys().iterator();
+        while (selectionKeys.hasNext()) {
+          SelectionKey selectionKey = selectionKeys.next();
+          selectionKeys.remove();
+          if (!selectionKey.isValid()) {
+            continue;
+          }
+          if (selectionKey.isAcceptable()) {
+            accept();
+          } else if (selectionKey.isReadable()) {
+            // Not selected again until the connection is handed back.
+            selectionKey.interestOps(0);
+            dispatch((Connection) selectionKey.attachment());
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        return;
+      } catch (CancelledKeyException | IOException e) {
+        // The connection was closed while it was selected, or the next select fails the same way.
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    for (SocketChannel socketChannel;
+        (socketChannel = serverSocketChannel.accept()) != null; ) {
+      Connection connection;
+      try {
+        connection = new Connection(new TimedSocketChannel(socketChannel, timeoutMillis));
+      } catch (IOException e) {
+        socketChannel.close();
+        continue;
+      }
+      connections.add(connection);
+      connection.selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+    }
+  }
+
+  private void dispatch(Connection connection) {
+    try {
+      executorService.execute(() -> serve(connection));
+    } catch (RejectedExecutionException e) {
+      connection.close();
+    }
+  }
+
+  /**
+   * Serves the frames of a connection that can be read, then hands the connection back to the
+   * selector thread, or closes it at the end of the stream.
+   *
+   * @param connection Connection with a frame, or the end of its stream, to read.
+   */
+  private void serve(Connection connection) {
+    try {
+      do {
+        Execute.Execution execution = UnixDomainSockets.readFrame(connection.inputStream);
+        if (execution == null) {
+          connection.close();
+          return;
+        }
+        UnixDomainSockets.writeFrame(connection.outputStream, handler.apply(execution));
+        // Frames the client sent ahead are already buffered and would not be selected.
+      } while (connection.inputStream.available() > 0);
+    } catch (IOException | RuntimeException e) {
+      connection.close();
+      return;
+    }
+    idleConnections.add(connection);
+    selector.wakeup();
+  }
+
+  private final class Connection {
+    private final TimedSocketChannel socketChannel;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private SelectionKey selectionKey;
+
+    Connection(TimedSocketChannel socketChannel) {
+      this.socketChannel = socketChannel;
+      this.inputStream = new BufferedInputStream(socketChannel.getInputStream());
+      this.outputStream = new BufferedOutputStream(socketChannel.getOutputStream());
+    }
+
+    void close() {
+      connections.remove(this);
+      socketChannel.close();
+    }
+  }
+}
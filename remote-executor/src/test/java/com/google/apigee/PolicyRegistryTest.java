@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class PolicyRegistryTest {
+
+  @Test
+  public void testLoadFindsPoliciesOnClassPath() {
+    PolicyRegistry policyRegistry = PolicyRegistry.load();
+
+    assertEquals(
+        new HashSet<>(Arrays.asList("RemotePolicyExecution", "XmlJsonConversion")),
+        policyRegistry.getNames());
+  }
+
+  @Test
+  public void testRegister() {
+    RemotePolicy policy = execution -> execution;
+    PolicyRegistry policyRegistry = new PolicyRegistry().register("Echo", policy);
+
+    assertSame(policy, policyRegistry.get("Echo"));
+    assertNull(policyRegistry.get("Unknown"));
+  }
+
+  @Test
+  public void testRegisterDuplicate() {
+    PolicyRegistry policyRegistry = new PolicyRegistry().register("Echo", execution -> execution);
+    try {
+      policyRegistry.register("Echo", execution -> execution);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertEquals("duplicate policy: Echo", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    RemotePolicy blocking =
+        execution -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          release.await();
+          running.decrementAndGet();
+          return execution;
+        };
+    RemotePolicy limited = new PolicyRegistry().register("Blocking", blocking, 2).get("Blocking");
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Execute.Execution>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(
+            executorService.submit(() -> limited.execute(Execute.Execution.getDefaultInstance())));
+      }
+      while (running.get() < 2) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(50);
+      assertEquals(2, running.get());
+      release.countDown();
+      for (Future<Execute.Execution> future : futures) {
+        future.get(5, TimeUnit.SECONDS);
+      }
+      assertEquals(2, maxRunning.get());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.apigee.Execute.Execution;
+import com.google.apigee.Execute.ExecutionResult.Action;
+import com.google.protobuf.TextFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RemoteExecutorTest {
+
+  private static final String CONTENT_XML = "<a>b</a>";
+  private static final String CONTENT_JSON = "{\"a\":\"b\"}";
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+  private RemoteExecutor remoteExecutor;
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Before
+  public void init() throws Exception {
+    remoteExecutor =
+        new RemoteExecutor(
+            PolicyRegistry.load(),
+            new ContentStore(1024),
+            new InetSocketAddress("127.0.0.1", 0),
+            Executors.newFixedThreadPool(2));
+  }
+
+  @After
+  public void close() {
+    remoteExecutor.close();
+  }
+
+  @Test
+  public void testListsPolicies() throws Exception {
+    HttpResponse<String> response =
+        httpClient.send(
+            HttpRequest.newBuilder(URI.create(remoteExecutor.getUrl())).GET().build(),
+            HttpResponse.BodyHandlers.ofString());
+
+    assertEquals("RemotePolicyExecution\nXmlJsonConversion", response.body());
+  }
+
+  @Test
+  public void testDispatchesByPath() throws Exception {
+    Execution result = post("XmlJsonConversion", conversion(""), null);
+
+    assertEquals(Action.CONTINUE, result.getExecutionResult().getAction());
+    assertEquals(
+        CONTENT_JSON,
+        result.getMessageContext().getTargetRequestMessage().getContent().toStringUtf8());
+  }
+
+  @Test
+  public void testRunsPolicyChainAcrossPolicies() throws Exception {
+    Execution result =
+        post(
+            "",
+            conversion(
+                "policy_chain {"
+                    + "  policies: \"XmlJsonConversion\""
+                    + "  policies: \"RemotePolicyExecution\""
+                    + "}"),
+            null);
+
+    assertEquals(Action.CONTINUE, result.getExecutionResult().getAction());
+    assertEquals("RemotePolicyExecution", result.getExecutionResult().getPolicy());
+    Execute.Message targetRequest = result.getMessageContext().getTargetRequestMessage();
+    assertEquals(CONTENT_JSON, targetRequest.getContent().toStringUtf8());
+    assertEquals("Hello", targetRequest.getFlowVariablesOrThrow("Example").getFlowVariable());
+  }
+
+  @Test(timeout = 10_000)
+  public void testClosesRequestScopeWhenPolicyReturns() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(2);
+    RemotePolicy forking =
+        new RemotePolicy() {
+          @Override
+          public Execution execute(Execution execution) {
+            throw new UnsupportedOperationException("runs in a request scope");
+          }
+
+          @Override
+          public Execution execute(Execution execution, RequestScope scope) throws Exception {
+            CountDownLatch started = new CountDownLatch(1);
+            scope.fork(
+                () -> {
+                  started.countDown();
+                  try {
+                    Thread.sleep(Long.MAX_VALUE);
+                  } catch (InterruptedException e) {
+                    cancelled.countDown();
+                  }
+                  return null;
+                });
+            started.await();
+            return execution.toBuilder()
+                .setExecutionResult(Execute.ExecutionResult.newBuilder().setAction(Action.CONTINUE))
+                .build();
+          }
+        };
+    try (RemoteExecutor scopedExecutor =
+        new RemoteExecutor(
+            new PolicyRegistry().register("Forking", forking, 1),
+            new ContentStore(1024),
+            new InetSocketAddress("127.0.0.1", 0),
+            Executors.newFixedThreadPool(1))) {
+      Execution byPath = scopedExecutor.execute("Forking", Execution.getDefaultInstance());
+      assertEquals(1, cancelled.getCount());
+      Execution byChain =
+          scopedExecutor.execute(
+              "",
+              Execution.newBuilder()
+                  .setPolicyChain(Execute.PolicyChain.newBuilder().addPolicies("Forking"))
+                  .build());
+      assertEquals(0, cancelled.getCount());
+
+      assertEquals(Action.CONTINUE, byPath.getExecutionResult().getAction());
+      assertEquals(Action.CONTINUE, byChain.getExecutionResult().getAction());
+    }
+  }
+
+  @Test
+  public void testUnknownPolicy() throws Exception {
+    Execution result = post("Unknown", conversion(""), null);
+
+    assertEquals(Action.ABORT, result.getExecutionResult().getAction());
+    assertEquals(
+        "java.lang.IllegalArgumentException: unknown policy: Unknown",
+        result.getExecutionResult().getErrorResponse());
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    ExecutionBatch.write(
+        batch,
+        Arrays.asList(conversion("").toByteArray(), Execution.getDefaultInstance().toByteArray()));
+
+    HttpResponse<byte[]> response =
+        httpClient.send(
+            HttpRequest.newBuilder(URI.create(remoteExecutor.getUrl() + "XmlJsonConversion"))
+                .header("content-type", ExecutionBatch.CONTENT_TYPE)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(batch.toByteArray()))
+                .build(),
+            HttpResponse.BodyHandlers.ofByteArray());
+
+    List<Execution> results = ExecutionBatch.read(new ByteArrayInputStream(response.body()));
+    assertEquals(2, results.size());
+    assertEquals(Action.CONTINUE, results.get(0).getExecutionResult().getAction());
+    assertEquals(Action.ABORT, results.get(1).getExecutionResult().getAction());
+  }
+
+  @Test
+  public void testUnixDomainSocket() throws Exception {
+    String path = temporaryFolder.getRoot().toPath().resolve("executor.sock").toString();
+    remoteExecutor.listenUnixDomainSocket(path);
+
+    try (SocketChannel socketChannel = UnixDomainSockets.connect(path)) {
+      InputStream inputStream = Channels.newInputStream(socketChannel);
+      OutputStream outputStream = Channels.newOutputStream(socketChannel);
+      UnixDomainSockets.writeFrame(
+          outputStream, conversion("policy_chain {  policies: \"XmlJsonConversion\"}"));
+      Execution first = UnixDomainSockets.readFrame(inputStream);
+      UnixDomainSockets.writeFrame(
+          outputStream, conversion("policy_chain {  policies: \"Unknown\"}"));
+      Execution second = UnixDomainSockets.readFrame(inputStream);
+
+      assertEquals(Action.CONTINUE, first.getExecutionResult().getAction());
+      assertEquals(
+          CONTENT_JSON,
+          first.getMessageContext().getTargetRequestMessage().getContent().toStringUtf8());
+      assertEquals(Action.ABORT, second.getExecutionResult().getAction());
+    }
+
+    remoteExecutor.close();
+    assertFalse(Files.exists(temporaryFolder.getRoot().toPath().resolve("executor.sock")));
+  }
+
+  @Test(timeout = 10_000)
+  public void testUnixDomainSocketIdleConnections() throws Exception {
+    String path = temporaryFolder.getRoot().toPath().resolve("executor.sock").toString();
+    remoteExecutor.listenUnixDomainSocket(path);
+    List<SocketChannel> idleSocketChannels = new ArrayList<>();
+
+    try {
+      // More idle connections than threads, each served once first.
+      for (int i = 0; i < 3; i++) {
+        SocketChannel socketChannel = UnixDomainSockets.connect(path);
+        idleSocketChannels.add(socketChannel);
+        UnixDomainSockets.writeFrame(
+            Channels.newOutputStream(socketChannel),
+            conversion("policy_chain {  policies: \"XmlJsonConversion\"}"));
+        UnixDomainSockets.readFrame(Channels.newInputStream(socketChannel));
+      }
+      try (SocketChannel socketChannel = UnixDomainSockets.connect(path)) {
+        UnixDomainSockets.writeFrame(
+            Channels.newOutputStream(socketChannel),
+            conversion("policy_chain {  policies: \"XmlJsonConversion\"}"));
+        Execution result = UnixDomainSockets.readFrame(Channels.newInputStream(socketChannel));
+
+        assertEquals(Action.CONTINUE, result.getExecutionResult().getAction());
+      }
+      Execution posted = post("XmlJsonConversion", conversion(""), null);
+      assertEquals(Action.CONTINUE, posted.getExecutionResult().getAction());
+    } finally {
+      for (SocketChannel socketChannel : idleSocketChannels) {
+        socketChannel.close();
+      }
+    }
+  }
+
+  private Execution post(String policyName, Execution execution, String contentType)
+      throws Exception {
+    HttpRequest.Builder request =
+        HttpRequest.newBuilder(URI.create(remoteExecutor.getUrl() + policyName))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(execution.toByteArray()));
+    if (contentType != null) {
+      request.header("content-type", contentType);
+    }
+    return Execution.parseFrom(
+        httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray()).body());
+  }
+
+  private static Execution conversion(String text) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "    flow_variables {"
+            + "      key: \"conversion\""
+            + "      value {"
+            + "        flow_variable: \"xmltojson\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + text,
+        executionBuilder);
+    return executionBuilder.build();
+  }
+}
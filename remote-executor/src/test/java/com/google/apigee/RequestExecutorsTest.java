@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RequestExecutorsTest {
+
+  @Test
+  public void testPlatform() throws Exception {
+    ExecutorService executorService = RequestExecutors.platform(1);
+    try {
+      assertEquals(
+          Boolean.FALSE, executorService.submit(() -> isVirtual(Thread.currentThread())).get());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testVirtual() throws Exception {
+    if (!RequestExecutors.isVirtualThreadSupported()) {
+      try {
+        RequestExecutors.virtual();
+        fail("expected UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        assertTrue(e.getMessage().startsWith("virtual threads need Java 21"));
+      }
+      return;
+    }
+    ExecutorService executorService = RequestExecutors.virtual();
+    try {
+      assertEquals(
+          Boolean.TRUE, executorService.submit(() -> isVirtual(Thread.currentThread())).get());
+    } finally {
+      executorService.shutdown();
+      executorService.awaitTermination(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testNewScope() throws Exception {
+    RequestScope scope = RequestExecutors.newScope();
+    try {
+      assertEquals(
+          RequestExecutors.isVirtualThreadSupported(),
+          scope.fork(() -> isVirtual(Thread.currentThread())).get());
+    } finally {
+      scope.close();
+    }
+    try {
+      scope.fork(() -> null);
+      fail("expected RejectedExecutionException");
+    } catch (RejectedExecutionException e) {
+      // Subtasks cannot outlive the scope.
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Content written once and then read any number of times, held in memory up to a size and in a
+ * temporary file beyond it, so that streamed content of any size takes bounded memory. Closing the
+ * spool deletes its file.
+ */
+final class ContentSpool extends OutputStream {
+
+  private final int maxBufferedBytes;
+  private byte[] buffer = new byte[256];
+  private long size;
+  private Path file;
+  private OutputStream fileOutputStream;
+
+  /** @param maxBufferedBytes Size of content kept in memory rather than in a temporary file. */
+  ContentSpool(int maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (file == null && size + length > maxBufferedBytes) {
+      spill();
+    }
+    if (file == null) {
+      if (size + length > buffer.length) {
+        buffer = Arrays.copyOf(buffer, (int) Math.max(size + length, buffer.length * 2L));
+      }
+      System.arraycopy(bytes, offset, buffer, (int) size, length);
+    } else {
+      fileOutputStream.write(bytes, offset, length);
+    }
+    size += length;
+  }
+
+  /**
+   * Copies content into the spool.
+   *
+   * @param content Content to copy, read until its end but not closed.
+   * @throws IOException if reading the content or spooling it fails
+   */
+  void copyFrom(InputStream content) throws IOException {
+    byte[] chunk = new byte[8192];
+    for (int read; (read = content.read(chunk)) != -1; ) {
+      write(chunk, 0, read);
+    }
+  }
+
+  /** @return Number of bytes written */
+  long size() {
+    return size;
+  }
+
+  /**
+   * @return New InputStream of the content written so far, from its start
+   * @throws IOException if the temporary file cannot be read
+   */
+  InputStream newInputStream() throws IOException {
+    if (file == null) {
+      return new ByteArrayInputStream(buffer, 0, (int) size);
+    }
+    fileOutputStream.flush();
+    return Files.newInputStream(file);
+  }
+
+  /**
+   * Copies the content written so far.
+   *
+   * @param outputStream Stream to copy the content to, not closed.
+   * @throws IOException if reading the content or writing it fails
+   */
+  void writeTo(OutputStream outputStream) throws IOException {
+    if (file == null) {
+      outputStream.write(buffer, 0, (int) size);
+      return;
+    }
+    try (InputStream inputStream = newInputStream()) {
+      byte[] chunk = new byte[8192];
+      for (int read; (read = inputStream.read(chunk)) != -1; ) {
+        outputStream.write(chunk, 0, read);
+      }
+    }
+  }
+
+  /** Deletes the temporary file, if the content was spilled to one. */
+  @Override
+  public void close() throws IOException {
+    buffer = null;
+    if (file != null) {
+      try {
+        fileOutputStream.close();
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private void spill() throws IOException {
+    file = Files.createTempFile("xml-json-conversion", ".tmp");
+    try {
+      fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file));
+      fileOutputStream.write(buffer, 0, (int) size);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    buffer = null;
+  }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Bounded cache of converted content keyed by a 128-bit hash of the content and the conversion, so
+ * that content converted before is returned without being parsed. The least recently used result
+ * is evicted once the total size of the cached results would exceed the bound.
+ *
+ * <p>Content is hashed with SipHash-2-4 under a key drawn when the cache is built. Unlike an
+ * unkeyed hash, a caller cannot craft content colliding with content sent by another caller to be
+ * answered with its conversion. Results can be held in direct buffers, outside of the heap.
+ */
+final class ConversionCache {
+
+  /** Environment variable holding the bound of a cache built by {@link #fromEnvironment()}. */
+  static final String MAX_BYTES_ENVIRONMENT_VARIABLE = "CONVERSION_CACHE_MAX_BYTES";
+  /** Environment variable set to {@code true} to hold results outside of the heap. */
+  static final String OFF_HEAP_ENVIRONMENT_VARIABLE = "CONVERSION_CACHE_OFF_HEAP";
+  /** Bound of a cache built by {@link #fromEnvironment()} when the variable is not set. */
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  /** Conversion of content, run when its result is not cached. */
+  interface Converter {
+    ByteString convert(ByteString content) throws IOException, XMLStreamException;
+  }
+
+  private final long maxBytes;
+  private final boolean offHeap;
+  private final long hashKey0;
+  private final long hashKey1;
+  private final LinkedHashMap<Key, ByteString> results = new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeBytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxBytes Maximum total size of the cached results, 0 to cache nothing.
+   * @param offHeap Whether to hold results in direct buffers.
+   */
+  ConversionCache(long maxBytes, boolean offHeap) {
+    this.maxBytes = maxBytes;
+    this.offHeap = offHeap;
+    ByteBuffer hashKey = ByteBuffer.wrap(new byte[16]).order(ByteOrder.LITTLE_ENDIAN);
+    new SecureRandom().nextBytes(hashKey.array());
+    this.hashKey0 = hashKey.getLong();
+    this.hashKey1 = hashKey.getLong();
+  }
+
+  /**
+   * @return ConversionCache bounded by {@link #MAX_BYTES_ENVIRONMENT_VARIABLE}, off the heap if
+   *     {@link #OFF_HEAP_ENVIRONMENT_VARIABLE} is {@code true}
+   */
+  static ConversionCache fromEnvironment() {
+    String maxBytes = System.getenv(MAX_BYTES_ENVIRONMENT_VARIABLE);
+    return new ConversionCache(
+        maxBytes == null || maxBytes.trim().isEmpty()
+            ? DEFAULT_MAX_BYTES
+            : Long.parseLong(maxBytes.trim()),
+        Boolean.parseBoolean(System.getenv(OFF_HEAP_ENVIRONMENT_VARIABLE)));
+  }
+
+  /**
+   * Returns the cached result of a conversion, or converts the content and caches the result.
+   * Content is hashed outside of the lock, and failed conversions are not cached.
+   *
+   * @param conversion Name of the conversion, part of the key.
+   * @param content Content to convert.
+   * @param converter Conversion to run on a miss.
+   * @return Converted content
+   * @throws IOException
+   * @throws XMLStreamException if the converter fails on XML content
+   */
+  ByteString convert(String conversion, ByteString content, Converter converter)
+      throws IOException, XMLStreamException {
+    if (maxBytes <= 0) {
+      return converter.convert(content);
+    }
+    Key key = key(hashKey0, hashKey1, conversion, content);
+    ByteString result = get(key);
+    if (result != null) {
+      return result;
+    }
+    result = converter.convert(content);
+    put(key, result);
+    return result;
+  }
+
+  private synchronized ByteString get(Key key) {
+    ByteString result = results.get(key);
+    if (result == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return result;
+  }
+
+  private void put(Key key, ByteString result) {
+    if (result.size() > maxBytes) {
+      return;
+    }
+    if (offHeap) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(result.size());
+      result.copyTo(buffer);
+      buffer.flip();
+      result = UnsafeByteOperations.unsafeWrap(buffer.asReadOnlyBuffer());
+    }
+    synchronized (this) {
+      ByteString previous = results.put(key, result);
+      if (previous != null) {
+        sizeBytes -= previous.size();
+      }
+      sizeBytes += result.size();
+      Iterator<Map.Entry<Key, ByteString>> eldest = results.entrySet().iterator();
+      while (sizeBytes > maxBytes) {
+        sizeBytes -= eldest.next().getValue().size();
+        eldest.remove();
+        evictions++;
+      }
+    }
+  }
+
+  /** @return Maximum total size of the cached results */
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** @return Total size of the cached results */
+  synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /** @return Number of cached results */
+  synchronized int getEntryCount() {
+    return results.size();
+  }
+
+  /** @return Number of conversions answered from the cache */
+  synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return Number of conversions run */
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  /** @return Share of lookups answered from the cache, 0 before the first lookup */
+  synchronized double getHitRatio() {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  /** @return Number of results evicted to stay within the bound */
+  synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @param hashKey0 First 8 bytes of the SipHash key, little-endian.
+   * @param hashKey1 Last 8 bytes of the SipHash key, little-endian.
+   * @param conversion Name of the conversion.
+   * @param content Content to hash.
+   * @return Key of the content's 128-bit SipHash-2-4 and the conversion
+   */
+  static Key key(long hashKey0, long hashKey1, String conversion, ByteString content) {
+    SipHash sipHash = new SipHash(hashKey0, hashKey1);
+    long word = 0;
+    int wordBytes = 0;
+    for (ByteBuffer buffer : content.asReadOnlyByteBufferList()) {
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining()) {
+        if (wordBytes == 0 && buffer.remaining() >= Long.BYTES) {
+          sipHash.compress(buffer.getLong());
+          continue;
+        }
+        // Words split across the pieces of a rope are gathered a byte at a time.
+        word |= (buffer.get() & 0xFFL) << (8 * wordBytes);
+        if (++wordBytes == Long.BYTES) {
+          sipHash.compress(word);
+          word = 0;
+          wordBytes = 0;
+        }
+      }
+    }
+    sipHash.compress(word | (long) content.size() << 56);
+    return new Key(sipHash.finishFirst(), sipHash.finishSecond(), conversion);
+  }
+
+  /** Content hash and conversion of a cached result. */
+  static final class Key {
+    final long hash0;
+    final long hash1;
+    private final String conversion;
+
+    private Key(long hash0, long hash1, String conversion) {
+      this.hash0 = hash0;
+      this.hash1 = hash1;
+      this.conversion = conversion;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) object;
+      return hash0 == key.hash0 && hash1 == key.hash1 && conversion.equals(key.conversion);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) hash0;
+    }
+  }
+
+  /** State of SipHash-2-4 with a 128-bit output, as specified by Aumasson and Bernstein. */
+  private static final class SipHash {
+    private long v0;
+    private long v1;
+    private long v2;
+    private long v3;
+
+    SipHash(long k0, long k1) {
+      v0 = k0 ^ 0x736f6d6570736575L;
+      v1 = k1 ^ 0x646f72616e646f6dL ^ 0xEE;
+      v2 = k0 ^ 0x6c7967656e657261L;
+      v3 = k1 ^ 0x7465646279746573L;
+    }
+
+    void compress(long m) {
+      v3 ^= m;
+      round();
+      round();
+      v0 ^= m;
+    }
+
+    /** @return First half of the output, which must be taken before the second */
+    long finishFirst() {
+      v2 ^= 0xEE;
+      return finalRounds();
+    }
+
+    /** @return Second half of the output */
+    long finishSecond() {
+      v1 ^= 0xDD;
+      return finalRounds();
+    }
+
+    private long finalRounds() {
+      round();
+      round();
+      round();
+      round();
+      return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private void round() {
+      v0 += v1;
+      v1 = Long.rotateLeft(v1, 13);
+      v1 ^= v0;
+      v0 = Long.rotateLeft(v0, 32);
+      v2 += v3;
+      v3 = Long.rotateLeft(v3, 16);
+      v3 ^= v2;
+      v0 += v3;
+      v3 = Long.rotateLeft(v3, 21);
+      v3 ^= v0;
+      v2 += v1;
+      v1 = Long.rotateLeft(v1, 17);
+      v1 ^= v2;
+      v2 = Long.rotateLeft(v2, 32);
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * A conversion and its options, compiled once per distinct set of options and applied by {@link
+ * XmlJsonConverter} as it converts. Without options a plan converts as org.json does.
+ *
+ * <p>Options are read from flow variables:
+ *
+ * <ul>
+ *   <li>{@code conversion.array_elements}: comma-separated names of elements always converted to
+ *       a JSON array, even when they appear once. XML to JSON only.
+ *   <li>{@code conversion.strip_namespaces}: {@code true} to drop namespace prefixes from element
+ *       and attribute names and to drop namespace declarations.
+ *   <li>{@code conversion.attribute_prefix}: prefix of the JSON names of XML attributes. From JSON
+ *       to XML, scalar members with the prefix that come before the other members of their object
+ *       are written as attributes; the others are written as elements without the prefix.
+ *   <li>{@code conversion.coerce_values}: {@code false} to keep text and attribute values as
+ *       strings rather than converting numbers, booleans and null. XML to JSON only.
+ *   <li>{@code conversion.root_name}: name of the root member from XML to JSON, or of an element
+ *       wrapping the document from JSON to XML.
+ * </ul>
+ *
+ * <p>Limits protecting the conversion from oversized or hostile content are options too, checked
+ * as the content is parsed so that it is rejected at the first value over a limit:
+ *
+ * <ul>
+ *   <li>{@code conversion.max_bytes}: size of the content, checked before it is parsed.
+ *   <li>{@code conversion.max_depth}: nesting of elements, or of JSON objects and arrays.
+ *   <li>{@code conversion.max_object_entries}: distinct names of the attributes, text and child
+ *       elements of an element, or members of a JSON object.
+ *   <li>{@code conversion.max_array_length}: members of an element of the same name, or elements
+ *       of a JSON array.
+ *   <li>{@code conversion.max_string_length}: length of a name, text or value.
+ * </ul>
+ *
+ * <p>Plans are cached by their fingerprint, which is also part of the {@link ConversionCache} key
+ * so results converted with other options are not returned.
+ */
+final class ConversionPlan {
+
+  static final String XML_TO_JSON = "xmltojson";
+  static final String JSON_TO_XML = "jsontoxml";
+  static final String ARRAY_ELEMENTS_FLOW_VARIABLE = "conversion.array_elements";
+  static final String STRIP_NAMESPACES_FLOW_VARIABLE = "conversion.strip_namespaces";
+  static final String ATTRIBUTE_PREFIX_FLOW_VARIABLE = "conversion.attribute_prefix";
+  static final String COERCE_VALUES_FLOW_VARIABLE = "conversion.coerce_values";
+  static final String ROOT_NAME_FLOW_VARIABLE = "conversion.root_name";
+  static final String MAX_BYTES_FLOW_VARIABLE = "conversion.max_bytes";
+  static final String MAX_DEPTH_FLOW_VARIABLE = "conversion.max_depth";
+  static final String MAX_OBJECT_ENTRIES_FLOW_VARIABLE = "conversion.max_object_entries";
+  static final String MAX_ARRAY_LENGTH_FLOW_VARIABLE = "conversion.max_array_length";
+  static final String MAX_STRING_LENGTH_FLOW_VARIABLE = "conversion.max_string_length";
+  /** Flow variables holding options, in the order of the fingerprint. */
+  static final List<String> OPTION_FLOW_VARIABLES =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              ARRAY_ELEMENTS_FLOW_VARIABLE,
+              STRIP_NAMESPACES_FLOW_VARIABLE,
+              ATTRIBUTE_PREFIX_FLOW_VARIABLE,
+              COERCE_VALUES_FLOW_VARIABLE,
+              ROOT_NAME_FLOW_VARIABLE,
+              MAX_BYTES_FLOW_VARIABLE,
+              MAX_DEPTH_FLOW_VARIABLE,
+              MAX_OBJECT_ENTRIES_FLOW_VARIABLE,
+              MAX_ARRAY_LENGTH_FLOW_VARIABLE,
+              MAX_STRING_LENGTH_FLOW_VARIABLE));
+  /** Number of plans kept; plans of other options are compiled for each conversion. */
+  private static final int MAX_PLANS = 256;
+  private static final Map<String, ConversionPlan> PLANS = new ConcurrentHashMap<>();
+
+  private final String fingerprint;
+  private final boolean xmlToJson;
+  private final Set<String> arrayElements;
+  private final boolean stripNamespaces;
+  private final String attributePrefix;
+  private final boolean coerceValues;
+  private final String rootName;
+  private final int maxBytes;
+  private final int maxDepth;
+  private final int maxObjectEntries;
+  private final int maxArrayLength;
+  private final int maxStringLength;
+
+  private ConversionPlan(String fingerprint, String conversion, String[] options) {
+    this.fingerprint = fingerprint;
+    if (XML_TO_JSON.equals(conversion)) {
+      xmlToJson = true;
+    } else if (JSON_TO_XML.equals(conversion)) {
+      xmlToJson = false;
+    } else {
+      throw new IllegalArgumentException("invalid conversion value: " + conversion);
+    }
+    arrayElements = new HashSet<>();
+    for (String name : options[0].split(",")) {
+      if (!name.trim().isEmpty()) {
+        arrayElements.add(name.trim());
+      }
+    }
+    stripNamespaces = parseBoolean(STRIP_NAMESPACES_FLOW_VARIABLE, options[1], false);
+    attributePrefix = options[2];
+    coerceValues = parseBoolean(COERCE_VALUES_FLOW_VARIABLE, options[3], true);
+    rootName = options[4].isEmpty() ? null : options[4];
+    maxBytes = parseLimit(MAX_BYTES_FLOW_VARIABLE, options[5]);
+    maxDepth = parseLimit(MAX_DEPTH_FLOW_VARIABLE, options[6]);
+    maxObjectEntries = parseLimit(MAX_OBJECT_ENTRIES_FLOW_VARIABLE, options[7]);
+    maxArrayLength = parseLimit(MAX_ARRAY_LENGTH_FLOW_VARIABLE, options[8]);
+    maxStringLength = parseLimit(MAX_STRING_LENGTH_FLOW_VARIABLE, options[9]);
+  }
+
+  /**
+   * Returns the plan of a conversion and its options, compiling it if it is not cached.
+   *
+   * @param conversion XML_TO_JSON or JSON_TO_XML.
+   * @param flowVariables Values of the {@link #OPTION_FLOW_VARIABLES}, empty or null if not set.
+   * @return ConversionPlan
+   * @throws IllegalArgumentException if the conversion or an option is not valid
+   */
+  static ConversionPlan of(String conversion, Function<String, String> flowVariables) {
+    String[] options = new String[OPTION_FLOW_VARIABLES.size()];
+    StringBuilder fingerprint = new StringBuilder(conversion);
+    for (int i = 0; i < options.length; i++) {
+      String value = flowVariables.apply(OPTION_FLOW_VARIABLES.get(i));
+      options[i] = value == null ? "" : value;
+      fingerprint.append('\0').append(options[i]);
+    }
+    String key = fingerprint.toString();
+    ConversionPlan plan = PLANS.get(key);
+    if (plan != null) {
+      return plan;
+    }
+    plan = new ConversionPlan(key, conversion, options);
+    if (PLANS.size() < MAX_PLANS) {
+      PLANS.putIfAbsent(key, plan);
+    }
+    return plan;
+  }
+
+  private static boolean parseBoolean(String name, String value, boolean defaultValue) {
+    if (value.isEmpty()) {
+      return defaultValue;
+    } else if (value.equalsIgnoreCase("true")) {
+      return true;
+    } else if (value.equalsIgnoreCase("false")) {
+      return false;
+    }
+    throw new IllegalArgumentException("invalid " + name + " value: " + value);
+  }
+
+  /** @return Positive limit, or Integer.MAX_VALUE if it is not set */
+  private static int parseLimit(String name, String value) {
+    if (value.isEmpty()) {
+      return Integer.MAX_VALUE;
+    }
+    try {
+      int limit = Integer.parseInt(value.trim());
+      if (limit > 0) {
+        return limit;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below.
+    }
+    throw new IllegalArgumentException("invalid " + name + " value: " + value);
+  }
+
+  /**
+   * Converts content with this plan.
+   *
+   * @param content UTF-8 content.
+   * @return Converted content
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
+   */
+  ByteString convert(ByteString content) throws IOException, XMLStreamException {
+    checkBytes(content.size());
+    return xmlToJson
+        ? XmlJsonConverter.xmlToJson(content, this)
+        : XmlJsonConverter.jsonToXml(content, this);
+  }
+
+  /**
+   * Converts content with this plan as it is read, writing the result as it is converted. XML is
+   * read twice, so it is first copied into a spool holding up to maxBufferedBytes in memory.
+   *
+   * @param content UTF-8 content, read until its end but not closed.
+   * @param output Stream the converted content is written to, flushed but not closed.
+   * @param maxBufferedBytes Size of XML content kept in memory rather than in a temporary file.
+   * @throws IOException if reading, spooling or writing the content fails
+   * @throws XMLStreamException if XML content is not well-formed
+   * @throws LimitExceededException if content is larger than the {@code conversion.max_bytes} limit
+   */
+  void convert(InputStream content, OutputStream output, int maxBufferedBytes)
+      throws IOException, XMLStreamException {
+    InputStream limited = limitBytes(content);
+    if (xmlToJson) {
+      try (ContentSpool xml = new ContentSpool(maxBufferedBytes)) {
+        xml.copyFrom(limited);
+        XmlJsonConverter.xmlToJson(xml::newInputStream, this, output);
+      }
+    } else {
+      XmlJsonConverter.jsonToXml(limited, this, output);
+      // Content after the object is ignored but still counts towards the limit, as it does whole.
+      byte[] skipped = new byte[8192];
+      while (limited.read(skipped) != -1) {}
+    }
+  }
+
+  /** @return Conversion and options, identifying the plan */
+  String getFingerprint() {
+    return fingerprint;
+  }
+
+  /** @return Name of an element or attribute without its namespace prefix if they are stripped */
+  String name(String qualifiedName) {
+    return stripNamespaces
+        ? qualifiedName.substring(qualifiedName.indexOf(':') + 1)
+        : qualifiedName;
+  }
+
+  /** @return Whether an attribute is a namespace declaration to drop */
+  boolean isDroppedAttribute(String qualifiedName) {
+    return stripNamespaces
+        && (qualifiedName.equals("xmlns") || qualifiedName.startsWith("xmlns:"));
+  }
+
+  /** @return JSON name of an attribute */
+  String attributeKey(String name) {
+    return attributePrefix.isEmpty() ? name : attributePrefix + name;
+  }
+
+  /** @return Whether a JSON name has the attribute prefix */
+  boolean isAttributeKey(String key) {
+    return !attributePrefix.isEmpty()
+        && key.length() > attributePrefix.length()
+        && key.startsWith(attributePrefix);
+  }
+
+  /** @return JSON name without the attribute prefix */
+  String withoutAttributePrefix(String key) {
+    return isAttributeKey(key) ? key.substring(attributePrefix.length()) : key;
+  }
+
+  /** @return Whether an element is converted to a JSON array even when it appears once */
+  boolean isArrayElement(String name) {
+    return !arrayElements.isEmpty() && arrayElements.contains(name);
+  }
+
+  /** @return Whether text and attribute values are converted as org.json converts them */
+  boolean coerceValues() {
+    return coerceValues;
+  }
+
+  /** @return Name of the root, or null to keep it */
+  String rootName() {
+    return rootName;
+  }
+
+  /**
+   * @param input Content to read.
+   * @return InputStream failing as soon as more than the {@code conversion.max_bytes} limit is
+   *     read, so that oversized content is not read in full
+   */
+  InputStream limitBytes(InputStream input) {
+    if (maxBytes == Integer.MAX_VALUE) {
+      return input;
+    }
+    return new FilterInputStream(input) {
+      private long read;
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          checkRead(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+          checkRead(count);
+        }
+        return count;
+      }
+
+      private void checkRead(int count) {
+        read += count;
+        checkBytes(read);
+      }
+    };
+  }
+
+  /** @throws LimitExceededException if content is larger than the limit */
+  void checkBytes(long bytes) {
+    if (bytes > maxBytes) {
+      throw limitExceeded("content size exceeds", MAX_BYTES_FLOW_VARIABLE, maxBytes);
+    }
+  }
+
+  /** @throws LimitExceededException if elements, objects or arrays are nested deeper */
+  void checkDepth(int depth) {
+    if (depth > maxDepth) {
+      throw limitExceeded("depth exceeds", MAX_DEPTH_FLOW_VARIABLE, maxDepth);
+    }
+  }
+
+  /** @throws LimitExceededException if an element or object has more entries */
+  void checkObjectEntries(int entries) {
+    if (entries > maxObjectEntries) {
+      throw limitExceeded("object entries exceed", MAX_OBJECT_ENTRIES_FLOW_VARIABLE,
+          maxObjectEntries);
+    }
+  }
+
+  /** @throws LimitExceededException if a group of members or an array is longer */
+  void checkArrayLength(int length) {
+    if (length > maxArrayLength) {
+      throw limitExceeded("array length exceeds", MAX_ARRAY_LENGTH_FLOW_VARIABLE, maxArrayLength);
+    }
+  }
+
+  /** @throws LimitExceededException if a name, text or value is longer */
+  void checkStringLength(int length) {
+    if (length > maxStringLength) {
+      throw limitExceeded("string length exceeds", MAX_STRING_LENGTH_FLOW_VARIABLE,
+          maxStringLength);
+    }
+  }
+
+  private static LimitExceededException limitExceeded(String what, String name, int limit) {
+    return new LimitExceededException(what, name, limit);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Converts the contents of the messages of one Execution. When more than one content is large,
+ * all but one of the large contents are converted on a {@link ForkJoinPool} of bounded
+ * parallelism while the calling thread converts the rest; small contents are not worth handing
+ * to another thread.
+ */
+final class ConversionPool {
+
+  /** Environment variable holding the parallelism of a pool built by {@link #fromEnvironment()}. */
+  static final String PARALLELISM_ENVIRONMENT_VARIABLE = "CONVERSION_PARALLELISM";
+  /** Size from which content is converted in parallel with other large content. */
+  static final int DEFAULT_MIN_PARALLEL_BYTES = 64 * 1024;
+
+  private final ForkJoinPool forkJoinPool;
+  private final int minParallelBytes;
+
+  /**
+   * @param parallelism Number of threads converting at once, 1 to convert on the calling thread.
+   * @param minParallelBytes Size from which content is converted in parallel.
+   */
+  ConversionPool(int parallelism, int minParallelBytes) {
+    this.forkJoinPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    this.minParallelBytes = minParallelBytes;
+  }
+
+  /**
+   * @return ConversionPool of the parallelism in {@link #PARALLELISM_ENVIRONMENT_VARIABLE},
+   *     default the number of processors
+   */
+  static ConversionPool fromEnvironment() {
+    String parallelism = System.getenv(PARALLELISM_ENVIRONMENT_VARIABLE);
+    return new ConversionPool(
+        parallelism == null || parallelism.trim().isEmpty()
+            ? Runtime.getRuntime().availableProcessors()
+            : Integer.parseInt(parallelism.trim()),
+        DEFAULT_MIN_PARALLEL_BYTES);
+  }
+
+  /**
+   * Converts contents, failing with the failure of the first content in order that fails.
+   *
+   * @param contents Contents to convert.
+   * @param converter Conversion of a content, called from several threads at once.
+   * @return Converted contents, in the order of the contents
+   * @throws IOException
+   * @throws XMLStreamException if the converter fails on XML content
+   */
+  List<ByteString> convert(List<ByteString> contents, ConversionCache.Converter converter)
+      throws IOException, XMLStreamException {
+    int large = 0;
+    for (ByteString content : contents) {
+      if (content.size() >= minParallelBytes) {
+        large++;
+      }
+    }
+    List<FutureTask<ByteString>> tasks = new ArrayList<>(contents.size());
+    for (ByteString content : contents) {
+      // The last large content is left to the calling thread.
+      if (forkJoinPool != null && large > 1 && content.size() >= minParallelBytes) {
+        // A FutureTask keeps the exception thrown, which a ForkJoinTask would copy.
+        FutureTask<ByteString> task = new FutureTask<>(() -> converter.convert(content));
+        forkJoinPool.execute(task);
+        tasks.add(task);
+        large--;
+      } else {
+        tasks.add(null);
+      }
+    }
+    List<ByteString> converted = new ArrayList<>(contents.size());
+    Exception[] failures = new Exception[contents.size()];
+    for (int i = 0; i < contents.size(); i++) {
+      converted.add(null);
+      if (tasks.get(i) == null) {
+        try {
+          converted.set(i, converter.convert(contents.get(i)));
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+          failures[i] = e;
+        }
+      }
+    }
+    for (int i = 0; i < contents.size(); i++) {
+      if (failures[i] == null && tasks.get(i) != null) {
+        try {
+          converted.set(i, tasks.get(i).get());
+        } catch (ExecutionException e) {
+          failures[i] = unwrap(e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          failures[i] = new InterruptedIOException("interrupted while converting");
+        }
+      }
+      if (failures[i] != null) {
+        for (FutureTask<ByteString> task : tasks.subList(i + 1, tasks.size())) {
+          if (task != null) {
+            task.cancel(false);
+          }
+        }
+        throwFailure(failures[i]);
+      }
+    }
+    return converted;
+  }
+
+  private static Exception unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return cause instanceof Exception ? (Exception) cause : e;
+  }
+
+  private static void throwFailure(Exception failure) throws IOException, XMLStreamException {
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof XMLStreamException) {
+      throw (XMLStreamException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    throw new IllegalStateException(failure);
+  }
+}
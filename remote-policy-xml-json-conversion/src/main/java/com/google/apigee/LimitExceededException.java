@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+/**
+ * Thrown when content exceeds a limit of a {@link ConversionPlan}, such as
+ * {@code conversion.max_depth}, while it is converted.
+ */
+final class LimitExceededException extends IllegalArgumentException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String limitName;
+  private final int limit;
+
+  /**
+   * @param what What exceeds the limit, such as {@code depth exceeds}.
+   * @param limitName Flow variable setting the limit.
+   * @param limit Value of the limit.
+   */
+  LimitExceededException(String what, String limitName, int limit) {
+    super(what + " " + limitName + " " + limit);
+    this.limitName = limitName;
+    this.limit = limit;
+  }
+
+  /** @return Flow variable setting the limit, such as {@code conversion.max_depth} */
+  String getLimitName() {
+    return limitName;
+  }
+
+  /** @return Value of the limit */
+  int getLimit() {
+    return limit;
+  }
+}
@@ -14,28 +14,111 @@
 
 package com.google.apigee;
 
+import com.google.apigee.Execute.ContentChunk.MessageType;
 import com.google.apigee.Execute.Execution;
 import com.google.apigee.Execute.ExecutionResult.Action;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import org.json.JSONObject;
-import org.json.XML;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import javax.xml.stream.XMLStreamException;
 
 /**
- * Decodes an Execution Protocol Buffer Message and converts Target Request Message content from XML
- * to JSON or vice versa depending on specified flow variable. Designed to be deployed as a Google
- * Cloud Function.
+ * Decodes an Execution Protocol Buffer Message and converts Target Request Message content from
+ * XML to JSON or vice versa depending on specified flow variable, with the streaming {@link
+ * XmlJsonConverter}. Designed to be deployed as a Google Cloud Function.
+ *
+ * <p>The conversion.messages flow variable of the Target Request Message may name other messages
+ * of the MessageContext to convert in the same invocation, such as {@code
+ * target_response_message,proxy_response_message}; large contents are converted in parallel by a
+ * {@link ConversionPool}, bounded by the CONVERSION_PARALLELISM environment variable.
+ *
+ * <p>Only the contents of the converted messages and the conversion flow variables are decoded,
+ * with {@link LazyExecution}; headers, other messages and the ExecutionContext are returned as
+ * they were received, so indexed header names are not decoded with {@link HeaderNameTable}.
+ *
+ * <p>Content sent as a content hash is read from a {@link ContentStore}, bounded by the
+ * CONTENT_STORE_MAX_BYTES environment variable, whose statistics are returned in response
+ * headers; content hashes of the other messages are returned unresolved.
+ *
+ * <p>Options of the conversion are read from flow variables and compiled into a {@link
+ * ConversionPlan}, including limits on the size, depth, entries, arrays and strings of the
+ * content that are checked as it is parsed, so that oversized or hostile content is answered with
+ * ABORT without another threat protection policy parsing it.
+ *
+ * <p>Content streamed in an {@link ExecutionStream} is converted as it is read, holding at most
+ * MAX_BUFFERED_CONTENT_BYTES of it in memory and the rest in temporary files.
+ *
+ * <p>Converted content is kept in a {@link ConversionCache}, bounded by the
+ * CONVERSION_CACHE_MAX_BYTES environment variable, so that content converted before is not parsed
+ * again; its statistics are returned in response headers too.
+ *
+ * <p>An Execution with a {@link PolicyChain} naming this policy runs it through the chain, unless
+ * its content is streamed.
  */
-public class XmlJsonConversion implements HttpFunction {
+public class XmlJsonConversion implements HttpFunction, RemotePolicy {
 
   private final static String CONVERSION_FLOW_VARIABLE = "conversion";
-  private final static String XML_TO_JSON = "xmltojson";
-  private final static String JSON_TO_XML = "jsontoxml";
+  private final static String MESSAGES_FLOW_VARIABLE = "conversion.messages";
+  private final static String CONTENT_STORE_HEADER_PREFIX = "X-Content-Store-";
+  private final static String CONVERSION_CACHE_HEADER_PREFIX = "X-Conversion-Cache-";
+  /**
+   * Name of this policy in a {@link PolicyChain}.
+   */
+  final static String POLICY_NAME = "XmlJsonConversion";
+  /**
+   * Messages of a {@link LazyExecution} this policy reads.
+   */
+  private final static Set<MessageType> DECODED_MESSAGES =
+      EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE);
+  /**
+   * Flow variables of a {@link LazyExecution} this policy reads: the conversion, the messages to
+   * convert and the options.
+   */
+  private final static Set<String> DECODED_FLOW_VARIABLES = new HashSet<>();
+  /**
+   * Size of a converted content of an {@link ExecutionStream}, or of the XML it is converted from,
+   * kept in memory rather than in a temporary file.
+   */
+  final static int MAX_BUFFERED_CONTENT_BYTES = 1024 * 1024;
+
+  static {
+    DECODED_FLOW_VARIABLES.add(CONVERSION_FLOW_VARIABLE);
+    DECODED_FLOW_VARIABLES.add(MESSAGES_FLOW_VARIABLE);
+    DECODED_FLOW_VARIABLES.addAll(ConversionPlan.OPTION_FLOW_VARIABLES);
+  }
+
+  private final ContentStore contentStore;
+  private final ConversionCache conversionCache;
+  private final ConversionPool conversionPool;
+  private final PolicyChain policyChain =
+      new PolicyChain(Collections.singletonMap(POLICY_NAME, this::execute));
+
+  public XmlJsonConversion() {
+    this(ContentStore.fromEnvironment(), ConversionCache.fromEnvironment(),
+        ConversionPool.fromEnvironment());
+  }
+
+  XmlJsonConversion(ContentStore contentStore, ConversionCache conversionCache,
+      ConversionPool conversionPool) {
+    this.contentStore = contentStore;
+    this.conversionCache = conversionCache;
+    this.conversionPool = conversionPool;
+  }
 
   /**
    * Reads and decodes the Execution Protocol Buffer Message and converts XML to JSON or vice versa
@@ -48,78 +131,429 @@ public class XmlJsonConversion implements HttpFunction {
    */
   @Override
   public void service(HttpRequest request, HttpResponse response) throws IOException {
+    boolean contentStreaming =
+        request.getContentType().map(ExecutionStream::isExecutionStream).orElse(false);
     try {
-      InputStream is = request.getInputStream();
-      byte[] data = is.readAllBytes();
-      Execute.Execution execution = Execute.Execution.parseFrom(data);
-      execution = convert(execution);
-      execution = setExecutionResult(execution, Action.CONTINUE, null);
-      response.getOutputStream().write(execution.toByteArray());
+      if (contentStreaming) {
+        serviceExecutionStream(request, response);
+        return;
+      }
+      byte[] data = request.getInputStream().readAllBytes();
+      LazyExecution lazyExecution =
+          LazyExecution.parse(data, DECODED_MESSAGES, DECODED_FLOW_VARIABLES);
+      if (lazyExecution.isPolicyChain()) {
+        servicePolicyChain(Execute.Execution.parseFrom(data), response);
+        return;
+      }
+      Set<MessageType> messageTypes = getMessageTypes(lazyExecution);
+      if (!DECODED_MESSAGES.containsAll(messageTypes)) {
+        // The other messages to convert are named by a decoded flow variable, so they are only
+        // known once the Execution has been parsed.
+        Set<MessageType> decodedMessages = EnumSet.copyOf(DECODED_MESSAGES);
+        decodedMessages.addAll(messageTypes);
+        lazyExecution = LazyExecution.parse(data, decodedMessages, DECODED_FLOW_VARIABLES);
+      }
+      List<ByteString> missingContentHashes = contentStore.resolve(lazyExecution);
+      writeContentStoreHeaders(response);
+      if (!missingContentHashes.isEmpty()) {
+        ExecutionWriter.write(response.getOutputStream(), Execution.newBuilder()
+            .addAllMissingContentHashes(missingContentHashes).build());
+        return;
+      }
+      convert(lazyExecution, messageTypes);
+      writeConversionCacheHeaders(response);
+      lazyExecution.setExecutionResult(
+          lazyExecution.getExecutionResult().toBuilder().setAction(Action.CONTINUE).build());
+      ExecutionWriter.write(response.getOutputStream(), lazyExecution);
     } catch (Throwable throwable) {
       Execute.Execution execution = Execution.getDefaultInstance();
       execution = setExecutionResult(execution, Action.ABORT, throwable);
-      response.getOutputStream().write(execution.toByteArray());
+      if (contentStreaming) {
+        response.setContentType(ExecutionStream.CONTENT_TYPE);
+        new ExecutionStream.Writer(response.getOutputStream()).writeExecution(execution);
+      } else {
+        ExecutionWriter.write(response.getOutputStream(), execution);
+      }
     }
   }
 
+  /**
+   * Runs the {@link PolicyChain} of an Execution parsed in full.
+   *
+   * @param execution Execution Protocol Buffer Message naming this policy in its policy chain.
+   * @param response HttpResponse to write the result of the chain to.
+   * @throws Exception if the chain fails
+   */
+  private void servicePolicyChain(Execute.Execution execution, HttpResponse response)
+      throws Exception {
+    Execute.Execution.Builder executionBuilder = execution.toBuilder();
+    List<ByteString> missingContentHashes = contentStore.resolve(executionBuilder);
+    writeContentStoreHeaders(response);
+    if (!missingContentHashes.isEmpty()) {
+      ExecutionWriter.write(response.getOutputStream(), Execution.newBuilder()
+          .addAllMissingContentHashes(missingContentHashes).build());
+      return;
+    }
+    Execute.Execution result = policyChain.execute(executionBuilder.build());
+    writeConversionCacheHeaders(response);
+    ExecutionWriter.write(response.getOutputStream(), result);
+  }
+
+  /**
+   * Returns the statistics of the {@link ContentStore} in response headers.
+   *
+   * @param response HttpResponse to add the headers to.
+   */
+  private void writeContentStoreHeaders(HttpResponse response) {
+    response.appendHeader(CONTENT_STORE_HEADER_PREFIX + "Hits",
+        String.valueOf(contentStore.getHits()));
+    response.appendHeader(CONTENT_STORE_HEADER_PREFIX + "Misses",
+        String.valueOf(contentStore.getMisses()));
+    response.appendHeader(CONTENT_STORE_HEADER_PREFIX + "Evictions",
+        String.valueOf(contentStore.getEvictions()));
+    response.appendHeader(CONTENT_STORE_HEADER_PREFIX + "Bytes",
+        contentStore.getSizeBytes() + "/" + contentStore.getMaxBytes());
+  }
+
+  /**
+   * Returns the statistics of the {@link ConversionCache} in response headers.
+   *
+   * @param response HttpResponse to add the headers to.
+   */
+  private void writeConversionCacheHeaders(HttpResponse response) {
+    response.appendHeader(CONVERSION_CACHE_HEADER_PREFIX + "Hits",
+        String.valueOf(conversionCache.getHits()));
+    response.appendHeader(CONVERSION_CACHE_HEADER_PREFIX + "Misses",
+        String.valueOf(conversionCache.getMisses()));
+    response.appendHeader(CONVERSION_CACHE_HEADER_PREFIX + "Hit-Ratio",
+        String.format(Locale.ROOT, "%.3f", conversionCache.getHitRatio()));
+    response.appendHeader(CONVERSION_CACHE_HEADER_PREFIX + "Evictions",
+        String.valueOf(conversionCache.getEvictions()));
+    response.appendHeader(CONVERSION_CACHE_HEADER_PREFIX + "Bytes",
+        conversionCache.getSizeBytes() + "/" + conversionCache.getMaxBytes());
+  }
+
+  /**
+   * Converts the contents of the messages to convert of an {@link ExecutionStream} as they stream:
+   * each content is converted as it is read, into a {@link ContentSpool} holding up to
+   * MAX_BUFFERED_CONTENT_BYTES in memory and the rest in a temporary file. The results are written
+   * once every conversion succeeded, so a failed conversion can still be answered with ABORT, and
+   * once the callout has sent its whole request, which it does before reading the response.
+   * Streamed contents do not go through the {@link ConversionCache} or {@link ConversionPool}.
+   *
+   * @param request HTTP request holding an execution stream.
+   * @param response HttpResponse to write an execution stream with the converted content to.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
+   */
+  private void serviceExecutionStream(HttpRequest request, HttpResponse response)
+      throws IOException, XMLStreamException {
+    ExecutionStream.Reader reader = new ExecutionStream.Reader(request.getInputStream());
+    Execute.Execution execution = reader.readExecution();
+    if (PolicyChain.isPolicyChain(execution)) {
+      throw new IllegalArgumentException("policy_chain cannot be combined with content streaming");
+    }
+    validateExecution(execution);
+    Map<String, Execute.Message.FlowMapValue> flowVariables =
+        execution.getMessageContext().getTargetRequestMessage().getFlowVariablesMap();
+    Set<MessageType> messageTypes = getMessageTypes(flowVariables::get);
+    Execute.MessageContext.Builder messageContextBuilder =
+        execution.getMessageContext().toBuilder();
+    for (MessageType messageType : messageTypes) {
+      getMessageBuilder(messageContextBuilder, messageType);
+    }
+    ConversionPlan plan = getConversionPlan(flowVariables::get);
+    Map<MessageType, ContentSpool> converted = new EnumMap<>(MessageType.class);
+    try {
+      convertContents(reader, messageTypes, plan, converted);
+
+      writeConversionCacheHeaders(response);
+      response.setContentType(ExecutionStream.CONTENT_TYPE);
+      ExecutionStream.Writer writer = new ExecutionStream.Writer(response.getOutputStream());
+      writer.writeExecution(setExecutionResult(execution, Action.CONTINUE, null));
+      for (Map.Entry<MessageType, ContentSpool> content : converted.entrySet()) {
+        try (OutputStream contentOutputStream = writer.openContent(content.getKey())) {
+          content.getValue().writeTo(contentOutputStream);
+        }
+      }
+      writer.flush();
+    } finally {
+      for (ContentSpool content : converted.values()) {
+        content.close();
+      }
+    }
+  }
+
+  /**
+   * Converts the contents of messages from an {@link ExecutionStream.Reader} as they are read,
+   * skipping the others. Reading stops as soon as a content is larger than the size limit of the
+   * plan.
+   *
+   * @param reader Reader positioned after the Execution.
+   * @param messageTypes Messages to convert the content of.
+   * @param plan Conversion to apply to the contents.
+   * @param converted Map to put the converted contents in, including those converted before a
+   *     conversion failed so that the caller can close them. Messages sent without content are
+   *     converted from empty content.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
+   */
+  private static void convertContents(ExecutionStream.Reader reader,
+      Set<MessageType> messageTypes, ConversionPlan plan, Map<MessageType, ContentSpool> converted)
+      throws IOException, XMLStreamException {
+    for (MessageType messageType; (messageType = reader.nextContent()) != null; ) {
+      if (messageTypes.contains(messageType)) {
+        convertContent(reader.getContent(), messageType, plan, converted);
+      }
+    }
+    for (MessageType messageType : messageTypes) {
+      if (!converted.containsKey(messageType)) {
+        convertContent(new ByteArrayInputStream(new byte[0]), messageType, plan, converted);
+      }
+    }
+  }
+
+  private static void convertContent(InputStream content, MessageType messageType,
+      ConversionPlan plan, Map<MessageType, ContentSpool> converted)
+      throws IOException, XMLStreamException {
+    ContentSpool spool = new ContentSpool(MAX_BUFFERED_CONTENT_BYTES);
+    ContentSpool previous = converted.put(messageType, spool);
+    if (previous != null) {
+      previous.close();
+    }
+    plan.convert(content, spool, MAX_BUFFERED_CONTENT_BYTES);
+  }
+
+  /**
+   * Converts the contents of the messages to convert and continues.
+   *
+   * @param execution Execute.Execution object from caller.
+   * @return Execute.Execution object with converted content and a CONTINUE ExecutionResult.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
+   */
+  @Override
+  public Execute.Execution execute(Execute.Execution execution)
+      throws IOException, XMLStreamException {
+    return setExecutionResult(convert(execution), Action.CONTINUE, null);
+  }
+
   /**
    * Delegates conversion of XML to JSON or JSON to XML depending on CONVERSION_FLOW_VARIABLE
    * value.
    *
    * @param execution Execute.Execution object from caller.
-   * @return Execute.Execution object with converted content inside Target Request Message.
-   * @throws Exception
+   * @return Execute.Execution object with converted content inside the messages to convert.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
    */
   private Execute.Execution convert(Execute.Execution execution)
-      throws UnsupportedEncodingException {
+      throws IOException, XMLStreamException {
     validateExecution(execution);
-    String conversion = execution.getMessageContext().getTargetRequestMessage()
-        .getFlowVariablesMap().get(CONVERSION_FLOW_VARIABLE).getFlowVariable();
-    String content = execution.getMessageContext().getTargetRequestMessage().getContent()
-        .toStringUtf8();
-    if (XML_TO_JSON.equals(conversion)) {
-      execution = xmlToJson(execution, content);
-    } else if (JSON_TO_XML.equals(conversion)) {
-      execution = jsonToXml(execution, content);
-    } else {
-      throw new IllegalArgumentException("invalid conversion value: " + conversion);
+    Map<String, Execute.Message.FlowMapValue> flowVariables =
+        execution.getMessageContext().getTargetRequestMessage().getFlowVariablesMap();
+    Set<MessageType> messageTypes = getMessageTypes(flowVariables::get);
+    Execute.Execution.Builder executionBuilder = execution.toBuilder();
+    List<Execute.Message.Builder> messageBuilders = new ArrayList<>(messageTypes.size());
+    List<ByteString> contents = new ArrayList<>(messageTypes.size());
+    for (MessageType messageType : messageTypes) {
+      Execute.Message.Builder messageBuilder =
+          getMessageBuilder(executionBuilder.getMessageContextBuilder(), messageType);
+      messageBuilders.add(messageBuilder);
+      contents.add(messageBuilder.getContent());
+    }
+    List<ByteString> converted =
+        conversionPool.convert(contents, convertWith(getConversionPlan(flowVariables::get)));
+    for (int i = 0; i < messageBuilders.size(); i++) {
+      messageBuilders.get(i).setContent(converted.get(i));
     }
-    return execution;
+    return executionBuilder.build();
   }
 
   /**
-   * Converts XML content to JSON.
+   * Converts the contents of messages of a {@link LazyExecution} in place. Only the contents of
+   * the converted messages and the {@link #DECODED_FLOW_VARIABLES} are decoded.
    *
-   * @param execution Execute.Execution object to write to.
-   * @param content   String content to convert.
-   * @return Execute.Execution object with converted content.
-   * @throws UnsupportedEncodingException
+   * @param lazyExecution LazyExecution decoding {@link #DECODED_MESSAGES}, the messages to convert
+   *                      and {@link #DECODED_FLOW_VARIABLES}.
+   * @param messageTypes  Messages to convert, read from the Target Request Message.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
    */
-  private Execute.Execution xmlToJson(Execute.Execution execution, String content)
-      throws UnsupportedEncodingException {
-    Execute.Execution.Builder executionBuilder = execution.toBuilder();
-    JSONObject jsonObject = XML.toJSONObject(content);
-    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
-        .setContent(ByteString.copyFrom(jsonObject.toString(), "UTF-8"));
-    return executionBuilder.build();
+  private void convert(LazyExecution lazyExecution, Set<MessageType> messageTypes)
+      throws IOException, XMLStreamException {
+    LazyExecution.Message targetRequestMessage = getTargetRequestMessage(lazyExecution);
+    List<LazyExecution.Message> messages = new ArrayList<>(messageTypes.size());
+    List<ByteString> contents = new ArrayList<>(messageTypes.size());
+    for (MessageType messageType : messageTypes) {
+      LazyExecution.Message message = lazyExecution.getMessage(messageType);
+      if (message == null) {
+        throw missingMessage(messageType);
+      }
+      messages.add(message);
+      contents.add(message.getContent());
+    }
+    List<ByteString> converted = conversionPool.convert(
+        contents, convertWith(getConversionPlan(targetRequestMessage::getFlowVariable)));
+    for (int i = 0; i < messages.size(); i++) {
+      messages.get(i).setContent(converted.get(i));
+    }
+  }
+
+  /**
+   * @param lazyExecution LazyExecution decoding the Target Request Message.
+   * @return Target Request Message, holding the flow variables of the conversion
+   * @throws IllegalArgumentException if the MessageContext or Target Request Message is missing
+   */
+  private LazyExecution.Message getTargetRequestMessage(LazyExecution lazyExecution) {
+    if (!lazyExecution.hasMessageContext()) {
+      throw new IllegalArgumentException("missing MessageContext");
+    }
+    LazyExecution.Message targetRequestMessage =
+        lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    if (targetRequestMessage == null) {
+      throw missingMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    }
+    return targetRequestMessage;
+  }
+
+  /**
+   * @param messageContextBuilder MessageContext holding the message.
+   * @param messageType Message to return.
+   * @return Builder of the message
+   * @throws IllegalArgumentException if the message is missing
+   */
+  private Execute.Message.Builder getMessageBuilder(
+      Execute.MessageContext.Builder messageContextBuilder, MessageType messageType) {
+    switch (messageType) {
+      case TARGET_REQUEST_MESSAGE:
+        if (messageContextBuilder.hasTargetRequestMessage()) {
+          return messageContextBuilder.getTargetRequestMessageBuilder();
+        }
+        break;
+      case PROXY_REQUEST_MESSAGE:
+        if (messageContextBuilder.hasProxyRequestMessage()) {
+          return messageContextBuilder.getProxyRequestMessageBuilder();
+        }
+        break;
+      case TARGET_RESPONSE_MESSAGE:
+        if (messageContextBuilder.hasTargetResponseMessage()) {
+          return messageContextBuilder.getTargetResponseMessageBuilder();
+        }
+        break;
+      case PROXY_RESPONSE_MESSAGE:
+        if (messageContextBuilder.hasProxyResponseMessage()) {
+          return messageContextBuilder.getProxyResponseMessageBuilder();
+        }
+        break;
+      case ERROR_MESSAGE:
+        if (messageContextBuilder.hasErrorMessage()) {
+          return messageContextBuilder.getErrorMessageBuilder();
+        }
+        break;
+      default:
+        break;
+    }
+    throw missingMessage(messageType);
+  }
+
+  private static IllegalArgumentException missingMessage(MessageType messageType) {
+    return new IllegalArgumentException("missing " + messageType.name().toLowerCase(Locale.ROOT));
   }
 
   /**
-   * Converts JSON content to XML.
+   * Reads the messages to convert from the MESSAGES_FLOW_VARIABLE flow variable of the Target
+   * Request Message of a {@link LazyExecution}.
    *
-   * @param execution Execute.Execution object to write to.
-   * @param content   String content to convert.
-   * @return Execute.Execution object with converted content.
-   * @throws UnsupportedEncodingException
+   * @param lazyExecution LazyExecution decoding {@link #DECODED_MESSAGES}.
+   * @return Messages to convert, in the order of MessageType
+   * @throws IllegalArgumentException if the MessageContext or Target Request Message is missing,
+   *     or the flow variable names an unknown message
    */
-  private Execute.Execution jsonToXml(Execute.Execution execution, String content)
-      throws UnsupportedEncodingException {
-    Execute.Execution.Builder executionBuilder = execution.toBuilder();
-    JSONObject jsonObject = new JSONObject(content);
-    String xml = XML.toString(jsonObject);
-    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
-        .setContent(ByteString.copyFrom(xml, "UTF-8"));
-    return executionBuilder.build();
+  private Set<MessageType> getMessageTypes(LazyExecution lazyExecution) {
+    return getMessageTypes(getTargetRequestMessage(lazyExecution)::getFlowVariable);
+  }
+
+  /**
+   * Reads the messages to convert from the MESSAGES_FLOW_VARIABLE flow variable: comma-separated
+   * field names of the MessageContext, the Target Request Message if it is not set.
+   *
+   * @param flowVariables Flow variables of the Target Request Message, null when not set.
+   * @return Messages to convert, in the order of MessageType
+   * @throws IllegalArgumentException if the flow variable names an unknown message
+   */
+  private Set<MessageType> getMessageTypes(
+      Function<String, Execute.Message.FlowMapValue> flowVariables) {
+    String messages = getFlowVariable(flowVariables.apply(MESSAGES_FLOW_VARIABLE));
+    if (messages.trim().isEmpty()) {
+      return DECODED_MESSAGES;
+    }
+    Set<MessageType> messageTypes = EnumSet.noneOf(MessageType.class);
+    for (String message : messages.split(",")) {
+      MessageType messageType;
+      try {
+        messageType = MessageType.valueOf(message.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        messageType = MessageType.UNRECOGNIZED;
+      }
+      if (messageType == MessageType.MESSAGE_TYPE_UNSPECIFIED
+          || messageType == MessageType.UNRECOGNIZED) {
+        throw new IllegalArgumentException("invalid " + MESSAGES_FLOW_VARIABLE + " value: "
+            + messages);
+      }
+      messageTypes.add(messageType);
+    }
+    return messageTypes;
+  }
+
+  /**
+   * Converts XML content to JSON or JSON content to XML with {@link XmlJsonConverter}, which reads
+   * the content as it is parsed and builds no document tree. Content converted before with the
+   * same plan is answered from the {@link ConversionCache} without being parsed. Content larger
+   * than the size limit of the plan is rejected before it is hashed.
+   *
+   * @param plan       Conversion and its options.
+   * @param content    UTF-8 content to convert.
+   * @return Converted content.
+   * @throws IOException
+   * @throws XMLStreamException if XML content is not well-formed
+   */
+  private ByteString convert(ConversionPlan plan, ByteString content)
+      throws IOException, XMLStreamException {
+    plan.checkBytes(content.size());
+    return conversionCache.convert(plan.getFingerprint(), content, plan::convert);
+  }
+
+  /**
+   * @param plan Conversion and its options.
+   * @return Conversion of content with the plan through the {@link ConversionCache}, run by the
+   *     {@link ConversionPool}
+   */
+  private ConversionCache.Converter convertWith(ConversionPlan plan) {
+    return content -> convert(plan, content);
+  }
+
+  /**
+   * Reads the conversion to apply from the CONVERSION_FLOW_VARIABLE flow variable, and its options
+   * from the {@link ConversionPlan#OPTION_FLOW_VARIABLES}.
+   *
+   * @param flowVariables Flow variables of the Target Request Message, null when not set.
+   * @return ConversionPlan, compiled once per distinct conversion and options.
+   * @throws IllegalArgumentException if the conversion or an option is not valid
+   */
+  private ConversionPlan getConversionPlan(
+      Function<String, Execute.Message.FlowMapValue> flowVariables) {
+    return ConversionPlan.of(
+        getFlowVariable(flowVariables.apply(CONVERSION_FLOW_VARIABLE)),
+        name -> getFlowVariable(flowVariables.apply(name)));
+  }
+
+  /**
+   * @param value Value of a flow variable, may be null.
+   * @return Value, empty if the flow variable is not set.
+   */
+  private String getFlowVariable(Execute.Message.FlowMapValue value) {
+    return value == null ? "" : value.getFlowVariable();
   }
 
   /**
@@ -150,7 +584,10 @@ public class XmlJsonConversion implements HttpFunction {
     Execute.Execution.Builder executionBuilder = execution.toBuilder();
     Execute.ExecutionResult.Builder resultBuilder = executionBuilder.getExecutionResultBuilder();
     resultBuilder.setAction(action);
-    if (throwable != null) {
+    if (throwable instanceof LimitExceededException) {
+      // Names the limit, such as "depth exceeds conversion.max_depth 32".
+      resultBuilder.setErrorResponse(throwable.getMessage());
+    } else if (throwable != null) {
       resultBuilder.setErrorResponse(throwable.toString());
     }
     return executionBuilder.build();
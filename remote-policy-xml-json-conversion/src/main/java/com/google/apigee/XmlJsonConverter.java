@@ -0,0 +1,1132 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.json.XML;
+
+/**
+ * Converts XML to JSON and JSON to XML with the semantics of {@link XML#toJSONObject(String)} and
+ * {@link XML#toString(Object)}, without building a {@link JSONObject} of the document. Content is
+ * read from a ByteString or a stream with a pull parser and the result is written as UTF-8 into a
+ * ByteString or a stream.
+ *
+ * <p>XML is read with StAX in two passes. The first records, per element, whether its JSON value
+ * is an empty string, the value of its only member or an object, and for each member the number
+ * of members of the same name, which become a JSON array. The second pass writes the JSON. An
+ * element whose repeated names are not adjacent, which org.json still gathers into one array, is
+ * built as a JSONObject by the same rules as org.json and written as a whole.
+ *
+ * <p>JSON is read with {@link JSONTokener}, so it is parsed as leniently and fails with the same
+ * errors as {@link JSONObject}, and XML is written as it is read. Object members are written in
+ * the order of the document rather than in the hash order of a JSONObject.
+ */
+final class XmlJsonConverter {
+
+  /** Name org.json gives to the text of an element that has other members. */
+  private static final String CONTENT = "content";
+  /** Name org.json gives to the elements of an array that is not the value of a member. */
+  private static final String ARRAY = "array";
+  /** Property of the JDK StAX implementation reporting CDATA sections apart from text. */
+  private static final String REPORT_CDATA_EVENT =
+      "http://java.sun.com/xml/stream/properties/report-cdata-event";
+  /** Property of the JDK StAX implementation reusing a closed reader for the next document. */
+  private static final String REUSE_INSTANCE = "reuse-instance";
+  /** Factories per thread, each reusing its reader and the buffers it holds. */
+  private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORIES =
+      ThreadLocal.withInitial(XmlJsonConverter::newXmlInputFactory);
+
+  /** Plans without options, converting as org.json does. */
+  private static final ConversionPlan XML_TO_JSON_PLAN =
+      ConversionPlan.of(ConversionPlan.XML_TO_JSON, name -> null);
+  private static final ConversionPlan JSON_TO_XML_PLAN =
+      ConversionPlan.of(ConversionPlan.JSON_TO_XML, name -> null);
+
+  private XmlJsonConverter() {}
+
+  /**
+   * Converts XML to JSON as {@code XML.toJSONObject(xml).toString()} does. Text before the first
+   * tag is skipped and content without a tag converts to an empty object, as with org.json.
+   *
+   * @param xml UTF-8 XML document.
+   * @return UTF-8 JSON object.
+   * @throws XMLStreamException if the document is not well-formed XML
+   */
+  static ByteString xmlToJson(ByteString xml) throws IOException, XMLStreamException {
+    return xmlToJson(xml, XML_TO_JSON_PLAN);
+  }
+
+  /**
+   * Converts XML to JSON as {@link #xmlToJson(ByteString)} does, with the options of a plan.
+   *
+   * @param xml UTF-8 XML document.
+   * @param plan Options of the conversion.
+   * @return UTF-8 JSON object.
+   * @throws XMLStreamException if the document is not well-formed XML
+   */
+  static ByteString xmlToJson(ByteString xml, ConversionPlan plan)
+      throws IOException, XMLStreamException {
+    int start = indexOf(xml, '<');
+    Utf8Writer writer = new Utf8Writer(xml.size());
+    if (start < 0) {
+      writer.write("{}");
+    } else {
+      ByteString document = xml.substring(start);
+      new JsonWriter(
+              new XmlMembers(document.newInput(), plan),
+              Shape.of(document.newInput(), plan),
+              plan,
+              writer)
+          .writeDocument();
+    }
+    return writer.toByteString();
+  }
+
+  /**
+   * Converts XML to JSON as {@link #xmlToJson(ByteString, ConversionPlan)} does, reading the XML
+   * once per pass as it is parsed and writing the JSON as it is converted, so that neither is held
+   * in memory whole.
+   *
+   * @param xml UTF-8 XML document, opened once per pass.
+   * @param plan Options of the conversion.
+   * @param json Stream the UTF-8 JSON object is written to, flushed but not closed.
+   * @throws XMLStreamException if the document is not well-formed XML
+   */
+  static void xmlToJson(Source xml, ConversionPlan plan, OutputStream json)
+      throws IOException, XMLStreamException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(json, StandardCharsets.UTF_8));
+    try (InputStream shapeInput = xml.open();
+        InputStream memberInput = xml.open()) {
+      InputStream shapeDocument = skipTo(shapeInput, '<');
+      if (shapeDocument == null) {
+        writer.write("{}");
+      } else {
+        new JsonWriter(
+                new XmlMembers(skipTo(memberInput, '<'), plan),
+                Shape.of(shapeDocument, plan),
+                plan,
+                writer)
+            .writeDocument();
+      }
+    }
+    writer.flush();
+  }
+
+  /**
+   * Converts a JSON object to XML as {@code XML.toString(new JSONObject(json))} does. Content after
+   * the object is ignored, as with org.json.
+   *
+   * @param json UTF-8 JSON object.
+   * @return UTF-8 XML.
+   * @throws org.json.JSONException if the content is not a JSON object
+   */
+  static ByteString jsonToXml(ByteString json) throws IOException {
+    return jsonToXml(json, JSON_TO_XML_PLAN);
+  }
+
+  /**
+   * Converts a JSON object to XML as {@link #jsonToXml(ByteString)} does, with the options of a
+   * plan.
+   *
+   * @param json UTF-8 JSON object.
+   * @param plan Options of the conversion.
+   * @return UTF-8 XML.
+   * @throws org.json.JSONException if the content is not a JSON object
+   */
+  static ByteString jsonToXml(ByteString json, ConversionPlan plan) throws IOException {
+    Utf8Writer writer = new Utf8Writer(json.size());
+    new XmlWriter(
+            new JSONTokener(new InputStreamReader(json.newInput(), StandardCharsets.UTF_8)),
+            plan,
+            writer)
+        .writeObject(plan.rootName());
+    return writer.toByteString();
+  }
+
+  /**
+   * Converts a JSON object to XML as {@link #jsonToXml(ByteString, ConversionPlan)} does, writing
+   * the XML as the JSON is read. Content after the object is not read.
+   *
+   * @param json UTF-8 JSON object, not closed.
+   * @param plan Options of the conversion.
+   * @param xml Stream the UTF-8 XML is written to, flushed but not closed.
+   * @throws org.json.JSONException if the content is not a JSON object
+   */
+  static void jsonToXml(InputStream json, ConversionPlan plan, OutputStream xml)
+      throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(xml, StandardCharsets.UTF_8));
+    new XmlWriter(
+            new JSONTokener(new InputStreamReader(json, StandardCharsets.UTF_8)), plan, writer)
+        .writeObject(plan.rootName());
+    writer.flush();
+  }
+
+  /** Content read from its start once per pass of a conversion. */
+  @FunctionalInterface
+  interface Source {
+    /** @return New stream of the content from its start */
+    InputStream open() throws IOException;
+  }
+
+  /** @return Stream positioned at the first byte c, or null if there is none */
+  private static InputStream skipTo(InputStream inputStream, char c) throws IOException {
+    InputStream buffered = new BufferedInputStream(inputStream);
+    for (; ; ) {
+      buffered.mark(1);
+      int b = buffered.read();
+      if (b == -1) {
+        return null;
+      }
+      if (b == c) {
+        buffered.reset();
+        return buffered;
+      }
+    }
+  }
+
+  private static int indexOf(ByteString byteString, char c) {
+    for (int i = 0; i < byteString.size(); i++) {
+      if (byteString.byteAt(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static XMLInputFactory newXmlInputFactory() {
+    XMLInputFactory xmlInputFactory = XMLInputFactory.newDefaultFactory();
+    // Names are kept qualified, and namespace declarations are attributes, as with org.json.
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    xmlInputFactory.setProperty(REPORT_CDATA_EVENT, true);
+    xmlInputFactory.setProperty(REUSE_INSTANCE, true);
+    return xmlInputFactory;
+  }
+
+  /**
+   * Pulls the members org.json gives each element: its attributes, its text segments, and its
+   * child elements. Text is split where org.json splits it, at tags, comments, processing
+   * instructions and CDATA sections, and trimmed; CDATA is kept as it is. Elements and members are
+   * numbered in document order, so two passes over a document refer to them by the same numbers.
+   * Names and values are given as the options of a {@link ConversionPlan} make them, and their
+   * lengths are checked against its limits.
+   */
+  private static final class XmlMembers {
+    static final int START = 0;
+    static final int TEXT = 1;
+    static final int END = 2;
+    static final int END_DOCUMENT = 3;
+
+    private final XMLStreamReader reader;
+    private final ConversionPlan plan;
+    private final StringBuilder text = new StringBuilder();
+    /** Indexes in the reader of the attributes of the last START that are kept. */
+    private int[] attributes = new int[8];
+    private int attributeCount;
+    private boolean pending;
+    private int element = -1;
+    private int nextMember;
+    private int member;
+    private int startOffset = -1;
+    private boolean selfClosing;
+    private Object value;
+
+    XmlMembers(InputStream document, ConversionPlan plan) throws XMLStreamException {
+      reader =
+          XML_INPUT_FACTORIES.get().createXMLStreamReader(document, StandardCharsets.UTF_8.name());
+      this.plan = plan;
+    }
+
+    /** @return START, TEXT, END or END_DOCUMENT */
+    int next() throws XMLStreamException {
+      text.setLength(0);
+      for (; ; ) {
+        int event;
+        if (pending) {
+          pending = false;
+          event = reader.getEventType();
+        } else {
+          event = reader.next();
+        }
+        if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+          text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          continue;
+        }
+        if (text.length() > 0) {
+          String segment = trim(text);
+          text.setLength(0);
+          if (!segment.isEmpty()) {
+            plan.checkStringLength(segment.length());
+            // Handled by the next call.
+            pending = true;
+            member = nextMember++;
+            value = plan.coerceValues() ? XML.stringToValue(segment) : segment;
+            return TEXT;
+          }
+        }
+        switch (event) {
+          case XMLStreamConstants.START_ELEMENT:
+            element++;
+            plan.checkStringLength(reader.getLocalName().length());
+            member = nextMember;
+            keepAttributes();
+            nextMember += 1 + attributeCount;
+            startOffset = reader.getLocation().getCharacterOffset();
+            return START;
+          case XMLStreamConstants.END_ELEMENT:
+            // The JDK parser reports both tags of <a/> at the same offset.
+            selfClosing = reader.getLocation().getCharacterOffset() == startOffset;
+            return END;
+          case XMLStreamConstants.CDATA:
+            if (reader.getTextLength() > 0) {
+              plan.checkStringLength(reader.getTextLength());
+              member = nextMember++;
+              value = reader.getText();
+              return TEXT;
+            }
+            break;
+          case XMLStreamConstants.END_DOCUMENT:
+            reader.close();
+            return END_DOCUMENT;
+          default:
+            break;
+        }
+      }
+    }
+
+    /** @return Number of the element of the last START. */
+    int element() {
+      return element;
+    }
+
+    /** @return Number of the member of the last START or TEXT. */
+    int member() {
+      return member;
+    }
+
+    /** @return Name of the element of the last START. */
+    String name() {
+      return plan.name(reader.getLocalName());
+    }
+
+    /** @return Value of the last TEXT, converted as org.json converts text but CDATA. */
+    Object value() {
+      return value;
+    }
+
+    /** @return Whether the element of the last END was an empty-element tag. */
+    boolean selfClosing() {
+      return selfClosing;
+    }
+
+    int attributeCount() {
+      return attributeCount;
+    }
+
+    /** @return JSON name of an attribute of the last START. */
+    String attributeName(int index) {
+      return plan.attributeKey(plan.name(qualifiedAttributeName(attributes[index])));
+    }
+
+    Object attributeValue(int index) {
+      String value = reader.getAttributeValue(attributes[index]);
+      return plan.coerceValues() ? XML.stringToValue(value) : value;
+    }
+
+    /** @return Number of the member of an attribute of the last START. */
+    int attributeMember(int index) {
+      return member + 1 + index;
+    }
+
+    private void keepAttributes() {
+      attributeCount = 0;
+      for (int i = 0; i < reader.getAttributeCount(); i++) {
+        String name = qualifiedAttributeName(i);
+        if (!plan.isDroppedAttribute(name)) {
+          plan.checkStringLength(name.length());
+          plan.checkStringLength(reader.getAttributeValue(i).length());
+          if (attributeCount == attributes.length) {
+            attributes = Arrays.copyOf(attributes, attributeCount * 2);
+          }
+          attributes[attributeCount++] = i;
+        }
+      }
+    }
+
+    private String qualifiedAttributeName(int readerIndex) {
+      String prefix = reader.getAttributePrefix(readerIndex);
+      String localName = reader.getAttributeLocalName(readerIndex);
+      return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /** Trims text as XMLTokener.nextContent does, skipping whitespace and then trimming. */
+    private static String trim(StringBuilder text) {
+      int start = 0;
+      int end = text.length();
+      while (start < end && Character.isWhitespace(text.charAt(start))) {
+        start++;
+      }
+      while (start < end && text.charAt(start) <= ' ') {
+        start++;
+      }
+      while (start < end && text.charAt(end - 1) <= ' ') {
+        end--;
+      }
+      return text.substring(start, end);
+    }
+  }
+
+  /**
+   * JSON layout of each element of a document, found by a first pass. The depth, entries and
+   * arrays of the document are checked against the limits of the plan in this pass, before
+   * anything is written.
+   */
+  private static final class Shape {
+    /** The element has no members and converts to an empty string. */
+    static final int EMPTY = 0;
+    /** The element converts to the value of its only member, which is named content. */
+    static final int UNWRAP = 1;
+    /** The element converts to an object whose repeated names are adjacent. */
+    static final int OBJECT = 2;
+    /** The element is built as a JSONObject, as org.json builds it. */
+    static final int TREE = 3;
+
+    private final ConversionPlan plan;
+    private int[] kinds = new int[64];
+    private int[] groupSizes = new int[256];
+
+    private Shape(ConversionPlan plan) {
+      this.plan = plan;
+    }
+
+    static Shape of(InputStream document, ConversionPlan plan) throws XMLStreamException {
+      Shape shape = new Shape(plan);
+      XmlMembers members = new XmlMembers(document, plan);
+      // Frames are reused by depth, the document being the frame at depth 0.
+      Frame[] frames = {new Frame(), new Frame()};
+      int depth = 0;
+      for (int event; (event = members.next()) != XmlMembers.END_DOCUMENT; ) {
+        switch (event) {
+          case XmlMembers.START:
+            if (++depth == frames.length) {
+              frames = Arrays.copyOf(frames, frames.length * 2);
+            }
+            plan.checkDepth(depth);
+            if (frames[depth] == null) {
+              frames[depth] = new Frame();
+            }
+            Frame frame = frames[depth];
+            frame.reset(members.element(), members.name(), members.member());
+            for (int i = 0; i < members.attributeCount(); i++) {
+              shape.addMember(frame, members.attributeName(i), members.attributeMember(i), false);
+            }
+            break;
+          case XmlMembers.TEXT:
+            shape.addMember(frames[depth], CONTENT, members.member(), false);
+            break;
+          default:
+            Frame ended = frames[depth--];
+            boolean arrayValued = shape.end(ended, members.selfClosing());
+            shape.addMember(frames[depth], ended.name, ended.member, arrayValued);
+            break;
+        }
+      }
+      return shape;
+    }
+
+    int kind(int element) {
+      return kinds[element];
+    }
+
+    /** @return Number of members named as this one, if it is the first of them. */
+    int groupSize(int member) {
+      return groupSizes[member];
+    }
+
+    private void addMember(Frame frame, String key, int member, boolean arrayValued) {
+      if (member >= groupSizes.length) {
+        groupSizes = Arrays.copyOf(groupSizes, Math.max(member + 1, groupSizes.length * 2));
+      }
+      frame.members++;
+      frame.lastArrayValued = arrayValued;
+      if (frame.keys > 0 && key.equals(frame.keyNames[frame.keys - 1])) {
+        plan.checkArrayLength(++groupSizes[frame.keyFirsts[frame.keys - 1]]);
+        return;
+      }
+      for (int i = 0; i < frame.keys - 1; i++) {
+        if (key.equals(frame.keyNames[i])) {
+          frame.adjacent = false;
+          plan.checkArrayLength(++groupSizes[frame.keyFirsts[i]]);
+          return;
+        }
+      }
+      frame.addKey(key, member);
+      plan.checkObjectEntries(frame.keys);
+      groupSizes[member] = 1;
+    }
+
+    /** @return Whether the element converts to a JSON array. */
+    private boolean end(Frame frame, boolean selfClosing) {
+      if (frame.element >= kinds.length) {
+        kinds = Arrays.copyOf(kinds, Math.max(frame.element + 1, kinds.length * 2));
+      }
+      boolean arrayValued = false;
+      int kind;
+      if (frame.members == 0) {
+        kind = EMPTY;
+      } else if (!selfClosing && frame.keys == 1 && CONTENT.equals(frame.keyNames[0])) {
+        arrayValued = frame.members > 1 || frame.lastArrayValued;
+        kind = arrayValued ? TREE : UNWRAP;
+      } else {
+        kind = frame.adjacent ? OBJECT : TREE;
+      }
+      kinds[frame.element] = kind;
+      return arrayValued;
+    }
+
+    /**
+     * Members of an open element so far. Distinct names are kept in the order they appear, with
+     * the number of their first member; once repeated names are not adjacent the element is
+     * built as a tree, so the last name is the only one a member can continue.
+     */
+    private static final class Frame {
+      int element;
+      String name;
+      int member;
+      int members;
+      int keys;
+      String[] keyNames = new String[4];
+      int[] keyFirsts = new int[4];
+      boolean lastArrayValued;
+      boolean adjacent;
+
+      void reset(int element, String name, int member) {
+        this.element = element;
+        this.name = name;
+        this.member = member;
+        members = 0;
+        Arrays.fill(keyNames, 0, keys, null);
+        keys = 0;
+        lastArrayValued = false;
+        adjacent = true;
+      }
+
+      void addKey(String key, int first) {
+        if (keys == keyNames.length) {
+          keyNames = Arrays.copyOf(keyNames, keys * 2);
+          keyFirsts = Arrays.copyOf(keyFirsts, keys * 2);
+        }
+        keyNames[keys] = key;
+        keyFirsts[keys] = first;
+        keys++;
+      }
+    }
+  }
+
+  /** Second pass over a document, writing its JSON. */
+  private static final class JsonWriter {
+    private final XmlMembers members;
+    private final Shape shape;
+    private final ConversionPlan plan;
+    private final Writer writer;
+
+    JsonWriter(XmlMembers members, Shape shape, ConversionPlan plan, Writer writer) {
+      this.members = members;
+      this.shape = shape;
+      this.plan = plan;
+      this.writer = writer;
+    }
+
+    void writeDocument() throws IOException, XMLStreamException {
+      writer.write('{');
+      for (int event; (event = members.next()) != XmlMembers.END_DOCUMENT; ) {
+        if (event == XmlMembers.START) {
+          String name = members.name();
+          JSONObject.quote(plan.rootName() == null ? name : plan.rootName(), writer);
+          writer.write(':');
+          if (plan.isArrayElement(name)) {
+            writer.write('[');
+            writeElement(false);
+            writer.write(']');
+          } else {
+            writeElement(true);
+          }
+        }
+      }
+      writer.write('}');
+    }
+
+    /**
+     * Writes the value of the element of the last START, up to its END.
+     *
+     * @param alone Whether no other member of its parent has its name, so org.json wraps an array
+     *     value in another array.
+     */
+    private void writeElement(boolean alone) throws IOException, XMLStreamException {
+      int attributeCount = members.attributeCount();
+      switch (shape.kind(members.element())) {
+        case Shape.EMPTY:
+          writer.write("\"\"");
+          expectEnd();
+          break;
+        case Shape.UNWRAP:
+          if (attributeCount == 1) {
+            writeScalar(members.attributeValue(0));
+          } else if (members.next() == XmlMembers.TEXT) {
+            writeScalar(members.value());
+          } else {
+            writeElement(true);
+          }
+          expectEnd();
+          break;
+        case Shape.OBJECT:
+          writeObject();
+          break;
+        default:
+          Object value = buildElement();
+          if (alone && value instanceof JSONArray) {
+            writer.write('[');
+            ((JSONArray) value).write(writer);
+            writer.write(']');
+          } else {
+            writeValue(value);
+          }
+          break;
+      }
+    }
+
+    private void writeObject() throws IOException, XMLStreamException {
+      writer.write('{');
+      ObjectMembers objectMembers = new ObjectMembers();
+      for (int i = 0; i < members.attributeCount(); i++) {
+        objectMembers.next(members.attributeName(i), members.attributeMember(i), false);
+        writeScalar(members.attributeValue(i));
+      }
+      for (int event; (event = members.next()) != XmlMembers.END; ) {
+        if (event == XmlMembers.TEXT) {
+          objectMembers.next(CONTENT, members.member(), false);
+          writeScalar(members.value());
+        } else {
+          String name = members.name();
+          objectMembers.next(name, members.member(), plan.isArrayElement(name));
+          writeElement(!objectMembers.array);
+        }
+      }
+      if (objectMembers.array) {
+        writer.write(']');
+      }
+      writer.write('}');
+    }
+
+    /** Builds the value of the element of the last START as XML.parse does. */
+    private Object buildElement() throws XMLStreamException {
+      JSONObject jsonObject = new JSONObject();
+      for (int i = 0; i < members.attributeCount(); i++) {
+        jsonObject.accumulate(members.attributeName(i), members.attributeValue(i));
+      }
+      for (int event; (event = members.next()) != XmlMembers.END; ) {
+        if (event == XmlMembers.TEXT) {
+          jsonObject.accumulate(CONTENT, members.value());
+        } else if (plan.isArrayElement(members.name())) {
+          jsonObject.append(members.name(), buildElement());
+        } else {
+          jsonObject.accumulate(members.name(), buildElement());
+        }
+      }
+      if (jsonObject.length() == 0) {
+        return "";
+      }
+      if (!members.selfClosing() && jsonObject.length() == 1 && jsonObject.opt(CONTENT) != null) {
+        return jsonObject.opt(CONTENT);
+      }
+      return jsonObject;
+    }
+
+    private void expectEnd() throws XMLStreamException {
+      if (members.next() != XmlMembers.END) {
+        throw new IllegalStateException("element has more members than the first pass found");
+      }
+    }
+
+    private void writeScalar(Object value) throws IOException {
+      if (value instanceof String) {
+        JSONObject.quote((String) value, writer);
+      } else {
+        writer.write(JSONObject.valueToString(value));
+      }
+    }
+
+    private void writeValue(Object value) throws IOException {
+      if (value instanceof JSONObject) {
+        ((JSONObject) value).write(writer);
+      } else if (value instanceof JSONArray) {
+        ((JSONArray) value).write(writer);
+      } else {
+        writeScalar(value);
+      }
+    }
+
+    /**
+     * Separates the members of an object and opens and closes the arrays of repeated names and of
+     * names always converted to arrays.
+     */
+    private final class ObjectMembers {
+      private String key;
+      /** Whether the members named key are in an array. */
+      private boolean array;
+
+      void next(String key, int member, boolean alwaysArray) throws IOException {
+        if (key.equals(this.key)) {
+          writer.write(',');
+          return;
+        }
+        if (this.key != null) {
+          if (array) {
+            writer.write(']');
+          }
+          writer.write(',');
+        }
+        this.key = key;
+        array = alwaysArray || shape.groupSize(member) > 1;
+        JSONObject.quote(key, writer);
+        writer.write(':');
+        if (array) {
+          writer.write('[');
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes XML as {@link XML#toString(Object)} does while reading JSON from a JSONTokener, with
+   * the options of a {@link ConversionPlan}. Objects and arrays are checked against the limits of
+   * the plan as they are read, and values once the tokener has read them.
+   */
+  private static final class XmlWriter {
+    private final JSONTokener tokener;
+    private final ConversionPlan plan;
+    private final Writer writer;
+    /** Number of objects and arrays being read. */
+    private int depth;
+
+    XmlWriter(JSONTokener tokener, ConversionPlan plan, Writer writer) {
+      this.tokener = tokener;
+      this.plan = plan;
+      this.writer = writer;
+    }
+
+    /**
+     * Reads an object as JSONObject does and writes its members.
+     *
+     * @param tagName Element to write the members in, or null to write them alone.
+     */
+    void writeObject(String tagName) throws IOException {
+      if (tokener.nextClean() != '{') {
+        throw tokener.syntaxError("A JSONObject text must begin with '{'");
+      }
+      plan.checkDepth(++depth);
+      // The start tag is left open for attributes until the first other member.
+      boolean startTagOpen = false;
+      if (tagName != null) {
+        writer.write('<');
+        writer.write(tagName);
+        startTagOpen = true;
+      }
+      Set<String> keys = new HashSet<>();
+      for (; ; ) {
+        char c = tokener.nextClean();
+        if (c == 0) {
+          throw tokener.syntaxError("A JSONObject text must end with '}'");
+        }
+        if (c == '}') {
+          break;
+        }
+        tokener.back();
+        String key = nextValue().toString();
+        if (tokener.nextClean() != ':') {
+          throw tokener.syntaxError("Expected a ':' after a key");
+        }
+        if (!keys.add(key)) {
+          throw tokener.syntaxError("Duplicate key \"" + key + "\"");
+        }
+        plan.checkObjectEntries(keys.size());
+        boolean attribute = plan.isAttributeKey(key);
+        String name = plan.withoutAttributePrefix(key);
+        char next = peek();
+        if (plan.isDroppedAttribute(name)) {
+          nextValue();
+        } else if (attribute && startTagOpen && next != '{' && next != '[') {
+          writeAttribute(plan.name(name), nextValue());
+        } else {
+          if (startTagOpen) {
+            writer.write('>');
+            startTagOpen = false;
+          }
+          writeMember(plan.name(name));
+        }
+        c = tokener.nextClean();
+        if (c == ',' || c == ';') {
+          if (tokener.nextClean() == '}') {
+            break;
+          }
+          tokener.back();
+        } else if (c == '}') {
+          break;
+        } else {
+          throw tokener.syntaxError("Expected a ',' or '}'");
+        }
+      }
+      if (startTagOpen) {
+        writer.write('>');
+      }
+      if (tagName != null) {
+        writeEndTag(tagName);
+      }
+      depth--;
+    }
+
+    private void writeAttribute(String name, Object value) throws IOException {
+      writer.write(' ');
+      writer.write(name);
+      writer.write("=\"");
+      escape(value.toString());
+      writer.write('"');
+    }
+
+    private void writeMember(String key) throws IOException {
+      char c = peek();
+      if (CONTENT.equals(key)) {
+        // Text of the enclosing element, with the elements of an array on separate lines.
+        Object value = nextValue();
+        if (value instanceof JSONArray) {
+          JSONArray jsonArray = (JSONArray) value;
+          for (int i = 0; i < jsonArray.length(); i++) {
+            if (i > 0) {
+              writer.write('\n');
+            }
+            escape(jsonArray.opt(i).toString());
+          }
+        } else {
+          escape(value.toString());
+        }
+      } else if (c == '[') {
+        writeArray(key, true);
+      } else {
+        writeValue(key);
+      }
+    }
+
+    /**
+     * Writes the next value in an element.
+     *
+     * @param tagName Element to write the value in, or null to write it alone.
+     */
+    private void writeValue(String tagName) throws IOException {
+      char c = peek();
+      if (c == '{') {
+        writeObject(tagName);
+      } else if (c == '[') {
+        writeArray(tagName == null ? ARRAY : tagName, false);
+      } else {
+        writeScalar(tagName, nextValue());
+      }
+    }
+
+    /**
+     * Reads an array as JSONArray does and writes each of its elements in an element.
+     *
+     * @param tagName Element to write each array element in.
+     * @param member Whether the array is the value of an object member named tagName, whose
+     *     nested arrays are written in that element rather than one per array element.
+     */
+    private void writeArray(String tagName, boolean member) throws IOException {
+      if (tokener.nextClean() != '[') {
+        throw tokener.syntaxError("A JSONArray text must start with '['");
+      }
+      plan.checkDepth(++depth);
+      writeElements(tagName, member);
+      depth--;
+    }
+
+    /** Writes the elements of an array whose opening bracket has been read. */
+    private void writeElements(String tagName, boolean member) throws IOException {
+      char c = tokener.nextClean();
+      if (c == 0) {
+        throw tokener.syntaxError("Expected a ',' or ']'");
+      }
+      if (c == ']') {
+        return;
+      }
+      tokener.back();
+      for (int length = 1; ; length++) {
+        plan.checkArrayLength(length);
+        c = tokener.nextClean();
+        tokener.back();
+        if (c == ',') {
+          writeScalar(tagName, JSONObject.NULL);
+        } else if (member && c == '[') {
+          writeStartTag(tagName);
+          writeValue(null);
+          writeEndTag(tagName);
+        } else {
+          writeValue(tagName);
+        }
+        c = tokener.nextClean();
+        if (c == ',') {
+          c = tokener.nextClean();
+          if (c == 0) {
+            throw tokener.syntaxError("Expected a ',' or ']'");
+          }
+          if (c == ']') {
+            return;
+          }
+          tokener.back();
+        } else if (c == ']') {
+          return;
+        } else {
+          throw tokener.syntaxError("Expected a ',' or ']'");
+        }
+      }
+    }
+
+    /**
+     * Reads the next value with the tokener, which builds strings, objects and arrays in full
+     * before their limits can be checked.
+     */
+    private Object nextValue() {
+      Object value = tokener.nextValue();
+      checkValue(value, depth);
+      return value;
+    }
+
+    private void checkValue(Object value, int depth) {
+      if (value instanceof String) {
+        plan.checkStringLength(((String) value).length());
+      } else if (value instanceof JSONObject) {
+        JSONObject jsonObject = (JSONObject) value;
+        plan.checkDepth(depth + 1);
+        plan.checkObjectEntries(jsonObject.length());
+        for (String key : jsonObject.keySet()) {
+          plan.checkStringLength(key.length());
+          checkValue(jsonObject.opt(key), depth + 1);
+        }
+      } else if (value instanceof JSONArray) {
+        JSONArray jsonArray = (JSONArray) value;
+        plan.checkDepth(depth + 1);
+        plan.checkArrayLength(jsonArray.length());
+        for (Object element : jsonArray) {
+          checkValue(element, depth + 1);
+        }
+      }
+    }
+
+    private void writeScalar(String tagName, Object value) throws IOException {
+      String string = value.toString();
+      if (tagName == null) {
+        writer.write('"');
+        escape(string);
+        writer.write('"');
+      } else if (string.isEmpty()) {
+        writer.write('<');
+        writer.write(tagName);
+        writer.write("/>");
+      } else {
+        writeStartTag(tagName);
+        escape(string);
+        writeEndTag(tagName);
+      }
+    }
+
+    /** Writes text escaped as {@link XML#escape} does, without building it first. */
+    private void escape(String string) throws IOException {
+      for (int i = 0; i < string.length(); ) {
+        int codePoint = string.codePointAt(i);
+        i += Character.charCount(codePoint);
+        switch (codePoint) {
+          case '&':
+            writer.write("&amp;");
+            break;
+          case '<':
+            writer.write("&lt;");
+            break;
+          case '>':
+            writer.write("&gt;");
+            break;
+          case '"':
+            writer.write("&quot;");
+            break;
+          case '\'':
+            writer.write("&apos;");
+            break;
+          default:
+            if (mustEscape(codePoint)) {
+              writer.write("&#x");
+              writer.write(Integer.toHexString(codePoint));
+              writer.write(';');
+            } else if (Character.isBmpCodePoint(codePoint)) {
+              writer.write(codePoint);
+            } else {
+              writer.write(Character.highSurrogate(codePoint));
+              writer.write(Character.lowSurrogate(codePoint));
+            }
+            break;
+        }
+      }
+    }
+
+    /** @return Whether a code point is a control or not a valid XML character, as in XML. */
+    private static boolean mustEscape(int codePoint) {
+      return (Character.isISOControl(codePoint)
+              && codePoint != '\t'
+              && codePoint != '\n'
+              && codePoint != '\r')
+          || !((codePoint >= 0x20 && codePoint <= 0xD7FF)
+              || (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+              || (codePoint >= 0x10000 && codePoint <= 0x10FFFF));
+    }
+
+    private char peek() {
+      char c = tokener.nextClean();
+      tokener.back();
+      return c;
+    }
+
+    private void writeStartTag(String tagName) throws IOException {
+      writer.write('<');
+      writer.write(tagName);
+      writer.write('>');
+    }
+
+    private void writeEndTag(String tagName) throws IOException {
+      writer.write("</");
+      writer.write(tagName);
+      writer.write('>');
+    }
+  }
+
+  /**
+   * Encodes UTF-8 into chunks that become a ByteString without being copied, unlike an
+   * OutputStreamWriter into a ByteString.Output, which also locks on every write.
+   */
+  private static final class Utf8Writer extends Writer {
+    private static final int MIN_CHUNK_SIZE = 256;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private ByteString written = ByteString.EMPTY;
+    private byte[] chunk;
+    private int position;
+    private char highSurrogate;
+
+    /** @param sizeHint Expected size of the output, such as the size of the input. */
+    Utf8Writer(int sizeHint) {
+      chunk = new byte[Math.min(Math.max(sizeHint, MIN_CHUNK_SIZE), MAX_CHUNK_SIZE)];
+    }
+
+    @Override
+    public void write(int c) {
+      char ch = (char) c;
+      if (highSurrogate != 0) {
+        char high = highSurrogate;
+        highSurrogate = 0;
+        if (Character.isLowSurrogate(ch)) {
+          int codePoint = Character.toCodePoint(high, ch);
+          ensureCapacity(4);
+          chunk[position++] = (byte) (0xF0 | codePoint >>> 18);
+          chunk[position++] = (byte) (0x80 | (codePoint >>> 12 & 0x3F));
+          chunk[position++] = (byte) (0x80 | (codePoint >>> 6 & 0x3F));
+          chunk[position++] = (byte) (0x80 | (codePoint & 0x3F));
+          return;
+        }
+        // Unpaired surrogates are replaced, as an OutputStreamWriter replaces them.
+        write('?');
+      }
+      if (ch < 0x80) {
+        ensureCapacity(1);
+        chunk[position++] = (byte) ch;
+      } else if (ch < 0x800) {
+        ensureCapacity(2);
+        chunk[position++] = (byte) (0xC0 | ch >>> 6);
+        chunk[position++] = (byte) (0x80 | (ch & 0x3F));
+      } else if (Character.isHighSurrogate(ch)) {
+        highSurrogate = ch;
+      } else if (Character.isLowSurrogate(ch)) {
+        write('?');
+      } else {
+        ensureCapacity(3);
+        chunk[position++] = (byte) (0xE0 | ch >>> 12);
+        chunk[position++] = (byte) (0x80 | (ch >>> 6 & 0x3F));
+        chunk[position++] = (byte) (0x80 | (ch & 0x3F));
+      }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      for (int i = off; i < off + len; i++) {
+        write(str.charAt(i));
+      }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    /** @return Bytes written, ending with a replacement of an unpaired surrogate. */
+    ByteString toByteString() {
+      if (highSurrogate != 0) {
+        highSurrogate = 0;
+        write('?');
+      }
+      return written.concat(UnsafeByteOperations.unsafeWrap(chunk, 0, position));
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (position + bytes > chunk.length) {
+        written = written.concat(UnsafeByteOperations.unsafeWrap(chunk, 0, position));
+        chunk = new byte[Math.min(Math.max(chunk.length, written.size() / 2), MAX_CHUNK_SIZE)];
+        position = 0;
+      }
+    }
+  }
+}
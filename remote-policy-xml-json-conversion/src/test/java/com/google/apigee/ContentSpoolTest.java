@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+public class ContentSpoolTest {
+
+  @Test
+  public void testBufferedContent() throws Exception {
+    byte[] content = randomBytes(100);
+    Set<Path> before = tempFiles();
+    try (ContentSpool spool = new ContentSpool(101)) {
+      spool.copyFrom(new ByteArrayInputStream(content));
+      spool.write(7);
+
+      assertEquals(101, spool.size());
+      assertEquals(before, tempFiles());
+      assertContent(content, 7, spool);
+    }
+  }
+
+  @Test
+  public void testSpilledContentIsDeletedOnClose() throws Exception {
+    byte[] content = randomBytes(100_000);
+    Set<Path> before = tempFiles();
+    try (ContentSpool spool = new ContentSpool(1000)) {
+      spool.copyFrom(new ByteArrayInputStream(content));
+      spool.write(7);
+
+      assertEquals(100_001, spool.size());
+      assertEquals(before.size() + 1, tempFiles().size());
+      assertContent(content, 7, spool);
+    }
+    assertEquals(before, tempFiles());
+  }
+
+  private static void assertContent(byte[] content, int last, ContentSpool spool)
+      throws Exception {
+    byte[] expected = new byte[content.length + 1];
+    System.arraycopy(content, 0, expected, 0, content.length);
+    expected[content.length] = (byte) last;
+    // Content is read any number of times.
+    for (int i = 0; i < 2; i++) {
+      try (InputStream inputStream = spool.newInputStream()) {
+        assertArrayEquals(expected, inputStream.readAllBytes());
+      }
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    spool.writeTo(outputStream);
+    assertArrayEquals(expected, outputStream.toByteArray());
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static Set<Path> tempFiles() throws Exception {
+    try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+      return files
+          .filter(file -> file.getFileName().toString().startsWith("xml-json-conversion"))
+          .collect(Collectors.toSet());
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ConversionCacheTest {
+
+  /** Key 00 01 .. 0f of the SipHash reference vectors. */
+  private static final long KEY0 = 0x0706050403020100L;
+  private static final long KEY1 = 0x0f0e0d0c0b0a0908L;
+
+  @Test
+  public void testKeyMatchesSipHashVectors() {
+    // SipHash-2-4 128-bit outputs for the messages "" and 00 in the reference implementation.
+    assertHash("a3817f04ba25a8e66df67214c7550293", ByteString.EMPTY);
+    assertHash("da87c1d86b99af44347659119b22fc45", ByteString.copyFrom(new byte[] {0}));
+  }
+
+  @Test
+  public void testKeyOfRopeMatchesFlatContent() {
+    byte[] bytes = new byte[100];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    ByteString flat = ByteString.copyFrom(bytes);
+    for (int split = 0; split <= bytes.length; split++) {
+      ByteString rope =
+          ByteString.copyFrom(bytes, 0, split)
+              .concat(ByteString.copyFrom(bytes, split, bytes.length - split));
+      assertEquals(
+          String.valueOf(split),
+          ConversionCache.key(KEY0, KEY1, "xmltojson", flat),
+          ConversionCache.key(KEY0, KEY1, "xmltojson", rope));
+    }
+  }
+
+  @Test
+  public void testKeyIncludesConversion() {
+    ByteString content = ByteString.copyFromUtf8("<a>1</a>");
+
+    assertNotEquals(
+        ConversionCache.key(KEY0, KEY1, "xmltojson", content),
+        ConversionCache.key(KEY0, KEY1, "jsontoxml", content));
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(1024, false);
+    AtomicInteger conversions = new AtomicInteger();
+    ConversionCache.Converter converter =
+        content -> {
+          conversions.incrementAndGet();
+          return ByteString.copyFromUtf8(content.toStringUtf8().toUpperCase());
+        };
+
+    assertEquals(
+        "ABC", conversionCache.convert("up", ByteString.copyFromUtf8("abc"), converter)
+            .toStringUtf8());
+    assertEquals(
+        "ABC", conversionCache.convert("up", ByteString.copyFromUtf8("abc"), converter)
+            .toStringUtf8());
+
+    assertEquals(1, conversions.get());
+    assertEquals(1, conversionCache.getHits());
+    assertEquals(1, conversionCache.getMisses());
+    assertEquals(0.5, conversionCache.getHitRatio(), 0);
+    assertEquals(1, conversionCache.getEntryCount());
+    assertEquals(3, conversionCache.getSizeBytes());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(8, false);
+    ConversionCache.Converter converter = content -> content;
+
+    conversionCache.convert("same", ByteString.copyFromUtf8("aaaa"), converter);
+    conversionCache.convert("same", ByteString.copyFromUtf8("bbbb"), converter);
+    conversionCache.convert("same", ByteString.copyFromUtf8("aaaa"), converter);
+    conversionCache.convert("same", ByteString.copyFromUtf8("cccc"), converter);
+
+    assertEquals(1, conversionCache.getEvictions());
+    assertEquals(8, conversionCache.getSizeBytes());
+    conversionCache.convert("same", ByteString.copyFromUtf8("aaaa"), converter);
+    assertEquals(2, conversionCache.getHits());
+    conversionCache.convert("same", ByteString.copyFromUtf8("bbbb"), converter);
+    assertEquals(2, conversionCache.getHits());
+  }
+
+  @Test
+  public void testDoesNotCacheLargerThanBound() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(4, false);
+
+    conversionCache.convert("same", ByteString.copyFromUtf8("abcde"), content -> content);
+
+    assertEquals(0, conversionCache.getEntryCount());
+    assertEquals(0, conversionCache.getEvictions());
+  }
+
+  @Test
+  public void testDoesNotCacheFailedConversion() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(1024, false);
+    ByteString content = ByteString.copyFromUtf8("<a>");
+    for (int i = 0; i < 2; i++) {
+      try {
+        conversionCache.convert(
+            "xmltojson", content,
+            invalid -> {
+              throw new IllegalArgumentException("invalid");
+            });
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals("invalid", e.getMessage());
+      }
+    }
+
+    assertEquals(2, conversionCache.getMisses());
+    assertEquals(0, conversionCache.getEntryCount());
+  }
+
+  @Test
+  public void testOffHeap() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(1024, true);
+    ByteString content = ByteString.copyFromUtf8("<a>1</a>");
+
+    ByteString converted =
+        conversionCache.convert("xmltojson", content, XmlJsonConverter::xmlToJson);
+    ByteString cached =
+        conversionCache.convert("xmltojson", content, XmlJsonConverter::xmlToJson);
+
+    assertEquals("{\"a\":1}", converted.toStringUtf8());
+    assertEquals(converted, cached);
+    ByteBuffer buffer = cached.asReadOnlyByteBuffer();
+    assertTrue(buffer.isDirect());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    ConversionCache conversionCache = new ConversionCache(0, false);
+    AtomicInteger conversions = new AtomicInteger();
+
+    for (int i = 0; i < 2; i++) {
+      conversionCache.convert(
+          "same", ByteString.copyFromUtf8("a"),
+          content -> {
+            conversions.incrementAndGet();
+            return content;
+          });
+    }
+
+    assertEquals(2, conversions.get());
+    assertEquals(0, conversionCache.getHits());
+    assertEquals(0, conversionCache.getMisses());
+    assertFalse(conversionCache.getHitRatio() > 0);
+  }
+
+  private static void assertHash(String expected, ByteString content) {
+    ConversionCache.Key key = ConversionCache.key(KEY0, KEY1, "xmltojson", content);
+    ByteBuffer hash = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    hash.putLong(key.hash0).putLong(key.hash1);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : hash.array()) {
+      hex.append(String.format("%02x", b));
+    }
+    assertEquals(expected, hex.toString());
+  }
+}
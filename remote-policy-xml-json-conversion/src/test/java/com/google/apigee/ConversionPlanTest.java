@@ -0,0 +1,231 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class ConversionPlanTest {
+
+  @Test
+  public void testPlansAreCachedByOptions() {
+    ConversionPlan plan = plan(ConversionPlan.XML_TO_JSON, "conversion.attribute_prefix", "@");
+
+    assertSame(plan, plan(ConversionPlan.XML_TO_JSON, "conversion.attribute_prefix", "@"));
+    assertNotEquals(
+        plan.getFingerprint(),
+        plan(ConversionPlan.XML_TO_JSON, "conversion.attribute_prefix", "_").getFingerprint());
+    assertNotEquals(
+        plan.getFingerprint(),
+        plan(ConversionPlan.JSON_TO_XML, "conversion.attribute_prefix", "@").getFingerprint());
+  }
+
+  @Test
+  public void testInvalidOptions() {
+    try {
+      plan("invalid");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("invalid conversion value: invalid", e.getMessage());
+    }
+    try {
+      plan(ConversionPlan.XML_TO_JSON, "conversion.coerce_values", "no");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("invalid conversion.coerce_values value: no", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testArrayElements() throws Exception {
+    ConversionPlan plan =
+        plan(ConversionPlan.XML_TO_JSON, "conversion.array_elements", "a, b ,c");
+
+    assertEquals("{\"a\":[{\"b\":[1]}]}", convert(plan, "<a><b>1</b></a>"));
+    assertEquals("{\"x\":{\"b\":[1,2],\"d\":3}}", convert(plan, "<x><b>1</b><b>2</b><d>3</d></x>"));
+    assertEquals("{\"x\":{\"c\":[\"\"]}}", convert(plan, "<x><c/></x>"));
+    assertTrue(
+        new JSONObject("{\"x\":{\"b\":[1,2],\"c\":[\"\"]}}")
+            .similar(new JSONObject(convert(plan, "<x><b>1</b><c/><b>2</b></x>"))));
+  }
+
+  @Test
+  public void testStripNamespaces() throws Exception {
+    assertEquals(
+        "{\"Envelope\":{\"Body\":{\"id\":1,\"Item\":[\"Apples\",\"Pears\"]}}}",
+        convert(
+            plan(ConversionPlan.XML_TO_JSON, "conversion.strip_namespaces", "true"),
+            "<soap:Envelope xmlns:soap=\"urn:soap\"><soap:Body xmlns=\"urn:x\" m:id=\"1\">"
+                + "<m:Item>Apples</m:Item><m:Item>Pears</m:Item></soap:Body></soap:Envelope>"));
+    assertEquals(
+        "<a><b>2</b></a>",
+        convert(
+            plan(ConversionPlan.JSON_TO_XML, "conversion.strip_namespaces", "true"),
+            "{\"ns:a\":{\"xmlns:ns\":\"urn:x\",\"ns:b\":2}}"));
+  }
+
+  @Test
+  public void testAttributePrefix() throws Exception {
+    ConversionPlan xmlToJson =
+        plan(ConversionPlan.XML_TO_JSON, "conversion.attribute_prefix", "@");
+    ConversionPlan jsonToXml =
+        plan(ConversionPlan.JSON_TO_XML, "conversion.attribute_prefix", "@");
+
+    assertEquals("{\"a\":{\"@id\":1,\"content\":\"x\"}}", convert(xmlToJson, "<a id=\"1\">x</a>"));
+    assertEquals("{\"a\":{\"@content\":5}}", convert(xmlToJson, "<a content=\"5\"/>"));
+    assertEquals(
+        "<a id=\"1\" t=\"&lt;&quot;\"><b>2</b><c>3</c></a>",
+        convert(jsonToXml, "{\"a\":{\"@id\":1,\"@t\":\"<\\\"\",\"b\":2,\"@c\":3}}"));
+    assertEquals("<a id=\"1\"></a><b>2</b>", convert(jsonToXml, "{\"a\":{\"@id\":1},\"@b\":2}"));
+    assertEquals("<a><o><p>1</p></o></a>", convert(jsonToXml, "{\"a\":{\"@o\":{\"p\":1}}}"));
+    String xml = "<a id=\"1\"><b x=\"y\">2</b></a>";
+    assertEquals(xml, convert(jsonToXml, convert(xmlToJson, xml)));
+  }
+
+  @Test
+  public void testCoerceValues() throws Exception {
+    assertEquals(
+        "{\"a\":{\"id\":\"1\",\"b\":\"2\",\"c\":\"true\",\"d\":\"\"}}",
+        convert(
+            plan(ConversionPlan.XML_TO_JSON, "conversion.coerce_values", "false"),
+            "<a id=\"1\"><b>2</b><c>true</c><d/></a>"));
+  }
+
+  @Test
+  public void testRootName() throws Exception {
+    assertEquals(
+        "{\"root\":{\"b\":1}}",
+        convert(
+            plan(ConversionPlan.XML_TO_JSON, "conversion.root_name", "root"), "<a><b>1</b></a>"));
+    assertEquals(
+        "<root><a>1</a></root>",
+        convert(plan(ConversionPlan.JSON_TO_XML, "conversion.root_name", "root"), "{\"a\":1}"));
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    assertLimit("content size exceeds conversion.max_bytes 8",
+        "conversion.max_bytes", "8", "<a>1</a>", "<a>12</a>", "{\"a\":1}", "{\"a\":123}");
+    assertLimit("depth exceeds conversion.max_depth 2",
+        "conversion.max_depth", "2",
+        "<a><b>1</b></a>", "<a><b><c/></b></a>",
+        "{\"a\":{\"b\":1}}", "{\"a\":{\"b\":[1]}}");
+    assertLimit("object entries exceed conversion.max_object_entries 2",
+        "conversion.max_object_entries", "2",
+        "<a id=\"1\"><b>1</b><b>2</b></a>", "<a id=\"1\"><b>1</b><c>2</c></a>",
+        "{\"a\":1,\"b\":[1,2,3]}", "{\"a\":1,\"b\":2,\"c\":3}");
+    assertLimit("array length exceeds conversion.max_array_length 2",
+        "conversion.max_array_length", "2",
+        "<a><b>1</b><c/><b>2</b></a>", "<a><b>1</b><c/><b>2</b><b>3</b></a>",
+        "{\"a\":[1,[2,3]]}", "{\"a\":[1,2,3]}");
+    assertLimit("string length exceeds conversion.max_string_length 3",
+        "conversion.max_string_length", "3",
+        "<abc x=\"abc\">abc</abc>", "<a x=\"abcd\"/>",
+        "{\"abc\":\"abc\"}", "{\"a\":\"abcd\"}");
+    // Values the tokener builds in full, such as the value of content, are checked once built.
+    assertLimit("string length exceeds conversion.max_string_length 7",
+        "conversion.max_string_length", "7",
+        "<a><![CDATA[abcdefg]]></a>", "<a><![CDATA[abcdefgh]]></a>",
+        "{\"a\":{\"content\":{\"b\":\"abcdefg\"}}}",
+        "{\"a\":{\"content\":{\"abcdefgh\":1}}}");
+  }
+
+  @Test
+  public void testInvalidLimit() {
+    for (String value : new String[] {"0", "-1", "many"}) {
+      try {
+        plan(ConversionPlan.XML_TO_JSON, "conversion.max_depth", value);
+        fail();
+      } catch (IllegalArgumentException e) {
+        assertEquals("invalid conversion.max_depth value: " + value, e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testLimitBytes() throws Exception {
+    ConversionPlan plan = plan(ConversionPlan.XML_TO_JSON, "conversion.max_bytes", "4");
+    InputStream input = new ByteArrayInputStream(new byte[5]);
+
+    assertSame(input, plan(ConversionPlan.XML_TO_JSON).limitBytes(input));
+    InputStream limited = plan.limitBytes(input);
+    assertEquals(4, limited.read(new byte[4]));
+    try {
+      limited.read();
+      fail();
+    } catch (LimitExceededException e) {
+      assertEquals("content size exceeds conversion.max_bytes 4", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testWithoutOptions() throws Exception {
+    String xml = "<ns:a xmlns:ns=\"urn:x\" id=\"1\"><b>2</b><b>x</b></ns:a>";
+
+    assertEquals(
+        XmlJsonConverter.xmlToJson(ByteString.copyFromUtf8(xml)).toStringUtf8(),
+        convert(plan(ConversionPlan.XML_TO_JSON), xml));
+  }
+
+  /**
+   * Asserts that a limit accepts content at the limit and rejects content over it, in both
+   * directions.
+   */
+  private static void assertLimit(String message, String name, String limit, String xmlAtLimit,
+      String xmlOverLimit, String jsonAtLimit, String jsonOverLimit) throws Exception {
+    ConversionPlan xmlToJson = plan(ConversionPlan.XML_TO_JSON, name, limit);
+    ConversionPlan jsonToXml = plan(ConversionPlan.JSON_TO_XML, name, limit);
+
+    assertEquals(
+        convert(plan(ConversionPlan.XML_TO_JSON), xmlAtLimit), convert(xmlToJson, xmlAtLimit));
+    assertEquals(
+        convert(plan(ConversionPlan.JSON_TO_XML), jsonAtLimit), convert(jsonToXml, jsonAtLimit));
+    for (String[] overLimit :
+        new String[][] {{ConversionPlan.XML_TO_JSON, xmlOverLimit},
+            {ConversionPlan.JSON_TO_XML, jsonOverLimit}}) {
+      try {
+        convert(plan(overLimit[0], name, limit), overLimit[1]);
+        fail(overLimit[1]);
+      } catch (LimitExceededException e) {
+        assertEquals(overLimit[1], message, e.getMessage());
+        assertEquals(overLimit[1], name, e.getLimitName());
+        assertEquals(overLimit[1], Integer.parseInt(limit), e.getLimit());
+      }
+    }
+  }
+
+  private static ConversionPlan plan(String conversion, String... options) {
+    Map<String, String> flowVariables = new HashMap<>();
+    for (int i = 0; i < options.length; i += 2) {
+      flowVariables.put(options[i], options[i + 1]);
+    }
+    return ConversionPlan.of(conversion, flowVariables::get);
+  }
+
+  private static String convert(ConversionPlan plan, String content) throws Exception {
+    return plan.convert(ByteString.copyFromUtf8(content)).toStringUtf8();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+
+public class ConversionPoolTest {
+
+  @Test
+  public void testConvertsLargeContentInParallel() throws Exception {
+    ConversionPool conversionPool = new ConversionPool(2, 4);
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    List<ByteString> converted = conversionPool.convert(
+        Arrays.asList(content("large1"), content("a"), content("large2"), content("large3")),
+        content -> {
+          threads.add(Thread.currentThread());
+          return ByteString.copyFromUtf8(content.toStringUtf8().toUpperCase());
+        });
+
+    assertEquals(
+        Arrays.asList(content("LARGE1"), content("A"), content("LARGE2"), content("LARGE3")),
+        converted);
+    assertTrue(threads.contains(Thread.currentThread()));
+    assertTrue(threads.size() > 1);
+  }
+
+  @Test
+  public void testConvertsOnCallingThread() throws Exception {
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    ConversionCache.Converter converter =
+        content -> {
+          threads.add(Thread.currentThread());
+          return content;
+        };
+
+    new ConversionPool(1, 4)
+        .convert(Arrays.asList(content("large1"), content("large2")), converter);
+    new ConversionPool(2, 4).convert(Arrays.asList(content("large1"), content("a")), converter);
+
+    assertEquals(Set.of(Thread.currentThread()), threads);
+  }
+
+  @Test
+  public void testFailsWithFirstFailure() throws Exception {
+    ConversionPool conversionPool = new ConversionPool(2, 4);
+    try {
+      conversionPool.convert(
+          Arrays.asList(content("large1"), content("large2"), content("large3")),
+          content -> {
+            if (!content.toStringUtf8().equals("large1")) {
+              throw new IllegalArgumentException(content.toStringUtf8());
+            }
+            return content;
+          });
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("large2", e.getMessage());
+    }
+  }
+
+  private static ByteString content(String content) {
+    return ByteString.copyFromUtf8(content);
+  }
+}
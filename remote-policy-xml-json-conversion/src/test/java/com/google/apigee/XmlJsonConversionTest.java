@@ -14,17 +14,25 @@
 
 package com.google.apigee;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import com.google.apigee.Execute.ContentChunk.MessageType;
 import com.google.apigee.Execute.Execution;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.TextFormat;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -100,6 +108,97 @@ public class XmlJsonConversionTest {
         Execution.parseFrom(byteArrayOutputStream.toByteArray()).toBuilder().build());
   }
 
+  @Test
+  public void testServiceReturnsUndecodedFieldsUnchanged() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "    flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "    indexed_headers {"
+            + "      index: 3"
+            + "      values: \"gzip\""
+            + "    }"
+            + "  }"
+            + "  proxy_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "    content_hash: \"unresolved\""
+            + "  }"
+            + "}"
+            + "executionContext {"
+            + "  flow_type: REQUEST"
+            + "}"
+            + "header_encoding: INDEXED",
+        executionBuilder);
+    Execution execution = executionBuilder.build();
+
+    doReturn(execution.toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = execution.toBuilder();
+    expectedBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
+        .setContent(ByteString.copyFromUtf8(CONTENT_JSON.replace("\\", "")));
+    expectedBuilder.getExecutionResultBuilder()
+        .setAction(Execute.ExecutionResult.Action.CONTINUE);
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
+  @Test
+  public void testServicePolicyChain() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + "policy_chain {"
+            + "  policies: \"" + XmlJsonConversion.POLICY_NAME + "\""
+            + "}",
+        executionBuilder);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_JSON + "\""
+            + "    flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + "policy_chain {"
+            + "  policies: \"" + XmlJsonConversion.POLICY_NAME + "\""
+            + "}"
+            + "executionResult {"
+            + "    action: CONTINUE"
+            + "    policy: \"" + XmlJsonConversion.POLICY_NAME + "\""
+            + "}",
+        expectedBuilder);
+
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
   @Test
   public void testServiceJsonToXml() throws Exception {
     Execution.Builder executionBuilder = Execution.newBuilder();
@@ -147,6 +246,442 @@ public class XmlJsonConversionTest {
         Execution.parseFrom(byteArrayOutputStream.toByteArray()).toBuilder().build());
   }
 
+  @Test
+  public void testServiceContentStreamingXmlToJson() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "content_streaming: true "
+            + "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    mockExecutionStream(executionBuilder.build(), CONTENT_XML);
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    verify(httpResponse).setContentType(ExecutionStream.CONTENT_TYPE);
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    Execution actual = reader.readExecution();
+    assertEquals(Execute.ExecutionResult.Action.CONTINUE, actual.getExecutionResult().getAction());
+    assertEquals(
+        ByteString.EMPTY, actual.getMessageContext().getTargetRequestMessage().getContent());
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertEquals(
+        CONTENT_JSON.replace("\\", ""),
+        new String(reader.getContent().readAllBytes(), StandardCharsets.UTF_8));
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testServiceContentStreamingLargeContent() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "content_streaming: true "
+            + "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    StringBuilder xml = new StringBuilder("<catalog>");
+    while (xml.length() <= XmlJsonConversion.MAX_BUFFERED_CONTENT_BYTES) {
+      xml.append("<item><name>Item</name><price>1.25</price></item>");
+    }
+    xml.append("</catalog>");
+    mockExecutionStream(executionBuilder.build(), xml.toString());
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertEquals(
+        Execute.ExecutionResult.Action.CONTINUE,
+        reader.readExecution().getExecutionResult().getAction());
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertEquals(
+        XmlJsonConverter.xmlToJson(ByteString.copyFromUtf8(xml.toString())),
+        ByteString.readFrom(reader.getContent()));
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testServiceContentStreamingInvalidXml() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "content_streaming: true "
+            + "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    mockExecutionStream(executionBuilder.build(), "<sample>");
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertEquals(
+        Execute.ExecutionResult.Action.ABORT,
+        reader.readExecution().getExecutionResult().getAction());
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testServiceContentHash() throws Exception {
+    ContentStore contentStore = new ContentStore(1024);
+    xmlJsonConversion = new XmlJsonConversion(contentStore, new ConversionCache(0, false),
+        new ConversionPool(1, ConversionPool.DEFAULT_MIN_PARALLEL_BYTES));
+    ByteString content = ByteString.copyFromUtf8(CONTENT_XML);
+    ByteString contentHash = ContentStore.hash(content);
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
+        .setContentHash(contentHash);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    assertEquals(
+        Execution.newBuilder().addMissingContentHashes(contentHash).build(),
+        Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+    verify(httpResponse).appendHeader("X-Content-Store-Misses", "1");
+
+    contentStore.put(contentHash, content);
+    byteArrayOutputStream.reset();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution actual = Execution.parseFrom(byteArrayOutputStream.toByteArray());
+    assertEquals(Execute.ExecutionResult.Action.CONTINUE, actual.getExecutionResult().getAction());
+    assertEquals(
+        CONTENT_JSON.replace("\\", ""),
+        actual.getMessageContext().getTargetRequestMessage().getContent().toStringUtf8());
+    assertEquals(
+        ByteString.EMPTY, actual.getMessageContext().getTargetRequestMessage().getContentHash());
+    verify(httpResponse).appendHeader("X-Content-Store-Hits", "1");
+  }
+
+  @Test
+  public void testServiceConversionCache() throws Exception {
+    xmlJsonConversion =
+        new XmlJsonConversion(new ContentStore(0), new ConversionCache(1024, false),
+            new ConversionPool(1, ConversionPool.DEFAULT_MIN_PARALLEL_BYTES));
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+
+    xmlJsonConversion.service(httpRequest, httpResponse);
+    byte[] first = byteArrayOutputStream.toByteArray();
+    byteArrayOutputStream.reset();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    assertArrayEquals(first, byteArrayOutputStream.toByteArray());
+    assertEquals(
+        CONTENT_JSON.replace("\\", ""),
+        Execution.parseFrom(first).getMessageContext().getTargetRequestMessage().getContent()
+            .toStringUtf8());
+    verify(httpResponse, times(2)).appendHeader("X-Conversion-Cache-Misses", "1");
+    verify(httpResponse).appendHeader("X-Conversion-Cache-Hits", "1");
+    verify(httpResponse).appendHeader("X-Conversion-Cache-Hit-Ratio", "0.500");
+  }
+
+  @Test
+  public void testServiceConversionOptions() throws Exception {
+    xmlJsonConversion =
+        new XmlJsonConversion(new ContentStore(0), new ConversionCache(1024, false),
+            new ConversionPool(1, ConversionPool.DEFAULT_MIN_PARALLEL_BYTES));
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"<a id=\\\"1\\\"><b>2</b></a>\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+    assertEquals(
+        "{\"a\":{\"id\":1,\"b\":2}}",
+        Execution.parseFrom(byteArrayOutputStream.toByteArray()).getMessageContext()
+            .getTargetRequestMessage().getContent().toStringUtf8());
+
+    executionBuilder.getMessageContextBuilder().getTargetRequestMessageBuilder()
+        .putFlowVariables(ConversionPlan.ATTRIBUTE_PREFIX_FLOW_VARIABLE,
+            Execute.Message.FlowMapValue.newBuilder().setFlowVariable("@").build())
+        .putFlowVariables(ConversionPlan.ARRAY_ELEMENTS_FLOW_VARIABLE,
+            Execute.Message.FlowMapValue.newBuilder().setFlowVariable("b").build());
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    byteArrayOutputStream.reset();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution actual = Execution.parseFrom(byteArrayOutputStream.toByteArray());
+    assertEquals(Execute.ExecutionResult.Action.CONTINUE, actual.getExecutionResult().getAction());
+    assertEquals(
+        "{\"a\":{\"@id\":1,\"b\":[2]}}",
+        actual.getMessageContext().getTargetRequestMessage().getContent().toStringUtf8());
+    verify(httpResponse, times(2)).appendHeader("X-Conversion-Cache-Hits", "0");
+  }
+
+  @Test
+  public void testServiceMessages() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "   flow_variables {"
+            + "      key: \"conversion.messages\""
+            + "      value {"
+            + "        flow_variable: \"proxy_response_message, target_response_message\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "  target_response_message {"
+            + "    content: \"<a>1</a>\""
+            + "  }"
+            + "  proxy_response_message {"
+            + "    content: \"<b>2</b>\""
+            + "  }"
+            + "}",
+        executionBuilder);
+    Execution execution = executionBuilder.build();
+
+    doReturn(execution.toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = execution.toBuilder();
+    expectedBuilder.getMessageContextBuilder().getTargetResponseMessageBuilder()
+        .setContent(ByteString.copyFromUtf8("{\"a\":1}"));
+    expectedBuilder.getMessageContextBuilder().getProxyResponseMessageBuilder()
+        .setContent(ByteString.copyFromUtf8("{\"b\":2}"));
+    expectedBuilder.getExecutionResultBuilder()
+        .setAction(Execute.ExecutionResult.Action.CONTINUE);
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+
+    byteArrayOutputStream.reset();
+    xmlJsonConversion.execute(execution).writeTo(byteArrayOutputStream);
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
+  @Test
+  public void testServiceContentStreamingMessages() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "content_streaming: true "
+            + "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "   flow_variables {"
+            + "      key: \"conversion.messages\""
+            + "      value {"
+            + "        flow_variable: \"target_request_message,target_response_message\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "  target_response_message {"
+            + "  }"
+            + "}",
+        executionBuilder);
+    ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(requestStream);
+    writer.writeExecution(executionBuilder.build());
+    writer.writeContent(MessageType.TARGET_REQUEST_MESSAGE,
+        new ByteArrayInputStream(CONTENT_XML.getBytes(StandardCharsets.UTF_8)));
+    writer.writeContent(MessageType.TARGET_RESPONSE_MESSAGE,
+        new ByteArrayInputStream("<a>1</a>".getBytes(StandardCharsets.UTF_8)));
+    doReturn(Optional.of(ExecutionStream.CONTENT_TYPE)).when(httpRequest).getContentType();
+    doReturn(new ByteArrayInputStream(requestStream.toByteArray()))
+        .when(httpRequest)
+        .getInputStream();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertEquals(
+        Execute.ExecutionResult.Action.CONTINUE,
+        reader.readExecution().getExecutionResult().getAction());
+    assertEquals(MessageType.TARGET_REQUEST_MESSAGE, reader.nextContent());
+    assertEquals(
+        CONTENT_JSON.replace("\\", ""),
+        new String(reader.getContent().readAllBytes(), StandardCharsets.UTF_8));
+    assertEquals(MessageType.TARGET_RESPONSE_MESSAGE, reader.nextContent());
+    assertEquals(
+        "{\"a\":1}", new String(reader.getContent().readAllBytes(), StandardCharsets.UTF_8));
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testServiceInvalidMessages() throws Exception {
+    assertMessagesAbort("target_response_message,response",
+        "invalid conversion.messages value: target_response_message,response");
+    assertMessagesAbort("message_type_unspecified",
+        "invalid conversion.messages value: message_type_unspecified");
+    assertMessagesAbort("target_response_message", "missing target_response_message");
+  }
+
+  private void assertMessagesAbort(String messages, String errorMessage) throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "   flow_variables {"
+            + "      key: \"conversion.messages\""
+            + "      value {"
+            + "        flow_variable: \"" + messages + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    byteArrayOutputStream.reset();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execute.ExecutionResult executionResult =
+        Execution.parseFrom(byteArrayOutputStream.toByteArray()).getExecutionResult();
+    assertEquals(Execute.ExecutionResult.Action.ABORT, executionResult.getAction());
+    assertEquals(
+        "java.lang.IllegalArgumentException: " + errorMessage,
+        executionResult.getErrorResponse());
+  }
+
+  @Test
+  public void testServiceLimitExceeded() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    content: \"" + CONTENT_XML + "\""
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "   flow_variables {"
+            + "      key: \"" + ConversionPlan.MAX_DEPTH_FLOW_VARIABLE + "\""
+            + "      value {"
+            + "        flow_variable: \"1\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "executionResult {\n"
+            + "  action: ABORT\n"
+            + "  error_response: \"depth exceeds conversion.max_depth 1\"\n"
+            + "}",
+        expectedBuilder);
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
+  @Test
+  public void testServiceContentStreamingLimitExceeded() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "content_streaming: true "
+            + "messageContext {"
+            + "  target_request_message {"
+            + "   flow_variables {"
+            + "      key: \"" + CONVERSION_KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + CONVERSION_VALUE_XML_TO_JSON + "\""
+            + "      }"
+            + "    }"
+            + "   flow_variables {"
+            + "      key: \"" + ConversionPlan.MAX_BYTES_FLOW_VARIABLE + "\""
+            + "      value {"
+            + "        flow_variable: \"16\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}",
+        executionBuilder);
+    mockExecutionStream(executionBuilder.build(), CONTENT_XML);
+    xmlJsonConversion.service(httpRequest, httpResponse);
+
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    Execute.ExecutionResult executionResult = reader.readExecution().getExecutionResult();
+    assertEquals(Execute.ExecutionResult.Action.ABORT, executionResult.getAction());
+    assertEquals(
+        "content size exceeds conversion.max_bytes 16",
+        executionResult.getErrorResponse());
+    assertNull(reader.nextContent());
+  }
+
   @Test
   public void testServiceNoMessageContext() throws Exception {
     Execution.Builder executionBuilder = Execution.newBuilder();
@@ -293,7 +828,10 @@ public class XmlJsonConversionTest {
     TextFormat.merge(
         "executionResult {\n"
             + "  action: ABORT\n"
-            + "  error_response: \"org.json.JSONException: Misplaced \\'<\\' at 6 [character 7 line 1]\"\n"
+            + "  error_response: \"javax.xml.stream.XMLStreamException:"
+            + " ParseError at [row,col]:[1,2]\\n"
+            + "Message: The markup in the document preceding the root element"
+            + " must be well-formed.\"\n"
             + "}",
         expectedBuilder);
 
@@ -319,4 +857,17 @@ public class XmlJsonConversionTest {
         expectedBuilder.build(),
         Execution.parseFrom(byteArrayOutputStream.toByteArray()).toBuilder().build());
   }
+
+  private void mockExecutionStream(Execution execution, String content) throws IOException {
+    ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(requestStream);
+    writer.writeExecution(execution);
+    writer.writeContent(
+        MessageType.TARGET_REQUEST_MESSAGE,
+        new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    doReturn(Optional.of(ExecutionStream.CONTENT_TYPE)).when(httpRequest).getContentType();
+    doReturn(new ByteArrayInputStream(requestStream.toByteArray()))
+        .when(httpRequest)
+        .getInputStream();
+  }
 }
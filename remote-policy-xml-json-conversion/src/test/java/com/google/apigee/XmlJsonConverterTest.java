@@ -0,0 +1,307 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.xml.stream.XMLStreamException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.XML;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compares {@link XmlJsonConverter} with the org.json conversions it replaces. JSON objects are
+ * compared as values, since org.json writes members in hash order; XML is compared by converting
+ * it back to JSON with org.json.
+ */
+public class XmlJsonConverterTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private static final String[] XML_DOCUMENTS = {
+    "<sample><heading>heading</heading><body>message</body></sample>",
+    "<a/>",
+    "<a></a>",
+    "<a>  </a>",
+    "<a>text</a>",
+    "<a>  padded text\n</a>",
+    "<a>1</a>",
+    "<a>-1.5</a>",
+    "<a>1e3</a>",
+    "<a>012</a>",
+    "<a>12345678901234567890</a>",
+    "<a>0x1F</a>",
+    "<a>true</a>",
+    "<a>FALSE</a>",
+    "<a>null</a>",
+    "<a>-</a>",
+    "<a id=\"1\"/>",
+    "<a id=\"1\" name=\"x\"></a>",
+    "<a id=\"1\">text</a>",
+    "<a id=\"\">text</a>",
+    "<a content=\"5\"/>",
+    "<a content=\"5\"></a>",
+    "<a><content>5</content></a>",
+    "<a><content><b>1</b></content></a>",
+    "<a><content>1</content><content>2</content></a>",
+    "<a><b>1</b><b>2</b><b>3</b></a>",
+    "<a><b>1</b><c>x</c><b>2</b></a>",
+    "<a><b>1</b><c/><c/><b>2</b><d/></a>",
+    "<a><b><c>1</c><c>2</c></b><b><c>3</c></b></a>",
+    "<a b=\"1\"><b>2</b></a>",
+    "<a b=\"1\"><c/><b>2</b></a>",
+    "<a>x<b/>y</a>",
+    "<a>x<!-- comment -->y</a>",
+    "<a>x<?pi data?>y</a>",
+    "<a>x<b/></a>",
+    "<a><b/>y</a>",
+    "<a><![CDATA[5]]></a>",
+    "<a><![CDATA[ <b>not markup</b> ]]></a>",
+    "<a><![CDATA[]]></a>",
+    "<a>x<![CDATA[y]]>z</a>",
+    "<a id=\"1\"><![CDATA[5]]></a>",
+    "<a>&lt;&amp;&gt;&quot;&apos;&#65;&#x42;</a>",
+    "<a t=\"&lt;&amp;\">&#xE9;t&#233;</a>",
+    "<a>\u00e9t\u00e9 \u2603 \ud83d\ude00</a>",
+    "<a>\"quoted\" \\ back\tslash</a>",
+    "<ns:a xmlns:ns=\"urn:x\" ns:id=\"1\"><ns:b>2</ns:b></ns:a>",
+    "<a xmlns=\"urn:default\"><b>1</b></a>",
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?><a>1</a>",
+    "<?xml version=\"1.0\"?>\n<!-- before --><a>1</a><!-- after -->\n",
+    "<!DOCTYPE a><a>1</a>",
+    "leading text <a>1</a>",
+    "<a><b><c><d><e>deep</e></d></c></b></a>",
+    "<a><b/><b></b><b>1</b><b x=\"1\"/></a>",
+    "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+        + "<soap:Body><m:GetPrice xmlns:m=\"https://www.w3schools.com/prices\">"
+        + "<m:Item>Apples</m:Item><m:Item>Pears</m:Item></m:GetPrice></soap:Body>"
+        + "</soap:Envelope>",
+  };
+
+  private static final String[] JSON_DOCUMENTS = {
+    "{\"sample\":{\"heading\":\"heading\",\"body\":\"message\"}}",
+    "{}",
+    "{\"a\":\"\"}",
+    "{\"a\":{}}",
+    "{\"a\":null}",
+    "{\"a\":1,\"b\":-1.5,\"c\":1e3,\"d\":12345678901234567890,\"e\":0.1}",
+    "{\"a\":true,\"b\":false}",
+    "{\"a\":\"<&>\\\"'\"}",
+    "{\"a\":\"\\u00e9t\\u00e9 \u2603 \\uD83D\\uDE00\"}",
+    "{\"a\":[1,2,3]}",
+    "{\"a\":[]}",
+    "{\"a\":[{\"b\":1},{\"b\":2}]}",
+    "{\"a\":[[1,2],[3]]}",
+    "{\"a\":[[[1]]]}",
+    "{\"a\":[\"\",null,{}]}",
+    "{\"a\":{\"b\":[1,[2,3]]}}",
+    "{\"a\":{\"content\":\"text\",\"id\":1}}",
+    "{\"a\":{\"content\":[\"x\",\"y\"],\"b\":\"\"}}",
+    "{\"a\":{\"content\":{\"b\":1}}}",
+    "{\"a\":{\"content\":[1,{\"b\":1},[2]]}}",
+    "{\"content\":\"top\"}",
+    "{\"ns:a\":{\"xmlns:ns\":\"urn:x\",\"ns:b\":2}}",
+    "  {\"a\" : 1 , \"b\" : [ 1 , 2 ] }  ",
+    "{a:1,'b':'two',c:[1,,2,],d:3;}",
+    "{\"a\":1} trailing",
+    "{\"a\":[1 2]}",
+  };
+
+  @Test
+  public void testXmlToJsonMatchesOrgJson() throws Exception {
+    for (String xml : XML_DOCUMENTS) {
+      assertSimilar(xml, XML.toJSONObject(xml).toString(), xmlToJson(xml));
+    }
+  }
+
+  @Test
+  public void testXmlToJsonWritesDocumentOrder() throws Exception {
+    assertEquals(
+        "{\"sample\":{\"heading\":\"heading\",\"body\":\"message\"}}",
+        xmlToJson("<sample><heading>heading</heading><body>message</body></sample>"));
+    assertEquals(
+        "{\"a\":{\"id\":1,\"b\":[1,2],\"content\":\"x\",\"c\":\"\"}}",
+        xmlToJson("<a id=\"1\"><b>1</b><b>2</b>x<c/></a>"));
+    assertEquals("{\"a\":{\"content\":5}}", xmlToJson("<a content=\"5\"/>"));
+    assertEquals("{\"a\":\"5\"}", xmlToJson("<a><![CDATA[5]]></a>"));
+  }
+
+  @Test
+  public void testXmlToJsonWithoutTag() throws Exception {
+    assertEquals("{}", xmlToJson(""));
+    assertEquals("{}", xmlToJson(" text only "));
+    assertEquals(XML.toJSONObject("").toString(), xmlToJson(""));
+  }
+
+  @Test
+  public void testXmlToJsonLargeDocument() throws Exception {
+    StringBuilder xml = new StringBuilder("<catalog>");
+    for (int i = 0; i < 5000; i++) {
+      xml.append("<item id=\"").append(i).append("\"><name>Item ").append(i)
+          .append("</name><price>").append(i).append(".25</price><tag>a</tag><tag>b</tag>")
+          .append("<note><![CDATA[").append("x".repeat(i % 100)).append("]]></note></item>");
+    }
+    xml.append("<total>5000</total></catalog>");
+
+    assertSimilar(
+        "catalog", XML.toJSONObject(xml.toString()).toString(), xmlToJson(xml.toString()));
+  }
+
+  @Test
+  public void testXmlToJsonMalformed() throws Exception {
+    for (String xml :
+        new String[] {"<a>", "<a></b>", "<a><b></a>", "0129<<<3>nsd", "<a>&x;</a>"}) {
+      try {
+        xmlToJson(xml);
+        fail(xml);
+      } catch (XMLStreamException e) {
+        // Rejected, as org.json rejects it.
+      }
+    }
+  }
+
+  @Test
+  public void testXmlToJsonDoesNotResolveExternalEntities() throws Exception {
+    File secret = temporaryFolder.newFile("secret.txt");
+    Files.write(secret.toPath(), "secret".getBytes(StandardCharsets.UTF_8));
+    String xml =
+        "<!DOCTYPE a [<!ENTITY e SYSTEM \"" + secret.toURI() + "\">]><a>&e;</a>";
+    try {
+      String json = xmlToJson(xml);
+      assertFalse(json, json.contains("secret"));
+    } catch (XMLStreamException e) {
+      // Rejected without reading the entity.
+    }
+  }
+
+  @Test
+  public void testJsonToXmlMatchesOrgJson() throws Exception {
+    for (String json : JSON_DOCUMENTS) {
+      String expected = XML.toString(new JSONObject(json));
+      String actual = jsonToXml(json);
+      assertSimilar(
+          json,
+          XML.toJSONObject(expected).toString(),
+          XML.toJSONObject(actual).toString());
+    }
+  }
+
+  @Test
+  public void testJsonToXmlSingleMembers() throws Exception {
+    // Objects of one member have a single order, so the XML is the same as org.json's.
+    for (String json :
+        new String[] {
+          "{\"a\":{\"b\":{\"c\":1}}}",
+          "{\"a\":[1,\"\",null,{\"b\":[[1,2],[]]}]}",
+          "{\"a\":{\"content\":[1,2]}}",
+          "{\"a\":\"<&>\"}",
+        }) {
+      assertEquals(json, XML.toString(new JSONObject(json)), jsonToXml(json));
+    }
+  }
+
+  @Test
+  public void testJsonToXmlEscapesAsOrgJson() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (char c = 1; c < Character.MAX_VALUE; c++) {
+      if (!Character.isSurrogate(c)) {
+        text.append(c);
+      }
+    }
+    text.append("\ud83d\ude00\udbff\udfff\ud800\udc00");
+    JSONObject jsonObject = new JSONObject().put("a", text.toString());
+
+    assertEquals(XML.toString(jsonObject), jsonToXml(jsonObject.toString()));
+  }
+
+  @Test
+  public void testJsonToXmlWritesDocumentOrder() throws Exception {
+    assertEquals(
+        "<sample><heading>heading</heading><body>message</body></sample>",
+        jsonToXml("{\"sample\":{\"heading\":\"heading\",\"body\":\"message\"}}"));
+  }
+
+  @Test
+  public void testJsonToXmlErrors() throws Exception {
+    for (String json :
+        new String[] {
+          "", "invalid", "[1]", "{", "{\"a\"}", "{\"a\":1,\"a\":2}", "{\"a\":1 \"b\":2}",
+          "{\"a\":[1}", "{\"a\":[1,", "{\"a\":{\"b\":}}",
+        }) {
+      String expected = null;
+      try {
+        XML.toString(new JSONObject(json));
+        fail(json);
+      } catch (JSONException e) {
+        expected = e.getMessage();
+      }
+      try {
+        jsonToXml(json);
+        fail(json);
+      } catch (JSONException e) {
+        assertEquals(json, expected, e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testStreamsMatchByteStrings() throws Exception {
+    ConversionPlan xmlToJsonPlan = ConversionPlan.of(ConversionPlan.XML_TO_JSON, name -> null);
+    for (String xml : XML_DOCUMENTS) {
+      assertEquals(xml, xmlToJson(xml), streamXmlToJson(xml, xmlToJsonPlan));
+    }
+    assertEquals("{}", streamXmlToJson(" text only ", xmlToJsonPlan));
+    ConversionPlan jsonToXmlPlan = ConversionPlan.of(ConversionPlan.JSON_TO_XML, name -> null);
+    for (String json : JSON_DOCUMENTS) {
+      ByteArrayOutputStream xml = new ByteArrayOutputStream();
+      XmlJsonConverter.jsonToXml(
+          new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), jsonToXmlPlan, xml);
+      assertEquals(json, jsonToXml(json), xml.toString(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static void assertSimilar(String document, String expected, String actual) {
+    assertTrue(
+        document + "\nexpected: " + expected + "\nactual:   " + actual,
+        new JSONObject(expected).similar(new JSONObject(actual)));
+  }
+
+  private static String xmlToJson(String xml) throws Exception {
+    return XmlJsonConverter.xmlToJson(ByteString.copyFromUtf8(xml)).toStringUtf8();
+  }
+
+  private static String streamXmlToJson(String xml, ConversionPlan plan) throws Exception {
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    XmlJsonConverter.xmlToJson(
+        () -> new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), plan, json);
+    return json.toString(StandardCharsets.UTF_8);
+  }
+
+  private static String jsonToXml(String json) throws Exception {
+    return XmlJsonConverter.jsonToXml(ByteString.copyFromUtf8(json)).toStringUtf8();
+  }
+}
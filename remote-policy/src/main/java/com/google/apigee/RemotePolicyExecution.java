@@ -14,17 +14,46 @@
 
 package com.google.apigee;
 
+import com.google.apigee.Execute.ContentChunk.MessageType;
 import com.google.cloud.functions.HttpFunction;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Decodes an Execution Protocol Buffer Message and sets a flow variable before returning to caller.
- * Designed to be deployed as a Google Cloud Function.
+ * Only the Target Request Message is decoded, with {@link LazyExecution}, and every other field is
+ * written back as the bytes it was received as, through {@link ExecutionWriter}. Headers and
+ * content are not read, so indexed header names and content hashes are returned as they were
+ * received, without decoding them with {@link HeaderNameTable} or resolving them from a {@link
+ * ContentStore}. An {@link ExecutionBatch} is answered with a batch of results. An Execution with a
+ * {@link PolicyChain} naming this policy runs it through the chain. Designed to be deployed as a
+ * Google Cloud Function.
  */
-public class RemotePolicyExecution implements HttpFunction {
+public class RemotePolicyExecution implements HttpFunction, RemotePolicy {
+
+  /** Name of this policy in a {@link PolicyChain}. */
+  static final String POLICY_NAME = "RemotePolicyExecution";
+
+  private static final String EXAMPLE_FLOW_VARIABLE = "Example";
+  private static final Execute.Message.FlowMapValue EXAMPLE_FLOW_VARIABLE_VALUE =
+      Execute.Message.FlowMapValue.newBuilder().setFlowVariable("Hello").build();
+  private static final Execute.ExecutionResult CONTINUE =
+      Execute.ExecutionResult.newBuilder()
+          .setAction(Execute.ExecutionResult.Action.CONTINUE)
+          .build();
+  /** Messages of a {@link LazyExecution} this policy changes. */
+  private static final Set<MessageType> DECODED_MESSAGES =
+      EnumSet.of(MessageType.TARGET_REQUEST_MESSAGE);
+
+  private final PolicyChain policyChain =
+      new PolicyChain(Collections.singletonMap(POLICY_NAME, this::execute));
 
   /**
    * Reads and decodes the Execution Protocol Buffer Message and sets a flow variable and returns
@@ -37,32 +66,135 @@ public class RemotePolicyExecution implements HttpFunction {
    */
   @Override
   public void service(HttpRequest request, HttpResponse response) throws IOException {
+    if (request.getContentType().map(ExecutionBatch::isExecutionBatch).orElse(false)) {
+      serviceBatch(request, response);
+      return;
+    }
+    boolean contentStreaming =
+        request.getContentType().map(ExecutionStream::isExecutionStream).orElse(false);
     try {
       InputStream is = request.getInputStream();
+      if (contentStreaming) {
+        // Streamed content is not read, as this policy leaves content unchanged.
+        writeExecution(
+            response, run(new ExecutionStream.Reader(is).readExecution()), contentStreaming);
+        return;
+      }
       byte[] data = is.readAllBytes();
-      Execute.Execution execution = Execute.Execution.parseFrom(data);
-      Execute.Execution.Builder executionBuilder = execution.toBuilder();
-      executionBuilder
-          .getMessageContextBuilder()
-          .getTargetRequestMessageBuilder()
-          .putFlowVariables(
-              "Example",
-              Execute.Message.FlowMapValue.newBuilder().setFlowVariable("Hello").build());
-
-      executionBuilder.setExecutionResult(
-          Execute.ExecutionResult.newBuilder().setAction(Execute.ExecutionResult.Action.CONTINUE));
+      LazyExecution lazyExecution =
+          LazyExecution.parse(data, DECODED_MESSAGES, Collections.emptySet());
+      if (lazyExecution.isPolicyChain()) {
+        writeExecution(response, run(Execute.Execution.parseFrom(data)), contentStreaming);
+        return;
+      }
+      execute(lazyExecution);
+      ExecutionWriter.write(response.getOutputStream(), lazyExecution);
+    } catch (Throwable throwable) {
+      writeExecution(response, abort(throwable), contentStreaming);
+    }
+  }
 
-      execution = executionBuilder.build();
-      response.getOutputStream().write(execution.toByteArray());
+  /**
+   * Executes every Execution of an {@link ExecutionBatch} and answers with a batch of the results.
+   * An Execution that fails is answered with ABORT without failing the others.
+   *
+   * @param request HTTP request holding a batch.
+   * @param response HttpResponse to write the batch of results to.
+   * @throws IOException
+   */
+  private void serviceBatch(HttpRequest request, HttpResponse response) throws IOException {
+    List<byte[]> results = new ArrayList<>();
+    try {
+      for (Execute.Execution execution : ExecutionBatch.read(request.getInputStream())) {
+        Execute.Execution result;
+        try {
+          result = run(execution);
+        } catch (Exception e) {
+          result = abort(e);
+        }
+        results.add(result.toByteArray());
+      }
     } catch (Throwable throwable) {
-      Execute.Execution execution =
-          Execute.Execution.newBuilder()
-              .setExecutionResult(
-                  Execute.ExecutionResult.newBuilder()
-                      .setAction(Execute.ExecutionResult.Action.ABORT)
-                      .setErrorResponse(throwable.toString()))
-              .build();
-      response.getOutputStream().write(execution.toByteArray());
+      results.add(abort(throwable).toByteArray());
+    }
+    response.setContentType(ExecutionBatch.CONTENT_TYPE);
+    ExecutionBatch.write(response.getOutputStream(), results);
+  }
+
+  /**
+   * Runs this policy, through the policy chain if the Execution has one.
+   *
+   * @param execution Execution Protocol Buffer Message received.
+   * @return Execution Protocol Buffer Message to return
+   * @throws Exception if the policy chain names an unknown policy
+   */
+  private Execute.Execution run(Execute.Execution execution) throws Exception {
+    return PolicyChain.isPolicyChain(execution)
+        ? policyChain.execute(execution)
+        : execute(execution);
+  }
+
+  /**
+   * Sets a flow variable on the Target Request Message and continues.
+   *
+   * @param execution Execution Protocol Buffer Message received.
+   * @return Execution Protocol Buffer Message to return
+   */
+  @Override
+  public Execute.Execution execute(Execute.Execution execution) {
+    Execute.Execution.Builder executionBuilder = execution.toBuilder();
+    executionBuilder
+        .getMessageContextBuilder()
+        .getTargetRequestMessageBuilder()
+        .putFlowVariables(EXAMPLE_FLOW_VARIABLE, EXAMPLE_FLOW_VARIABLE_VALUE);
+
+    executionBuilder.setExecutionResult(CONTINUE);
+    return executionBuilder.build();
+  }
+
+  /**
+   * Sets a flow variable on the Target Request Message and continues, like {@link
+   * #execute(Execute.Execution)}, without decoding anything else of the Execution.
+   *
+   * @param lazyExecution Execution received, decoding the Target Request Message.
+   */
+  private void execute(LazyExecution lazyExecution) {
+    LazyExecution.Message targetRequestMessage =
+        lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    if (targetRequestMessage == null) {
+      // Setting the flow variable below creates the Target Request Message.
+      lazyExecution.addMessage(MessageType.TARGET_REQUEST_MESSAGE);
+      targetRequestMessage = lazyExecution.getMessage(MessageType.TARGET_REQUEST_MESSAGE);
+    }
+    targetRequestMessage.putFlowVariable(EXAMPLE_FLOW_VARIABLE, EXAMPLE_FLOW_VARIABLE_VALUE);
+    lazyExecution.setExecutionResult(CONTINUE);
+  }
+
+  private Execute.Execution abort(Throwable throwable) {
+    return Execute.Execution.newBuilder()
+        .setExecutionResult(
+            Execute.ExecutionResult.newBuilder()
+                .setAction(Execute.ExecutionResult.Action.ABORT)
+                .setErrorResponse(throwable.toString()))
+        .build();
+  }
+
+  /**
+   * Writes the Execution Protocol Buffer Message in the format of the request.
+   *
+   * @param response HttpResponse to write to.
+   * @param execution Execution Protocol Buffer Message to write.
+   * @param contentStreaming Whether the request was an {@link ExecutionStream}.
+   * @throws IOException
+   */
+  private void writeExecution(
+      HttpResponse response, Execute.Execution execution, boolean contentStreaming)
+      throws IOException {
+    if (contentStreaming) {
+      response.setContentType(ExecutionStream.CONTENT_TYPE);
+      new ExecutionStream.Writer(response.getOutputStream()).writeExecution(execution);
+    } else {
+      ExecutionWriter.write(response.getOutputStream(), execution);
     }
   }
 }
@@ -15,8 +15,10 @@
 package com.google.apigee;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
 
 import com.google.apigee.Execute.Execution;
 import com.google.cloud.functions.HttpRequest;
@@ -25,6 +27,10 @@ import com.google.protobuf.TextFormat;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -89,6 +95,164 @@ public class RemotePolicyExecutionTest {
         Execution.parseFrom(byteArrayOutputStream.toByteArray()).toBuilder().build());
   }
 
+  @Test
+  public void testServiceIndexedHeaders() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    header_map {"
+            + "      key: \"x-custom\""
+            + "      value {"
+            + "        headers: \"custom\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + "executionContext {"
+            + "}",
+        executionBuilder);
+
+    doReturn(HeaderNameTable.encode(executionBuilder.build()).toByteArray())
+        .when(inputStream)
+        .readAllBytes();
+    remotePolicyExecution.service(httpRequest, httpResponse);
+
+    Execution actual = Execution.parseFrom(byteArrayOutputStream.toByteArray());
+    assertEquals(Execution.HeaderEncoding.INDEXED, actual.getHeaderEncoding());
+    assertEquals(
+        "custom",
+        HeaderNameTable.decode(actual)
+            .getMessageContext()
+            .getTargetRequestMessage()
+            .getHeaderMapOrThrow("x-custom")
+            .getHeaders(0));
+  }
+
+  @Test
+  public void testServiceContentStreaming() throws Exception {
+    ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
+    ExecutionStream.Writer writer = new ExecutionStream.Writer(requestStream);
+    writer.writeExecution(
+        Execution.newBuilder()
+            .setContentStreaming(true)
+            .setMessageContext(
+                Execute.MessageContext.newBuilder()
+                    .setTargetRequestMessage(Execute.Message.getDefaultInstance()))
+            .build());
+    writer.writeContent(
+        Execute.ContentChunk.MessageType.TARGET_REQUEST_MESSAGE,
+        new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)));
+
+    doReturn(Optional.of(ExecutionStream.CONTENT_TYPE)).when(httpRequest).getContentType();
+    doReturn(new ByteArrayInputStream(requestStream.toByteArray()))
+        .when(httpRequest)
+        .getInputStream();
+    remotePolicyExecution.service(httpRequest, httpResponse);
+
+    verify(httpResponse).setContentType(ExecutionStream.CONTENT_TYPE);
+    ExecutionStream.Reader reader =
+        new ExecutionStream.Reader(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    Execution actual = reader.readExecution();
+    assertEquals(Execute.ExecutionResult.Action.CONTINUE, actual.getExecutionResult().getAction());
+    assertEquals(
+        VALUE,
+        actual
+            .getMessageContext()
+            .getTargetRequestMessage()
+            .getFlowVariablesOrThrow(KEY)
+            .getFlowVariable());
+    assertNull(reader.nextContent());
+  }
+
+  @Test
+  public void testServiceBatch() throws Exception {
+    ByteArrayOutputStream requestStream = new ByteArrayOutputStream();
+    ExecutionBatch.write(
+        requestStream,
+        Arrays.asList(
+            Execution.getDefaultInstance().toByteArray(),
+            Execution.getDefaultInstance().toByteArray()));
+
+    doReturn(Optional.of(ExecutionBatch.CONTENT_TYPE)).when(httpRequest).getContentType();
+    doReturn(new ByteArrayInputStream(requestStream.toByteArray()))
+        .when(httpRequest)
+        .getInputStream();
+    remotePolicyExecution.service(httpRequest, httpResponse);
+
+    verify(httpResponse).setContentType(ExecutionBatch.CONTENT_TYPE);
+    List<Execution> results =
+        ExecutionBatch.read(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    assertEquals(2, results.size());
+    for (Execution result : results) {
+      assertEquals(
+          Execute.ExecutionResult.Action.CONTINUE, result.getExecutionResult().getAction());
+    }
+  }
+
+  @Test
+  public void testServicePolicyChain() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "  }"
+            + "}"
+            + "policy_chain {"
+            + "  policies: \"" + RemotePolicyExecution.POLICY_NAME + "\""
+            + "  policies: \"" + RemotePolicyExecution.POLICY_NAME + "\""
+            + "}",
+        executionBuilder);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    remotePolicyExecution.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "messageContext {"
+            + "  target_request_message {"
+            + "    flow_variables {"
+            + "      key: \"" + KEY + "\""
+            + "      value {"
+            + "        flow_variable: \"" + VALUE + "\""
+            + "      }"
+            + "    }"
+            + "  }"
+            + "}"
+            + "policy_chain {"
+            + "  policies: \"" + RemotePolicyExecution.POLICY_NAME + "\""
+            + "  policies: \"" + RemotePolicyExecution.POLICY_NAME + "\""
+            + "}"
+            + "executionResult {"
+            + "    action: CONTINUE"
+            + "    policy: \"" + RemotePolicyExecution.POLICY_NAME + "\""
+            + "}",
+        expectedBuilder);
+
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
+  @Test
+  public void testServicePolicyChainUnknownPolicy() throws Exception {
+    Execution.Builder executionBuilder = Execution.newBuilder();
+    TextFormat.merge("policy_chain { policies: \"Unknown\" }", executionBuilder);
+
+    doReturn(executionBuilder.build().toByteArray()).when(inputStream).readAllBytes();
+    remotePolicyExecution.service(httpRequest, httpResponse);
+
+    Execution.Builder expectedBuilder = Execution.newBuilder();
+    TextFormat.merge(
+        "executionResult {"
+            + "    action: ABORT"
+            + "    error_response: \"java.lang.IllegalArgumentException: unknown policy: Unknown\""
+            + "}",
+        expectedBuilder);
+
+    assertEquals(
+        expectedBuilder.build(), Execution.parseFrom(byteArrayOutputStream.toByteArray()));
+  }
+
   @Test
   public void testServiceException() throws Exception {
     doThrow(new IOException()).when(httpRequest).getInputStream();